@@ -23,9 +23,17 @@ LOCAL_CFLAGS += -D__linux__ -D__embedded__ -D__android__ -W -Wall
 LOCAL_C_INCLUDES       := $(LOCAL_PATH)/../../../../include
 LOCAL_SRC_FILES        := IBMatcher.cpp
 LOCAL_MODULE           := ibscanmatcherjni
-LOCAL_LDLIBS           := -llog
+LOCAL_LDLIBS           := -llog -ljnigraphics
 LOCAL_SHARED_LIBRARIES += ibscanmatcher
 
+# Only the pixel conversions are built with NEON; IBMatcher.cpp uses them if the CPU has NEON.
+ifeq ($(TARGET_ARCH_ABI), armeabi-v7a)
+LOCAL_CFLAGS           += -DIBMATCHER_HAVE_NEON
+LOCAL_SRC_FILES        += IBMatcherNeon.cpp.neon
+LOCAL_STATIC_LIBRARIES += cpufeatures
+endif
+
 include $(BUILD_SHARED_LIBRARY)
 
 $(call import-module, IBScanMatcher)
+$(call import-module, android/cpufeatures)
@@ -13,6 +13,7 @@
  ************************************************************************************************ */
 
 #include <jni.h>
+#include <stdint.h>
 #include <stdlib.h>
 #include <stdio.h>
 
@@ -35,6 +36,12 @@
 
 #ifdef __android__
 #include <android/log.h>
+#include <android/bitmap.h>
+#endif
+
+#if defined(IBMATCHER_HAVE_NEON)
+#include <cpu-features.h>
+#include "IBMatcherNeon.h"
 #endif
 
 /***************************************************************************************************
@@ -62,11 +69,32 @@
 #define IBSCANDEVICE_JAVA_CLASS_PATH "com/integratedbiometrics/ibscanultimate/IBScanDevice"
 #define IBSCAN_JAVA_CLASS_PATH       "com/integratedbiometrics/ibscanultimate/IBScan"
 #define STRING_CLASS_PATH            "java/lang/String"
+#define BYTEBUFFER_CLASS_PATH        "java/nio/ByteBuffer"
+
+/*
+ * Error codes without an IBSM_ERR_xxx equivalent; these match IBMatcherException.Type.
+ */
+#define IBMATCHER_ERR_INVALID_PARAM_VALUE (-1)
+#define IBMATCHER_ERR_FILE_READ           (-5)
+#define IBMATCHER_ERR_CONVERT_FAILED      (-609)
+
+/*
+ * Layout of a serialized IBSM template: header fields, minutiae buffer, reserved word.  This must
+ * agree with IBTemplateCodec.java.
+ */
+#define TEMPLATE_HEADER_LENGTH  28
+#define TEMPLATE_TRAILER_LENGTH 4
+#define TEMPLATE_BYTES_LENGTH   (TEMPLATE_HEADER_LENGTH + sizeof(((IBSM_Template *)0)->Minutiae) + TEMPLATE_TRAILER_LENGTH)
 
 /***************************************************************************************************
  * LOCAL VARIABLES
  **************************************************************************************************/
 
+#if defined(IBMATCHER_HAVE_NEON)
+/* Whether the CPU supports NEON, checked on load. */
+static BOOL      UseNeon                                             = FALSE;
+#endif
+
 static jclass    Class_IBMatcher                                     = NULL;
 static jfieldID  FieldID_IBMatcher_handleNative                      = NULL;
 
@@ -94,6 +122,13 @@ static jfieldID  FieldID_IBCommon_ImageDataExt_scaleUnit             = NULL;
 static jfieldID  FieldID_IBCommon_ImageDataExt_bitDepth              = NULL;
 static jfieldID  FieldID_IBCommon_ImageDataExt_imageData             = NULL;
 
+static jclass    Class_IBMatcher_DirectImageDataExt                  = NULL;
+static jmethodID MethodID_IBMatcher_DirectImageDataExt_DirectImageDataExt = NULL;
+static jfieldID  FieldID_IBMatcher_DirectImageDataExt_imageBuffer    = NULL;
+
+static jclass    Class_ByteBuffer                                    = NULL;
+static jmethodID MethodID_ByteBuffer_allocateDirect                  = NULL;
+
 static jclass    Class_IBMatcher_Template                            = NULL;
 static jmethodID MethodID_IBMatcher_Template_Template                = NULL;
 static jfieldID  FieldID_IBMatcher_Template_version                  = NULL;
@@ -109,6 +144,9 @@ static jfieldID  FieldID_IBMatcher_Template_imageSizeY               = NULL;
 static jfieldID  FieldID_IBMatcher_Template_minutiae                 = NULL;
 static jfieldID  FieldID_IBMatcher_Template_reserved                 = NULL;
 
+static jclass    Class_IBMatcher_NativeTemplate                      = NULL;
+static jfieldID  FieldID_IBMatcher_NativeTemplate_pointerNative      = NULL;
+
 static jclass    Class_IBCommon_ImageFormat                          = NULL;
 static jmethodID MethodID_IBCommon_ImageFormat_toCode                = NULL;
 
@@ -134,9 +172,19 @@ static jmethodID getMethodID          (JNIEnv *pEnv, jclass cclass, const char *
 static void      setNativeError       (JNIEnv *pEnv, jobject obj, int code);
 static int       getHandle            (JNIEnv *pEnv, jobject obj);
 static jobject   convertImageDataExt  (JNIEnv *pEnv, const IBSM_ImageData *pImage);
+static jobject   convertDirectImageDataExt(JNIEnv *pEnv, const IBSM_ImageData *pImage);
 static BOOL      unconvertImageDataExt(JNIEnv *pEnv, jobject imageDataExt, IBSM_ImageData *pImageExt);
+static BOOL      unconvertImageDataExtFields(JNIEnv *pEnv, jobject imageDataExt, IBSM_ImageData *pImageExt);
+static BOOL      isDirectImageDataExt (JNIEnv *pEnv, jobject imageDataExt);
+static void      freeImageDataExt     (JNIEnv *pEnv, jobject imageDataExt, IBSM_ImageData *pImageExt);
+static void      expandGrayRow        (const unsigned char *pGray, unsigned char *pRgba, int width);
+static void      invertGrayRow        (const unsigned char *pGray, unsigned char *pAlpha, int width);
 static jobject   convertTemplate      (JNIEnv *pEnv, const IBSM_Template *pTemplate);
 static BOOL      unconvertTemplate    (JNIEnv *pEnv, jobject ttemplate, IBSM_Template *pTemplate);
+static void      serializeTemplate    (const IBSM_Template *pTemplate, unsigned char *pBytes);
+static jbyteArray readFileBytes       (JNIEnv *pEnv, const char *filePath);
+static void      deserializeTemplate  (const unsigned char *pBytes, IBSM_Template *pTemplate);
+static IBSM_Template *getNativeTemplate(JNIEnv *pEnv, jobject ttemplate);
 
 /***************************************************************************************************
  * GLOBAL FUNCTIONS
@@ -157,6 +205,12 @@ jboolean IBMatcher_OnLoad
 
     LOG(("%s\n", __FUNCTION__));
 
+#if defined(IBMATCHER_HAVE_NEON)
+    /* Not every ARMv7 CPU has NEON (e.g., Tegra 2), so the NEON conversions are chosen here. */
+    UseNeon = ((android_getCpuFamily() == ANDROID_CPU_FAMILY_ARM)
+    		&& ((android_getCpuFeatures() & ANDROID_CPU_ARM_FEATURE_NEON) != 0));
+#endif
+
     /* Cached classes, field IDs, and method IDs. */
     res = vm->GetEnv((void **)&pEnv, JNI_VERSION_1_2);
     if (res < 0)
@@ -201,6 +255,22 @@ jboolean IBMatcher_OnLoad
             FieldID_IBCommon_ImageDataExt_scaleUnit             = getFieldID(pEnv, Class_IBCommon_ImageDataExt, "scaleUnit",             "B",  &ok);
             FieldID_IBCommon_ImageDataExt_bitDepth              = getFieldID(pEnv, Class_IBCommon_ImageDataExt, "bitDepth",              "B",  &ok);
             FieldID_IBCommon_ImageDataExt_imageData             = getFieldID(pEnv, Class_IBCommon_ImageDataExt, "imageData",             "[B", &ok);
+        }
+        Class_IBMatcher_DirectImageDataExt = findClass(pEnv, IBMATCHER_JAVA_CLASS_PATH "$DirectImageDataExt", &ok);
+        if (Class_IBMatcher_DirectImageDataExt != NULL)
+        {
+            MethodID_IBMatcher_DirectImageDataExt_DirectImageDataExt = getMethodID(pEnv, Class_IBMatcher_DirectImageDataExt, "<init>", "(IIIISSSSSSSSBBL" BYTEBUFFER_CLASS_PATH ";)V", &ok);
+            FieldID_IBMatcher_DirectImageDataExt_imageBuffer         = getFieldID(pEnv, Class_IBMatcher_DirectImageDataExt, "imageBuffer", "L" BYTEBUFFER_CLASS_PATH ";", &ok);
+        }
+        Class_ByteBuffer = findClass(pEnv, BYTEBUFFER_CLASS_PATH, &ok);
+        if (Class_ByteBuffer != NULL)
+        {
+            MethodID_ByteBuffer_allocateDirect = pEnv->GetStaticMethodID(Class_ByteBuffer, "allocateDirect", "(I)L" BYTEBUFFER_CLASS_PATH ";");
+            if (MethodID_ByteBuffer_allocateDirect == NULL)
+            {
+                LOG(("unable to get static method ID allocateDirect\n"));
+                ok = FALSE;
+            }
         }
 		Class_IBMatcher_Template = findClass(pEnv, IBMATCHER_JAVA_CLASS_PATH "$Template", &ok);
         if (Class_IBMatcher_Template != NULL)
@@ -219,6 +289,11 @@ jboolean IBMatcher_OnLoad
             FieldID_IBMatcher_Template_minutiae              = getFieldID(pEnv, Class_IBMatcher_Template, "minutiae",              "[B", &ok);
             FieldID_IBMatcher_Template_reserved              = getFieldID(pEnv, Class_IBMatcher_Template, "reserved",              "I", &ok);
         }
+        Class_IBMatcher_NativeTemplate = findClass(pEnv, IBMATCHER_JAVA_CLASS_PATH "$NativeTemplate", &ok);
+        if (Class_IBMatcher_NativeTemplate != NULL)
+        {
+            FieldID_IBMatcher_NativeTemplate_pointerNative = getFieldID(pEnv, Class_IBMatcher_NativeTemplate, "m_pointerNative", "J", &ok);
+        }
         Class_IBCommon_ImageFormat = findClass(pEnv, IBCOMMON_JAVA_CLASS_PATH "$ImageFormat", &ok);
         if (Class_IBCommon_ImageFormat != NULL)
         {
@@ -287,6 +362,24 @@ JNIEXPORT jint JNICALL IBMATCHER_BUILD_JNI_FNCT(initNative)(
     return (matcherHandle);
 }
 
+/*
+ * private native void closeNative(NativeError error);
+ */
+JNIEXPORT void JNICALL IBMATCHER_BUILD_JNI_FNCT(closeNative)(
+    JNIEnv  *pEnv,
+	jobject  tthis,
+	jobject  error)
+{
+	int matcherHandle;
+	int nRc;
+
+	LOG(("%s\n", __FUNCTION__));
+
+	matcherHandle = getHandle(pEnv, tthis);
+	nRc           = IBSM_CloseMatcher(matcherHandle);
+	setNativeError(pEnv, error, nRc);
+}
+
 /*
  * private native SdkVersion getSdkVersionNative(NativeError error);
  */
@@ -357,7 +450,7 @@ JNIEXPORT jobject JNICALL IBMATCHER_BUILD_JNI_FNCT(extractTemplateNative)(
 
     LOG(("%s\n", __FUNCTION__));
 
-    /* Extract C image data from Java.  We will need to free the buffer later. */
+    /* Extract C image data from Java.  We may need to free the buffer later. */
     ok = unconvertImageDataExt(pEnv, imageDataExt, &imageDataExtC);
     if (!ok)
     {
@@ -385,8 +478,8 @@ JNIEXPORT jobject JNICALL IBMATCHER_BUILD_JNI_FNCT(extractTemplateNative)(
         	}
         }
 
-        /* Free the buffer. */
-        free(imageDataExtC.ImageData);
+        /* Free the buffer, unless it is the image's direct buffer. */
+        freeImageDataExt(pEnv, imageDataExt, &imageDataExtC);
     }
 
     return (ttemplateJ);
@@ -409,7 +502,7 @@ JNIEXPORT jobject JNICALL IBMATCHER_BUILD_JNI_FNCT(compressImageNative)(
 
     LOG(("%s\n", __FUNCTION__));
 
-    /* Extract C image data from Java.  We will need to free the buffer later. */
+    /* Extract C image data from Java.  We may need to free the buffer later. */
     ok = unconvertImageDataExt(pEnv, imageDataExt, &imageDataExtC);
     if (!ok)
     {
@@ -430,7 +523,15 @@ JNIEXPORT jobject JNICALL IBMATCHER_BUILD_JNI_FNCT(compressImageNative)(
 
 		if (nRc == IBSM_STATUS_OK)
 		{
-			imageDataExtOutJ = convertImageDataExt(pEnv, &imageDataExtOutC);
+			/* Return a direct image for a direct image. */
+			if (isDirectImageDataExt(pEnv, imageDataExt))
+			{
+				imageDataExtOutJ = convertDirectImageDataExt(pEnv, &imageDataExtOutC);
+			}
+			else
+			{
+				imageDataExtOutJ = convertImageDataExt(pEnv, &imageDataExtOutC);
+			}
 			if (imageDataExtOutJ == NULL)
 			{
 		        setNativeError(pEnv, error, IBSM_ERR_MEM_ALLOC);
@@ -438,8 +539,8 @@ JNIEXPORT jobject JNICALL IBMATCHER_BUILD_JNI_FNCT(compressImageNative)(
 			}
 		}
 
-        /* Free the buffer. */
-		free(imageDataExtC.ImageData);
+        /* Free the buffer, unless it is the image's direct buffer. */
+		freeImageDataExt(pEnv, imageDataExt, &imageDataExtC);
     }
 
     return (imageDataExtOutJ);
@@ -460,7 +561,7 @@ JNIEXPORT jobject JNICALL IBMATCHER_BUILD_JNI_FNCT(decompressImageNative)(
 
     LOG(("%s\n", __FUNCTION__));
 
-    /* Extract C image data from Java.  We will need to free the buffer later. */
+    /* Extract C image data from Java.  We may need to free the buffer later. */
     ok = unconvertImageDataExt(pEnv, imageDataExt, &imageDataExtC);
     if (!ok)
     {
@@ -481,7 +582,15 @@ JNIEXPORT jobject JNICALL IBMATCHER_BUILD_JNI_FNCT(decompressImageNative)(
 
 		if (nRc == IBSM_STATUS_OK)
 		{
-			imageDataExtOutJ = convertImageDataExt(pEnv, &imageDataExtOutC);
+			/* Return a direct image for a direct image. */
+			if (isDirectImageDataExt(pEnv, imageDataExt))
+			{
+				imageDataExtOutJ = convertDirectImageDataExt(pEnv, &imageDataExtOutC);
+			}
+			else
+			{
+				imageDataExtOutJ = convertImageDataExt(pEnv, &imageDataExtOutC);
+			}
 			if (imageDataExtOutJ == NULL)
 			{
 		        setNativeError(pEnv, error, IBSM_ERR_MEM_ALLOC);
@@ -489,13 +598,126 @@ JNIEXPORT jobject JNICALL IBMATCHER_BUILD_JNI_FNCT(decompressImageNative)(
 			}
 		}
 
-        /* Free the buffer. */
-		free(imageDataExtC.ImageData);
+        /* Free the buffer, unless it is the image's direct buffer. */
+		freeImageDataExt(pEnv, imageDataExt, &imageDataExtC);
     }
 
     return (imageDataExtOutJ);
 }
 
+/*
+ * private native boolean renderImageNative(ImageDataExt imageDataExt, Bitmap bitmap);
+ */
+JNIEXPORT jboolean JNICALL IBMATCHER_BUILD_JNI_FNCT(renderImageNative)(
+    JNIEnv  *pEnv,
+	jobject  tthis,
+	jobject  imageDataExt,
+	jobject  bitmap)
+{
+	jboolean okJ = JNI_FALSE;
+
+	USE_PARAM(tthis);
+
+	LOG(("%s\n", __FUNCTION__));
+
+#ifdef __android__
+	AndroidBitmapInfo info;
+	int               width;
+	int               height;
+
+	width  = pEnv->GetShortField(imageDataExt, FieldID_IBCommon_ImageDataExt_imageSizeX);
+	height = pEnv->GetShortField(imageDataExt, FieldID_IBCommon_ImageDataExt_imageSizeY);
+
+	if (AndroidBitmap_getInfo(pEnv, bitmap, &info) != ANDROID_BITMAP_RESULT_SUCCESS)
+	{
+		LOG(("%s: unable to get bitmap info\n", __FUNCTION__));
+	}
+	else if ((info.width != (uint32_t)width) || (info.height != (uint32_t)height) ||
+			((info.format != ANDROID_BITMAP_FORMAT_RGBA_8888) && (info.format != ANDROID_BITMAP_FORMAT_A_8)))
+	{
+		LOG(("%s: bitmap does not fit image\n", __FUNCTION__));
+	}
+	else
+	{
+		void *pixels;
+
+		if (AndroidBitmap_lockPixels(pEnv, bitmap, &pixels) != ANDROID_BITMAP_RESULT_SUCCESS)
+		{
+			LOG(("%s: unable to lock bitmap pixels\n", __FUNCTION__));
+		}
+		else
+		{
+			const unsigned char *gray       = NULL;
+			jbyteArray           imageDataJ = NULL;
+
+			/* Read the pixels in place, from the direct buffer or the pinned array. */
+			if (isDirectImageDataExt(pEnv, imageDataExt))
+			{
+				jobject imageBufferJ;
+
+				imageBufferJ = pEnv->GetObjectField(imageDataExt, FieldID_IBMatcher_DirectImageDataExt_imageBuffer);
+				if ((imageBufferJ != NULL) && (pEnv->GetDirectBufferCapacity(imageBufferJ) >= width * height))
+				{
+					gray = (const unsigned char *)pEnv->GetDirectBufferAddress(imageBufferJ);
+				}
+			}
+			else
+			{
+				imageDataJ = (jbyteArray)pEnv->GetObjectField(imageDataExt, FieldID_IBCommon_ImageDataExt_imageData);
+				if ((imageDataJ != NULL) && (pEnv->GetArrayLength(imageDataJ) >= width * height))
+				{
+					gray = (const unsigned char *)pEnv->GetPrimitiveArrayCritical(imageDataJ, NULL);
+				}
+			}
+
+			if (gray == NULL)
+			{
+				LOG(("%s: unable to get image pixels\n", __FUNCTION__));
+			}
+			else
+			{
+				int y;
+
+				/*
+				 * The image in the buffer is flipped vertically from what the Bitmap class expects;
+				 * we will flip it to compensate while moving it into the bitmap.
+				 */
+				for (y = 0; y < height; y++)
+				{
+					const unsigned char *pGray  = gray + (height - y - 1) * width;
+					unsigned char       *pPixel = (unsigned char *)pixels + y * info.stride;
+
+					if (info.format == ANDROID_BITMAP_FORMAT_A_8)
+					{
+						invertGrayRow(pGray, pPixel, width);
+					}
+					else
+					{
+						expandGrayRow(pGray, pPixel, width);
+					}
+				}
+
+				if (imageDataJ != NULL)
+				{
+					pEnv->ReleasePrimitiveArrayCritical(imageDataJ, (void *)gray, JNI_ABORT);
+				}
+				okJ = JNI_TRUE;
+			}
+
+			AndroidBitmap_unlockPixels(pEnv, bitmap);
+		}
+	}
+#else
+	USE_PARAM(pEnv);
+	USE_PARAM(imageDataExt);
+	USE_PARAM(bitmap);
+
+	LOG(("%s: bitmaps are not supported on this platform\n", __FUNCTION__));
+#endif
+
+	return (okJ);
+}
+
 /*
  * private native boolean saveImageNative(ImageDataExt imageDataExt, String filePath,
  *     NativeError error);
@@ -513,7 +735,7 @@ JNIEXPORT jboolean JNICALL IBMATCHER_BUILD_JNI_FNCT(saveImageNative)(
 
 	LOG(("%s\n", __FUNCTION__));
 
-    /* Extract C image data from Java.  We will need to free the buffer later. */
+    /* Extract C image data from Java.  We may need to free the buffer later. */
 	ok = unconvertImageDataExt(pEnv, imageDataExt, &imageDataExtC);
 	if (!ok)
 	{
@@ -543,8 +765,8 @@ JNIEXPORT jboolean JNICALL IBMATCHER_BUILD_JNI_FNCT(saveImageNative)(
 			pEnv->ReleaseStringUTFChars(filePath, filePathC);
 		}
 
-        /* Free the buffer. */
-		free(imageDataExtC.ImageData);
+        /* Free the buffer, unless it is the image's direct buffer. */
+		freeImageDataExt(pEnv, imageDataExt, &imageDataExtC);
 	}
 
 	return (okJ);
@@ -615,7 +837,7 @@ JNIEXPORT jboolean JNICALL IBMATCHER_BUILD_JNI_FNCT(saveImageAsFirNative)(
 
 	LOG(("%s\n", __FUNCTION__));
 
-    /* Extract C image data from Java.  We will need to free the buffer later. */
+    /* Extract C image data from Java.  We may need to free the buffer later. */
 	ok = unconvertImageDataExt(pEnv, imageDataExt, &imageDataExtC);
 	if (!ok)
 	{
@@ -653,8 +875,8 @@ JNIEXPORT jboolean JNICALL IBMATCHER_BUILD_JNI_FNCT(saveImageAsFirNative)(
 			}
 		}
 
-        /* Free the buffer. */
-		free(imageDataExtC.ImageData);
+        /* Free the buffer, unless it is the image's direct buffer. */
+		freeImageDataExt(pEnv, imageDataExt, &imageDataExtC);
 	}
 
 	return (okJ);
@@ -947,148 +1169,737 @@ JNIEXPORT jobject JNICALL IBMATCHER_BUILD_JNI_FNCT(loadTemplateFromFmrNative)(
 }
 
 /*
- * private native int matchTemplatesNative(Template template1, Template template2,
- * 		NativeError error);
+ * private native byte[] saveTemplateAsFmrToBytesNative(Template template, String stagingPath,
+ *		NativeError error);
  */
-JNIEXPORT jint JNICALL IBMATCHER_BUILD_JNI_FNCT(matchTemplatesNative)(
+JNIEXPORT jbyteArray JNICALL IBMATCHER_BUILD_JNI_FNCT(saveTemplateAsFmrToBytesNative)(
     JNIEnv  *pEnv,
 	jobject  tthis,
-	jobject  template1,
-	jobject  template2,
+	jobject  ttemplate,
+	jstring  stagingPath,
 	jobject  error)
 {
-	IBSM_Template template1C;
-	int           matchingScore = -1;
+	IBSM_Template ttemplateC;
+	jbyteArray    bytesJ = NULL;
 	BOOL          ok;
 
 	LOG(("%s\n", __FUNCTION__));
 
-	ok = unconvertTemplate(pEnv, template1, &template1C);
+	ok = unconvertTemplate(pEnv, ttemplate, &ttemplateC);
 	if (!ok)
 	{
         setNativeError(pEnv, error, IBSM_ERR_MEM_ALLOC);
-    	LOG(("%s: unable to unconvert first template\n", __FUNCTION__));
+    	LOG(("%s: unable to unconvert template\n", __FUNCTION__));
 	}
 	else
 	{
-		IBSM_Template template2C;
+		int     matcherHandle;
+		int     nRc;
+		ISO_FMR fmr;
 
-		ok = unconvertTemplate(pEnv, template2, &template2C);
-		if (!ok)
-		{
-	        setNativeError(pEnv, error, IBSM_ERR_MEM_ALLOC);
-	    	LOG(("%s: unable to unconvert second template\n", __FUNCTION__));
-		}
-		else
+		matcherHandle = getHandle(pEnv, tthis);
+
+		memset(&fmr, 0, sizeof(fmr));
+		nRc = IBSM_ConvertTemplate_IBSMtoISO(matcherHandle, ttemplateC, &fmr);
+		setNativeError(pEnv, error, nRc);
+
+		if (nRc == IBSM_STATUS_OK)
 		{
-			int matcherHandle;
-			int nRc;
+			char *stagingPathC;
 
-			matcherHandle = getHandle(pEnv, tthis);
-			nRc           = IBSM_MatchingTemplate(matcherHandle, template1C, template2C,
-								&matchingScore);
-			setNativeError(pEnv, error, nRc);
+			stagingPathC = (char *)pEnv->GetStringUTFChars(stagingPath, NULL);
+			if (stagingPathC == NULL)
+			{
+		        setNativeError(pEnv, error, IBSM_ERR_MEM_ALLOC);
+		    	LOG(("%s: unable to get string characters\n", __FUNCTION__));
+			}
+			else
+			{
+				/* The library only writes FMRs to paths; read the record straight back. */
+				nRc = IBSM_SaveFMR(matcherHandle, stagingPathC, fmr);
+				setNativeError(pEnv, error, nRc);
+
+				if (nRc == IBSM_STATUS_OK)
+				{
+					bytesJ = readFileBytes(pEnv, stagingPathC);
+					if (bytesJ == NULL)
+					{
+						setNativeError(pEnv, error, IBMATCHER_ERR_FILE_READ);
+				    	LOG(("%s: unable to read staged FMR\n", __FUNCTION__));
+					}
+				}
+
+				pEnv->ReleaseStringUTFChars(stagingPath, stagingPathC);
+			}
 		}
 	}
 
-	return (matchingScore);
+	return (bytesJ);
 }
 
 /*
- * private native void setMatchingLevelNative(int matchingLevel, NativeError error);
+ * private native byte[] saveTemplateToBytesNative(Template template, NativeError error);
  */
-JNIEXPORT void JNICALL IBMATCHER_BUILD_JNI_FNCT(setMatchingLevelNative)(
+JNIEXPORT jbyteArray JNICALL IBMATCHER_BUILD_JNI_FNCT(saveTemplateToBytesNative)(
     JNIEnv  *pEnv,
 	jobject  tthis,
-	jint     matchingLevel,
+	jobject  ttemplate,
 	jobject  error)
 {
-	int matcherHandle;
-	int nRc;
+	IBSM_Template ttemplateC;
+	jbyteArray    bytesJ = NULL;
+	BOOL          ok;
 
-	matcherHandle = getHandle(pEnv, tthis);
-	nRc           = IBSM_SetMatchingLevel(matcherHandle, matchingLevel);
-	setNativeError(pEnv, error, nRc);
-}
+	LOG(("%s\n", __FUNCTION__));
 
-/*
- * private native int getMatchingLevelNative(NativeError error);
- */
-JNIEXPORT jint JNICALL IBMATCHER_BUILD_JNI_FNCT(getMatchingLevelNative)(
-    JNIEnv  *pEnv,
-	jobject  tthis,
-	jobject  error)
-{
-	int matcherHandle;
-	int nRc;
-	int matchingLevel = -1;
+	USE_PARAM(tthis);
 
-	matcherHandle = getHandle(pEnv, tthis);
-	nRc           = IBSM_GetMatchingLevel(matcherHandle, &matchingLevel);
-	setNativeError(pEnv, error, nRc);
+	ok = unconvertTemplate(pEnv, ttemplate, &ttemplateC);
+	if (!ok)
+	{
+        setNativeError(pEnv, error, IBSM_ERR_MEM_ALLOC);
+    	LOG(("%s: unable to unconvert template\n", __FUNCTION__));
+	}
+	else
+	{
+		bytesJ = pEnv->NewByteArray(TEMPLATE_BYTES_LENGTH);
+		if (bytesJ == NULL)
+		{
+			setNativeError(pEnv, error, IBSM_ERR_MEM_ALLOC);
+			LOG(("%s: unable to allocate array of size %d\n", __FUNCTION__, TEMPLATE_BYTES_LENGTH));
+		}
+		else
+		{
+			unsigned char bytesC[TEMPLATE_BYTES_LENGTH];
 
-	return (matchingLevel);
+			serializeTemplate(&ttemplateC, bytesC);
+			pEnv->SetByteArrayRegion(bytesJ, 0, TEMPLATE_BYTES_LENGTH, (const jbyte *)bytesC);
+			setNativeError(pEnv, error, IBSM_STATUS_OK);
+		}
+	}
+
+	return (bytesJ);
 }
 
 /*
- * private native Template singleEnrollmentNative(ImageDataExt imageDataExt1,
- *		ImageDataExt imageDataExt2, ImageDataExt imageDataExt3, NativeError error);
+ * private native int saveTemplateToBufferNative(Template template, ByteBuffer buffer, int offset,
+ *		int length, NativeError error);
  */
-JNIEXPORT jobject JNICALL IBMATCHER_BUILD_JNI_FNCT(singleEnrollmentNative)(
+JNIEXPORT jint JNICALL IBMATCHER_BUILD_JNI_FNCT(saveTemplateToBufferNative)(
     JNIEnv  *pEnv,
 	jobject  tthis,
-	jobject  imageDataExt1,
-	jobject  imageDataExt2,
-	jobject  imageDataExt3,
+	jobject  ttemplate,
+	jobject  buffer,
+	jint     offset,
+	jint     length,
 	jobject  error)
 {
-	IBSM_ImageData imageDataExt1C;
-	jobject        ttemplate = NULL;
-	BOOL           ok;
+	unsigned char *bufferC;
+	jint           written = 0;
 
 	LOG(("%s\n", __FUNCTION__));
 
-	ok = unconvertImageDataExt(pEnv, imageDataExt1, &imageDataExt1C);
-	if (!ok)
+	USE_PARAM(tthis);
+
+	bufferC = (unsigned char *)pEnv->GetDirectBufferAddress(buffer);
+	if ((bufferC == NULL) || (offset < 0) || (length < (jint)TEMPLATE_BYTES_LENGTH) ||
+			(pEnv->GetDirectBufferCapacity(buffer) - offset < (jlong)length))
 	{
-        setNativeError(pEnv, error, IBSM_ERR_MEM_ALLOC);
-    	LOG(("%s: unable to unconvert first image data\n", __FUNCTION__));
+		setNativeError(pEnv, error, IBMATCHER_ERR_INVALID_PARAM_VALUE);
+		LOG(("%s: buffer is not direct or is too small\n", __FUNCTION__));
 	}
 	else
 	{
-		IBSM_ImageData imageDataExt2C;
+		IBSM_Template ttemplateC;
+		BOOL          ok;
 
-		ok = unconvertImageDataExt(pEnv, imageDataExt2, &imageDataExt2C);
+		ok = unconvertTemplate(pEnv, ttemplate, &ttemplateC);
 		if (!ok)
 		{
 	        setNativeError(pEnv, error, IBSM_ERR_MEM_ALLOC);
-	    	LOG(("%s: unable to unconvert second image data\n", __FUNCTION__));
+	    	LOG(("%s: unable to unconvert template\n", __FUNCTION__));
 		}
 		else
 		{
-			IBSM_ImageData imageDataExt3C;
-
-			ok = unconvertImageDataExt(pEnv, imageDataExt3, &imageDataExt3C);
-			if (!ok)
-			{
-		        setNativeError(pEnv, error, IBSM_ERR_MEM_ALLOC);
-		    	LOG(("%s: unable to unconvert third image data\n", __FUNCTION__));
-			}
-			else
-			{
-				int           matcherHandle;
-				int           nRc;
-				IBSM_Template ttemplateC;
+			/* Write straight into the caller's buffer. */
+			serializeTemplate(&ttemplateC, bufferC + offset);
+			written = TEMPLATE_BYTES_LENGTH;
+			setNativeError(pEnv, error, IBSM_STATUS_OK);
+		}
+	}
 
-				memset(&ttemplateC, 0, sizeof(ttemplateC));
-				matcherHandle = getHandle(pEnv, tthis);
-				nRc           = IBSM_SingleEnrollment(matcherHandle, imageDataExt1C, imageDataExt2C,
-									imageDataExt3C, &ttemplateC);
-				setNativeError(pEnv, error, nRc);
+	return (written);
+}
 
-				if (nRc == IBSM_STATUS_OK)
-				{
-					ttemplate = convertTemplate(pEnv, &ttemplateC);
+/*
+ * private native Template loadTemplateFromBytesNative(byte[] bytes, int offset, int length,
+ *		NativeError error);
+ */
+JNIEXPORT jobject JNICALL IBMATCHER_BUILD_JNI_FNCT(loadTemplateFromBytesNative)(
+    JNIEnv     *pEnv,
+	jobject     tthis,
+	jbyteArray  bytes,
+	jint        offset,
+	jint        length,
+	jobject     error)
+{
+	jobject ttemplate = NULL;
+
+	LOG(("%s\n", __FUNCTION__));
+
+	USE_PARAM(tthis);
+
+	if ((length != (jint)TEMPLATE_BYTES_LENGTH) || (offset < 0) ||
+			(pEnv->GetArrayLength(bytes) - offset < length))
+	{
+		setNativeError(pEnv, error, IBMATCHER_ERR_CONVERT_FAILED);
+		LOG(("%s: template record has length %d, expected %d\n", __FUNCTION__, length, TEMPLATE_BYTES_LENGTH));
+	}
+	else
+	{
+		unsigned char bytesC[TEMPLATE_BYTES_LENGTH];
+		IBSM_Template ttemplateC;
+
+		pEnv->GetByteArrayRegion(bytes, offset, length, (jbyte *)bytesC);
+		deserializeTemplate(bytesC, &ttemplateC);
+
+		ttemplate = convertTemplate(pEnv, &ttemplateC);
+		if (ttemplate == NULL)
+		{
+			setNativeError(pEnv, error, IBSM_ERR_MEM_ALLOC);
+			LOG(("%s: unable to convert template\n", __FUNCTION__));
+		}
+		else
+		{
+			setNativeError(pEnv, error, IBSM_STATUS_OK);
+		}
+	}
+
+	return (ttemplate);
+}
+
+/*
+ * private native Template loadTemplateFromBufferNative(ByteBuffer buffer, int offset, int length,
+ *		NativeError error);
+ */
+JNIEXPORT jobject JNICALL IBMATCHER_BUILD_JNI_FNCT(loadTemplateFromBufferNative)(
+    JNIEnv  *pEnv,
+	jobject  tthis,
+	jobject  buffer,
+	jint     offset,
+	jint     length,
+	jobject  error)
+{
+	const unsigned char *bufferC;
+	jobject              ttemplate = NULL;
+
+	LOG(("%s\n", __FUNCTION__));
+
+	USE_PARAM(tthis);
+
+	bufferC = (const unsigned char *)pEnv->GetDirectBufferAddress(buffer);
+	if (bufferC == NULL)
+	{
+		setNativeError(pEnv, error, IBMATCHER_ERR_INVALID_PARAM_VALUE);
+		LOG(("%s: buffer is not direct\n", __FUNCTION__));
+	}
+	else if ((length != (jint)TEMPLATE_BYTES_LENGTH) || (offset < 0) ||
+			(pEnv->GetDirectBufferCapacity(buffer) - offset < (jlong)length))
+	{
+		setNativeError(pEnv, error, IBMATCHER_ERR_CONVERT_FAILED);
+		LOG(("%s: template record has length %d, expected %d\n", __FUNCTION__, length, TEMPLATE_BYTES_LENGTH));
+	}
+	else
+	{
+		IBSM_Template ttemplateC;
+
+		/* Read straight from the caller's buffer. */
+		deserializeTemplate(bufferC + offset, &ttemplateC);
+
+		ttemplate = convertTemplate(pEnv, &ttemplateC);
+		if (ttemplate == NULL)
+		{
+			setNativeError(pEnv, error, IBSM_ERR_MEM_ALLOC);
+			LOG(("%s: unable to convert template\n", __FUNCTION__));
+		}
+		else
+		{
+			setNativeError(pEnv, error, IBSM_STATUS_OK);
+		}
+	}
+
+	return (ttemplate);
+}
+
+/*
+ * private native int matchTemplatesNative(Template template1, Template template2,
+ * 		NativeError error);
+ */
+JNIEXPORT jint JNICALL IBMATCHER_BUILD_JNI_FNCT(matchTemplatesNative)(
+    JNIEnv  *pEnv,
+	jobject  tthis,
+	jobject  template1,
+	jobject  template2,
+	jobject  error)
+{
+	IBSM_Template template1C;
+	int           matchingScore = -1;
+	BOOL          ok;
+
+	LOG(("%s\n", __FUNCTION__));
+
+	ok = unconvertTemplate(pEnv, template1, &template1C);
+	if (!ok)
+	{
+        setNativeError(pEnv, error, IBSM_ERR_MEM_ALLOC);
+    	LOG(("%s: unable to unconvert first template\n", __FUNCTION__));
+	}
+	else
+	{
+		IBSM_Template template2C;
+
+		ok = unconvertTemplate(pEnv, template2, &template2C);
+		if (!ok)
+		{
+	        setNativeError(pEnv, error, IBSM_ERR_MEM_ALLOC);
+	    	LOG(("%s: unable to unconvert second template\n", __FUNCTION__));
+		}
+		else
+		{
+			int matcherHandle;
+			int nRc;
+
+			matcherHandle = getHandle(pEnv, tthis);
+			nRc           = IBSM_MatchingTemplate(matcherHandle, template1C, template2C,
+								&matchingScore);
+			setNativeError(pEnv, error, nRc);
+		}
+	}
+
+	return (matchingScore);
+}
+
+/*
+ * private native int matchTemplatesBatchNative(Template probe, Template[] gallery, int offset,
+ *		int count, int[] scores, NativeError error);
+ */
+JNIEXPORT jint JNICALL IBMATCHER_BUILD_JNI_FNCT(matchTemplatesBatchNative)(
+    JNIEnv       *pEnv,
+	jobject       tthis,
+	jobject       probe,
+	jobjectArray  gallery,
+	jint          offset,
+	jint          count,
+	jintArray     scores,
+	jobject       error)
+{
+	IBSM_Template probeC;
+	jint          failures = 0;
+	BOOL          ok;
+
+	LOG(("%s\n", __FUNCTION__));
+
+	/* The probe is converted once for the whole batch. */
+	ok = unconvertTemplate(pEnv, probe, &probeC);
+	if (!ok)
+	{
+        setNativeError(pEnv, error, IBSM_ERR_MEM_ALLOC);
+    	LOG(("%s: unable to unconvert probe template\n", __FUNCTION__));
+	}
+	else
+	{
+		/* Scores start at 0, so a failed or skipped element scores 0. */
+		jint *scoresC = (jint *)calloc(count, sizeof(jint));
+		if (scoresC == NULL)
+		{
+	        setNativeError(pEnv, error, IBSM_ERR_MEM_ALLOC);
+	    	LOG(("%s: unable to allocate %d scores\n", __FUNCTION__, count));
+		}
+		else
+		{
+			int matcherHandle;
+			int nRc = IBSM_STATUS_OK;
+			int i;
+
+			matcherHandle = getHandle(pEnv, tthis);
+			for (i = 0; i < count; i++)
+			{
+				IBSM_Template templateC;
+				jobject       templateJ;
+
+				/* Each element's local references are freed before the next is converted. */
+				if (pEnv->PushLocalFrame(8) != 0)
+				{
+					/* The pending OutOfMemoryError is reported through the native error instead. */
+					pEnv->ExceptionClear();
+					nRc = IBSM_ERR_MEM_ALLOC;
+			    	LOG(("%s: unable to push local frame\n", __FUNCTION__));
+					break;
+				}
+				templateJ = pEnv->GetObjectArrayElement(gallery, offset + i);
+				if ((templateJ == NULL) || !unconvertTemplate(pEnv, templateJ, &templateC))
+				{
+					failures++;
+			    	LOG(("%s: unable to unconvert gallery template %d\n", __FUNCTION__, offset + i));
+				}
+				else
+				{
+					int matchingScore = 0;
+					int nRcMatch;
+
+					nRcMatch = IBSM_MatchingTemplate(matcherHandle, probeC, templateC, &matchingScore);
+					if (nRcMatch == IBSM_STATUS_OK)
+					{
+						scoresC[i] = matchingScore;
+					}
+					else
+					{
+						failures++;
+				    	LOG(("%s: match of gallery template %d failed with %d\n", __FUNCTION__, offset + i, nRcMatch));
+					}
+				}
+				pEnv->PopLocalFrame(NULL);
+			}
+
+			/* On error, the caller gets the error rather than partial scores. */
+			if (nRc == IBSM_STATUS_OK)
+			{
+				pEnv->SetIntArrayRegion(scores, offset, count, scoresC);
+			}
+			free(scoresC);
+			setNativeError(pEnv, error, nRc);
+		}
+	}
+
+	return (failures);
+}
+
+/*
+ * private native long createNativeTemplateNative(Template template, NativeError error);
+ */
+JNIEXPORT jlong JNICALL IBMATCHER_BUILD_JNI_FNCT(createNativeTemplateNative)(
+    JNIEnv  *pEnv,
+	jobject  tthis,
+	jobject  ttemplate,
+	jobject  error)
+{
+	IBSM_Template *pTemplateC;
+
+	LOG(("%s\n", __FUNCTION__));
+
+	USE_PARAM(tthis);
+
+	pTemplateC = (IBSM_Template *)malloc(sizeof(IBSM_Template));
+	if (pTemplateC == NULL)
+	{
+        setNativeError(pEnv, error, IBSM_ERR_MEM_ALLOC);
+    	LOG(("%s: unable to allocate template\n", __FUNCTION__));
+	}
+	else if (!unconvertTemplate(pEnv, ttemplate, pTemplateC))
+	{
+		free(pTemplateC);
+		pTemplateC = NULL;
+        setNativeError(pEnv, error, IBSM_ERR_MEM_ALLOC);
+    	LOG(("%s: unable to unconvert template\n", __FUNCTION__));
+	}
+	else
+	{
+		setNativeError(pEnv, error, IBSM_STATUS_OK);
+	}
+
+	return ((jlong)(intptr_t)pTemplateC);
+}
+
+/*
+ * private native long createNativeTemplateFromBytesNative(byte[] bytes, int offset, int length,
+ *		NativeError error);
+ */
+JNIEXPORT jlong JNICALL IBMATCHER_BUILD_JNI_FNCT(createNativeTemplateFromBytesNative)(
+    JNIEnv     *pEnv,
+	jobject     tthis,
+	jbyteArray  bytes,
+	jint        offset,
+	jint        length,
+	jobject     error)
+{
+	IBSM_Template *pTemplateC = NULL;
+
+	LOG(("%s\n", __FUNCTION__));
+
+	USE_PARAM(tthis);
+
+	if ((length != (jint)TEMPLATE_BYTES_LENGTH) || (offset < 0) ||
+			(pEnv->GetArrayLength(bytes) - offset < length))
+	{
+		setNativeError(pEnv, error, IBMATCHER_ERR_CONVERT_FAILED);
+		LOG(("%s: template record has length %d, expected %d\n", __FUNCTION__, length, TEMPLATE_BYTES_LENGTH));
+	}
+	else
+	{
+		pTemplateC = (IBSM_Template *)malloc(sizeof(IBSM_Template));
+		if (pTemplateC == NULL)
+		{
+	        setNativeError(pEnv, error, IBSM_ERR_MEM_ALLOC);
+	    	LOG(("%s: unable to allocate template\n", __FUNCTION__));
+		}
+		else
+		{
+			unsigned char bytesC[TEMPLATE_BYTES_LENGTH];
+
+			pEnv->GetByteArrayRegion(bytes, offset, length, (jbyte *)bytesC);
+			deserializeTemplate(bytesC, pTemplateC);
+			setNativeError(pEnv, error, IBSM_STATUS_OK);
+		}
+	}
+
+	return ((jlong)(intptr_t)pTemplateC);
+}
+
+/*
+ * private static native void releaseNativeTemplateNative(long pointer);
+ */
+JNIEXPORT void JNICALL IBMATCHER_BUILD_JNI_FNCT(releaseNativeTemplateNative)(
+    JNIEnv  *pEnv,
+	jclass   cclass,
+	jlong    pointer)
+{
+	LOG(("%s\n", __FUNCTION__));
+
+	USE_PARAM(pEnv);
+	USE_PARAM(cclass);
+
+	free((IBSM_Template *)(intptr_t)pointer);
+}
+
+/*
+ * private static native int getMinutiaeLengthNative();
+ */
+JNIEXPORT jint JNICALL IBMATCHER_BUILD_JNI_FNCT(getMinutiaeLengthNative)(
+    JNIEnv  *pEnv,
+	jclass   cclass)
+{
+	LOG(("%s\n", __FUNCTION__));
+
+	USE_PARAM(pEnv);
+	USE_PARAM(cclass);
+
+	return ((jint)sizeof(((IBSM_Template *)0)->Minutiae));
+}
+
+/*
+ * private native int matchNativeTemplatesNative(NativeTemplate template1, NativeTemplate template2,
+ *		NativeError error);
+ */
+JNIEXPORT jint JNICALL IBMATCHER_BUILD_JNI_FNCT(matchNativeTemplatesNative)(
+    JNIEnv  *pEnv,
+	jobject  tthis,
+	jobject  template1,
+	jobject  template2,
+	jobject  error)
+{
+	IBSM_Template *pTemplate1C;
+	IBSM_Template *pTemplate2C;
+	int            matchingScore = -1;
+
+	LOG(("%s\n", __FUNCTION__));
+
+	pTemplate1C = getNativeTemplate(pEnv, template1);
+	pTemplate2C = getNativeTemplate(pEnv, template2);
+	if ((pTemplate1C == NULL) || (pTemplate2C == NULL))
+	{
+        setNativeError(pEnv, error, IBMATCHER_ERR_INVALID_PARAM_VALUE);
+    	LOG(("%s: received released template\n", __FUNCTION__));
+	}
+	else
+	{
+		int matcherHandle;
+		int nRc;
+
+		matcherHandle = getHandle(pEnv, tthis);
+		nRc           = IBSM_MatchingTemplate(matcherHandle, *pTemplate1C, *pTemplate2C,
+							&matchingScore);
+		setNativeError(pEnv, error, nRc);
+	}
+
+	return (matchingScore);
+}
+
+/*
+ * private native int matchNativeTemplatesBatchNative(NativeTemplate probe, NativeTemplate[] gallery,
+ *		int offset, int count, int[] scores, NativeError error);
+ */
+JNIEXPORT jint JNICALL IBMATCHER_BUILD_JNI_FNCT(matchNativeTemplatesBatchNative)(
+    JNIEnv       *pEnv,
+	jobject       tthis,
+	jobject       probe,
+	jobjectArray  gallery,
+	jint          offset,
+	jint          count,
+	jintArray     scores,
+	jobject       error)
+{
+	IBSM_Template *pProbeC;
+	jint           failures = 0;
+
+	LOG(("%s\n", __FUNCTION__));
+
+	pProbeC = getNativeTemplate(pEnv, probe);
+	if (pProbeC == NULL)
+	{
+        setNativeError(pEnv, error, IBMATCHER_ERR_INVALID_PARAM_VALUE);
+    	LOG(("%s: received released probe\n", __FUNCTION__));
+	}
+	else
+	{
+		jint *scoresC = (jint *)malloc(count * sizeof(jint));
+		if (scoresC == NULL)
+		{
+	        setNativeError(pEnv, error, IBSM_ERR_MEM_ALLOC);
+	    	LOG(("%s: unable to allocate %d scores\n", __FUNCTION__, count));
+		}
+		else
+		{
+			int matcherHandle;
+			int i;
+
+			matcherHandle = getHandle(pEnv, tthis);
+			for (i = 0; i < count; i++)
+			{
+				IBSM_Template *pTemplateC;
+				jobject        templateJ;
+
+				scoresC[i] = 0;
+
+				templateJ  = pEnv->GetObjectArrayElement(gallery, offset + i);
+				pTemplateC = getNativeTemplate(pEnv, templateJ);
+				pEnv->DeleteLocalRef(templateJ);
+				if (pTemplateC == NULL)
+				{
+					failures++;
+			    	LOG(("%s: gallery template %d is released\n", __FUNCTION__, offset + i));
+				}
+				else
+				{
+					int matchingScore = 0;
+					int nRc;
+
+					nRc = IBSM_MatchingTemplate(matcherHandle, *pProbeC, *pTemplateC, &matchingScore);
+					if (nRc == IBSM_STATUS_OK)
+					{
+						scoresC[i] = matchingScore;
+					}
+					else
+					{
+						failures++;
+				    	LOG(("%s: match of gallery template %d failed with %d\n", __FUNCTION__, offset + i, nRc));
+					}
+				}
+			}
+
+			pEnv->SetIntArrayRegion(scores, offset, count, scoresC);
+			free(scoresC);
+			setNativeError(pEnv, error, IBSM_STATUS_OK);
+		}
+	}
+
+	return (failures);
+}
+
+/*
+ * private native void setMatchingLevelNative(int matchingLevel, NativeError error);
+ */
+JNIEXPORT void JNICALL IBMATCHER_BUILD_JNI_FNCT(setMatchingLevelNative)(
+    JNIEnv  *pEnv,
+	jobject  tthis,
+	jint     matchingLevel,
+	jobject  error)
+{
+	int matcherHandle;
+	int nRc;
+
+	matcherHandle = getHandle(pEnv, tthis);
+	nRc           = IBSM_SetMatchingLevel(matcherHandle, matchingLevel);
+	setNativeError(pEnv, error, nRc);
+}
+
+/*
+ * private native int getMatchingLevelNative(NativeError error);
+ */
+JNIEXPORT jint JNICALL IBMATCHER_BUILD_JNI_FNCT(getMatchingLevelNative)(
+    JNIEnv  *pEnv,
+	jobject  tthis,
+	jobject  error)
+{
+	int matcherHandle;
+	int nRc;
+	int matchingLevel = -1;
+
+	matcherHandle = getHandle(pEnv, tthis);
+	nRc           = IBSM_GetMatchingLevel(matcherHandle, &matchingLevel);
+	setNativeError(pEnv, error, nRc);
+
+	return (matchingLevel);
+}
+
+/*
+ * private native Template singleEnrollmentNative(ImageDataExt imageDataExt1,
+ *		ImageDataExt imageDataExt2, ImageDataExt imageDataExt3, NativeError error);
+ */
+JNIEXPORT jobject JNICALL IBMATCHER_BUILD_JNI_FNCT(singleEnrollmentNative)(
+    JNIEnv  *pEnv,
+	jobject  tthis,
+	jobject  imageDataExt1,
+	jobject  imageDataExt2,
+	jobject  imageDataExt3,
+	jobject  error)
+{
+	IBSM_ImageData imageDataExt1C;
+	jobject        ttemplate = NULL;
+	BOOL           ok;
+
+	LOG(("%s\n", __FUNCTION__));
+
+	ok = unconvertImageDataExt(pEnv, imageDataExt1, &imageDataExt1C);
+	if (!ok)
+	{
+        setNativeError(pEnv, error, IBSM_ERR_MEM_ALLOC);
+    	LOG(("%s: unable to unconvert first image data\n", __FUNCTION__));
+	}
+	else
+	{
+		IBSM_ImageData imageDataExt2C;
+
+		ok = unconvertImageDataExt(pEnv, imageDataExt2, &imageDataExt2C);
+		if (!ok)
+		{
+	        setNativeError(pEnv, error, IBSM_ERR_MEM_ALLOC);
+	    	LOG(("%s: unable to unconvert second image data\n", __FUNCTION__));
+		}
+		else
+		{
+			IBSM_ImageData imageDataExt3C;
+
+			ok = unconvertImageDataExt(pEnv, imageDataExt3, &imageDataExt3C);
+			if (!ok)
+			{
+		        setNativeError(pEnv, error, IBSM_ERR_MEM_ALLOC);
+		    	LOG(("%s: unable to unconvert third image data\n", __FUNCTION__));
+			}
+			else
+			{
+				int           matcherHandle;
+				int           nRc;
+				IBSM_Template ttemplateC;
+
+				memset(&ttemplateC, 0, sizeof(ttemplateC));
+				matcherHandle = getHandle(pEnv, tthis);
+				nRc           = IBSM_SingleEnrollment(matcherHandle, imageDataExt1C, imageDataExt2C,
+									imageDataExt3C, &ttemplateC);
+				setNativeError(pEnv, error, nRc);
+
+				if (nRc == IBSM_STATUS_OK)
+				{
+					ttemplate = convertTemplate(pEnv, &ttemplateC);
 					if (ttemplate == NULL)
 					{
 				        setNativeError(pEnv, error, IBSM_ERR_MEM_ALLOC);
@@ -1096,13 +1907,13 @@ JNIEXPORT jobject JNICALL IBMATCHER_BUILD_JNI_FNCT(singleEnrollmentNative)(
 					}
 				}
 
-				free(imageDataExt3C.ImageData);
+				freeImageDataExt(pEnv, imageDataExt3, &imageDataExt3C);
 			}
 
-			free(imageDataExt2C.ImageData);
+			freeImageDataExt(pEnv, imageDataExt2, &imageDataExt2C);
 		}
 
-		free(imageDataExt1C.ImageData);
+		freeImageDataExt(pEnv, imageDataExt1, &imageDataExt1C);
 	}
 
 	return (ttemplate);
@@ -1238,22 +2049,22 @@ JNIEXPORT jobjectArray JNICALL IBMATCHER_BUILD_JNI_FNCT(multiEnrollmentNative)(
 								}
 							}
 
-							free(imageDataExt6C.ImageData);
+							freeImageDataExt(pEnv, imageDataExt6, &imageDataExt6C);
 						}
 
-						free(imageDataExt5C.ImageData);
+						freeImageDataExt(pEnv, imageDataExt5, &imageDataExt5C);
 					}
 
-					free(imageDataExt4C.ImageData);
+					freeImageDataExt(pEnv, imageDataExt4, &imageDataExt4C);
 				}
 
-				free(imageDataExt3C.ImageData);
+				freeImageDataExt(pEnv, imageDataExt3, &imageDataExt3C);
 			}
 
-			free(imageDataExt2C.ImageData);
+			freeImageDataExt(pEnv, imageDataExt2, &imageDataExt2C);
 		}
 
-		free(imageDataExt1C.ImageData);
+		freeImageDataExt(pEnv, imageDataExt1, &imageDataExt1C);
 	}
 
 	return (ttemplates);
@@ -1374,6 +2185,23 @@ static int getHandle(
     return (handle);
 }
 
+/*
+ * Get native template held by Java NativeTemplate, or NULL if it has been released.
+ */
+static IBSM_Template *getNativeTemplate(
+    JNIEnv  *pEnv,
+    jobject  ttemplate)
+{
+	if (ttemplate == NULL)
+	{
+		return (NULL);
+	}
+
+    jlong pointer = pEnv->GetLongField(ttemplate, FieldID_IBMatcher_NativeTemplate_pointerNative);
+
+    return ((IBSM_Template *)(intptr_t)pointer);
+}
+
 /*
  * Convert C ImageDataExt to Java ImageDataExt.
  */
@@ -1409,7 +2237,48 @@ static jobject convertImageDataExt(
 }
 
 /*
- * Convert Java ImageDataExt to C ImageDataExt.
+ * Convert C ImageDataExt to Java DirectImageDataExt, copying the image data into a new direct buffer.
+ */
+static jobject convertDirectImageDataExt(
+    JNIEnv               *pEnv,
+    const IBSM_ImageData *pImage)
+{
+    jobject bufferJ;
+    jobject imageJ = NULL;
+
+    bufferJ = pEnv->CallStaticObjectMethod(Class_ByteBuffer, MethodID_ByteBuffer_allocateDirect, (jint)pImage->ImageDataLength);
+    if (pEnv->ExceptionCheck())
+    {
+    	pEnv->ExceptionClear();
+    	bufferJ = NULL;
+    }
+    if (bufferJ == NULL)
+    {
+    	LOG(("unable to allocate direct buffer of size %d\n", pImage->ImageDataLength));
+    }
+    else
+    {
+    	memcpy(pEnv->GetDirectBufferAddress(bufferJ), pImage->ImageData, pImage->ImageDataLength);
+        imageJ  = pEnv->NewObject(Class_IBMatcher_DirectImageDataExt,
+                        MethodID_IBMatcher_DirectImageDataExt_DirectImageDataExt, (jint)pImage->ImageFormat,
+                        (jint)pImage->ImpressionType, (jint)pImage->FingerPosition, (jint)pImage->CaptureDeviceTechID,
+                        (jshort)pImage->CaptureDeviceVendorID, (jshort)pImage->CaptureDeviceTypeID,
+                        (jshort)pImage->ScanSamplingX, (jshort)pImage->ScanSamplingY, (jshort)pImage->ImageSamplingX,
+                        (jshort)pImage->ImageSamplingY, (jshort)pImage->ImageSizeX, (jshort)pImage->ImageSizeY,
+                        (jbyte)pImage->ScaleUnit, (jbyte)pImage->BitDepth, bufferJ);
+        if (imageJ == NULL)
+        {
+        	LOG(("unable to allocate DirectImageDataExt object\n"));
+        }
+    }
+
+    return (imageJ);
+}
+
+/*
+ * Convert Java ImageDataExt to C ImageDataExt.  The image data of a DirectImageDataExt is used in
+ * place; that of any other ImageDataExt is copied into a buffer that must be freed with
+ * freeImageDataExt().
  */
 static BOOL unconvertImageDataExt(
 	JNIEnv         *pEnv,
@@ -1417,28 +2286,44 @@ static BOOL unconvertImageDataExt(
 	IBSM_ImageData *pImage)
 {
 	memset(pImage, 0, sizeof(IBSM_ImageData));
-	BOOL       ok = FALSE;
-	jbyteArray imageDataJ;
+	BOOL ok = FALSE;
 
-	/* Get buffer field. */
-	imageDataJ = (jbyteArray)pEnv->GetObjectField(imageData, FieldID_IBCommon_ImageDataExt_imageData);
-	if (imageDataJ == NULL)
+	if (isDirectImageDataExt(pEnv, imageData))
 	{
-        LOG(("%s: unable to get imageData field\n", __FUNCTION__));
+		jobject imageBufferJ;
+
+		/* Get imageBuffer field. */
+		imageBufferJ = pEnv->GetObjectField(imageData, FieldID_IBMatcher_DirectImageDataExt_imageBuffer);
+		if (imageBufferJ == NULL)
+		{
+	        LOG(("%s: unable to get imageBuffer field\n", __FUNCTION__));
+		}
+		else
+		{
+			pImage->ImageData       = pEnv->GetDirectBufferAddress(imageBufferJ);
+			pImage->ImageDataLength = pEnv->GetDirectBufferCapacity(imageBufferJ);
+			if (pImage->ImageData == NULL)
+			{
+		        LOG(("%s: unable to get address of imageBuffer\n", __FUNCTION__));
+			}
+			else
+			{
+				ok = unconvertImageDataExtFields(pEnv, imageData, pImage);
+			}
+		}
 	}
 	else
 	{
-		void *buffer;
+		jbyteArray imageDataJ;
 
-		buffer = pEnv->GetByteArrayElements(imageDataJ, NULL);
-		if (buffer == NULL)
+		/* Get buffer field. */
+		imageDataJ = (jbyteArray)pEnv->GetObjectField(imageData, FieldID_IBCommon_ImageDataExt_imageData);
+		if (imageDataJ == NULL)
 		{
 	        LOG(("%s: unable to get imageData field\n", __FUNCTION__));
 		}
 		else
 		{
-			jobject temp;
-
 			pImage->ImageDataLength = pEnv->GetArrayLength(imageDataJ);
 			pImage->ImageData       = malloc(pImage->ImageDataLength);
 			if (pImage->ImageData == NULL)
@@ -1447,86 +2332,173 @@ static BOOL unconvertImageDataExt(
 			}
 			else
 			{
-				memcpy(pImage->ImageData, buffer, pImage->ImageDataLength);
-
-				/* Get captureDeviceVendorId field. */
-				pImage->CaptureDeviceVendorID = pEnv->GetShortField(imageData, FieldID_IBCommon_ImageDataExt_captureDeviceVendorId);
-				/* Get captureDeviceTypeId field. */
-				pImage->CaptureDeviceTypeID   = pEnv->GetShortField(imageData, FieldID_IBCommon_ImageDataExt_captureDeviceTypeId);
-				/* Get scanSamplingX field. */
-				pImage->ScanSamplingX         = pEnv->GetShortField(imageData, FieldID_IBCommon_ImageDataExt_scanSamplingX);
-				/* Get scanSamplingY field. */
-				pImage->ScanSamplingY         = pEnv->GetShortField(imageData, FieldID_IBCommon_ImageDataExt_scanSamplingY);
-				/* Get imageSamplingX field. */
-				pImage->ImageSamplingX        = pEnv->GetShortField(imageData, FieldID_IBCommon_ImageDataExt_imageSamplingX);
-				/* Get imageSamplingY field. */
-				pImage->ImageSamplingY        = pEnv->GetShortField(imageData, FieldID_IBCommon_ImageDataExt_imageSamplingY);
-				/* Get imageSizeX field. */
-				pImage->ImageSizeX            = pEnv->GetShortField(imageData, FieldID_IBCommon_ImageDataExt_imageSizeX);
-				/* Get imageSizeY field. */
-				pImage->ImageSizeY            = pEnv->GetShortField(imageData, FieldID_IBCommon_ImageDataExt_imageSizeY);
-				/* Get scaleUnit field. */
-				pImage->ScaleUnit             = pEnv->GetByteField(imageData, FieldID_IBCommon_ImageDataExt_scaleUnit);
-				/* Get bitDepth field. */
-				pImage->BitDepth              = pEnv->GetByteField(imageData, FieldID_IBCommon_ImageDataExt_bitDepth);
-
-				/* Get imageFormat field. */
-				temp = pEnv->GetObjectField(imageData, FieldID_IBCommon_ImageDataExt_imageFormat);
-				if (temp == NULL)
+				/* Copy the array once, rather than pinning it and copying it back on release. */
+				pEnv->GetByteArrayRegion(imageDataJ, 0, pImage->ImageDataLength, (jbyte *)pImage->ImageData);
+
+				ok = unconvertImageDataExtFields(pEnv, imageData, pImage);
+				if (!ok)
 				{
 					free(pImage->ImageData);
-					LOG(("%s: unable to get imageFormat field\n", __FUNCTION__));
 				}
-				else
-				{
-					pImage->ImageFormat = (IBSM_ImageFormat)pEnv->CallIntMethod(temp, MethodID_IBCommon_ImageFormat_toCode);
+			}
+		}
+	}
 
-					/* Get impressionType field. */
-					temp = pEnv->GetObjectField(imageData, FieldID_IBCommon_ImageDataExt_impressionType);
-					if (temp == NULL)
-					{
-						free(pImage->ImageData);
-						LOG(("%s: unable to get impressionType field\n", __FUNCTION__));
-					}
-					else
-					{
-						pImage->ImpressionType = (IBSM_ImpressionType)pEnv->CallIntMethod(temp, MethodID_IBCommon_ImpressionType_toCode);
+	return (ok);
+}
 
-						/* Get fingerPosition field. */
-						temp = pEnv->GetObjectField(imageData, FieldID_IBCommon_ImageDataExt_fingerPosition);
-						if (temp == NULL)
-						{
-							free(pImage->ImageData);
-							LOG(("%s: unable to get fingerPosition field\n", __FUNCTION__));
-						}
-						else
-						{
-							pImage->FingerPosition = (IBSM_FingerPosition)pEnv->CallIntMethod(temp, MethodID_IBCommon_FingerPosition_toCode);
+/*
+ * Get fields other than image data from Java ImageDataExt.
+ */
+static BOOL unconvertImageDataExtFields(
+	JNIEnv         *pEnv,
+	jobject         imageData,
+	IBSM_ImageData *pImage)
+{
+	BOOL    ok = FALSE;
+	jobject temp;
+
+	/* Get captureDeviceVendorId field. */
+	pImage->CaptureDeviceVendorID = pEnv->GetShortField(imageData, FieldID_IBCommon_ImageDataExt_captureDeviceVendorId);
+	/* Get captureDeviceTypeId field. */
+	pImage->CaptureDeviceTypeID   = pEnv->GetShortField(imageData, FieldID_IBCommon_ImageDataExt_captureDeviceTypeId);
+	/* Get scanSamplingX field. */
+	pImage->ScanSamplingX         = pEnv->GetShortField(imageData, FieldID_IBCommon_ImageDataExt_scanSamplingX);
+	/* Get scanSamplingY field. */
+	pImage->ScanSamplingY         = pEnv->GetShortField(imageData, FieldID_IBCommon_ImageDataExt_scanSamplingY);
+	/* Get imageSamplingX field. */
+	pImage->ImageSamplingX        = pEnv->GetShortField(imageData, FieldID_IBCommon_ImageDataExt_imageSamplingX);
+	/* Get imageSamplingY field. */
+	pImage->ImageSamplingY        = pEnv->GetShortField(imageData, FieldID_IBCommon_ImageDataExt_imageSamplingY);
+	/* Get imageSizeX field. */
+	pImage->ImageSizeX            = pEnv->GetShortField(imageData, FieldID_IBCommon_ImageDataExt_imageSizeX);
+	/* Get imageSizeY field. */
+	pImage->ImageSizeY            = pEnv->GetShortField(imageData, FieldID_IBCommon_ImageDataExt_imageSizeY);
+	/* Get scaleUnit field. */
+	pImage->ScaleUnit             = pEnv->GetByteField(imageData, FieldID_IBCommon_ImageDataExt_scaleUnit);
+	/* Get bitDepth field. */
+	pImage->BitDepth              = pEnv->GetByteField(imageData, FieldID_IBCommon_ImageDataExt_bitDepth);
+
+	/* Get imageFormat field. */
+	temp = pEnv->GetObjectField(imageData, FieldID_IBCommon_ImageDataExt_imageFormat);
+	if (temp == NULL)
+	{
+		LOG(("%s: unable to get imageFormat field\n", __FUNCTION__));
+	}
+	else
+	{
+		pImage->ImageFormat = (IBSM_ImageFormat)pEnv->CallIntMethod(temp, MethodID_IBCommon_ImageFormat_toCode);
 
-							/* Get captureDeviceTechId field. */
-							temp = pEnv->GetObjectField(imageData, FieldID_IBCommon_ImageDataExt_captureDeviceTechId);
-							if (temp == NULL)
-							{
-								free(pImage->ImageData);
-								LOG(("%s: unable to get captureDeviceTechId field\n", __FUNCTION__));
-							}
-							else
-							{
-								pImage->CaptureDeviceTechID = (IBSM_CaptureDeviceTechID)pEnv->CallIntMethod(temp, MethodID_IBCommon_CaptureDeviceTechId_toCode);
+		/* Get impressionType field. */
+		temp = pEnv->GetObjectField(imageData, FieldID_IBCommon_ImageDataExt_impressionType);
+		if (temp == NULL)
+		{
+			LOG(("%s: unable to get impressionType field\n", __FUNCTION__));
+		}
+		else
+		{
+			pImage->ImpressionType = (IBSM_ImpressionType)pEnv->CallIntMethod(temp, MethodID_IBCommon_ImpressionType_toCode);
 
-								ok = TRUE;
-							}
-						}
-					}
+			/* Get fingerPosition field. */
+			temp = pEnv->GetObjectField(imageData, FieldID_IBCommon_ImageDataExt_fingerPosition);
+			if (temp == NULL)
+			{
+				LOG(("%s: unable to get fingerPosition field\n", __FUNCTION__));
+			}
+			else
+			{
+				pImage->FingerPosition = (IBSM_FingerPosition)pEnv->CallIntMethod(temp, MethodID_IBCommon_FingerPosition_toCode);
+
+				/* Get captureDeviceTechId field. */
+				temp = pEnv->GetObjectField(imageData, FieldID_IBCommon_ImageDataExt_captureDeviceTechId);
+				if (temp == NULL)
+				{
+					LOG(("%s: unable to get captureDeviceTechId field\n", __FUNCTION__));
+				}
+				else
+				{
+					pImage->CaptureDeviceTechID = (IBSM_CaptureDeviceTechID)pEnv->CallIntMethod(temp, MethodID_IBCommon_CaptureDeviceTechId_toCode);
+
+					ok = TRUE;
 				}
 			}
-			pEnv->ReleaseByteArrayElements(imageDataJ, (jbyte *)buffer, 0);
 		}
 	}
 
 	return (ok);
 }
 
+/*
+ * Determine whether Java ImageDataExt is a DirectImageDataExt.
+ */
+static BOOL isDirectImageDataExt(
+	JNIEnv  *pEnv,
+	jobject  imageData)
+{
+	return (pEnv->IsInstanceOf(imageData, Class_IBMatcher_DirectImageDataExt) ? TRUE : FALSE);
+}
+
+/*
+ * Free C ImageDataExt unconverted from Java ImageDataExt.  The direct buffer of a DirectImageDataExt
+ * belongs to Java and is not freed.
+ */
+static void freeImageDataExt(
+	JNIEnv         *pEnv,
+	jobject         imageData,
+	IBSM_ImageData *pImage)
+{
+	if (!isDirectImageDataExt(pEnv, imageData))
+	{
+		free(pImage->ImageData);
+	}
+	pImage->ImageData = NULL;
+}
+
+/*
+ * Expand row of gray pixels to opaque RGBA pixels.
+ */
+static void expandGrayRow(
+	const unsigned char *pGray,
+	unsigned char       *pRgba,
+	int                  width)
+{
+	int x = 0;
+
+#if defined(IBMATCHER_HAVE_NEON)
+	if (UseNeon)
+	{
+		x = IBMatcher_ExpandGrayRowNeon(pGray, pRgba, width);
+	}
+#endif
+	for (; x < width; x++)
+	{
+		pRgba[x * 4]     = pRgba[x * 4 + 1] = pRgba[x * 4 + 2] = pGray[x];
+		pRgba[x * 4 + 3] = 0xFF;
+	}
+}
+
+/*
+ * Convert row of gray pixels to alpha pixels, so that dark ridges are opaque.
+ */
+static void invertGrayRow(
+	const unsigned char *pGray,
+	unsigned char       *pAlpha,
+	int                  width)
+{
+	int x = 0;
+
+#if defined(IBMATCHER_HAVE_NEON)
+	if (UseNeon)
+	{
+		x = IBMatcher_InvertGrayRowNeon(pGray, pAlpha, width);
+	}
+#endif
+	for (; x < width; x++)
+	{
+		pAlpha[x] = (unsigned char)~pGray[x];
+	}
+}
+
 /*
  * Convert C Template to Java Template.
  */
@@ -1579,6 +2551,12 @@ static BOOL unconvertTemplate(
 	{
         LOG(("%s: unable to minutiae field\n", __FUNCTION__));
 	}
+	else if (pEnv->GetArrayLength(minutiaeJ) != (jsize)sizeof(pTemplate->Minutiae))
+	{
+		/* A longer buffer would overflow the native one. */
+        LOG(("%s: minutiae field has length %d, not %d\n", __FUNCTION__, 
+        		pEnv->GetArrayLength(minutiaeJ), (int)sizeof(pTemplate->Minutiae)));
+	}
 	else
 	{
 		jbyte *minutiaeC = pEnv->GetByteArrayElements(minutiaeJ, NULL);
@@ -1590,7 +2568,7 @@ static BOOL unconvertTemplate(
 		{
 			jobject temp;
 
-			memcpy(pTemplate->Minutiae, minutiaeC, pEnv->GetArrayLength(minutiaeJ));
+			memcpy(pTemplate->Minutiae, minutiaeC, sizeof(pTemplate->Minutiae));
 			pEnv->ReleaseByteArrayElements(minutiaeJ, minutiaeC, 0);
 
 			/* Get captureDeviceVendorId field. */
@@ -1658,3 +2636,134 @@ static BOOL unconvertTemplate(
 
 	return (ok);
 }
+
+/*
+ * Read entire file into new Java byte array.  Returns NULL if the file cannot be read or the array
+ * cannot be allocated.
+ */
+static jbyteArray readFileBytes(
+    JNIEnv     *pEnv,
+    const char *filePath)
+{
+	FILE       *pFile;
+	jbyteArray  bytesJ = NULL;
+	long        length;
+
+	pFile = fopen(filePath, "rb");
+	if (pFile == NULL)
+	{
+		return (NULL);
+	}
+
+	if ((fseek(pFile, 0, SEEK_END) == 0) && ((length = ftell(pFile)) > 0) && (fseek(pFile, 0, SEEK_SET) == 0))
+	{
+		bytesJ = pEnv->NewByteArray((jsize)length);
+		if (bytesJ != NULL)
+		{
+			jbyte *pBytes;
+			BOOL   read = FALSE;
+
+			pBytes = pEnv->GetByteArrayElements(bytesJ, NULL);
+			if (pBytes != NULL)
+			{
+				read = (fread(pBytes, 1, (size_t)length, pFile) == (size_t)length);
+				pEnv->ReleaseByteArrayElements(bytesJ, pBytes, read ? 0 : JNI_ABORT);
+			}
+			if (!read)
+			{
+				pEnv->DeleteLocalRef(bytesJ);
+				bytesJ = NULL;
+			}
+		}
+	}
+
+	fclose(pFile);
+
+	return (bytesJ);
+}
+
+/*
+ * Serialize C Template into TEMPLATE_BYTES_LENGTH bytes in the IBSM template layout.
+ */
+static void serializeTemplate(
+    const IBSM_Template *pTemplate,
+    unsigned char       *pBytes)
+{
+	unsigned int  fields[4];
+	unsigned int  shorts[6];
+	unsigned int  reserved;
+	int           i;
+
+	fields[0] = (unsigned int)pTemplate->Version;
+	fields[1] = (unsigned int)pTemplate->FingerPosition;
+	fields[2] = (unsigned int)pTemplate->ImpressionType;
+	fields[3] = (unsigned int)pTemplate->CaptureDeviceTechID;
+	shorts[0] = (unsigned int)pTemplate->CaptureDeviceVendorID;
+	shorts[1] = (unsigned int)pTemplate->CaptureDeviceTypeID;
+	shorts[2] = (unsigned int)pTemplate->ImageSamplingX;
+	shorts[3] = (unsigned int)pTemplate->ImageSamplingY;
+	shorts[4] = (unsigned int)pTemplate->ImageSizeX;
+	shorts[5] = (unsigned int)pTemplate->ImageSizeY;
+	reserved  = (unsigned int)pTemplate->Reserved;
+
+	/* Write fields little-endian regardless of host byte order. */
+	for (i = 0; i < 4; i++)
+	{
+		*pBytes++ = (unsigned char)(fields[i]);
+		*pBytes++ = (unsigned char)(fields[i] >> 8);
+		*pBytes++ = (unsigned char)(fields[i] >> 16);
+		*pBytes++ = (unsigned char)(fields[i] >> 24);
+	}
+	for (i = 0; i < 6; i++)
+	{
+		*pBytes++ = (unsigned char)(shorts[i]);
+		*pBytes++ = (unsigned char)(shorts[i] >> 8);
+	}
+	memcpy(pBytes, pTemplate->Minutiae, sizeof(pTemplate->Minutiae));
+	pBytes += sizeof(pTemplate->Minutiae);
+	*pBytes++ = (unsigned char)(reserved);
+	*pBytes++ = (unsigned char)(reserved >> 8);
+	*pBytes++ = (unsigned char)(reserved >> 16);
+	*pBytes++ = (unsigned char)(reserved >> 24);
+}
+
+/*
+ * Deserialize C Template from TEMPLATE_BYTES_LENGTH bytes in the IBSM template layout.
+ */
+static void deserializeTemplate(
+    const unsigned char *pBytes,
+    IBSM_Template       *pTemplate)
+{
+	unsigned int fields[4];
+	unsigned int shorts[6];
+	int          i;
+
+	memset(pTemplate, 0, sizeof(IBSM_Template));
+
+	for (i = 0; i < 4; i++)
+	{
+		fields[i] = (unsigned int)pBytes[0] | ((unsigned int)pBytes[1] << 8) |
+				((unsigned int)pBytes[2] << 16) | ((unsigned int)pBytes[3] << 24);
+		pBytes += 4;
+	}
+	for (i = 0; i < 6; i++)
+	{
+		shorts[i] = (unsigned int)pBytes[0] | ((unsigned int)pBytes[1] << 8);
+		pBytes += 2;
+	}
+	memcpy(pTemplate->Minutiae, pBytes, sizeof(pTemplate->Minutiae));
+	pBytes += sizeof(pTemplate->Minutiae);
+
+	pTemplate->Version               = (IBSM_TemplateVersion)fields[0];
+	pTemplate->FingerPosition        = (IBSM_FingerPosition)fields[1];
+	pTemplate->ImpressionType        = (IBSM_ImpressionType)fields[2];
+	pTemplate->CaptureDeviceTechID   = (IBSM_CaptureDeviceTechID)fields[3];
+	pTemplate->CaptureDeviceVendorID = shorts[0];
+	pTemplate->CaptureDeviceTypeID   = shorts[1];
+	pTemplate->ImageSamplingX        = shorts[2];
+	pTemplate->ImageSamplingY        = shorts[3];
+	pTemplate->ImageSizeX            = shorts[4];
+	pTemplate->ImageSizeY            = shorts[5];
+	pTemplate->Reserved              = (unsigned int)pBytes[0] | ((unsigned int)pBytes[1] << 8) |
+			((unsigned int)pBytes[2] << 16) | ((unsigned int)pBytes[3] << 24);
+}
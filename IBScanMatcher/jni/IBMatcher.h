@@ -56,6 +56,14 @@ JNIEXPORT jint JNICALL IBMATCHER_BUILD_JNI_FNCT(initNative)(
     JNIEnv  *pEnv,
 	jobject  tthis);
 
+/*
+ * private native void closeNative(NativeError error);
+ */
+JNIEXPORT void JNICALL IBMATCHER_BUILD_JNI_FNCT(closeNative)(
+    JNIEnv  *pEnv,
+	jobject  tthis,
+	jobject  error);
+
 /*
  * private native SdkVersion getSdkVersionNative(NativeError error);
  */
@@ -93,6 +101,15 @@ JNIEXPORT jobject JNICALL IBMATCHER_BUILD_JNI_FNCT(decompressImageNative)(
 	jobject  imageDataExt,
 	jobject  error);
 
+/*
+ * private native boolean renderImageNative(ImageDataExt imageDataExt, Bitmap bitmap);
+ */
+JNIEXPORT jboolean JNICALL IBMATCHER_BUILD_JNI_FNCT(renderImageNative)(
+    JNIEnv  *pEnv,
+	jobject  tthis,
+	jobject  imageDataExt,
+	jobject  bitmap);
+
 /*
  * private native boolean saveImageNative(ImageDataExt imageDataExt, String filePath,
  *		NativeError error);
@@ -172,6 +189,63 @@ JNIEXPORT jobject JNICALL IBMATCHER_BUILD_JNI_FNCT(loadTemplateFromFmrNative)(
 	jstring  filePath,
 	jobject  error);
 
+/*
+ * private native byte[] saveTemplateAsFmrToBytesNative(Template template, String stagingPath,
+ *		NativeError error);
+ */
+JNIEXPORT jbyteArray JNICALL IBMATCHER_BUILD_JNI_FNCT(saveTemplateAsFmrToBytesNative)(
+    JNIEnv  *pEnv,
+	jobject  tthis,
+	jobject  ttemplate,
+	jstring  stagingPath,
+	jobject  error);
+
+/*
+ * private native byte[] saveTemplateToBytesNative(Template template, NativeError error);
+ */
+JNIEXPORT jbyteArray JNICALL IBMATCHER_BUILD_JNI_FNCT(saveTemplateToBytesNative)(
+    JNIEnv  *pEnv,
+	jobject  tthis,
+	jobject  ttemplate,
+	jobject  error);
+
+/*
+ * private native int saveTemplateToBufferNative(Template template, ByteBuffer buffer, int offset,
+ *		int length, NativeError error);
+ */
+JNIEXPORT jint JNICALL IBMATCHER_BUILD_JNI_FNCT(saveTemplateToBufferNative)(
+    JNIEnv  *pEnv,
+	jobject  tthis,
+	jobject  ttemplate,
+	jobject  buffer,
+	jint     offset,
+	jint     length,
+	jobject  error);
+
+/*
+ * private native Template loadTemplateFromBytesNative(byte[] bytes, int offset, int length,
+ *		NativeError error);
+ */
+JNIEXPORT jobject JNICALL IBMATCHER_BUILD_JNI_FNCT(loadTemplateFromBytesNative)(
+    JNIEnv     *pEnv,
+	jobject     tthis,
+	jbyteArray  bytes,
+	jint        offset,
+	jint        length,
+	jobject     error);
+
+/*
+ * private native Template loadTemplateFromBufferNative(ByteBuffer buffer, int offset, int length,
+ *		NativeError error);
+ */
+JNIEXPORT jobject JNICALL IBMATCHER_BUILD_JNI_FNCT(loadTemplateFromBufferNative)(
+    JNIEnv  *pEnv,
+	jobject  tthis,
+	jobject  buffer,
+	jint     offset,
+	jint     length,
+	jobject  error);
+
 /*
  * private native int matchTemplatesNative(Template template1, Template template2,
  * 		NativeError error);
@@ -183,6 +257,81 @@ JNIEXPORT jint JNICALL IBMATCHER_BUILD_JNI_FNCT(matchTemplatesNative)(
 	jobject  template2,
 	jobject  error);
 
+/*
+ * private native int matchTemplatesBatchNative(Template probe, Template[] gallery, int offset,
+ *		int count, int[] scores, NativeError error);
+ */
+JNIEXPORT jint JNICALL IBMATCHER_BUILD_JNI_FNCT(matchTemplatesBatchNative)(
+    JNIEnv       *pEnv,
+	jobject       tthis,
+	jobject       probe,
+	jobjectArray  gallery,
+	jint          offset,
+	jint          count,
+	jintArray     scores,
+	jobject       error);
+
+/*
+ * private native long createNativeTemplateNative(Template template, NativeError error);
+ */
+JNIEXPORT jlong JNICALL IBMATCHER_BUILD_JNI_FNCT(createNativeTemplateNative)(
+    JNIEnv  *pEnv,
+	jobject  tthis,
+	jobject  ttemplate,
+	jobject  error);
+
+/*
+ * private native long createNativeTemplateFromBytesNative(byte[] bytes, int offset, int length,
+ *		NativeError error);
+ */
+JNIEXPORT jlong JNICALL IBMATCHER_BUILD_JNI_FNCT(createNativeTemplateFromBytesNative)(
+    JNIEnv     *pEnv,
+	jobject     tthis,
+	jbyteArray  bytes,
+	jint        offset,
+	jint        length,
+	jobject     error);
+
+/*
+ * private static native void releaseNativeTemplateNative(long pointer);
+ */
+JNIEXPORT void JNICALL IBMATCHER_BUILD_JNI_FNCT(releaseNativeTemplateNative)(
+    JNIEnv  *pEnv,
+	jclass   cclass,
+	jlong    pointer);
+
+/*
+ * private static native int getMinutiaeLengthNative();
+ */
+JNIEXPORT jint JNICALL IBMATCHER_BUILD_JNI_FNCT(getMinutiaeLengthNative)(
+    JNIEnv  *pEnv,
+	jclass   cclass);
+
+/*
+ * private native int matchNativeTemplatesNative(NativeTemplate template1, NativeTemplate template2,
+ *		NativeError error);
+ */
+JNIEXPORT jint JNICALL IBMATCHER_BUILD_JNI_FNCT(matchNativeTemplatesNative)(
+    JNIEnv  *pEnv,
+	jobject  tthis,
+	jobject  template1,
+	jobject  template2,
+	jobject  error);
+
+/*
+ * private native int matchNativeTemplatesBatchNative(NativeTemplate probe, NativeTemplate[] gallery,
+ *		int offset, int count, int[] scores, NativeError error);
+ */
+JNIEXPORT jint JNICALL IBMATCHER_BUILD_JNI_FNCT(matchNativeTemplatesBatchNative)(
+    JNIEnv       *pEnv,
+	jobject       tthis,
+	jobject       probe,
+	jobjectArray  gallery,
+	jint          offset,
+	jint          count,
+	jintArray     scores,
+	jobject       error);
+
 /*
  * private native void setMatchingLevelNative(int matchingLevel, NativeError error);
  */
@@ -0,0 +1,63 @@
+/* *************************************************************************************************
+ * IBMatcherNeon.cpp
+ *
+ * DESCRIPTION:
+ *     NEON pixel conversions for Android JNI wrapper for IBScanMatcher library.  This file is
+ *     built with NEON enabled for armeabi-v7a only; IBMatcher.cpp calls it after checking at run
+ *     time that the CPU supports NEON.
+ *     http://www.integratedbiometrics.com
+ *
+ * NOTES:
+ *     Copyright (c) Integrated Biometrics, 2013
+ *
+ * HISTORY:
+ *     2013/03/01  First version.
+ ************************************************************************************************ */
+
+#include <arm_neon.h>
+
+#include "IBMatcherNeon.h"
+
+/***************************************************************************************************
+ * GLOBAL FUNCTIONS
+ **************************************************************************************************/
+
+/*
+ * Expand leading gray pixels of row to opaque RGBA pixels, 16 at a time.
+ */
+int IBMatcher_ExpandGrayRowNeon(
+	const unsigned char *pGray,
+	unsigned char       *pRgba,
+	int                  width)
+{
+	/* Interleave 16 gray pixels into the red, green, and blue planes at a time. */
+	uint8x16x4_t rgba;
+	int          x = 0;
+
+	rgba.val[3] = vdupq_n_u8(0xFF);
+	for (; x + 16 <= width; x += 16)
+	{
+		rgba.val[0] = rgba.val[1] = rgba.val[2] = vld1q_u8(pGray + x);
+		vst4q_u8(pRgba + x * 4, rgba);
+	}
+
+	return (x);
+}
+
+/*
+ * Invert leading gray pixels of row to alpha pixels, 16 at a time.
+ */
+int IBMatcher_InvertGrayRowNeon(
+	const unsigned char *pGray,
+	unsigned char       *pAlpha,
+	int                  width)
+{
+	int x = 0;
+
+	for (; x + 16 <= width; x += 16)
+	{
+		vst1q_u8(pAlpha + x, vmvnq_u8(vld1q_u8(pGray + x)));
+	}
+
+	return (x);
+}
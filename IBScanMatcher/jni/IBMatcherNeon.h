@@ -0,0 +1,48 @@
+/* *************************************************************************************************
+ * IBMatcherNeon.h
+ *
+ * DESCRIPTION:
+ *     NEON pixel conversions for Android JNI wrapper for IBScanMatcher library
+ *     http://www.integratedbiometrics.com
+ *
+ * NOTES:
+ *     Copyright (c) Integrated Biometrics, 2013
+ *
+ * HISTORY:
+ *     2013/03/01  First version.
+ ************************************************************************************************ */
+
+#ifndef IBMATCHERNEON_H_
+#define IBMATCHERNEON_H_
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+/***************************************************************************************************
+ * GLOBAL FUNCTION PROTOTYPES
+ **************************************************************************************************/
+
+/*
+ * Expand leading gray pixels of row to opaque RGBA pixels, 16 at a time.  Returns the number of
+ * pixels converted, which the caller must finish.  Call only if the CPU supports NEON.
+ */
+int IBMatcher_ExpandGrayRowNeon(
+	const unsigned char *pGray,
+	unsigned char       *pRgba,
+	int                  width);
+
+/*
+ * Invert leading gray pixels of row to alpha pixels, 16 at a time.  Returns the number of pixels
+ * converted, which the caller must finish.  Call only if the CPU supports NEON.
+ */
+int IBMatcher_InvertGrayRowNeon(
+	const unsigned char *pGray,
+	unsigned char       *pAlpha,
+	int                  width);
+
+#ifdef __cplusplus
+}
+#endif
+
+#endif /* IBMATCHERNEON_H_ */
@@ -0,0 +1,469 @@
+/* *************************************************************************************************
+ * IBCompactTemplateCodec.java
+ *
+ * DESCRIPTION:
+ *     Compact template serialization for storage with IBScanMatcher library
+ *     http://www.integratedbiometrics.com
+ *
+ * NOTES:
+ *     Copyright (c) Integrated Biometrics, 2013
+ *
+ * HISTORY:
+ *     2013/03/08  First version.
+ ************************************************************************************************ */
+
+package com.integratedbiometrics.ibscanmatcher;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import com.integratedbiometrics.ibscanmatcher.IBMatcher.Template;
+
+/**
+ * This class converts templates to and from a compact layout for storage, which decodes to the
+ * same <code>Template</code> as the IBSM template layout of <code>IBTemplateCodec</code>.  The
+ * minutiae buffer of an IBSM template has a fixed size and is mostly zero padding for prints with
+ * few minutiae; its layout is private to the native library, so it is coded as opaque bytes,
+ * alternating runs of zeros, which are dropped, and runs of other bytes, which are kept.  Header
+ * fields are coded as variable-length integers (varints: 7 bits per byte, least significant group
+ * first, high bit set on all but the last byte), and fields that are zero are omitted, as flagged
+ * by a bit map.
+ *
+ * <pre>
+ *     size  field
+ *        1  format version
+ *        v  version code
+ *        v  finger position code
+ *        v  impression type code
+ *        v  capture device tech ID code
+ *        1  bit map of present fields: bit 0 capture device vendor ID, 1 capture device type ID,
+ *           2 image sampling X, 3 image sampling Y, 4 image size X, 5 image size Y, 6 reserved
+ *        v  each present field, zigzag-coded so that small negative values stay short
+ *        v  length of minutiae buffer
+ *           runs up to the length of the minutiae buffer, each:
+ *        v    number of zero bytes
+ *        v    number of other bytes, followed by the bytes
+ * </pre>
+ *
+ * Every field (v) is a varint.
+ */
+public final class IBCompactTemplateCodec
+{
+    /* *********************************************************************************************
+     * (CLASS) PUBLIC INTERFACE
+     ******************************************************************************************** */
+
+	/**
+	 * Version of the compact layout, held in its first byte.
+	 */
+	public static final int FORMAT_VERSION = 1;
+
+	/**
+	 * Get length of encoded template.
+	 *
+	 * @param template  template to encode
+	 * @return          length of encoded template, in bytes
+	 */
+	public static int getEncodedLength(Template template)
+	{
+		/* Check for invalid argument. */
+		checkTemplate(template);
+
+		int length = 1 + getCodeLength(template) + 1;
+		for (final int field : getOptionalFields(template))
+		{
+			if (field != 0)
+			{
+				length += getVarintLength(zigzag(field));
+			}
+		}
+		length += getVarintLength(template.minutiae.length);
+
+		/* Measure the runs as encode() writes them. */
+		final byte[] minutiae = template.minutiae;
+		int          position = 0;
+		while (position < minutiae.length)
+		{
+			final int zeros = countZeros(minutiae, position);
+			position += zeros;
+			final int others = countOthers(minutiae, position);
+			position += others;
+			length += getVarintLength(zeros) + getVarintLength(others) + others;
+		}
+
+		return (length);
+	}
+
+	/**
+	 * Encode template in compact format.
+	 *
+	 * @param template  template to encode
+	 * @return          encoded template
+	 * @throws          IBMatcherException
+	 */
+	public static byte[] encode(Template template) throws IBMatcherException
+	{
+		final byte[] bytes = new byte[getEncodedLength(template)];
+
+		encode(template, bytes, 0);
+
+		return (bytes);
+	}
+
+	/**
+	 * Encode template in compact format into existing buffer.
+	 *
+	 * @param template  template to encode
+	 * @param buffer    buffer that will receive encoded template
+	 * @param offset    offset in buffer at which encoded template will begin
+	 * @return          number of bytes written to buffer
+	 * @throws          IBMatcherException
+	 */
+	public static int encode(Template template, byte[] buffer, int offset) throws IBMatcherException
+	{
+		/* Check for invalid argument. */
+		final int length = getEncodedLength(template);
+		if (buffer == null)
+		{
+    		throw (new IllegalArgumentException("Received null buffer"));
+		}
+		if ((offset < 0) || (buffer.length - offset < length))
+		{
+    		throw (new IllegalArgumentException("Buffer too small for template"));
+		}
+
+		/* Check for fields that have no native value. */
+		if ((template.version == null) || (template.fingerPosition == null) ||
+				(template.impressionType == null) || (template.captureDeviceTechId == null))
+		{
+			throw (new IBMatcherException(IBMatcherException.Type.CONVERT_FAILED));
+		}
+
+		int position = offset;
+		buffer[position++] = (byte)FORMAT_VERSION;
+		position = putVarint(buffer, position, template.version.toCode());
+		position = putVarint(buffer, position, template.fingerPosition.toCode());
+		position = putVarint(buffer, position, template.impressionType.toCode());
+		position = putVarint(buffer, position, template.captureDeviceTechId.toCode());
+
+		/* Flag and write the optional fields that are not zero. */
+		final int[] fields = getOptionalFields(template);
+		int         map    = 0;
+		for (int i = 0; i < fields.length; i++)
+		{
+			if (fields[i] != 0)
+			{
+				map |= 1 << i;
+			}
+		}
+		buffer[position++] = (byte)map;
+		for (final int field : fields)
+		{
+			if (field != 0)
+			{
+				position = putVarint(buffer, position, zigzag(field));
+			}
+		}
+
+		/* Write the minutiae buffer as runs, dropping the zeros. */
+		final byte[] minutiae = template.minutiae;
+		position = putVarint(buffer, position, minutiae.length);
+		int source = 0;
+		while (source < minutiae.length)
+		{
+			final int zeros = countZeros(minutiae, source);
+			source += zeros;
+			final int others = countOthers(minutiae, source);
+			position = putVarint(buffer, position, zeros);
+			position = putVarint(buffer, position, others);
+			System.arraycopy(minutiae, source, buffer, position, others);
+			source   += others;
+			position += others;
+		}
+
+		return (position - offset);
+	}
+
+	/**
+	 * Decode template from compact format.
+	 *
+	 * @param bytes  encoded template
+	 * @return       decoded template
+	 * @throws       IBMatcherException
+	 */
+	public static Template decode(byte[] bytes) throws IBMatcherException
+	{
+		/* Check for invalid argument. */
+		if (bytes == null)
+		{
+    		throw (new IllegalArgumentException("Received null bytes"));
+		}
+
+		return (decode(bytes, 0, bytes.length));
+	}
+
+	/**
+	 * Decode template from compact format held in part of a buffer.
+	 *
+	 * @param buffer  buffer holding encoded template
+	 * @param offset  offset in buffer at which encoded template begins
+	 * @param length  length of encoded template, in bytes
+	 * @return        decoded template
+	 * @throws        IBMatcherException
+	 */
+	public static Template decode(byte[] buffer, int offset, int length) throws IBMatcherException
+	{
+		/* Check for invalid argument. */
+		if (buffer == null)
+		{
+    		throw (new IllegalArgumentException("Received null buffer"));
+		}
+		if ((offset < 0) || (length < 0) || (buffer.length - offset < length))
+		{
+    		throw (new IllegalArgumentException("Received invalid offset or length"));
+		}
+
+		return (decode(ByteBuffer.wrap(buffer, offset, length)));
+	}
+
+	/**
+	 * Decode template from compact format.  All remaining bytes of the buffer are consumed.  The
+	 * minutiae buffer must be exactly <code>IBMatcher.getMinutiaeLength()</code> bytes long.
+	 *
+	 * @param buffer  buffer holding encoded template between its position and limit
+	 * @return        decoded template
+	 * @throws        IBMatcherException
+	 */
+	public static Template decode(ByteBuffer buffer) throws IBMatcherException
+	{
+		/* Check for invalid argument. */
+		if (buffer == null)
+		{
+    		throw (new IllegalArgumentException("Received null buffer"));
+		}
+
+		final ByteBuffer byteBuffer = buffer.slice();
+		final Template   template;
+		try
+		{
+			if (byteBuffer.get() != FORMAT_VERSION)
+			{
+				throw (new IBMatcherException(IBMatcherException.Type.CONVERT_FAILED));
+			}
+			final int versionCode             = getVarint(byteBuffer);
+			final int fingerPositionCode      = getVarint(byteBuffer);
+			final int impressionTypeCode      = getVarint(byteBuffer);
+			final int captureDeviceTechIdCode = getVarint(byteBuffer);
+
+			final int   map    = byteBuffer.get() & 0xFF;
+			final int[] fields = new int[OPTIONAL_FIELD_COUNT];
+			for (int i = 0; i < fields.length; i++)
+			{
+				fields[i] = ((map & (1 << i)) != 0) ? unzigzag(getVarint(byteBuffer)) : 0;
+			}
+			if ((map >>> OPTIONAL_FIELD_COUNT) != 0)
+			{
+				throw (new IBMatcherException(IBMatcherException.Type.CONVERT_FAILED));
+			}
+
+			/* Expand the runs, leaving the dropped zeros in the new buffer, which must fit the native one. */
+			final int minutiaeLength = getVarint(byteBuffer);
+			if (minutiaeLength != IBMatcher.getMinutiaeLength())
+			{
+				throw (new IBMatcherException(IBMatcherException.Type.CONVERT_FAILED));
+			}
+			final byte[] minutiae = new byte[minutiaeLength];
+			int          position = 0;
+			while (position < minutiaeLength)
+			{
+				final int zeros  = getVarint(byteBuffer);
+				final int others = getVarint(byteBuffer);
+				if ((zeros < 0) || (others < 0) || (zeros + others == 0)
+						|| (minutiaeLength - position - zeros < others) || (zeros > minutiaeLength - position))
+				{
+					throw (new IBMatcherException(IBMatcherException.Type.CONVERT_FAILED));
+				}
+				position += zeros;
+				byteBuffer.get(minutiae, position, others);
+				position += others;
+			}
+			if (byteBuffer.hasRemaining())
+			{
+				throw (new IBMatcherException(IBMatcherException.Type.CONVERT_FAILED));
+			}
+
+			template = new Template(versionCode, fingerPositionCode, impressionTypeCode,
+					captureDeviceTechIdCode, (short)fields[0], (short)fields[1], (short)fields[2],
+					(short)fields[3], (short)fields[4], (short)fields[5], minutiae, fields[6]);
+		}
+		catch (final BufferUnderflowException bue)
+		{
+			throw (new IBMatcherException(IBMatcherException.Type.CONVERT_FAILED));
+		}
+		buffer.position(buffer.limit());
+
+		/* Reject records whose codes have no Java value, as extractTemplate() does. */
+		if ((template.version == null) || (template.fingerPosition == null) ||
+				(template.impressionType == null) || (template.captureDeviceTechId == null))
+		{
+			throw (new IBMatcherException(IBMatcherException.Type.CONVERT_FAILED));
+		}
+
+		return (template);
+	}
+
+    /* *********************************************************************************************
+     * PRIVATE INTERFACE
+     ******************************************************************************************** */
+
+	/*
+	 * Number of header fields that are omitted when zero.
+	 */
+	private static final int OPTIONAL_FIELD_COUNT = 7;
+
+	/*
+	 * Check template argument.
+	 */
+	private static void checkTemplate(Template template)
+	{
+		if (template == null)
+		{
+    		throw (new IllegalArgumentException("Received null template"));
+		}
+		if (template.minutiae == null)
+		{
+    		throw (new IllegalArgumentException("Received template with null minutiae"));
+		}
+	}
+
+	/*
+	 * Get header fields that are omitted when zero, in the order of the bit map.
+	 */
+	private static int[] getOptionalFields(Template template)
+	{
+		return (new int[] {template.captureDeviceVendorId, template.captureDeviceTypeId,
+				template.imageSamplingX, template.imageSamplingY, template.imageSizeX,
+				template.imageSizeY, template.reserved});
+	}
+
+	/*
+	 * Get length of coded enumeration fields, which must not be null.
+	 */
+	private static int getCodeLength(Template template)
+	{
+		if ((template.version == null) || (template.fingerPosition == null) ||
+				(template.impressionType == null) || (template.captureDeviceTechId == null))
+		{
+			return (0);
+		}
+
+		return (getVarintLength(template.version.toCode()) + getVarintLength(template.fingerPosition.toCode())
+				+ getVarintLength(template.impressionType.toCode())
+				+ getVarintLength(template.captureDeviceTechId.toCode()));
+	}
+
+	/*
+	 * Count zero bytes from position.
+	 */
+	private static int countZeros(byte[] bytes, int position)
+	{
+		int end = position;
+		while ((end < bytes.length) && (bytes[end] == 0))
+		{
+			end++;
+		}
+
+		return (end - position);
+	}
+
+	/*
+	 * Count bytes from position up to the next run of zeros worth dropping.  A single zero between
+	 * other bytes costs less kept than coded as a run of its own.
+	 */
+	private static int countOthers(byte[] bytes, int position)
+	{
+		int end = position;
+		while (end < bytes.length)
+		{
+			if ((bytes[end] == 0) && ((end + 1 == bytes.length) || (bytes[end + 1] == 0)))
+			{
+				break;
+			}
+			end++;
+		}
+
+		return (end - position);
+	}
+
+	/*
+	 * Map signed value to unsigned, so that values of small magnitude have short varints.
+	 */
+	private static int zigzag(int value)
+	{
+		return ((value << 1) ^ (value >> 31));
+	}
+
+	/*
+	 * Reverse zigzag().
+	 */
+	private static int unzigzag(int value)
+	{
+		return ((value >>> 1) ^ -(value & 1));
+	}
+
+	/*
+	 * Get length of varint, taking value as unsigned.
+	 */
+	private static int getVarintLength(int value)
+	{
+		int length = 1;
+		while ((value & ~0x7F) != 0)
+		{
+			value >>>= 7;
+			length++;
+		}
+
+		return (length);
+	}
+
+	/*
+	 * Write varint, taking value as unsigned.  Returns position after varint.
+	 */
+	private static int putVarint(byte[] buffer, int position, int value)
+	{
+		while ((value & ~0x7F) != 0)
+		{
+			buffer[position++] = (byte)((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buffer[position++] = (byte)value;
+
+		return (position);
+	}
+
+	/*
+	 * Read varint of at most five bytes.
+	 */
+	private static int getVarint(ByteBuffer buffer) throws IBMatcherException
+	{
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7)
+		{
+			final int b = buffer.get();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+			{
+				return (value);
+			}
+		}
+
+		throw (new IBMatcherException(IBMatcherException.Type.CONVERT_FAILED));
+	}
+
+    /*
+     *  Private default constructor to prevent instantiation.
+     */
+	private IBCompactTemplateCodec()
+	{
+	}
+}
@@ -14,7 +14,16 @@
 
 package com.integratedbiometrics.ibscanmatcher;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
 import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
 
 import com.integratedbiometrics.ibscancommon.IBCommon.CaptureDeviceTechId;
 import com.integratedbiometrics.ibscancommon.IBCommon.FingerPosition;
@@ -123,6 +132,169 @@ public class IBMatcher
 		}
 	}
 
+	/**
+	 * Handle to a template converted once into native memory.  Matching with native templates 
+	 * skips the field-by-field conversion that every <code>Template</code> argument undergoes, so a 
+	 * gallery held this way matches with no per-call conversion and no pinning of minutiae arrays.
+	 * A native template is created with <code>createNativeTemplate()</code>.  It should be released 
+	 * with <code>release()</code> once no thread can be using it; otherwise its native memory is 
+	 * released, after it has been garbage-collected, when a later native template is created.
+	 */
+	public static final class NativeTemplate
+	{
+		/* Address of native template, or 0 once released.  Accessed from native code. */
+		private long m_pointerNative;
+		
+		/* Reference through which the native memory is released if this template is not. */
+		private final NativeReference m_reference;
+		
+		/* Instantiate native template for native address. */
+		private NativeTemplate(long pointerNative)
+		{
+			NativeReference.releaseUnreachable();
+			this.m_pointerNative = pointerNative;
+			this.m_reference     = new NativeReference(this, pointerNative);
+		}
+		
+		/**
+		 * Release native memory held by this template.  The template must not be in use by a 
+		 * matching call, and may not be used afterward.  Calling this more than once has no effect.
+		 */
+		public synchronized void release()
+		{
+			if (this.m_pointerNative != 0)
+			{
+				this.m_reference.release();
+				this.m_pointerNative = 0;
+			}
+		}
+		
+		/**
+		 * Determine whether this template has been released.
+		 * 
+		 * @return <code>true</code> if this template has been released; <code>false</code> otherwise
+		 */
+		public synchronized boolean isReleased()
+		{
+			return (this.m_pointerNative == 0);
+		}
+		
+		/* 
+		 * Phantom reference holding the native address of a template, which releases the native 
+		 * memory either when the template is released or, once the template has been collected 
+		 * without being released, when the reference is polled from the queue.  Unlike a 
+		 * finalizer, this never resurrects the template, and the memory of collected templates is
+		 * reclaimed on the next creation of a native template, e.g., when a gallery is replaced.
+		 */
+		private static final class NativeReference extends PhantomReference<NativeTemplate>
+		{
+			/* Queue of references whose templates have been collected. */
+			private static final ReferenceQueue<NativeTemplate> QUEUE = new ReferenceQueue<NativeTemplate>();
+			
+			/* References not yet released, kept reachable until their templates are collected. */
+			private static final Set<NativeReference>           LIVE  = 
+					Collections.synchronizedSet(new HashSet<NativeReference>());
+			
+			/* Address of native template, or 0 once released. */
+			private long m_pointerNative;
+			
+			private NativeReference(NativeTemplate template, long pointerNative)
+			{
+				super(template, QUEUE);
+				this.m_pointerNative = pointerNative;
+				LIVE.add(this);
+			}
+			
+			/* Release the native memory, if not already released. */
+			private synchronized void release()
+			{
+				if (this.m_pointerNative != 0)
+				{
+					releaseNativeTemplateNative(this.m_pointerNative);
+					this.m_pointerNative = 0;
+				}
+				LIVE.remove(this);
+			}
+			
+			/* Release the native memory of templates collected without being released. */
+			private static void releaseUnreachable()
+			{
+				Reference<? extends NativeTemplate> reference;
+				while ((reference = QUEUE.poll()) != null)
+				{
+					((NativeReference)reference).release();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Image data whose pixels are held in a direct buffer rather than in a Java array, so that 
+	 * native code reads them in place.  A <code>DirectImageDataExt</code> may be passed wherever 
+	 * an <code>ImageDataExt</code> is accepted: extracting a template from it, or compressing, 
+	 * saving, or enrolling it, copies none of its pixels, where an array-backed image is copied 
+	 * into native memory on every call.  Compressing or decompressing it returns another 
+	 * <code>DirectImageDataExt</code>, whose pixels are copied once from the native library rather 
+	 * than into a new Java array.  The inherited <code>imageData</code> array is empty; the pixels
+	 * are in <code>imageBuffer</code>.
+	 */
+	public static final class DirectImageDataExt extends ImageDataExt
+	{
+		/**
+		 * Direct buffer holding the image pixels, whose capacity is the length of the image data.
+		 */
+		public final ByteBuffer imageBuffer;
+		
+		/* Instantiate image data for pixels in direct buffer.  Called from native code. */
+		private DirectImageDataExt(int imageFormatCode, int impressionTypeCode, int fingerPositionCode, 
+				int captureDeviceTechIdCode, short captureDeviceVendorId, short captureDeviceTypeId, 
+				short scanSamplingX, short scanSamplingY, short imageSamplingX, short imageSamplingY, 
+				short imageSizeX, short imageSizeY, byte scaleUnit, byte bitDepth, ByteBuffer imageBuffer)
+		{
+			super(imageFormatCode, impressionTypeCode, fingerPositionCode, captureDeviceTechIdCode, 
+					captureDeviceVendorId, captureDeviceTypeId, scanSamplingX, scanSamplingY, 
+					imageSamplingX, imageSamplingY, imageSizeX, imageSizeY, scaleUnit, bitDepth, 
+					EMPTY_IMAGE_DATA);
+			this.imageBuffer = imageBuffer;
+		}
+		
+		/**
+		 * Create image data in a direct buffer from image data in a Java array, copying the pixels
+		 * once.  An image that is extracted, compressed, and saved is then copied once rather than
+		 * once per call.
+		 * 
+		 * @param imageDataExt  image data to copy
+		 * @return              image data in a direct buffer
+		 */
+		public static DirectImageDataExt fromImageDataExt(ImageDataExt imageDataExt)
+		{
+			/* Check for invalid argument. */
+			if (imageDataExt == null)
+			{
+	    		throw (new IllegalArgumentException("Received null imageDataExt"));
+			}
+			if (imageDataExt instanceof DirectImageDataExt)
+			{
+				return ((DirectImageDataExt) imageDataExt);
+			}
+			
+			final ByteBuffer imageBuffer = ByteBuffer.allocateDirect(imageDataExt.imageData.length);
+			imageBuffer.put(imageDataExt.imageData);
+			imageBuffer.clear();
+			
+			return (new DirectImageDataExt(imageDataExt.imageFormat.toCode(), 
+					imageDataExt.impressionType.toCode(), imageDataExt.fingerPosition.toCode(), 
+					imageDataExt.captureDeviceTechId.toCode(), imageDataExt.captureDeviceVendorId, 
+					imageDataExt.captureDeviceTypeId, imageDataExt.scanSamplingX, 
+					imageDataExt.scanSamplingY, imageDataExt.imageSamplingX, 
+					imageDataExt.imageSamplingY, imageDataExt.imageSizeX, imageDataExt.imageSizeY, 
+					imageDataExt.scaleUnit, imageDataExt.bitDepth, imageBuffer));
+		}
+		
+		/* The image data array of every direct image. */
+		private static final byte[] EMPTY_IMAGE_DATA = new byte[0];
+	}
+
 	/**
      * Template version.
      */
@@ -188,7 +360,8 @@ public class IBMatcher
 	/**
 	 * Extract template from image data.
 	 * 
-	 * @param imageDataExt  image data from which template will be extracted
+	 * @param imageDataExt  image data from which template will be extracted, read in place if it 
+	 *                      is a <code>DirectImageDataExt</code>
 	 * @return              extracted template, if no error; <code>null</code> otherwise
 	 * @throws              IBMatcherException
 	 */
@@ -226,9 +399,10 @@ public class IBMatcher
 	/**
 	 * Compress image data.
 	 * 
-	 * @param imageDataExt image data to compress
+	 * @param imageDataExt image data to compress, read in place if it is a 
+	 *                     <code>DirectImageDataExt</code>
 	 * @param imageFormat  format of compressed image data
-	 * @return             compressed image data
+	 * @return             compressed image data, in a direct buffer if the image data was
 	 * @throws             IBMatcherException
 	 */
 	public ImageDataExt compressImage(ImageDataExt imageDataExt, ImageFormat imageFormat) throws IBMatcherException
@@ -259,8 +433,9 @@ public class IBMatcher
 	/**
 	 * Decompress image data.
 	 * 
-	 * @param imageDataExt  image data to decompress
-	 * @return              decompressed image data
+	 * @param imageDataExt  image data to decompress, read in place if it is a 
+	 *                      <code>DirectImageDataExt</code>
+	 * @return              decompressed image data, in a direct buffer if the image data was
 	 * @throws              IBMatcherException
 	 */
 	public ImageDataExt decompressImage(ImageDataExt imageDataExt) throws IBMatcherException
@@ -290,6 +465,24 @@ public class IBMatcher
      * @return              bitmap if successful; otherwise <code>null</code>
      */
     public Bitmap convertImageToBitmap(ImageDataExt imageDataExt)
+    {
+    	return (convertImageToBitmap(imageDataExt, null));
+    }
+    
+    /**
+     * Convert image data to Bitmap, drawing into a bitmap from an earlier call where possible so
+     * that displaying a stream of images allocates no new bitmaps.  The bitmap is reused if it is 
+     * mutable, the size of the image, and of configuration <code>ARGB_8888</code> or 
+     * <code>ALPHA_8</code>; otherwise a new <code>ARGB_8888</code> bitmap is created.  An 
+     * <code>ALPHA_8</code> bitmap takes a quarter of the memory and holds the inverted gray level 
+     * as alpha, so that the ridges are drawn opaque over a light background.
+     * 
+     * @param imageDataExt  image data to convert
+     * @param bitmap        bitmap to reuse; may be <code>null</code>
+     * @return              bitmap into which the image was drawn if successful; otherwise 
+     *                      <code>null</code>
+     */
+    public Bitmap convertImageToBitmap(ImageDataExt imageDataExt, Bitmap bitmap)
     {
     	if (imageDataExt == null)
     	{
@@ -297,27 +490,21 @@ public class IBMatcher
     		throw (new IllegalArgumentException("Received null imageDataExt"));		
     	}
     
-    	final Bitmap bitmap = Bitmap.createBitmap(imageDataExt.imageSizeX, imageDataExt.imageSizeY, Bitmap.Config.ARGB_8888);
+    	if ((bitmap == null) || !bitmap.isMutable() || (bitmap.getWidth() != imageDataExt.imageSizeX) 
+    			|| (bitmap.getHeight() != imageDataExt.imageSizeY) 
+    			|| ((bitmap.getConfig() != Bitmap.Config.ARGB_8888) 
+    					&& (bitmap.getConfig() != Bitmap.Config.ALPHA_8)))
+    	{
+    		bitmap = Bitmap.createBitmap(imageDataExt.imageSizeX, imageDataExt.imageSizeY, Bitmap.Config.ARGB_8888);
+    	}
     	
 		if (bitmap != null)
 		{
-        	final byte[] imageBuffer = new byte[imageDataExt.imageSizeX * imageDataExt.imageSizeY * 4];
-        	/* 
-        	 * The image in the buffer is flipped vertically from what the Bitmap class expects; 
-        	 * we will flip it to compensate while moving it into the buffer. 
-        	 */
-    		for (int y = 0; y < imageDataExt.imageSizeY; y++) 
-    		{
-    			for (int x = 0; x < imageDataExt.imageSizeX; x++) 
-    			{
-    				imageBuffer[((y * imageDataExt.imageSizeX) + x) * 4] = 
-    						imageBuffer[((y * imageDataExt.imageSizeX) + x) * 4 + 1] = 
-    								imageBuffer[((y * imageDataExt.imageSizeX) + x) * 4 + 2] = 
-    										imageDataExt.imageData[(imageDataExt.imageSizeY - y - 1) * imageDataExt.imageSizeX + x];
-    				imageBuffer[((y * imageDataExt.imageSizeX) + x) * 4 + 3] = (byte)255;
-    			}
-    		}        	
-    		bitmap.copyPixelsFromBuffer(ByteBuffer.wrap(imageBuffer));
+			/* Flip and expand the image natively; where that is unavailable, do so here. */
+			if (!renderImageNative(imageDataExt, bitmap))
+			{
+				renderImage(imageDataExt, bitmap);
+			}
 		}
 		
 		return (bitmap);
@@ -326,7 +513,7 @@ public class IBMatcher
 	/**
 	 * Save image to file in IBSM image format.
 	 * 
-	 * @param imageDataExt  image to save
+	 * @param imageDataExt  image to save, read in place if it is a <code>DirectImageDataExt</code>
 	 * @param filePath      path of IBSM image file
 	 * @return              <code>true</code> if image was saved; <code>false</code> otherwise
 	 * @throws              IBMatcherException
@@ -563,6 +750,202 @@ public class IBMatcher
 		return (template);
 	}
 	
+	/**
+	 * Save template to byte array in IBSM template format.  The bytes are identical to the contents
+	 * of a file written by <code>saveTemplate()</code>; no file is created.
+	 * 
+	 * @param template  template to save
+	 * @return          IBSM template bytes
+	 * @throws          IBMatcherException
+	 */
+	public byte[] saveTemplateToBytes(Template template) throws IBMatcherException
+	{
+		/* Check for invalid argument. */
+		if (template == null)
+		{
+        	logPrintWarning(getMethodName() + ": received null template");
+    		throw (new IllegalArgumentException("Received null template"));
+		}
+		
+		/* Serialization does not use the matcher handle, so concurrent callers need not wait. */
+        final NativeError error = new NativeError();
+        final byte[]      bytes = saveTemplateToBytesNative(template, error);
+        handleError(error); /* throws exception if necessary */
+
+        return (bytes);
+	}
+	
+	/**
+	 * Save template into buffer in IBSM template format.  The template is written at the buffer's 
+	 * position, which is advanced past it.  A direct buffer is written in place by native code.
+	 * 
+	 * @param template  template to save
+	 * @param buffer    buffer that will receive IBSM template bytes
+	 * @return          number of bytes written
+	 * @throws          IBMatcherException
+	 */
+	public int saveTemplateToBytes(Template template, ByteBuffer buffer) throws IBMatcherException
+	{
+		/* Check for invalid argument. */
+		if (template == null)
+		{
+        	logPrintWarning(getMethodName() + ": received null template");
+    		throw (new IllegalArgumentException("Received null template"));
+		}
+		if (buffer == null)
+		{
+        	logPrintWarning(getMethodName() + ": received null buffer");
+    		throw (new IllegalArgumentException("Received null buffer"));
+		}
+		
+		if (!buffer.isDirect())
+		{
+			final byte[] bytes = saveTemplateToBytes(template);
+			buffer.put(bytes);
+			return (bytes.length);
+		}
+		
+        final NativeError error   = new NativeError();
+        final int         written = saveTemplateToBufferNative(template, buffer, buffer.position(), 
+        		buffer.remaining(), error);
+        handleError(error); /* throws exception if necessary */
+        
+        buffer.position(buffer.position() + written);
+
+        return (written);
+	}
+	
+	/**
+	 * Load template from byte array in IBSM template format, such as one returned by 
+	 * <code>saveTemplateToBytes()</code> or read from a file written by <code>saveTemplate()</code>.
+	 * 
+	 * @param bytes  IBSM template bytes
+	 * @return       loaded template, if successful; <code>null</code> otherwise
+	 * @throws       IBMatcherException
+	 */
+	public Template loadTemplateFromBytes(byte[] bytes) throws IBMatcherException
+	{
+		/* Check for invalid argument. */
+		if (bytes == null)
+		{
+        	logPrintWarning(getMethodName() + ": received null bytes");
+    		throw (new IllegalArgumentException("Received null bytes"));
+		}
+		
+		/* Deserialization does not use the matcher handle, so concurrent callers need not wait. */
+		final NativeError error    = new NativeError();
+		final Template    template = loadTemplateFromBytesNative(bytes, 0, bytes.length, error);
+		handleError(error); /* throws exception if necessary */
+		
+		return (template);
+	}
+	
+	/**
+	 * Load template from buffer in IBSM template format.  All bytes between the buffer's position 
+	 * and limit are consumed.  A direct buffer is read in place by native code.
+	 * 
+	 * @param buffer  buffer holding IBSM template bytes
+	 * @return        loaded template, if successful; <code>null</code> otherwise
+	 * @throws        IBMatcherException
+	 */
+	public Template loadTemplateFromBytes(ByteBuffer buffer) throws IBMatcherException
+	{
+		/* Check for invalid argument. */
+		if (buffer == null)
+		{
+        	logPrintWarning(getMethodName() + ": received null buffer");
+    		throw (new IllegalArgumentException("Received null buffer"));
+		}
+		
+		final NativeError error = new NativeError();
+		final Template    template;
+		if (buffer.isDirect())
+		{
+			template = loadTemplateFromBufferNative(buffer, buffer.position(), buffer.remaining(), error);
+		}
+		else if (buffer.hasArray())
+		{
+			template = loadTemplateFromBytesNative(buffer.array(), buffer.arrayOffset() + buffer.position(), 
+					buffer.remaining(), error);
+		}
+		else
+		{
+			final byte[] bytes = new byte[buffer.remaining()];
+			buffer.duplicate().get(bytes);
+			template = loadTemplateFromBytesNative(bytes, 0, bytes.length, error);
+		}
+		handleError(error); /* throws exception if necessary */
+		
+		buffer.position(buffer.limit());
+		
+		return (template);
+	}
+	
+	/**
+	 * Save template to byte array as ISO/IEC 19794-2 Fingerprint Minutiae Record (FMR).  The 
+	 * native library only writes FMRs to paths, so native code converts the template, writes the 
+	 * record to one staging file kept by this matcher, and reads it straight back into the returned
+	 * array in the same call; no file is created or deleted per call, and no Java streams are used.
+	 * 
+	 * @param template  template to save
+	 * @return          FMR bytes
+	 * @throws          IBMatcherException
+	 */
+	public byte[] saveTemplateAsFmrToBytes(Template template) throws IBMatcherException
+	{
+		/* Check for invalid argument. */
+		if (template == null)
+		{
+        	logPrintWarning(getMethodName() + ": received null template");
+    		throw (new IllegalArgumentException("Received null template"));
+		}
+		
+        final NativeError error = new NativeError();
+        final byte[]      bytes;
+		synchronized(this) /* only one thread can access the matcher at a time. */
+		{
+			if (this.m_fmrStagingFile == null)
+			{
+				this.m_fmrStagingFile = createStagingFile(".fmr");
+				this.m_fmrStagingFile.deleteOnExit();
+			}
+			bytes = saveTemplateAsFmrToBytesNative(template, this.m_fmrStagingFile.getAbsolutePath(), error);
+		}
+        handleError(error); /* throws exception if necessary */
+
+        return (bytes);
+	}
+	
+	/**
+	 * Load template from byte array with ISO/IEC 19794-2 Fingerprint Minutiae Record (FMR).  The
+	 * native library only reads FMRs from files, so the record is staged through a private file 
+	 * unique to this call in the temporary directory; concurrent callers do not collide.
+	 * 
+	 * @param bytes  FMR bytes
+	 * @return       loaded template, if successful; <code>null</code> otherwise
+	 * @throws       IBMatcherException
+	 */
+	public Template loadTemplateFromFmrBytes(byte[] bytes) throws IBMatcherException
+	{
+		/* Check for invalid argument. */
+		if (bytes == null)
+		{
+        	logPrintWarning(getMethodName() + ": received null bytes");
+    		throw (new IllegalArgumentException("Received null bytes"));
+		}
+		
+		final File file = createStagingFile(".fmr");
+		try
+		{
+			writeStagingFile(file, bytes);
+			return (loadTemplateFromFmr(file.getAbsolutePath()));
+		}
+		finally
+		{
+			file.delete();
+		}
+	}
+	
 	/**
 	 * Determine whether two templates match.  The templates must match to the level set with 
 	 * setMatchingLevel().
@@ -599,6 +982,250 @@ public class IBMatcher
 		return (matchingScore);
 	}
 	
+	/**
+	 * Match one probe template against many gallery templates.  The probe is converted for the 
+	 * native library once, and the gallery is matched in a single native call, so the per-pair 
+	 * overhead of <code>matchTemplates()</code> is paid once per batch.  The matcher is locked for 
+	 * the whole batch.
+	 * 
+	 * @param probe      probe template
+	 * @param gallery    gallery templates
+	 * @param scoresOut  array that will receive the matching score of each gallery template, as 
+	 *                   returned by <code>matchTemplates()</code>, at the same index; templates 
+	 *                   that fail to match with an error receive 0.  Must be at least as long as 
+	 *                   the gallery.
+	 * @return           number of gallery templates that failed to match with an error
+	 * @throws           IBMatcherException
+	 */
+	public int matchTemplatesBatch(Template probe, Template[] gallery, int[] scoresOut) throws IBMatcherException
+	{
+		/* Check for invalid argument. */
+		if (gallery == null)
+		{
+			logPrintWarning(getMethodName() + ": received null gallery");
+			throw (new IllegalArgumentException("Received null gallery"));
+		}
+		
+		return (matchTemplatesBatch(probe, gallery, 0, gallery.length, scoresOut));
+	}
+	
+	/**
+	 * Match one probe template against part of a gallery of templates.
+	 * 
+	 * @param probe      probe template
+	 * @param gallery    gallery templates
+	 * @param offset     index of first gallery template to match
+	 * @param count      number of gallery templates to match
+	 * @param scoresOut  array that will receive the matching score of each gallery template at the 
+	 *                   same index; templates that fail to match with an error receive 0
+	 * @return           number of gallery templates that failed to match with an error
+	 * @throws           IBMatcherException
+	 * @see              #matchTemplatesBatch(Template, Template[], int[])
+	 */
+	public int matchTemplatesBatch(Template probe, Template[] gallery, int offset, int count, 
+			int[] scoresOut) throws IBMatcherException
+	{
+		/* Check for invalid argument. */
+		if (probe == null)
+		{
+			logPrintWarning(getMethodName() + ": received null probe");
+			throw (new IllegalArgumentException("Received null probe"));
+		}
+		if (gallery == null)
+		{
+			logPrintWarning(getMethodName() + ": received null gallery");
+			throw (new IllegalArgumentException("Received null gallery"));
+		}
+		if ((offset < 0) || (count < 0) || (gallery.length - offset < count))
+		{
+			logPrintWarning(getMethodName() + ": received invalid offset or count");
+			throw (new IllegalArgumentException("Received invalid offset or count"));
+		}
+		if ((scoresOut == null) || (scoresOut.length - offset < count))
+		{
+			logPrintWarning(getMethodName() + ": received null or short scores");
+			throw (new IllegalArgumentException("Received null or short scores"));
+		}
+		for (int i = offset; i < offset + count; i++)
+		{
+			if (gallery[i] == null)
+			{
+				logPrintWarning(getMethodName() + ": received null gallery template");
+				throw (new IllegalArgumentException("Received null gallery template"));
+			}
+		}
+		if (count == 0)
+		{
+			return (0);
+		}
+		
+		final NativeError error = new NativeError();
+		final int         failures;
+		synchronized(this) /* only one thread can access the matcher at a time. */
+		{
+			failures = matchTemplatesBatchNative(probe, gallery, offset, count, scoresOut, error);
+		}
+		handleError(error); /* throws exception if necessary */
+		
+		if (failures > 0)
+		{
+			logPrintWarning(getMethodName() + ": " + failures + " of " + count + " gallery templates failed to match");
+		}
+		
+		return (failures);
+	}
+	
+	/**
+	 * Create native template from template.  The template is converted for the native library 
+	 * once, and the result may be matched any number of times.
+	 * 
+	 * @param template  template to convert
+	 * @return          native template
+	 * @throws          IBMatcherException
+	 */
+	public NativeTemplate createNativeTemplate(Template template) throws IBMatcherException
+	{
+		/* Check for invalid argument. */
+		if (template == null)
+		{
+			logPrintWarning(getMethodName() + ": received null template");
+			throw (new IllegalArgumentException("Received null template"));
+		}
+		
+		/* Conversion does not use the matcher handle, so the matcher is not locked. */
+		final NativeError error   = new NativeError();
+		final long        pointer = createNativeTemplateNative(template, error);
+		handleError(error); /* throws exception if necessary */
+		
+		return (new NativeTemplate(pointer));
+	}
+	
+	/**
+	 * Create native template from IBSM template bytes, as written by 
+	 * <code>saveTemplateToBytes()</code>, without creating a <code>Template</code>.
+	 * 
+	 * @param bytes  IBSM template bytes
+	 * @return       native template
+	 * @throws       IBMatcherException
+	 */
+	public NativeTemplate createNativeTemplate(byte[] bytes) throws IBMatcherException
+	{
+		/* Check for invalid argument. */
+		if (bytes == null)
+		{
+			logPrintWarning(getMethodName() + ": received null bytes");
+			throw (new IllegalArgumentException("Received null bytes"));
+		}
+		
+		final NativeError error   = new NativeError();
+		final long        pointer = createNativeTemplateFromBytesNative(bytes, 0, bytes.length, error);
+		handleError(error); /* throws exception if necessary */
+		
+		return (new NativeTemplate(pointer));
+	}
+	
+	/**
+	 * Determine whether two native templates match.
+	 * 
+	 * @param template1  first template
+	 * @param template2  second template
+	 * @return           matching score
+	 * @throws           IBMatcherException
+	 * @see              #matchTemplates(Template, Template)
+	 */
+	public int matchTemplates(NativeTemplate template1, NativeTemplate template2) throws IBMatcherException
+	{
+		/* Check for invalid argument. */
+		if ((template1 == null) || template1.isReleased())
+		{
+			logPrintWarning(getMethodName() + ": received null or released first template");
+			throw (new IllegalArgumentException("Received null or released first template"));
+		}
+		if ((template2 == null) || template2.isReleased())
+		{
+			logPrintWarning(getMethodName() + ": received null or released second template");
+			throw (new IllegalArgumentException("Received null or released second template"));
+		}
+		
+		final NativeError error = new NativeError();
+		final int         matchingScore;
+		synchronized(this) /* only one thread can access the matcher at a time. */
+		{
+			matchingScore = matchNativeTemplatesNative(template1, template2, error);
+		}
+		handleError(error); /* throws exception if necessary */
+		
+		return (matchingScore);
+	}
+	
+	/**
+	 * Match one native probe template against part of a gallery of native templates.  No template 
+	 * is converted, so each comparison costs only the native match.
+	 * 
+	 * @param probe      probe template
+	 * @param gallery    gallery templates
+	 * @param offset     index of first gallery template to match
+	 * @param count      number of gallery templates to match
+	 * @param scoresOut  array that will receive the matching score of each gallery template at the 
+	 *                   same index; released templates and templates that fail to match with an 
+	 *                   error receive 0
+	 * @return           number of gallery templates that were released or failed to match
+	 * @throws           IBMatcherException
+	 * @see              #matchTemplatesBatch(Template, Template[], int[])
+	 */
+	public int matchTemplatesBatch(NativeTemplate probe, NativeTemplate[] gallery, int offset, 
+			int count, int[] scoresOut) throws IBMatcherException
+	{
+		/* Check for invalid argument. */
+		if ((probe == null) || probe.isReleased())
+		{
+			logPrintWarning(getMethodName() + ": received null or released probe");
+			throw (new IllegalArgumentException("Received null or released probe"));
+		}
+		if (gallery == null)
+		{
+			logPrintWarning(getMethodName() + ": received null gallery");
+			throw (new IllegalArgumentException("Received null gallery"));
+		}
+		if ((offset < 0) || (count < 0) || (gallery.length - offset < count))
+		{
+			logPrintWarning(getMethodName() + ": received invalid offset or count");
+			throw (new IllegalArgumentException("Received invalid offset or count"));
+		}
+		if ((scoresOut == null) || (scoresOut.length - offset < count))
+		{
+			logPrintWarning(getMethodName() + ": received null or short scores");
+			throw (new IllegalArgumentException("Received null or short scores"));
+		}
+		for (int i = offset; i < offset + count; i++)
+		{
+			if (gallery[i] == null)
+			{
+				logPrintWarning(getMethodName() + ": received null gallery template");
+				throw (new IllegalArgumentException("Received null gallery template"));
+			}
+		}
+		if (count == 0)
+		{
+			return (0);
+		}
+		
+		final NativeError error = new NativeError();
+		final int         failures;
+		synchronized(this) /* only one thread can access the matcher at a time. */
+		{
+			failures = matchNativeTemplatesBatchNative(probe, gallery, offset, count, scoresOut, error);
+		}
+		handleError(error); /* throws exception if necessary */
+		
+		if (failures > 0)
+		{
+			logPrintWarning(getMethodName() + ": " + failures + " of " + count + " gallery templates failed to match");
+		}
+		
+		return (failures);
+	}
+	
 	/**
 	 * Set matching level.  This level is used when matching templates (with <code>matchTemplates()</code>)
 	 * or generating enrollment templates (with <code>singleEnrollment()</code> or <code>multiEnrollment()</code>).
@@ -784,6 +1411,17 @@ public class IBMatcher
         return (IBMatcher.m_instance);
     }
 
+    /**
+     * Get length of the minutiae buffer of a native template.  Every template passed to native
+     * code must have a minutiae buffer of exactly this length.
+     * 
+     * @return  length of minutiae buffer, in bytes
+     */
+    public static int getMinutiaeLength()
+    {
+        return (MINUTIAE_LENGTH);
+    }
+
     /* *********************************************************************************************
      * PROTECTED INNER CLASSES
      ******************************************************************************************** */
@@ -808,6 +1446,36 @@ public class IBMatcher
     	this.m_handleNative = initNative();
     }
     
+    /*
+     *  Create matcher with its own native handle, for use by IBMatcherPool.  Matchers with
+     *  different handles lock only themselves, so they can match on different threads at once.
+     */
+    static IBMatcher createPooledInstance() throws IBMatcherException
+    {
+    	final IBMatcher matcher = new IBMatcher();
+    	if (matcher.m_handleNative < 0)
+    	{
+        	logPrintError(getMethodName() + ": unable to open matcher handle");
+        	throw (new IBMatcherException(IBMatcherException.Type.COMMAND_FAILED));
+    	}
+    	
+    	return (matcher);
+    }
+    
+    /*
+     *  Close native handle of matcher created with createPooledInstance().  The matcher must not
+     *  be used afterward.
+     */
+    void release() throws IBMatcherException
+    {
+		final NativeError error = new NativeError();
+		synchronized(this) /* only one thread can access the matcher at a time. */
+		{
+			closeNative(error);
+		}
+		handleError(error); /* throws exception if necessary */
+    }
+    
     /*
      *  Singleton matcher object.
      */
@@ -818,6 +1486,12 @@ public class IBMatcher
      */
     private final int m_handleNative;
 
+    /*
+     *  File through which saveTemplateAsFmrToBytes() stages records, created on first use.  Only
+     *  used with this matcher's lock held.
+     */
+    private File m_fmrStagingFile = null;
+
     /*
      *  Handle error from native method.
      */
@@ -837,6 +1511,75 @@ public class IBMatcher
         }
     }
     
+    /*
+     *  Create file unique to this call for staging data through file-only native functions.
+     */
+    private static File createStagingFile(String suffix) throws IBMatcherException
+    {
+    	try
+    	{
+    		return (File.createTempFile("ibsm", suffix));
+    	}
+    	catch (IOException ioe)
+    	{
+        	logPrintError(getMethodName() + ": unable to create staging file " + ioe.toString());
+        	throw (new IBMatcherException(IBMatcherException.Type.FILE_OPEN));
+    	}
+    }
+    
+    /*
+     *  Write entire staging file.
+     */
+    private static void writeStagingFile(File file, byte[] bytes) throws IBMatcherException
+    {
+    	try
+    	{
+    		final FileOutputStream ostream = new FileOutputStream(file);
+    		try
+    		{
+    			ostream.write(bytes);
+    		}
+    		finally
+    		{
+    			ostream.close();
+    		}
+    	}
+    	catch (IOException ioe)
+    	{
+        	logPrintError(getMethodName() + ": unable to write staging file " + ioe.toString());
+        	throw (new IBMatcherException(IBMatcherException.Type.FILE_SAVE));
+    	}
+    }
+    
+    /*
+     *  Draw image into bitmap a row at a time, for platforms without native bitmap access.
+     */
+    private static void renderImage(ImageDataExt imageDataExt, Bitmap bitmap)
+    {
+    	final int        width  = imageDataExt.imageSizeX;
+    	final int        height = imageDataExt.imageSizeY;
+    	final boolean    alpha  = (bitmap.getConfig() == Bitmap.Config.ALPHA_8);
+    	final ByteBuffer pixels = (imageDataExt instanceof DirectImageDataExt) 
+    			? ((DirectImageDataExt) imageDataExt).imageBuffer.duplicate() 
+    			: ByteBuffer.wrap(imageDataExt.imageData);
+    	final int[]      row    = new int[width];
+    	
+    	/* 
+    	 * The image in the buffer is flipped vertically from what the Bitmap class expects; 
+    	 * we will flip it to compensate while moving it into the bitmap. 
+    	 */
+    	for (int y = 0; y < height; y++)
+    	{
+    		final int offset = (height - y - 1) * width;
+    		for (int x = 0; x < width; x++)
+    		{
+    			final int gray = pixels.get(offset + x) & 0xFF;
+    			row[x] = alpha ? ((255 - gray) << 24) : (0xFF000000 | (gray * 0x010101));
+    		}
+    		bitmap.setPixels(row, 0, width, 0, y, width, 1);
+    	}
+    }
+    
     /*
      *  Log warning to System.out.
      */
@@ -858,6 +1601,11 @@ public class IBMatcher
      */
     private static int METHOD_STACK_INDEX;
 
+    /*
+     * The length of the minutiae buffer of a native template, read once the library is loaded.
+     */
+    private static final int MINUTIAE_LENGTH;
+
     /*
      *  Get name of method caller.
      */
@@ -886,12 +1634,18 @@ public class IBMatcher
     /* Native method for constructor. */
     private native int initNative();
     
+    /* Native method for release(). */
+    private native void closeNative(NativeError error);
+    
     /* Native method for getSDKVersion(). */
     private native SdkVersion getSdkVersionNative(NativeError error);
 
     /* Native method for extractTemplate(). */
     private native Template extractTemplateNative(ImageDataExt imageDataExt, NativeError error);
 
+    /* Native method for convertImageToBitmap(). */
+    private native boolean renderImageNative(ImageDataExt imageDataExt, Bitmap bitmap);
+    
     /* Native method for compressImage(). */
     private native ImageDataExt compressImageNative(ImageDataExt imageDataExt, int imageFormatCode, 
     		NativeError error);
@@ -927,9 +1681,53 @@ public class IBMatcher
     /* Native method for loadTemplateFromFmr(). */
     private native Template loadTemplateFromFmrNative(String filePath, NativeError error);
     
+    /* Native method for saveTemplateAsFmrToBytes(). */
+    private native byte[] saveTemplateAsFmrToBytesNative(Template template, String stagingPath, 
+    		NativeError error);
+    
+    /* Native method for saveTemplateToBytes(). */
+    private native byte[] saveTemplateToBytesNative(Template template, NativeError error);
+    
+    /* Native method for saveTemplateToBytes() with direct buffer. */
+    private native int saveTemplateToBufferNative(Template template, ByteBuffer buffer, int offset,
+    		int length, NativeError error);
+    
+    /* Native method for loadTemplateFromBytes(). */
+    private native Template loadTemplateFromBytesNative(byte[] bytes, int offset, int length,
+    		NativeError error);
+    
+    /* Native method for loadTemplateFromBytes() with direct buffer. */
+    private native Template loadTemplateFromBufferNative(ByteBuffer buffer, int offset, int length,
+    		NativeError error);
+    
 	/* Native method for matchTemplates(). */
 	private native int matchTemplatesNative(Template template1, Template template2, NativeError error);
 	
+	/* Native method for matchTemplatesBatch(). */
+	private native int matchTemplatesBatchNative(Template probe, Template[] gallery, int offset, 
+			int count, int[] scores, NativeError error);
+	
+	/* Native method for createNativeTemplate(). */
+	private native long createNativeTemplateNative(Template template, NativeError error);
+	
+	/* Native method for createNativeTemplate() with bytes. */
+	private native long createNativeTemplateFromBytesNative(byte[] bytes, int offset, int length, 
+			NativeError error);
+	
+	/* Native method for NativeTemplate.release(). */
+	private static native void releaseNativeTemplateNative(long pointer);
+	
+	/* Native method for getMinutiaeLength(). */
+	private static native int getMinutiaeLengthNative();
+	
+	/* Native method for matchTemplates() with native templates. */
+	private native int matchNativeTemplatesNative(NativeTemplate template1, NativeTemplate template2, 
+			NativeError error);
+	
+	/* Native method for matchTemplatesBatch() with native templates. */
+	private native int matchNativeTemplatesBatchNative(NativeTemplate probe, NativeTemplate[] gallery, 
+			int offset, int count, int[] scores, NativeError error);
+	
 	/* Native method for setMatchingLevel(). */
 	private native void setMatchingLevelNative(int matchingLevel, NativeError error);
 	
@@ -973,5 +1771,6 @@ public class IBMatcher
     {
         System.loadLibrary("ibscanmatcher");
         System.loadLibrary("ibscanmatcherjni");
+        MINUTIAE_LENGTH = getMinutiaeLengthNative();
     }
 }
@@ -0,0 +1,1014 @@
+/* *************************************************************************************************
+ * IBMatcherPool.java
+ *
+ * DESCRIPTION:
+ *     Pool of matcher handles for parallel matching with IBScanMatcher library
+ *     http://www.integratedbiometrics.com
+ *
+ * NOTES:
+ *     Copyright (c) Integrated Biometrics, 2013
+ *
+ * HISTORY:
+ *     2013/03/08  First version.
+ ************************************************************************************************ */
+
+package com.integratedbiometrics.ibscanmatcher;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import android.util.Log;
+
+import com.integratedbiometrics.ibscanmatcher.IBMatcher.NativeTemplate;
+import com.integratedbiometrics.ibscanmatcher.IBMatcher.Template;
+
+/**
+ * This class holds several matchers, each with its own native handle, and splits 1:N searches into
+ * shards that are matched concurrently.  The single instance returned by
+ * <code>IBMatcher.getInstance()</code> serializes all calls; a pool lets a search use every core.
+ * A pool must be closed with <code>close()</code> when it is no longer needed; closing waits for
+ * searches in progress, and later searches fail with an <code>IBMatcherException</code>.
+ * <p>
+ * Shards run at the priority of the thread that started the search, so a search started on a
+ * background thread stays in the background on the pool's threads too.  Shards match in batches
+ * and stop once that thread is interrupted, in which case the search fails with an
+ * <code>IBMatcherException</code> and the thread's interrupt status is kept.
+ */
+public final class IBMatcherPool
+{
+    /* *********************************************************************************************
+     * PUBLIC INNER CLASSES
+     ******************************************************************************************** */
+
+	/**
+	 * Container for the result of a search.
+	 */
+	public static final class Match
+	{
+		/**
+		 * Index of the matching template in the gallery.
+		 */
+		public final int index;
+
+		/**
+		 * Matching score of the matching template.
+		 */
+		public final int score;
+
+		/**
+		 * Instantiate match and initialize members.
+		 *
+		 * @param index  index of the matching template in the gallery
+		 * @param score  matching score of the matching template
+		 */
+		public Match(int index, int score)
+		{
+			this.index = index;
+			this.score = score;
+		}
+
+		/**
+		 * Get match information as string.
+		 */
+		@Override
+		public String toString()
+		{
+			final String s = "Index = " + this.index + "\n" + "Score = " + this.score + "\n";
+			return (s);
+		}
+	}
+
+    /* *********************************************************************************************
+     * PUBLIC INTERFACE
+     ******************************************************************************************** */
+
+	/**
+	 * Minimum number of templates in one shard.  Smaller galleries are matched on the calling
+	 * thread, where the cost of handing off work would exceed the cost of matching.
+	 */
+	public static final int MIN_SHARD_SIZE = 16;
+
+	/**
+	 * Get default size of pool, one matcher per available processor.
+	 *
+	 * @return default size of pool
+	 */
+	public static int getDefaultSize()
+	{
+		return (Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Create pool with default size.
+	 *
+	 * @throws IBMatcherException
+	 */
+	public IBMatcherPool() throws IBMatcherException
+	{
+		this(getDefaultSize());
+	}
+
+	/**
+	 * Create pool.  Each matcher in the pool is configured with the matching level of the single
+	 * instance returned by <code>IBMatcher.getInstance()</code>.
+	 *
+	 * @param size  number of matchers in pool
+	 * @throws      IBMatcherException
+	 */
+	public IBMatcherPool(int size) throws IBMatcherException
+	{
+		/* Check for invalid argument. */
+		if (size < 1)
+		{
+			throw (new IllegalArgumentException("Received invalid pool size"));
+		}
+
+		final int matchingLevel = IBMatcher.getInstance().getMatchingLevel();
+
+		this.m_matchers = new IBMatcher[size];
+		try
+		{
+			for (int i = 0; i < size; i++)
+			{
+				this.m_matchers[i] = IBMatcher.createPooledInstance();
+				this.m_matchers[i].setMatchingLevel(matchingLevel);
+			}
+		}
+		catch (IBMatcherException ibme)
+		{
+			releaseMatchers();
+			throw (ibme);
+		}
+
+		this.m_executor = Executors.newFixedThreadPool(size, new ThreadFactory()
+		{
+			private final AtomicInteger m_count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable runnable)
+			{
+				final Thread thread = new Thread(runnable, "IBMatcherPool-" + this.m_count.incrementAndGet());
+				thread.setDaemon(true);
+				thread.setPriority(Thread.NORM_PRIORITY);
+				return (thread);
+			}
+		});
+	}
+
+	/**
+	 * Get number of matchers in pool.
+	 *
+	 * @return number of matchers in pool
+	 */
+	public int getSize()
+	{
+		return (this.m_matchers.length);
+	}
+
+	/**
+	 * Set matching level of every matcher in pool.
+	 *
+	 * @param matchingLevel  matching level required, between 1 (loosest) and 7 (strictest),
+	 *                       inclusive
+	 * @throws               IBMatcherException
+	 * @see                  IBMatcher#setMatchingLevel(int)
+	 */
+	public void setMatchingLevel(int matchingLevel) throws IBMatcherException
+	{
+		acquire();
+		try
+		{
+			for (IBMatcher matcher : this.m_matchers)
+			{
+				matcher.setMatchingLevel(matchingLevel);
+			}
+		}
+		finally
+		{
+			this.m_lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Find first template in gallery that matches probe.  The gallery is split into one shard per
+	 * matcher; the shards are searched concurrently and the match with the lowest index wins, so
+	 * the result is the same as a serial scan.  A shard stops as soon as it passes a match found
+	 * by another shard.  Templates that fail to match with an error are skipped.
+	 *
+	 * @param probe    template to search for
+	 * @param gallery  templates to search
+	 * @return         first match, if one was found; <code>null</code> otherwise
+	 * @throws         IBMatcherException
+	 */
+	public Match findFirstMatch(Template probe, Template[] gallery) throws IBMatcherException
+	{
+		return (findFirstMatch(createGallery(probe, gallery)));
+	}
+
+	/**
+	 * Find first native template in gallery that matches native probe.
+	 *
+	 * @param probe    template to search for
+	 * @param gallery  templates to search
+	 * @return         first match, if one was found; <code>null</code> otherwise
+	 * @throws         IBMatcherException
+	 * @see            #findFirstMatch(Template, Template[])
+	 */
+	public Match findFirstMatch(NativeTemplate probe, NativeTemplate[] gallery) throws IBMatcherException
+	{
+		return (findFirstMatch(createGallery(probe, gallery)));
+	}
+
+	/**
+	 * Find the best-scoring templates in gallery.  Each shard scores its templates one batch at a
+	 * time and keeps only its <code>k</code> best matches in a min-heap, so a candidate is
+	 * discarded as soon as it scores no better than the shard's running <code>k</code>-th best;
+	 * the shard heaps are then merged.  Only templates with a positive matching score are
+	 * returned.  Ties are broken in favor of the lower index.
+	 * <p>
+	 * Matching scores have no upper bound, so every template is scored; to stop early, see
+	 * <code>findBestMatches(Template, Template[], int, int)</code>.
+	 *
+	 * @param probe    template to search for
+	 * @param gallery  templates to search
+	 * @param k        maximum number of matches to return
+	 * @return         up to <code>k</code> matches, best first
+	 * @throws         IBMatcherException
+	 */
+	public Match[] findBestMatches(Template probe, Template[] gallery, int k) throws IBMatcherException
+	{
+		return (findBestMatches(createGallery(probe, gallery), k, Integer.MAX_VALUE));
+	}
+
+	/**
+	 * Find the best-scoring templates in gallery, stopping once <code>k</code> templates reach a
+	 * score that is good enough.  Scores of at least <code>stopScore</code> rank as equal, so such
+	 * matches are ordered by index, and a shard stops as soon as its running <code>k</code>-th
+	 * best reaches <code>stopScore</code>, since no later template can displace it; the other
+	 * shards then stop once they pass it.  With <code>k</code> of 1 and <code>stopScore</code> of
+	 * 1, this finds the same match as <code>findFirstMatch()</code>.
+	 *
+	 * @param probe      template to search for
+	 * @param gallery    templates to search
+	 * @param k          maximum number of matches to return
+	 * @param stopScore  least score of a conclusive match; <code>Integer.MAX_VALUE</code> scores
+	 *                   every template
+	 * @return           up to <code>k</code> matches, best first
+	 * @throws           IBMatcherException
+	 */
+	public Match[] findBestMatches(Template probe, Template[] gallery, int k, int stopScore) throws IBMatcherException
+	{
+		return (findBestMatches(createGallery(probe, gallery), k, stopScore));
+	}
+
+	/**
+	 * Find the best-scoring native templates in gallery.
+	 *
+	 * @param probe    template to search for
+	 * @param gallery  templates to search
+	 * @param k        maximum number of matches to return
+	 * @return         up to <code>k</code> matches, best first
+	 * @throws         IBMatcherException
+	 * @see            #findBestMatches(Template, Template[], int)
+	 */
+	public Match[] findBestMatches(NativeTemplate probe, NativeTemplate[] gallery, int k) throws IBMatcherException
+	{
+		return (findBestMatches(createGallery(probe, gallery), k, Integer.MAX_VALUE));
+	}
+
+	/**
+	 * Find the best-scoring native templates in gallery, stopping once <code>k</code> templates
+	 * reach a score that is good enough.
+	 *
+	 * @param probe      template to search for
+	 * @param gallery    templates to search
+	 * @param k          maximum number of matches to return
+	 * @param stopScore  least score of a conclusive match
+	 * @return           up to <code>k</code> matches, best first
+	 * @throws           IBMatcherException
+	 * @see              #findBestMatches(Template, Template[], int, int)
+	 */
+	public Match[] findBestMatches(NativeTemplate probe, NativeTemplate[] gallery, int k, int stopScore) 
+			throws IBMatcherException
+	{
+		return (findBestMatches(createGallery(probe, gallery), k, stopScore));
+	}
+
+	/**
+	 * Match probe against every template in gallery.  The gallery is split into one shard per
+	 * matcher and the shards are matched concurrently.
+	 *
+	 * @param probe    template to match
+	 * @param gallery  templates to match against
+	 * @param scores   array that will receive the matching score of each gallery template, or 0
+	 *                 for templates that fail to match with an error; must be at least as long as
+	 *                 the gallery
+	 * @throws         IBMatcherException
+	 */
+	public void matchAll(Template probe, Template[] gallery, int[] scores) throws IBMatcherException
+	{
+		matchAll(createGallery(probe, gallery), scores);
+	}
+
+	/**
+	 * Match native probe against every native template in gallery.
+	 *
+	 * @param probe    template to match
+	 * @param gallery  templates to match against
+	 * @param scores   array that will receive the matching score of each gallery template
+	 * @throws         IBMatcherException
+	 * @see            #matchAll(Template, Template[], int[])
+	 */
+	public void matchAll(NativeTemplate probe, NativeTemplate[] gallery, int[] scores) throws IBMatcherException
+	{
+		matchAll(createGallery(probe, gallery), scores);
+	}
+
+	/**
+	 * Match each of several probes against its own gallery, e.g., each finger of a ten-print
+	 * against the templates of the same finger position.  The galleries are laid end to end and
+	 * split into one shard per matcher, so the probes are matched concurrently, and a search with
+	 * many small galleries uses every core as one search with a large gallery would.
+	 *
+	 * @param probes     templates to match
+	 * @param galleries  templates to match each probe against, at the same index as the probe
+	 * @param scores     arrays that will receive the matching score of each template of each
+	 *                   gallery, or 0 for templates that fail to match with an error, at the same
+	 *                   indices; each must be at least as long as its gallery
+	 * @throws           IBMatcherException
+	 */
+	public void matchAll(Template[] probes, Template[][] galleries, int[][] scores) throws IBMatcherException
+	{
+		/* Check for invalid argument. */
+		checkProbes(probes, galleries, scores);
+
+		final Gallery[] parts = new Gallery[probes.length];
+		for (int i = 0; i < probes.length; i++)
+		{
+			parts[i] = createGallery(probes[i], galleries[i]);
+		}
+		matchAll(parts, scores);
+	}
+
+	/**
+	 * Match each of several native probes against its own gallery of native templates.
+	 *
+	 * @param probes     templates to match
+	 * @param galleries  templates to match each probe against, at the same index as the probe
+	 * @param scores     arrays that will receive the matching score of each template of each
+	 *                   gallery, at the same indices
+	 * @throws           IBMatcherException
+	 * @see              #matchAll(Template[], Template[][], int[][])
+	 */
+	public void matchAll(NativeTemplate[] probes, NativeTemplate[][] galleries, int[][] scores) throws IBMatcherException
+	{
+		/* Check for invalid argument. */
+		checkProbes(probes, galleries, scores);
+
+		final Gallery[] parts = new Gallery[probes.length];
+		for (int i = 0; i < probes.length; i++)
+		{
+			parts[i] = createGallery(probes[i], galleries[i]);
+		}
+		matchAll(parts, scores);
+	}
+
+	/**
+	 * Add match to heap holding the <code>k</code> best matches, if it is good enough.
+	 *
+	 * @param heap   heap ordered from worst to best, e.g., by <code>WORST_FIRST</code>, with at
+	 *               most <code>k</code> matches
+	 * @param match  candidate match
+	 * @param k      maximum number of matches to keep
+	 */
+	public static void offer(PriorityQueue<Match> heap, Match match, int k)
+	{
+		if (match.score <= 0)
+		{
+			return;
+		}
+		Comparator<? super Match> order = heap.comparator();
+		if (order == null)
+		{
+			order = WORST_FIRST;
+		}
+		if (heap.size() < k)
+		{
+			heap.add(match);
+		}
+		else if (order.compare(match, heap.peek()) > 0)
+		{
+			heap.poll();
+			heap.add(match);
+		}
+	}
+
+	/**
+	 * Ordering of matches from worst to best: by ascending score, then by descending index.
+	 */
+	public static final Comparator<Match> WORST_FIRST = new Comparator<Match>()
+	{
+		@Override
+		public int compare(Match match1, Match match2)
+		{
+			if (match1.score != match2.score)
+			{
+				return ((match1.score < match2.score) ? -1 : 1);
+			}
+			if (match1.index != match2.index)
+			{
+				return ((match1.index > match2.index) ? -1 : 1);
+			}
+			return (0);
+		}
+	};
+
+	/**
+	 * Close pool, stopping its threads and releasing the native handles of its matchers.  Searches
+	 * in progress are waited for; searches started afterward fail.
+	 */
+	public void close()
+	{
+		/* New searches fail at once; the write lock is granted once running searches end. */
+		this.m_closed = true;
+		this.m_lock.writeLock().lock();
+		try
+		{
+			if (!this.m_released)
+			{
+				this.m_released = true;
+				this.m_executor.shutdownNow();
+				releaseMatchers();
+			}
+		}
+		finally
+		{
+			this.m_lock.writeLock().unlock();
+		}
+	}
+
+    /* *********************************************************************************************
+     * PRIVATE INTERFACE
+     ******************************************************************************************** */
+
+	/*
+	 * Work done on one shard of a gallery.
+	 */
+	private interface Shard
+	{
+		void match(IBMatcher matcher, int start, int end);
+	}
+
+	/*
+	 * Probe and templates it is matched against, in one batch per call.  Created on the thread 
+	 * searching it, whose interruption stops the search.
+	 */
+	private static abstract class Gallery
+	{
+		final Thread caller = Thread.currentThread();
+
+		abstract int size();
+
+		abstract void match(IBMatcher matcher, int start, int end, int[] scores) throws IBMatcherException;
+
+		/*
+		 * Match templates from start to end, storing their scores from index 0 of scores.
+		 */
+		abstract void matchWindow(IBMatcher matcher, int start, int end, int[] scores) throws IBMatcherException;
+
+		/*
+		 * Match range of gallery in batches of one native call each, logging and scoring 0 on 
+		 * failure as a serial scan would.  Once the searching thread is interrupted, the rest of 
+		 * the range is scored 0.
+		 */
+		final void matchRange(IBMatcher matcher, int start, int end, int[] scores)
+		{
+			for (int batch = start; batch < end; batch += BATCH_SIZE)
+			{
+				final int batchEnd = Math.min(end, batch + BATCH_SIZE);
+				if (this.caller.isInterrupted())
+				{
+					Arrays.fill(scores, batch, end, 0);
+					return;
+				}
+				try
+				{
+					match(matcher, batch, batchEnd, scores);
+				}
+				catch (IBMatcherException ibme)
+				{
+					Log.e(POOL_TAG, "Batch match failed with exception " + ibme.getType().toString());
+					Arrays.fill(scores, batch, batchEnd, 0);
+				}
+			}
+		}
+
+		/*
+		 * Match one batch of gallery, storing its scores from index 0 of scores and scoring 0 on
+		 * failure.
+		 */
+		final void matchBatch(IBMatcher matcher, int start, int end, int[] scores)
+		{
+			try
+			{
+				matchWindow(matcher, start, end, scores);
+			}
+			catch (IBMatcherException ibme)
+			{
+				Log.e(POOL_TAG, "Batch match failed with exception " + ibme.getType().toString());
+				Arrays.fill(scores, 0, end - start, 0);
+			}
+		}
+	}
+
+	/*
+	 * Log tag for this class.
+	 */
+	private static final String POOL_TAG   = "IBMatcherPool";
+
+	/*
+	 * Number of templates matched in one native call.  Small enough that shards notice an earlier
+	 * match or an interrupted search promptly.
+	 */
+	private static final int    BATCH_SIZE = 64;
+
+	/*
+	 * Matchers in this pool, one per shard.
+	 */
+	private final IBMatcher[]     m_matchers;
+
+	/*
+	 * Threads on which shards are matched.
+	 */
+	private final ExecutorService m_executor;
+
+	/*
+	 * Lock held for reading by each search and for writing by close(), so that the native handles
+	 * are not released under a running search.
+	 */
+	private final ReadWriteLock   m_lock     = new ReentrantReadWriteLock();
+
+	/*
+	 * Whether this pool has been closed, and whether its matchers have been released.
+	 */
+	private volatile boolean      m_closed   = false;
+	private boolean               m_released = false;
+
+	/*
+	 * Acquire lock for reading, failing if this pool has been closed.
+	 */
+	private void acquire() throws IBMatcherException
+	{
+		if (!this.m_closed)
+		{
+			this.m_lock.readLock().lock();
+			if (!this.m_released)
+			{
+				return;
+			}
+			this.m_lock.readLock().unlock();
+		}
+		Log.e(POOL_TAG, "Pool is closed");
+		throw (new IBMatcherException(IBMatcherException.Type.NO_MATCHER_INSTANCE));
+	}
+
+	/*
+	 * Find first template in gallery that matches probe.
+	 */
+	private Match findFirstMatch(final Gallery gallery) throws IBMatcherException
+	{
+		final AtomicInteger bestIndex = new AtomicInteger(Integer.MAX_VALUE);
+		final int[]         scores    = new int[gallery.size()];
+
+		runShards(gallery.size(), new Shard()
+		{
+			@Override
+			public void match(IBMatcher matcher, int start, int end)
+			{
+				/* Match in batches, checking between batches whether an earlier match was found. */
+				for (int batch = start; (batch < end) && (batch < bestIndex.get()) && !gallery.caller.isInterrupted(); 
+						batch += BATCH_SIZE)
+				{
+					final int batchEnd = Math.min(end, batch + BATCH_SIZE);
+					gallery.matchRange(matcher, batch, batchEnd, scores);
+					for (int i = batch; i < batchEnd; i++)
+					{
+						if (scores[i] > 0)
+						{
+							/* Lower the best index unless another shard found an earlier match. */
+							int best = bestIndex.get();
+							while ((i < best) && !bestIndex.compareAndSet(best, i))
+							{
+								best = bestIndex.get();
+							}
+							return;
+						}
+					}
+				}
+			}
+		});
+
+		final int index = bestIndex.get();
+		if (index == Integer.MAX_VALUE)
+		{
+			return (null);
+		}
+
+		return (new Match(index, scores[index]));
+	}
+
+	/*
+	 * Find the best-scoring templates in gallery, stopping once k of them reach the stop score.
+	 */
+	private Match[] findBestMatches(final Gallery gallery, final int k, final int stopScore) throws IBMatcherException
+	{
+		/* Check for invalid argument. */
+		if (k < 1)
+		{
+			throw (new IllegalArgumentException("Received invalid number of matches"));
+		}
+		if (stopScore < 1)
+		{
+			throw (new IllegalArgumentException("Received invalid stop score"));
+		}
+
+		final Comparator<Match>          order     = worstFirst(stopScore);
+		final List<PriorityQueue<Match>> heaps     = Collections.synchronizedList(new ArrayList<PriorityQueue<Match>>());
+		final AtomicInteger              stopIndex = new AtomicInteger(Integer.MAX_VALUE);
+
+		runShards(gallery.size(), new Shard()
+		{
+			@Override
+			public void match(IBMatcher matcher, int start, int end)
+			{
+				final PriorityQueue<Match> heap   = new PriorityQueue<Match>(k, order);
+				final int[]                scores = new int[BATCH_SIZE];
+
+				/* Match in batches, checking between batches whether any shard has k conclusive matches. */
+				for (int batch = start; (batch < end) && (batch < stopIndex.get()) && !gallery.caller.isInterrupted(); 
+						batch += BATCH_SIZE)
+				{
+					final int batchEnd = Math.min(end, batch + BATCH_SIZE);
+					gallery.matchBatch(matcher, batch, batchEnd, scores);
+					for (int i = batch; i < batchEnd; i++)
+					{
+						offer(heap, new Match(i, scores[i - batch]), k);
+					}
+
+					/* No later template can displace k conclusive matches; lower the stop index. */
+					if ((heap.size() == k) && (heap.peek().score >= stopScore))
+					{
+						int stop = stopIndex.get();
+						while ((batchEnd < stop) && !stopIndex.compareAndSet(stop, batchEnd))
+						{
+							stop = stopIndex.get();
+						}
+						break;
+					}
+				}
+				heaps.add(heap);
+			}
+		});
+
+		/* Fan in. */
+		final PriorityQueue<Match> best = new PriorityQueue<Match>(k, order);
+		synchronized (heaps)
+		{
+			for (PriorityQueue<Match> heap : heaps)
+			{
+				for (Match match : heap)
+				{
+					offer(best, match, k);
+				}
+			}
+		}
+
+		final Match[] matches = new Match[best.size()];
+		for (int i = matches.length - 1; i >= 0; i--)
+		{
+			matches[i] = best.poll();
+		}
+
+		return (matches);
+	}
+
+	/*
+	 * Ordering of matches from worst to best, in which scores of at least the stop score rank as 
+	 * equal.
+	 */
+	private static Comparator<Match> worstFirst(final int stopScore)
+	{
+		if (stopScore == Integer.MAX_VALUE)
+		{
+			return (WORST_FIRST);
+		}
+
+		return (new Comparator<Match>()
+		{
+			@Override
+			public int compare(Match match1, Match match2)
+			{
+				final int score1 = Math.min(match1.score, stopScore);
+				final int score2 = Math.min(match2.score, stopScore);
+				if (score1 != score2)
+				{
+					return ((score1 < score2) ? -1 : 1);
+				}
+				if (match1.index != match2.index)
+				{
+					return ((match1.index > match2.index) ? -1 : 1);
+				}
+				return (0);
+			}
+		});
+	}
+
+	/*
+	 * Match probe against every template in gallery.
+	 */
+	private void matchAll(final Gallery gallery, final int[] scores) throws IBMatcherException
+	{
+		/* Check for invalid argument. */
+		if ((scores == null) || (scores.length < gallery.size()))
+		{
+			throw (new IllegalArgumentException("Received null or short scores"));
+		}
+
+		runShards(gallery.size(), new Shard()
+		{
+			@Override
+			public void match(IBMatcher matcher, int start, int end)
+			{
+				gallery.matchRange(matcher, start, end, scores);
+			}
+		});
+	}
+
+	/*
+	 * Match each probe against its own gallery, sharding the galleries laid end to end.
+	 */
+	private void matchAll(final Gallery[] parts, final int[][] scores) throws IBMatcherException
+	{
+		/* Check for invalid argument. */
+		final int[] starts = new int[parts.length + 1];
+		for (int i = 0; i < parts.length; i++)
+		{
+			if ((scores[i] == null) || (scores[i].length < parts[i].size()))
+			{
+				throw (new IllegalArgumentException("Received null or short scores"));
+			}
+			starts[i + 1] = starts[i] + parts[i].size();
+		}
+
+		runShards(starts[parts.length], new Shard()
+		{
+			@Override
+			public void match(IBMatcher matcher, int start, int end)
+			{
+				/* A shard may end in one gallery and begin in another. */
+				for (int i = 0; i < parts.length; i++)
+				{
+					final int partStart = Math.max(start, starts[i]);
+					final int partEnd   = Math.min(end, starts[i + 1]);
+					if (partStart < partEnd)
+					{
+						parts[i].matchRange(matcher, partStart - starts[i], partEnd - starts[i], scores[i]);
+					}
+				}
+			}
+		});
+	}
+
+	/*
+	 * Check that probes, their galleries, and their scores are given and correspond.
+	 */
+	private static void checkProbes(Object[] probes, Object[] galleries, int[][] scores)
+	{
+		if ((probes == null) || (galleries == null) || (scores == null))
+		{
+			throw (new IllegalArgumentException("Received null probes, galleries, or scores"));
+		}
+		if ((galleries.length != probes.length) || (scores.length != probes.length))
+		{
+			throw (new IllegalArgumentException("Received different numbers of probes, galleries, and scores"));
+		}
+	}
+
+	/*
+	 * Split range of gallery into shards and run them concurrently, one per matcher, at the 
+	 * priority of the calling thread.  The last shard runs on the calling thread, which would 
+	 * otherwise only wait.  Fails if the calling thread is interrupted, which stops the shards, or 
+	 * if the pool is closed.
+	 */
+	private void runShards(int count, final Shard shard) throws IBMatcherException
+	{
+		acquire();
+		try
+		{
+			runShardsLocked(count, shard);
+		}
+		finally
+		{
+			this.m_lock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * Split range of gallery into shards and run them, holding the lock for reading.
+	 */
+	private void runShardsLocked(int count, final Shard shard) throws IBMatcherException
+	{
+		final int shardCount = Math.max(1, Math.min(this.m_matchers.length, count / MIN_SHARD_SIZE));
+		if (shardCount == 1)
+		{
+			shard.match(this.m_matchers[0], 0, count);
+			checkInterrupted();
+			return;
+		}
+
+		final int             priority = Thread.currentThread().getPriority();
+		final List<Future<?>> futures  = new ArrayList<Future<?>>(shardCount - 1);
+		for (int i = 0; i < shardCount - 1; i++)
+		{
+			final IBMatcher matcher = this.m_matchers[i];
+			final int       start   = (int)((long)count * i / shardCount);
+			final int       end     = (int)((long)count * (i + 1) / shardCount);
+			final Runnable  runnable = new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					final Thread thread = Thread.currentThread();
+					thread.setPriority(priority);
+					try
+					{
+						shard.match(matcher, start, end);
+					}
+					finally
+					{
+						thread.setPriority(Thread.NORM_PRIORITY);
+					}
+				}
+			};
+			/* The executor is only shut down under the write lock, so it accepts every shard. */
+			futures.add(this.m_executor.submit(runnable));
+		}
+		shard.match(this.m_matchers[shardCount - 1], (int)((long)count * (shardCount - 1) / shardCount), count);
+
+		/* 
+		 * Fan in.  Wait for every shard, even after a failure or an interrupt, so none outlives the
+		 * call; an interrupt only makes the remaining shards stop early.
+		 */
+		IBMatcherException failure     = null;
+		boolean            interrupted = false;
+		for (Future<?> future : futures)
+		{
+			while (true)
+			{
+				try
+				{
+					future.get();
+					break;
+				}
+				catch (InterruptedException ie)
+				{
+					interrupted = true;
+				}
+				catch (ExecutionException ee)
+				{
+					Log.e(POOL_TAG, "Shard failed with exception " + ee.getCause().toString());
+					failure = new IBMatcherException(IBMatcherException.Type.COMMAND_FAILED);
+					break;
+				}
+			}
+		}
+		if (interrupted)
+		{
+			Thread.currentThread().interrupt();
+		}
+		if (failure != null)
+		{
+			throw (failure);
+		}
+		checkInterrupted();
+	}
+
+	/*
+	 * Fail search if the calling thread was interrupted, since its shards stopped early.
+	 */
+	private static void checkInterrupted() throws IBMatcherException
+	{
+		if (Thread.currentThread().isInterrupted())
+		{
+			Log.i(POOL_TAG, "Search interrupted");
+			throw (new IBMatcherException(IBMatcherException.Type.COMMAND_FAILED));
+		}
+	}
+
+	/*
+	 * Create gallery of templates matched against probe.
+	 */
+	private static Gallery createGallery(final Template probe, final Template[] templates)
+	{
+		/* Check for invalid argument. */
+		if (probe == null)
+		{
+			throw (new IllegalArgumentException("Received null probe"));
+		}
+		if (templates == null)
+		{
+			throw (new IllegalArgumentException("Received null gallery"));
+		}
+
+		return (new Gallery()
+		{
+			@Override
+			public int size()
+			{
+				return (templates.length);
+			}
+
+			@Override
+			public void match(IBMatcher matcher, int start, int end, int[] scores) throws IBMatcherException
+			{
+				matcher.matchTemplatesBatch(probe, templates, start, end - start, scores);
+			}
+
+			@Override
+			public void matchWindow(IBMatcher matcher, int start, int end, int[] scores) throws IBMatcherException
+			{
+				matcher.matchTemplatesBatch(probe, Arrays.copyOfRange(templates, start, end), 0, end - start, scores);
+			}
+		});
+	}
+
+	/*
+	 * Create gallery of native templates matched against native probe.
+	 */
+	private static Gallery createGallery(final NativeTemplate probe, final NativeTemplate[] templates)
+	{
+		/* Check for invalid argument. */
+		if (probe == null)
+		{
+			throw (new IllegalArgumentException("Received null probe"));
+		}
+		if (templates == null)
+		{
+			throw (new IllegalArgumentException("Received null gallery"));
+		}
+
+		return (new Gallery()
+		{
+			@Override
+			public int size()
+			{
+				return (templates.length);
+			}
+
+			@Override
+			public void match(IBMatcher matcher, int start, int end, int[] scores) throws IBMatcherException
+			{
+				matcher.matchTemplatesBatch(probe, templates, start, end - start, scores);
+			}
+
+			@Override
+			public void matchWindow(IBMatcher matcher, int start, int end, int[] scores) throws IBMatcherException
+			{
+				matcher.matchTemplatesBatch(probe, Arrays.copyOfRange(templates, start, end), 0, end - start, scores);
+			}
+		});
+	}
+
+	/*
+	 * Release native handles of all matchers created so far.
+	 */
+	private void releaseMatchers()
+	{
+		for (IBMatcher matcher : this.m_matchers)
+		{
+			if (matcher != null)
+			{
+				try
+				{
+					matcher.release();
+				}
+				catch (IBMatcherException ibme)
+				{
+					Log.e(POOL_TAG, "Release failed with exception " + ibme.getType().toString());
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,286 @@
+/* *************************************************************************************************
+ * IBMinutiaeSignature.java
+ *
+ * DESCRIPTION:
+ *     Compact minutiae signatures for coarse candidate filtering with IBScanMatcher library
+ *     http://www.integratedbiometrics.com
+ *
+ * NOTES:
+ *     Copyright (c) Integrated Biometrics, 2013
+ *
+ * HISTORY:
+ *     2013/03/08  First version.
+ ************************************************************************************************ */
+
+package com.integratedbiometrics.ibscanmatcher;
+
+import java.nio.ByteBuffer;
+
+/**
+ * This class summarizes the minutiae of a template in a few bytes, so that gallery candidates that
+ * are obviously unlike a probe can be rejected in Java before the native matcher runs.  The
+ * minutiae buffer of an IBSM template is opaque, so a signature is computed from the template's
+ * ISO/IEC 19794-2 Fingerprint Minutiae Record (see <code>IBMatcher.saveTemplateAsFmrToBytes()</code>),
+ * whose layout is standard.  It holds:
+ * <ul>
+ *   <li>the number of minutiae;</li>
+ *   <li>a histogram of minutia directions, in <code>DIRECTION_BINS</code> sectors;</li>
+ *   <li>a density vector: the share of minutiae in each of <code>DENSITY_RINGS</code> concentric
+ *       rings, <code>RING_WIDTH</code> pixels wide, around the centroid of the minutiae, which
+ *       stands in for the core.</li>
+ * </ul>
+ * The distance between two signatures ranges from 0 (alike) to <code>MAX_DISTANCE</code>.  It is a
+ * coarse measure only: callers should choose a cut-off from a recall report on their own data.
+ * <p>
+ * Signatures are encoded in <code>ENCODED_LENGTH</code> bytes for storage next to the template:
+ *
+ * <pre>
+ *     offset  size  field
+ *          0     1  version
+ *          1     1  number of minutiae
+ *          2     8  direction histogram, shares scaled to 255
+ *         10     4  density vector, shares scaled to 255
+ * </pre>
+ */
+public final class IBMinutiaeSignature
+{
+    /* *********************************************************************************************
+     * (CLASS) PUBLIC INTERFACE
+     ******************************************************************************************** */
+
+	/**
+	 * Number of sectors in the direction histogram.
+	 */
+	public static final int   DIRECTION_BINS = 8;
+
+	/**
+	 * Number of rings in the density vector.  The outermost ring is unbounded.
+	 */
+	public static final int   DENSITY_RINGS  = 4;
+
+	/**
+	 * Width of each ring in the density vector, in pixels.
+	 */
+	public static final int   RING_WIDTH     = 48;
+
+	/**
+	 * Length of encoded signature, in bytes.
+	 */
+	public static final int   ENCODED_LENGTH = 2 + DIRECTION_BINS + DENSITY_RINGS;
+
+	/**
+	 * Greatest distance between two signatures.
+	 */
+	public static final float MAX_DISTANCE   = 3.0f;
+
+	/**
+	 * Compute signature of template from its ISO/IEC 19794-2 Fingerprint Minutiae Record.  Only
+	 * the first finger view is summarized.
+	 *
+	 * @param fmr  FMR bytes
+	 * @return     signature of template
+	 * @throws     IBMatcherException
+	 */
+	public static IBMinutiaeSignature fromFmr(byte[] fmr) throws IBMatcherException
+	{
+		/* Check for invalid argument. */
+		if (fmr == null)
+		{
+    		throw (new IllegalArgumentException("Received null fmr"));
+		}
+
+		/* Check the record header, which must announce the record's own length. */
+		final ByteBuffer buffer = ByteBuffer.wrap(fmr);
+		if ((fmr.length < FMR_HEADER_LENGTH + FMR_VIEW_HEADER_LENGTH) || (buffer.getInt(0) != FMR_FORMAT_ID)
+				|| (buffer.getInt(8) != fmr.length) || (buffer.get(22) == 0))
+		{
+			throw (new IBMatcherException(IBMatcherException.Type.CONVERT_FAILED));
+		}
+		final int count = buffer.get(FMR_HEADER_LENGTH + 3) & 0xFF;
+		if (fmr.length < FMR_HEADER_LENGTH + FMR_VIEW_HEADER_LENGTH + count * FMR_MINUTIA_LENGTH)
+		{
+			throw (new IBMatcherException(IBMatcherException.Type.CONVERT_FAILED));
+		}
+
+		/* Read minutia positions and directions, accumulating the direction histogram. */
+		final int[] x          = new int[count];
+		final int[] y          = new int[count];
+		final int[] directions = new int[DIRECTION_BINS];
+		long        sumX       = 0;
+		long        sumY       = 0;
+		for (int i = 0; i < count; i++)
+		{
+			final int offset = FMR_HEADER_LENGTH + FMR_VIEW_HEADER_LENGTH + i * FMR_MINUTIA_LENGTH;
+			x[i]  = buffer.getShort(offset)     & 0x3FFF;
+			y[i]  = buffer.getShort(offset + 2) & 0x3FFF;
+			sumX += x[i];
+			sumY += y[i];
+			directions[((buffer.get(offset + 4) & 0xFF) * DIRECTION_BINS) >> 8]++;
+		}
+
+		/* Count minutiae in rings around their centroid. */
+		final int[] density = new int[DENSITY_RINGS];
+		if (count > 0)
+		{
+			final double centerX = (double)sumX / count;
+			final double centerY = (double)sumY / count;
+			for (int i = 0; i < count; i++)
+			{
+				final double radius = Math.hypot(x[i] - centerX, y[i] - centerY);
+				density[Math.min(DENSITY_RINGS - 1, (int)(radius / RING_WIDTH))]++;
+			}
+		}
+
+		return (new IBMinutiaeSignature(count, scaleShares(directions, count), scaleShares(density, count)));
+	}
+
+	/**
+	 * Decode signature encoded with <code>encode()</code>.
+	 *
+	 * @param bytes  encoded signature
+	 * @return       decoded signature
+	 * @throws       IBMatcherException
+	 */
+	public static IBMinutiaeSignature decode(byte[] bytes) throws IBMatcherException
+	{
+		/* Check for invalid argument. */
+		if (bytes == null)
+		{
+    		throw (new IllegalArgumentException("Received null bytes"));
+		}
+		if ((bytes.length != ENCODED_LENGTH) || (bytes[0] != ENCODING_VERSION))
+		{
+			throw (new IBMatcherException(IBMatcherException.Type.CONVERT_FAILED));
+		}
+
+		final byte[] directions = new byte[DIRECTION_BINS];
+		final byte[] density    = new byte[DENSITY_RINGS];
+		System.arraycopy(bytes, 2,                  directions, 0, DIRECTION_BINS);
+		System.arraycopy(bytes, 2 + DIRECTION_BINS, density,    0, DENSITY_RINGS);
+
+		return (new IBMinutiaeSignature(bytes[1] & 0xFF, directions, density));
+	}
+
+    /* *********************************************************************************************
+     * (OBJECT) PUBLIC INTERFACE
+     ******************************************************************************************** */
+
+	/**
+	 * Encode signature for storage.
+	 *
+	 * @return  encoded signature, <code>ENCODED_LENGTH</code> bytes long
+	 */
+	public byte[] encode()
+	{
+		final byte[] bytes = new byte[ENCODED_LENGTH];
+		bytes[0] = ENCODING_VERSION;
+		bytes[1] = (byte)this.m_count;
+		System.arraycopy(this.m_directions, 0, bytes, 2,                  DIRECTION_BINS);
+		System.arraycopy(this.m_density,    0, bytes, 2 + DIRECTION_BINS, DENSITY_RINGS);
+
+		return (bytes);
+	}
+
+	/**
+	 * Get number of minutiae summarized by signature.
+	 *
+	 * @return  number of minutiae
+	 */
+	public int getMinutiaeCount()
+	{
+		return (this.m_count);
+	}
+
+	/**
+	 * Compute distance to another signature: the sum of the relative difference in minutiae
+	 * counts and of the total variation distances between the direction histograms and between
+	 * the density vectors.  Direction histograms are compared at the best of three rotations by
+	 * one sector, to tolerate finger rotation on the platen.
+	 *
+	 * @param other  other signature
+	 * @return       distance, between 0 and <code>MAX_DISTANCE</code>
+	 */
+	public float distance(IBMinutiaeSignature other)
+	{
+		/* Check for invalid argument. */
+		if (other == null)
+		{
+    		throw (new IllegalArgumentException("Received null other"));
+		}
+
+		final int   maxCount      = Math.max(1, Math.max(this.m_count, other.m_count));
+		final float countDistance = (float)Math.abs(this.m_count - other.m_count) / maxCount;
+
+		int directionDifference = Integer.MAX_VALUE;
+		for (int shift = DIRECTION_BINS - 1; shift <= DIRECTION_BINS + 1; shift++)
+		{
+			int difference = 0;
+			for (int i = 0; i < DIRECTION_BINS; i++)
+			{
+				difference += Math.abs((this.m_directions[i] & 0xFF) - (other.m_directions[(i + shift) % DIRECTION_BINS] & 0xFF));
+			}
+			directionDifference = Math.min(directionDifference, difference);
+		}
+
+		int densityDifference = 0;
+		for (int i = 0; i < DENSITY_RINGS; i++)
+		{
+			densityDifference += Math.abs((this.m_density[i] & 0xFF) - (other.m_density[i] & 0xFF));
+		}
+
+		return (countDistance + (directionDifference + densityDifference) / (2.0f * SHARE_SCALE));
+	}
+
+    /* *********************************************************************************************
+     * PRIVATE INTERFACE
+     ******************************************************************************************** */
+
+	/*
+	 * Version of the signature encoding.
+	 */
+	private static final byte ENCODING_VERSION       = 1;
+
+	/*
+	 * Scale of shares in histograms.
+	 */
+	private static final int  SHARE_SCALE            = 255;
+
+	/*
+	 * Format identifier ("FMR\0") and lengths of the parts of an ISO/IEC 19794-2:2005 record.
+	 */
+	private static final int  FMR_FORMAT_ID          = 0x464D5200;
+	private static final int  FMR_HEADER_LENGTH      = 24;
+	private static final int  FMR_VIEW_HEADER_LENGTH = 4;
+	private static final int  FMR_MINUTIA_LENGTH     = 6;
+
+	/*
+	 * Number of minutiae, direction histogram and density vector.
+	 */
+	private final int    m_count;
+	private final byte[] m_directions;
+	private final byte[] m_density;
+
+	/*
+	 * Constructor for signatures.
+	 */
+	private IBMinutiaeSignature(int count, byte[] directions, byte[] density)
+	{
+		this.m_count      = count;
+		this.m_directions = directions;
+		this.m_density    = density;
+	}
+
+	/*
+	 * Scale counts to shares of a total.
+	 */
+	private static byte[] scaleShares(int[] counts, int total)
+	{
+		final byte[] shares = new byte[counts.length];
+		for (int i = 0; i < counts.length; i++)
+		{
+			shares[i] = (byte)((total > 0) ? Math.round((float)counts[i] * SHARE_SCALE / total) : 0);
+		}
+
+		return (shares);
+	}
+}
@@ -0,0 +1,249 @@
+/* *************************************************************************************************
+ * IBTemplateCodec.java
+ *
+ * DESCRIPTION:
+ *     In-memory IBSM template serialization for IBScanMatcher library
+ *     http://www.integratedbiometrics.com
+ *
+ * NOTES:
+ *     Copyright (c) Integrated Biometrics, 2013
+ *
+ * HISTORY:
+ *     2013/03/08  First version.
+ ************************************************************************************************ */
+
+package com.integratedbiometrics.ibscanmatcher;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import com.integratedbiometrics.ibscanmatcher.IBMatcher.Template;
+
+/**
+ * This class converts templates to and from the IBSM template byte layout without going through
+ * the file system.  The layout is the one written by <code>IBMatcher.saveTemplate()</code> and read
+ * by <code>IBMatcher.loadTemplate()</code>: the fields of the native <code>IBSM_Template</code>
+ * structure in declaration order, little-endian, with the minutiae buffer between the header
+ * fields and the trailing reserved word.
+ *
+ * <pre>
+ *     offset  size  field
+ *          0     4  version
+ *          4     4  finger position
+ *          8     4  impression type
+ *         12     4  capture device tech ID
+ *         16     2  capture device vendor ID
+ *         18     2  capture device type ID
+ *         20     2  image sampling X
+ *         22     2  image sampling Y
+ *         24     2  image size X
+ *         26     2  image size Y
+ *         28     n  minutiae
+ *       28+n     4  reserved
+ * </pre>
+ */
+public final class IBTemplateCodec
+{
+    /* *********************************************************************************************
+     * (CLASS) PUBLIC INTERFACE
+     ******************************************************************************************** */
+
+	/**
+	 * Length of the fields preceding the minutiae buffer, in bytes.
+	 */
+	public static final int HEADER_LENGTH  = 28;
+
+	/**
+	 * Length of the fields following the minutiae buffer, in bytes.
+	 */
+	public static final int TRAILER_LENGTH = 4;
+
+	/**
+	 * Get length of encoded template.
+	 *
+	 * @param template  template to encode
+	 * @return          length of encoded template, in bytes
+	 */
+	public static int getEncodedLength(Template template)
+	{
+		/* Check for invalid argument. */
+		if (template == null)
+		{
+    		throw (new IllegalArgumentException("Received null template"));
+		}
+		if (template.minutiae == null)
+		{
+    		throw (new IllegalArgumentException("Received template with null minutiae"));
+		}
+
+		return (HEADER_LENGTH + template.minutiae.length + TRAILER_LENGTH);
+	}
+
+	/**
+	 * Encode template in IBSM template format.
+	 *
+	 * @param template  template to encode
+	 * @return          encoded template
+	 * @throws          IBMatcherException
+	 */
+	public static byte[] encode(Template template) throws IBMatcherException
+	{
+		final byte[] bytes = new byte[getEncodedLength(template)];
+
+		encode(template, bytes, 0);
+
+		return (bytes);
+	}
+
+	/**
+	 * Encode template in IBSM template format into existing buffer.
+	 *
+	 * @param template  template to encode
+	 * @param buffer    buffer that will receive encoded template
+	 * @param offset    offset in buffer at which encoded template will begin
+	 * @return          number of bytes written to buffer
+	 * @throws          IBMatcherException
+	 */
+	public static int encode(Template template, byte[] buffer, int offset) throws IBMatcherException
+	{
+		/* Check for invalid argument. */
+		final int length = getEncodedLength(template);
+		if (buffer == null)
+		{
+    		throw (new IllegalArgumentException("Received null buffer"));
+		}
+		if ((offset < 0) || (buffer.length - offset < length))
+		{
+    		throw (new IllegalArgumentException("Buffer too small for template"));
+		}
+
+		/* Check for fields that have no native value. */
+		if ((template.version == null) || (template.fingerPosition == null) ||
+				(template.impressionType == null) || (template.captureDeviceTechId == null))
+		{
+			throw (new IBMatcherException(IBMatcherException.Type.CONVERT_FAILED));
+		}
+
+		final ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, offset, length).order(ByteOrder.LITTLE_ENDIAN);
+		byteBuffer.putInt(template.version.toCode());
+		byteBuffer.putInt(template.fingerPosition.toCode());
+		byteBuffer.putInt(template.impressionType.toCode());
+		byteBuffer.putInt(template.captureDeviceTechId.toCode());
+		byteBuffer.putShort(template.captureDeviceVendorId);
+		byteBuffer.putShort(template.captureDeviceTypeId);
+		byteBuffer.putShort(template.imageSamplingX);
+		byteBuffer.putShort(template.imageSamplingY);
+		byteBuffer.putShort(template.imageSizeX);
+		byteBuffer.putShort(template.imageSizeY);
+		byteBuffer.put(template.minutiae);
+		byteBuffer.putInt(template.reserved);
+
+		return (length);
+	}
+
+	/**
+	 * Decode template from IBSM template format.
+	 *
+	 * @param bytes  encoded template
+	 * @return       decoded template
+	 * @throws       IBMatcherException
+	 */
+	public static Template decode(byte[] bytes) throws IBMatcherException
+	{
+		/* Check for invalid argument. */
+		if (bytes == null)
+		{
+    		throw (new IllegalArgumentException("Received null bytes"));
+		}
+
+		return (decode(bytes, 0, bytes.length));
+	}
+
+	/**
+	 * Decode template from IBSM template format held in part of a buffer.
+	 *
+	 * @param buffer  buffer holding encoded template
+	 * @param offset  offset in buffer at which encoded template begins
+	 * @param length  length of encoded template, in bytes
+	 * @return        decoded template
+	 * @throws        IBMatcherException
+	 */
+	public static Template decode(byte[] buffer, int offset, int length) throws IBMatcherException
+	{
+		/* Check for invalid argument. */
+		if (buffer == null)
+		{
+    		throw (new IllegalArgumentException("Received null buffer"));
+		}
+		if ((offset < 0) || (length < 0) || (buffer.length - offset < length))
+		{
+    		throw (new IllegalArgumentException("Received invalid offset or length"));
+		}
+
+		return (decode(ByteBuffer.wrap(buffer, offset, length)));
+	}
+
+	/**
+	 * Decode template from IBSM template format.  All remaining bytes of the buffer are consumed;
+	 * they must hold a minutiae buffer of exactly <code>IBMatcher.getMinutiaeLength()</code> bytes.
+	 *
+	 * @param buffer  buffer holding encoded template between its position and limit
+	 * @return        decoded template
+	 * @throws        IBMatcherException
+	 */
+	public static Template decode(ByteBuffer buffer) throws IBMatcherException
+	{
+		/* Check for invalid argument. */
+		if (buffer == null)
+		{
+    		throw (new IllegalArgumentException("Received null buffer"));
+		}
+
+		/* A record whose minutiae do not fill the native buffer exactly cannot be a template. */
+		final int minutiaeLength = buffer.remaining() - HEADER_LENGTH - TRAILER_LENGTH;
+		if (minutiaeLength != IBMatcher.getMinutiaeLength())
+		{
+			throw (new IBMatcherException(IBMatcherException.Type.CONVERT_FAILED));
+		}
+
+		final ByteBuffer byteBuffer              = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+		final int        versionCode             = byteBuffer.getInt();
+		final int        fingerPositionCode      = byteBuffer.getInt();
+		final int        impressionTypeCode      = byteBuffer.getInt();
+		final int        captureDeviceTechIdCode = byteBuffer.getInt();
+		final short      captureDeviceVendorId   = byteBuffer.getShort();
+		final short      captureDeviceTypeId     = byteBuffer.getShort();
+		final short      imageSamplingX          = byteBuffer.getShort();
+		final short      imageSamplingY          = byteBuffer.getShort();
+		final short      imageSizeX              = byteBuffer.getShort();
+		final short      imageSizeY              = byteBuffer.getShort();
+		final byte[]     minutiae                = new byte[minutiaeLength];
+		byteBuffer.get(minutiae);
+		final int        reserved                = byteBuffer.getInt();
+		buffer.position(buffer.limit());
+
+		final Template template = new Template(versionCode, fingerPositionCode, impressionTypeCode,
+				captureDeviceTechIdCode, captureDeviceVendorId, captureDeviceTypeId, imageSamplingX,
+				imageSamplingY, imageSizeX, imageSizeY, minutiae, reserved);
+
+		/* Reject records whose codes have no Java value, as extractTemplate() does. */
+		if ((template.version == null) || (template.fingerPosition == null) ||
+				(template.impressionType == null) || (template.captureDeviceTechId == null))
+		{
+			throw (new IBMatcherException(IBMatcherException.Type.CONVERT_FAILED));
+		}
+
+		return (template);
+	}
+
+    /* *********************************************************************************************
+     * PRIVATE INTERFACE
+     ******************************************************************************************** */
+
+    /*
+     *  Private default constructor to prevent instantiation.
+     */
+	private IBTemplateCodec()
+	{
+	}
+}
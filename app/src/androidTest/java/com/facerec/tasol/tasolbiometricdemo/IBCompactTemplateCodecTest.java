@@ -0,0 +1,214 @@
+package com.facerec.tasol.tasolbiometricdemo;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.integratedbiometrics.ibscancommon.IBCommon.CaptureDeviceTechId;
+import com.integratedbiometrics.ibscancommon.IBCommon.FingerPosition;
+import com.integratedbiometrics.ibscancommon.IBCommon.ImpressionType;
+import com.integratedbiometrics.ibscanmatcher.IBCompactTemplateCodec;
+import com.integratedbiometrics.ibscanmatcher.IBMatcher;
+import com.integratedbiometrics.ibscanmatcher.IBMatcher.Template;
+import com.integratedbiometrics.ibscanmatcher.IBMatcherException;
+import com.integratedbiometrics.ibscanmatcher.IBTemplateCodec;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+
+/**
+ * Instrumented test checking that the compact template codec is lossless, and benchmarking it
+ * against the IBSM template layout.  Fixtures are built in the test with made-up header fields and
+ * minutiae buffers of the native size, filled to different depths and zero-padded as those of real
+ * prints are.  The size histogram and decode throughput are written to logcat under the tag
+ * <code>TemplateCodecBenchmark</code>.
+ */
+@RunWith(AndroidJUnit4.class)
+public class IBCompactTemplateCodecTest {
+    private static final String TAG               = "TemplateCodecBenchmark";
+    private static final int    HISTOGRAM_BUCKET  = 64;
+    private static final int    DECODE_ITERATIONS = 20000;
+    private static final int    FIXTURE_COUNT     = 16;
+
+    private Template[] m_fixtures;
+
+    @Before
+    public void setUp() throws Exception {
+        final int minutiaeLength = IBMatcher.getMinutiaeLength();
+        assertTrue(minutiaeLength > 0);
+
+        final FingerPosition[] positions = FingerPosition.values();
+        m_fixtures = new Template[FIXTURE_COUNT];
+        for (int i = 0; i < FIXTURE_COUNT; i++) {
+            m_fixtures[i] = template(positions[i % positions.length], minutiaeLength,
+                    minutiaeLength * (i + 1) / (FIXTURE_COUNT + 1));
+        }
+    }
+
+    @Test
+    public void decodeReversesEncode() throws Exception {
+        for (Template template : m_fixtures) {
+            final byte[]   compact = IBCompactTemplateCodec.encode(template);
+            final Template decoded = IBCompactTemplateCodec.decode(compact);
+
+            assertEquals(IBCompactTemplateCodec.getEncodedLength(template), compact.length);
+            assertEquals(template.toString(), decoded.toString());
+            assertArrayEquals(template.minutiae, decoded.minutiae);
+            assertEquals(template.reserved, decoded.reserved);
+            assertArrayEquals(IBTemplateCodec.encode(template), IBTemplateCodec.encode(decoded));
+        }
+    }
+
+    @Test
+    public void encodeIntoBufferAtOffset() throws Exception {
+        final Template template = m_fixtures[0];
+        final int      length   = IBCompactTemplateCodec.getEncodedLength(template);
+        final byte[]   buffer   = new byte[length + 8];
+
+        assertEquals(length, IBCompactTemplateCodec.encode(template, buffer, 8));
+        assertArrayEquals(IBCompactTemplateCodec.encode(template), Arrays.copyOfRange(buffer, 8, buffer.length));
+        assertArrayEquals(template.minutiae, IBCompactTemplateCodec.decode(buffer, 8, length).minutiae);
+    }
+
+    @Test
+    public void decodeRejectsTruncatedRecord() throws Exception {
+        final byte[] compact = IBCompactTemplateCodec.encode(m_fixtures[0]);
+        for (int length = 0; length < compact.length; length++) {
+            try {
+                IBCompactTemplateCodec.decode(Arrays.copyOf(compact, length));
+                fail("Record truncated to " + length + " bytes was decoded");
+            } catch (IBMatcherException ibme) {
+                assertEquals(IBMatcherException.Type.CONVERT_FAILED, ibme.getType());
+            }
+        }
+    }
+
+    @Test
+    public void decodeRejectsIbsmLayout() throws Exception {
+        try {
+            IBCompactTemplateCodec.decode(IBTemplateCodec.encode(m_fixtures[0]));
+            fail("IBSM template was decoded as compact");
+        } catch (IBMatcherException ibme) {
+            assertEquals(IBMatcherException.Type.CONVERT_FAILED, ibme.getType());
+        }
+    }
+
+    @Test
+    public void decodeRejectsMinutiaeOfOtherSize() throws Exception {
+        final int    minutiaeLength = IBMatcher.getMinutiaeLength();
+        final byte[] empty          = IBCompactTemplateCodec.encode(template(FingerPosition.RIGHT_THUMB, minutiaeLength, 0));
+
+        /* An all-zero buffer ends in its length, one run of that many zeros, and no other bytes. */
+        final int    lengthSize = varint(minutiaeLength).length;
+        final byte[] header     = Arrays.copyOf(empty, empty.length - (2 * lengthSize) - 1);
+        for (int length : new int[] {minutiaeLength - 1, minutiaeLength + 1, 2 * minutiaeLength}) {
+            final ByteArrayOutputStream ostream = new ByteArrayOutputStream();
+            ostream.write(header, 0, header.length);
+            ostream.write(varint(length), 0, varint(length).length);
+            ostream.write(varint(length), 0, varint(length).length);
+            ostream.write(0);
+            try {
+                IBCompactTemplateCodec.decode(ostream.toByteArray());
+                fail("Minutiae buffer of " + length + " bytes was decoded");
+            } catch (IBMatcherException ibme) {
+                assertEquals(IBMatcherException.Type.CONVERT_FAILED, ibme.getType());
+            }
+        }
+    }
+
+    @Test
+    public void sizeHistogramAndDecodeThroughput() throws Exception {
+        final byte[][] ibsm    = new byte[m_fixtures.length][];
+        final byte[][] compact = new byte[m_fixtures.length][];
+        long           ibsmTotal    = 0;
+        long           compactTotal = 0;
+        int            maxCompact   = 0;
+        for (int i = 0; i < m_fixtures.length; i++) {
+            ibsm[i]       = IBTemplateCodec.encode(m_fixtures[i]);
+            compact[i]    = IBCompactTemplateCodec.encode(m_fixtures[i]);
+            ibsmTotal    += ibsm[i].length;
+            compactTotal += compact[i].length;
+            maxCompact    = Math.max(maxCompact, compact[i].length);
+        }
+
+        /* Histogram of compact sizes; every IBSM record has the same size. */
+        final int[] buckets = new int[maxCompact / HISTOGRAM_BUCKET + 1];
+        for (byte[] bytes : compact) {
+            buckets[bytes.length / HISTOGRAM_BUCKET]++;
+        }
+        Log.i(TAG, String.format(Locale.US, "%d templates: IBSM %d bytes each, compact %.1f bytes on average (%.1f%%)",
+                m_fixtures.length, ibsm[0].length, (double) compactTotal / m_fixtures.length,
+                100.0 * compactTotal / ibsmTotal));
+        for (int i = 0; i < buckets.length; i++) {
+            if (buckets[i] > 0) {
+                Log.i(TAG, String.format(Locale.US, "  %5d-%5d bytes: %d", i * HISTOGRAM_BUCKET,
+                        (i + 1) * HISTOGRAM_BUCKET - 1, buckets[i]));
+            }
+        }
+
+        /* Decode throughput, after a warm-up pass of each. */
+        decodeAll(ibsm, false, m_fixtures.length);
+        decodeAll(compact, true, m_fixtures.length);
+        final long ibsmNanos    = decodeAll(ibsm, false, DECODE_ITERATIONS);
+        final long compactNanos = decodeAll(compact, true, DECODE_ITERATIONS);
+        Log.i(TAG, String.format(Locale.US, "Decode IBSM: %.0f templates/s; compact: %.0f templates/s",
+                DECODE_ITERATIONS * 1e9 / ibsmNanos, DECODE_ITERATIONS * 1e9 / compactNanos));
+
+        assertTrue("Compact templates are larger than IBSM templates", compactTotal <= ibsmTotal);
+    }
+
+    private static long decodeAll(byte[][] records, boolean compact, int count) throws IBMatcherException {
+        final long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            final byte[] bytes = records[i % records.length];
+            if (compact) {
+                IBCompactTemplateCodec.decode(bytes);
+            } else {
+                IBTemplateCodec.decode(bytes);
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    /* A template whose first occupied bytes of minutiae are set, built through the IBSM codec. */
+    private static Template template(FingerPosition position, int minutiaeLength, int occupied)
+            throws IBMatcherException {
+        final ByteBuffer buffer = ByteBuffer.allocate(IBTemplateCodec.HEADER_LENGTH + minutiaeLength
+                + IBTemplateCodec.TRAILER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(3); /* TemplateVersion.IBISDK_3 */
+        buffer.putInt(position.toCode());
+        buffer.putInt(ImpressionType.LIVE_SCAN_PLAIN.toCode());
+        buffer.putInt(CaptureDeviceTechId.UNKNOWN_OR_UNSPECIFIED.toCode());
+        buffer.putShort((short) 0x0113);
+        buffer.putShort((short) 0x1000);
+        buffer.putShort((short) 500);
+        buffer.putShort((short) 500);
+        buffer.putShort((short) 352);
+        buffer.putShort((short) 288);
+        for (int i = 0; i < minutiaeLength; i++) {
+            /* Occasional zeros within the occupied part split it into several runs. */
+            buffer.put((i < occupied) && ((i % 13) != 0) ? (byte) ((i * 31) + position.ordinal()) : 0);
+        }
+        buffer.putInt(0);
+        buffer.flip();
+        return IBTemplateCodec.decode(buffer);
+    }
+
+    private static byte[] varint(int value) {
+        final ByteArrayOutputStream ostream = new ByteArrayOutputStream();
+        while ((value & ~0x7F) != 0) {
+            ostream.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        ostream.write(value);
+        return ostream.toByteArray();
+    }
+}
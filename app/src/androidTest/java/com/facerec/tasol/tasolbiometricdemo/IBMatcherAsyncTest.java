@@ -0,0 +1,214 @@
+package com.facerec.tasol.tasolbiometricdemo;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Instrumented test checking how {@link IBMatcherAsync} separates lanes, bounds its queues, reports
+ * failures and keeps metrics.  Operations are made-up callables, so no fixtures are needed.
+ */
+@RunWith(AndroidJUnit4.class)
+public class IBMatcherAsyncTest {
+    private IBMatcherAsync m_async;
+    private CountDownLatch m_release;
+
+    @Before
+    public void setUp() throws Exception {
+        m_async   = new IBMatcherAsync(1);
+        m_release = new CountDownLatch(1);
+    }
+
+    @After
+    public void tearDown() {
+        m_release.countDown();
+        m_async.close();
+    }
+
+    @Test
+    public void busyBackgroundLaneDoesNotHoldUpInteractiveLane() throws Exception {
+        final Future<Void> blocker = blockWorker(IBMatcherAsync.Lane.BACKGROUND);
+        final List<String> order   = Collections.synchronizedList(new ArrayList<String>());
+
+        final Future<Void> background = m_async.execute(IBMatcherAsync.Lane.BACKGROUND, record(order, "background"));
+        assertEquals(1, m_async.getQueueDepth(IBMatcherAsync.Lane.BACKGROUND));
+
+        /* The interactive thread is free while the background thread is busy. */
+        m_async.execute(IBMatcherAsync.Lane.INTERACTIVE, record(order, "interactive")).get(5, TimeUnit.SECONDS);
+        assertEquals(1, order.size());
+        assertFalse(background.isDone());
+
+        m_release.countDown();
+        blocker.get(5, TimeUnit.SECONDS);
+        background.get(5, TimeUnit.SECONDS);
+        assertEquals("interactive", order.get(0));
+        assertEquals("background", order.get(1));
+        assertEquals(0, m_async.getQueueDepth(IBMatcherAsync.Lane.BACKGROUND));
+        assertEquals(2, m_async.getStartedCount(IBMatcherAsync.Lane.BACKGROUND));
+        assertTrue(m_async.getMaxWaitMillis(IBMatcherAsync.Lane.BACKGROUND)
+                >= m_async.getAverageWaitMillis(IBMatcherAsync.Lane.BACKGROUND));
+    }
+
+    @Test
+    public void backgroundOperationsRunAtLowPriority() throws Exception {
+        assertEquals(Integer.valueOf(Thread.MIN_PRIORITY),
+                m_async.submit(IBMatcherAsync.Lane.BACKGROUND, priority(), null).get(5, TimeUnit.SECONDS));
+        assertEquals(Integer.valueOf(Thread.NORM_PRIORITY),
+                m_async.submit(IBMatcherAsync.Lane.INTERACTIVE, priority(), null).get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void fullLaneRejectsOperation() throws Exception {
+        blockWorker(IBMatcherAsync.Lane.BACKGROUND);
+        for (int i = 0; i < IBMatcherAsync.MAX_QUEUE_DEPTH; i++) {
+            m_async.execute(IBMatcherAsync.Lane.BACKGROUND, record(null, null));
+        }
+
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        final Future<Integer> rejected = m_async.submit(IBMatcherAsync.Lane.BACKGROUND, constant(1),
+                callback(failure));
+        assertTrue(failure.get() instanceof RejectedExecutionException);
+        assertEquals(1, m_async.getRejectedCount(IBMatcherAsync.Lane.BACKGROUND));
+        try {
+            rejected.get();
+            fail("Rejected operation completed");
+        } catch (ExecutionException ee) {
+            assertTrue(ee.getCause() instanceof RejectedExecutionException);
+        }
+
+        /* The other lane still has room. */
+        m_release.countDown();
+        assertEquals(Integer.valueOf(2), m_async.submit(IBMatcherAsync.Lane.INTERACTIVE, constant(2), null)
+                .get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void callbackReceivesResultOrFailure() throws Exception {
+        final CountDownLatch             done    = new CountDownLatch(2);
+        final AtomicReference<Integer>   result  = new AtomicReference<Integer>();
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+
+        m_async.submit(IBMatcherAsync.Lane.INTERACTIVE, constant(7), new IBMatcherAsync.Callback<Integer>() {
+            @Override
+            public void onSuccess(Integer value) {
+                result.set(value);
+                done.countDown();
+            }
+
+            @Override
+            public void onFailure(Exception cause) {
+                done.countDown();
+            }
+        });
+        m_async.submit(IBMatcherAsync.Lane.INTERACTIVE, new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                throw new IllegalStateException("failed");
+            }
+        }, new IBMatcherAsync.Callback<Integer>() {
+            @Override
+            public void onSuccess(Integer value) {
+                done.countDown();
+            }
+
+            @Override
+            public void onFailure(Exception cause) {
+                failure.set(cause);
+                done.countDown();
+            }
+        });
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Integer.valueOf(7), result.get());
+        assertTrue(failure.get() instanceof IllegalStateException);
+    }
+
+    @Test
+    public void closedInstanceRejectsOperations() throws Exception {
+        m_async.close();
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        m_async.submit(IBMatcherAsync.Lane.INTERACTIVE, constant(1), callback(failure));
+        assertTrue(failure.get() instanceof RejectedExecutionException);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsThreadCountBelowOne() {
+        new IBMatcherAsync(0);
+    }
+
+    /* Occupy the only thread of lane until m_release is counted down. */
+    private Future<Void> blockWorker(IBMatcherAsync.Lane lane) throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final Future<Void>   blocker = m_async.execute(lane, new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    m_release.await();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        return blocker;
+    }
+
+    private static Runnable record(final List<String> order, final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                if (order != null) {
+                    order.add(name);
+                }
+            }
+        };
+    }
+
+    private static Callable<Integer> priority() {
+        return new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return Thread.currentThread().getPriority();
+            }
+        };
+    }
+
+    private static Callable<Integer> constant(final int value) {
+        return new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return value;
+            }
+        };
+    }
+
+    private static IBMatcherAsync.Callback<Integer> callback(final AtomicReference<Exception> failure) {
+        return new IBMatcherAsync.Callback<Integer>() {
+            @Override
+            public void onSuccess(Integer value) {
+            }
+
+            @Override
+            public void onFailure(Exception cause) {
+                failure.set(cause);
+            }
+        };
+    }
+}
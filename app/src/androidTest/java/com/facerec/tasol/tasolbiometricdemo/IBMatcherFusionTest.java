@@ -0,0 +1,139 @@
+package com.facerec.tasol.tasolbiometricdemo;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import com.integratedbiometrics.ibscancommon.IBCommon.CaptureDeviceTechId;
+import com.integratedbiometrics.ibscancommon.IBCommon.FingerPosition;
+import com.integratedbiometrics.ibscancommon.IBCommon.ImpressionType;
+import com.integratedbiometrics.ibscanmatcher.IBMatcher;
+import com.integratedbiometrics.ibscanmatcher.IBMatcher.Template;
+import com.integratedbiometrics.ibscanmatcher.IBTemplateCodec;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Instrumented test checking how {@link IBMatcherFusion} ranks identities with several templates.
+ * Fusion never looks at the templates themselves, so records share one template built in the test
+ * with made-up header fields and minutiae, under made-up row IDs, with made-up scores.
+ */
+@RunWith(AndroidJUnit4.class)
+public class IBMatcherFusionTest {
+    private Template m_template;
+
+    @Before
+    public void setUp() throws Exception {
+        final int        minutiaeLength = IBMatcher.getMinutiaeLength();
+        final ByteBuffer buffer         = ByteBuffer.allocate(IBTemplateCodec.HEADER_LENGTH + minutiaeLength
+                + IBTemplateCodec.TRAILER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(3); /* TemplateVersion.IBISDK_3 */
+        buffer.putInt(FingerPosition.RIGHT_INDEX_FINGER.toCode());
+        buffer.putInt(ImpressionType.LIVE_SCAN_PLAIN.toCode());
+        buffer.putInt(CaptureDeviceTechId.UNKNOWN_OR_UNSPECIFIED.toCode());
+        buffer.putShort((short) 0x0113);
+        buffer.putShort((short) 0x1000);
+        buffer.putShort((short) 500);
+        buffer.putShort((short) 500);
+        buffer.putShort((short) 352);
+        buffer.putShort((short) 288);
+        for (int i = 0; i < minutiaeLength; i++) {
+            buffer.put((byte) (i * 31));
+        }
+        buffer.putInt(0);
+        buffer.flip();
+        m_template = IBTemplateCodec.decode(buffer);
+    }
+
+    @Test
+    public void maxKeepsBestTemplateOfEachIdentity() {
+        final IBMatcherFusion fusion = new IBMatcherFusion(IBMatcherFusion.Rule.MAX, 1);
+        fusion.add(record(1), 40);
+        fusion.add(record(2), 30);
+        fusion.add(record(2), 60);
+        fusion.add(record(3), 0);
+
+        final IBMatcherFusion.Result[] best = fusion.getBest(5);
+        assertEquals(2, best.length);
+        assertEquals(2, best[0].getRecord().getRowId());
+        assertEquals(60, best[0].getScore());
+        assertEquals(1, best[1].getRecord().getRowId());
+        assertEquals(40, best[1].getScore());
+    }
+
+    @Test
+    public void bestBreaksTiesByFirstAddedIdentity() {
+        final IBMatcherFusion fusion = new IBMatcherFusion(IBMatcherFusion.Rule.MAX, 1);
+        fusion.add(record(4), 50);
+        fusion.add(record(9), 70);
+        fusion.add(record(2), 50);
+        fusion.add(record(6), 50);
+
+        final IBMatcherFusion.Result[] best = fusion.getBest(3);
+        assertEquals(3, best.length);
+        assertEquals(9, best[0].getRecord().getRowId());
+        assertEquals(4, best[1].getRecord().getRowId());
+        assertEquals(2, best[2].getRecord().getRowId());
+    }
+
+    @Test
+    public void sumReinforcesSeveralMatchingTemplates() {
+        final IBMatcherFusion fusion = new IBMatcherFusion(IBMatcherFusion.Rule.SUM, 1);
+        fusion.add(record(1), 70);
+        fusion.add(record(2), 40);
+        fusion.add(record(2), 40);
+
+        final IBMatcherFusion.Result[] best = fusion.getBest(1);
+        assertEquals(1, best.length);
+        assertEquals(2, best[0].getRecord().getRowId());
+        assertEquals(80, best[0].getScore());
+    }
+
+    @Test
+    public void rankCountsLowerScores() {
+        final IBMatcherFusion fusion = new IBMatcherFusion(IBMatcherFusion.Rule.RANK, 1);
+        assertFalse(fusion.add(record(1), 100));
+        assertFalse(fusion.add(record(2), 50));
+        assertFalse(fusion.add(record(2), 60));
+
+        /* 100 outranks both others (3 points); 50 and 60 earn 1 and 2. */
+        final IBMatcherFusion.Result[] best = fusion.getBest(2);
+        assertEquals(3, best[0].getScore());
+        assertEquals(3, best[1].getScore());
+        assertEquals(1, best[0].getRecord().getRowId());
+        assertEquals(1, fusion.getMatch().getRecord().getRowId());
+    }
+
+    @Test
+    public void addReportsFirstIdentityToClearThreshold() {
+        final IBMatcherFusion fusion = new IBMatcherFusion(IBMatcherFusion.Rule.SUM, 100);
+        assertFalse(fusion.add(record(1), 60));
+        assertFalse(fusion.add(record(2), 90));
+        assertNull(fusion.getMatch());
+        assertTrue(fusion.add(record(1), 50));
+        assertFalse(fusion.add(record(2), 90));
+        assertEquals(1, fusion.getMatch().getRecord().getRowId());
+        assertEquals(110, fusion.getMatch().getScore());
+    }
+
+    @Test
+    public void firstMatchOnlyForSingleTemplateThreshold() {
+        assertTrue(new IBMatcherFusion(IBMatcherFusion.Rule.MAX, 1).isFirstMatch());
+        assertFalse(new IBMatcherFusion(IBMatcherFusion.Rule.SUM, 2).isFirstMatch());
+        assertFalse(new IBMatcherFusion(IBMatcherFusion.Rule.RANK, 1).isFirstMatch());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsThresholdBelowOne() {
+        new IBMatcherFusion(IBMatcherFusion.Rule.MAX, 0);
+    }
+
+    private IBMatcherGallery.Record record(long rowId) {
+        return new IBMatcherGallery.Record(rowId, "user" + rowId, "", 0, 0, m_template, null, null);
+    }
+}
@@ -0,0 +1,145 @@
+package com.facerec.tasol.tasolbiometricdemo;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import com.integratedbiometrics.ibscancommon.IBCommon.CaptureDeviceTechId;
+import com.integratedbiometrics.ibscancommon.IBCommon.FingerPosition;
+import com.integratedbiometrics.ibscancommon.IBCommon.ImpressionType;
+import com.integratedbiometrics.ibscanmatcher.IBMatcher;
+import com.integratedbiometrics.ibscanmatcher.IBMatcher.Template;
+import com.integratedbiometrics.ibscanmatcher.IBMatcherException;
+import com.integratedbiometrics.ibscanmatcher.IBTemplateCodec;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+/**
+ * Instrumented test checking how {@link IBMatcherProbeCache} serves, evicts and invalidates
+ * cached probes.  Probes are templates built in the test with made-up header fields and minutiae,
+ * with made-up entries; the cache under test matches probes by comparing their minutiae, so the
+ * native matcher is not needed.
+ */
+@RunWith(AndroidJUnit4.class)
+public class IBMatcherProbeCacheTest {
+    private Template m_template;
+    private Template m_other;
+
+    @Before
+    public void setUp() throws Exception {
+        m_template = template(FingerPosition.RIGHT_INDEX_FINGER, 1);
+        m_other    = template(FingerPosition.RIGHT_INDEX_FINGER, 2);
+    }
+
+    @Test
+    public void lookupFindsEntryOfMatchingProbe() {
+        final IBMatcherProbeCache cache = new MinutiaeCache(4, 60000);
+        assertNull(cache.lookup(null, m_template));
+
+        cache.put(m_template, entry(7), cache.getGeneration());
+        cache.put(m_other, entry(8), cache.getGeneration());
+        assertEquals(7, cache.lookup(null, m_template).getRowId());
+        assertEquals(8, cache.lookup(null, m_other).getRowId());
+    }
+
+    @Test
+    public void lookupSkipsProbeOfOtherFinger() throws Exception {
+        final IBMatcherProbeCache cache = new MinutiaeCache(4, 60000);
+        cache.put(m_template, entry(7), cache.getGeneration());
+        assertNull(cache.lookup(null, template(FingerPosition.LEFT_INDEX_FINGER, 1)));
+    }
+
+    @Test
+    public void putReplacesProbeOfSameEntryAndEvictsOldest() {
+        final IBMatcherProbeCache cache = new MinutiaeCache(1, 60000);
+        cache.put(m_template, entry(1), cache.getGeneration());
+        cache.put(m_template, entry(2), cache.getGeneration());
+        assertEquals(2, cache.lookup(null, m_template).getRowId());
+
+        cache.put(m_other, entry(3), cache.getGeneration());
+        assertNull(cache.lookup(null, m_template));
+        assertEquals(3, cache.lookup(null, m_other).getRowId());
+    }
+
+    @Test
+    public void invalidateDropsProbesAndStalePuts() {
+        final IBMatcherProbeCache cache = new MinutiaeCache(4, 60000);
+        final long generation = cache.getGeneration();
+        cache.put(m_template, entry(1), generation);
+        cache.invalidate();
+        assertNull(cache.lookup(null, m_template));
+
+        /* A match searched for before the write is not cached after it. */
+        cache.put(m_template, entry(1), generation);
+        assertNull(cache.lookup(null, m_template));
+    }
+
+    @Test
+    public void expiredProbesAreDropped() throws Exception {
+        final IBMatcherProbeCache cache = new MinutiaeCache(4, 0);
+        cache.put(m_template, entry(1), cache.getGeneration());
+        Thread.sleep(5);
+        assertNull(cache.lookup(null, m_template));
+    }
+
+    @Test
+    public void countsHitsAndMisses() {
+        final IBMatcherProbeCache cache = new MinutiaeCache(4, 60000);
+        cache.recordHit();
+        cache.recordMiss();
+        cache.recordMiss();
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsCapacityBelowOne() {
+        new IBMatcherProbeCache(0, 60000);
+    }
+
+    /* Cache whose probes match when their minutiae are the same. */
+    private static final class MinutiaeCache extends IBMatcherProbeCache {
+        MinutiaeCache(int capacity, long timeToLive) {
+            super(capacity, timeToLive);
+        }
+
+        @Override
+        protected boolean matches(IBMatcher matcher, Template probe, Template cached) {
+            return Arrays.equals(probe.minutiae, cached.minutiae);
+        }
+    }
+
+    /* A template whose minutiae differ with seed, built through the codec. */
+    private static Template template(FingerPosition position, int seed) throws IBMatcherException {
+        final int        minutiaeLength = IBMatcher.getMinutiaeLength();
+        final ByteBuffer buffer         = ByteBuffer.allocate(IBTemplateCodec.HEADER_LENGTH + minutiaeLength
+                + IBTemplateCodec.TRAILER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(3); /* TemplateVersion.IBISDK_3 */
+        buffer.putInt(position.toCode());
+        buffer.putInt(ImpressionType.LIVE_SCAN_PLAIN.toCode());
+        buffer.putInt(CaptureDeviceTechId.UNKNOWN_OR_UNSPECIFIED.toCode());
+        buffer.putShort((short) 0x0113);
+        buffer.putShort((short) 0x1000);
+        buffer.putShort((short) 500);
+        buffer.putShort((short) 500);
+        buffer.putShort((short) 352);
+        buffer.putShort((short) 288);
+        for (int i = 0; i < minutiaeLength; i++) {
+            buffer.put((byte) ((i * 31) + seed));
+        }
+        buffer.putInt(0);
+        buffer.flip();
+        return IBTemplateCodec.decode(buffer);
+    }
+
+    private IBMatcherDatabase.Entry entry(long rowId) {
+        return new IBMatcherDatabase.Entry(rowId, "user" + rowId, "", new Date(), new Date(), m_template);
+    }
+}
@@ -0,0 +1,119 @@
+package com.facerec.tasol.tasolbiometricdemo;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.RenamingDelegatingContext;
+
+import com.integratedbiometrics.ibscancommon.IBCommon.CaptureDeviceTechId;
+import com.integratedbiometrics.ibscancommon.IBCommon.FingerPosition;
+import com.integratedbiometrics.ibscancommon.IBCommon.ImpressionType;
+import com.integratedbiometrics.ibscanmatcher.IBMatcher;
+import com.integratedbiometrics.ibscanmatcher.IBTemplateCodec;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Instrumented test checking that an import enrolls well-formed template files and skips corrupt
+ * ones.  Template files are written in the test into a scratch directory, and the database is
+ * kept under renamed files so the app's own database is untouched.
+ */
+@RunWith(AndroidJUnit4.class)
+public class IBMatcherTransferTest {
+    private Context           m_context;
+    private IBMatcherDatabase m_database;
+    private File              m_directory;
+
+    @Before
+    public void setUp() throws Exception {
+        m_context  = new RenamingDelegatingContext(InstrumentationRegistry.getTargetContext(), "transfer_test_");
+        m_database = new IBMatcherDatabase(m_context);
+        m_database.reset();
+
+        m_directory = new File(InstrumentationRegistry.getTargetContext().getCacheDir(), "transfer_test");
+        deleteDirectory(m_directory);
+        assertTrue(m_directory.mkdirs());
+    }
+
+    @After
+    public void tearDown() {
+        m_database.close();
+        m_context.deleteDatabase(IBMatcherDatabase.DATABASE_NAME);
+        m_context.getDatabasePath(IBMatcherDatabase.PACKED_GALLERY_NAME).delete();
+        m_context.getDatabasePath(IBMatcherDatabase.JOURNAL_NAME).delete();
+        deleteDirectory(m_directory);
+    }
+
+    @Test
+    public void importSkipsTruncatedAndOversizedFiles() throws Exception {
+        final byte[] bytes = templateBytes();
+        writeFile("alice.ibsm_template", bytes);
+        writeFile("bob.ibsm_template", Arrays.copyOf(bytes, bytes.length - 1));
+        writeFile("carol.ibsm_template", Arrays.copyOf(bytes, IBTemplateCodec.HEADER_LENGTH));
+        writeFile("dave.ibsm_template", Arrays.copyOf(bytes, bytes.length + 1024));
+
+        final IBMatcherTransfer.Report report = IBMatcherTransfer.importTemplates(m_database, m_directory,
+                IBMatcherDatabase.DEFAULT_ENROLL_CHUNK_SIZE);
+
+        assertEquals(1, report.getTransferred());
+        assertEquals(3, report.getStages()[1].getSkipped());
+        assertEquals(3, report.getSkipped());
+        assertNotNull(m_database.find("alice"));
+        assertNull(m_database.find("bob"));
+        assertNull(m_database.find("carol"));
+        assertNull(m_database.find("dave"));
+    }
+
+    /* An IBSM template with made-up header fields and minutiae of the native size. */
+    private static byte[] templateBytes() {
+        final int        minutiaeLength = IBMatcher.getMinutiaeLength();
+        final ByteBuffer buffer         = ByteBuffer.allocate(IBTemplateCodec.HEADER_LENGTH + minutiaeLength
+                + IBTemplateCodec.TRAILER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(3); /* TemplateVersion.IBISDK_3 */
+        buffer.putInt(FingerPosition.RIGHT_INDEX_FINGER.toCode());
+        buffer.putInt(ImpressionType.LIVE_SCAN_PLAIN.toCode());
+        buffer.putInt(CaptureDeviceTechId.UNKNOWN_OR_UNSPECIFIED.toCode());
+        buffer.putShort((short) 0x0113);
+        buffer.putShort((short) 0x1000);
+        buffer.putShort((short) 500);
+        buffer.putShort((short) 500);
+        buffer.putShort((short) 352);
+        buffer.putShort((short) 288);
+        for (int i = 0; i < minutiaeLength; i++) {
+            buffer.put((byte) (i * 31));
+        }
+        buffer.putInt(0);
+        return buffer.array();
+    }
+
+    private void writeFile(String name, byte[] bytes) throws IOException {
+        final FileOutputStream ostream = new FileOutputStream(new File(m_directory, name));
+        try {
+            ostream.write(bytes);
+        } finally {
+            ostream.close();
+        }
+    }
+
+    private static void deleteDirectory(File directory) {
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+}
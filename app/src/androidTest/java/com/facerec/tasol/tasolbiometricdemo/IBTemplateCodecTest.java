@@ -0,0 +1,178 @@
+package com.facerec.tasol.tasolbiometricdemo;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.integratedbiometrics.ibscancommon.IBCommon.CaptureDeviceTechId;
+import com.integratedbiometrics.ibscancommon.IBCommon.FingerPosition;
+import com.integratedbiometrics.ibscancommon.IBCommon.ImpressionType;
+import com.integratedbiometrics.ibscanmatcher.IBMatcher;
+import com.integratedbiometrics.ibscanmatcher.IBMatcher.Template;
+import com.integratedbiometrics.ibscanmatcher.IBMatcherException;
+import com.integratedbiometrics.ibscanmatcher.IBTemplateCodec;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Instrumented test checking that the in-memory template codec is byte-identical to the IBSM
+ * template files written by the native library.  Fixtures are written by
+ * {@link IBMatcher#saveTemplate(Template, String)} in the test from templates with made-up header
+ * fields and minutiae, so no exported files are needed.
+ */
+@RunWith(AndroidJUnit4.class)
+public class IBTemplateCodecTest {
+    private static final FingerPosition[] POSITIONS = {
+        FingerPosition.RIGHT_THUMB, FingerPosition.RIGHT_INDEX_FINGER, FingerPosition.LEFT_MIDDLE_FINGER
+    };
+
+    private IBMatcher m_ibMatcher;
+    private File[]    m_fixtures;
+
+    @Before
+    public void setUp() throws Exception {
+        m_ibMatcher = IBMatcher.getInstance();
+
+        final int minutiaeLength = IBMatcher.getMinutiaeLength();
+        assertTrue(minutiaeLength > 0);
+
+        m_fixtures = new File[POSITIONS.length];
+        for (int i = 0; i < POSITIONS.length; i++) {
+            m_fixtures[i] = scratchFile();
+            m_ibMatcher.saveTemplate(template(POSITIONS[i], minutiaeLength), m_fixtures[i].getAbsolutePath());
+            assertEquals(IBTemplateCodec.HEADER_LENGTH + minutiaeLength + IBTemplateCodec.TRAILER_LENGTH,
+                    m_fixtures[i].length());
+        }
+    }
+
+    @Test
+    public void encodeMatchesFileWrittenBySaveTemplate() throws Exception {
+        for (File fixture : m_fixtures) {
+            final Template template = m_ibMatcher.loadTemplate(fixture.getAbsolutePath());
+            final File     saved    = scratchFile();
+            m_ibMatcher.saveTemplate(template, saved.getAbsolutePath());
+
+            assertArrayEquals(fixture.getName(), readFile(saved), IBTemplateCodec.encode(template));
+        }
+    }
+
+    @Test
+    public void decodeMatchesLoadTemplate() throws Exception {
+        for (File fixture : m_fixtures) {
+            final byte[]   bytes   = readFile(fixture);
+            final Template loaded  = m_ibMatcher.loadTemplate(fixture.getAbsolutePath());
+            final Template decoded = IBTemplateCodec.decode(bytes);
+
+            assertEquals(fixture.getName(), loaded.toString(), decoded.toString());
+            assertArrayEquals(fixture.getName(), loaded.minutiae, decoded.minutiae);
+            assertEquals(fixture.getName(), loaded.reserved, decoded.reserved);
+
+            /* A decoded template saved natively must reproduce the original bytes. */
+            final File saved = scratchFile();
+            m_ibMatcher.saveTemplate(decoded, saved.getAbsolutePath());
+            assertArrayEquals(fixture.getName(), bytes, readFile(saved));
+        }
+    }
+
+    @Test
+    public void nativeBytesMatchFileAndCodec() throws Exception {
+        for (File fixture : m_fixtures) {
+            final byte[]   bytes    = readFile(fixture);
+            final Template template = m_ibMatcher.loadTemplateFromBytes(bytes);
+            assertArrayEquals(fixture.getName(), bytes, m_ibMatcher.saveTemplateToBytes(template));
+            assertArrayEquals(fixture.getName(), bytes, IBTemplateCodec.encode(template));
+
+            /* Direct buffers are read and written in place. */
+            final ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+            assertEquals(bytes.length, m_ibMatcher.saveTemplateToBytes(template, direct));
+            direct.flip();
+            final Template fromDirect = m_ibMatcher.loadTemplateFromBytes(direct);
+            assertArrayEquals(fixture.getName(), bytes, IBTemplateCodec.encode(fromDirect));
+        }
+    }
+
+    @Test
+    public void decodeRejectsTruncatedRecord() throws Exception {
+        final byte[] bytes = readFile(m_fixtures[0]);
+        try {
+            IBTemplateCodec.decode(Arrays.copyOf(bytes, IBTemplateCodec.HEADER_LENGTH));
+            fail("Truncated record was decoded");
+        } catch (IBMatcherException ibme) {
+            assertEquals(IBMatcherException.Type.CONVERT_FAILED, ibme.getType());
+        }
+        try {
+            IBTemplateCodec.decode(Arrays.copyOf(bytes, bytes.length - 1));
+            fail("Short record was decoded");
+        } catch (IBMatcherException ibme) {
+            assertEquals(IBMatcherException.Type.CONVERT_FAILED, ibme.getType());
+        }
+    }
+
+    @Test
+    public void decodeRejectsOversizedRecord() throws Exception {
+        final byte[] bytes = readFile(m_fixtures[0]);
+        try {
+            IBTemplateCodec.decode(Arrays.copyOf(bytes, bytes.length + 1024));
+            fail("Oversized record was decoded");
+        } catch (IBMatcherException ibme) {
+            assertEquals(IBMatcherException.Type.CONVERT_FAILED, ibme.getType());
+        }
+    }
+
+    /* A template whose fields and minutiae differ with position, built through the codec. */
+    private static Template template(FingerPosition position, int minutiaeLength) throws IBMatcherException {
+        final ByteBuffer buffer = ByteBuffer.allocate(IBTemplateCodec.HEADER_LENGTH + minutiaeLength
+                + IBTemplateCodec.TRAILER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(3); /* TemplateVersion.IBISDK_3 */
+        buffer.putInt(position.toCode());
+        buffer.putInt(ImpressionType.LIVE_SCAN_PLAIN.toCode());
+        buffer.putInt(CaptureDeviceTechId.UNKNOWN_OR_UNSPECIFIED.toCode());
+        buffer.putShort((short) 0x0113);
+        buffer.putShort((short) (0x1000 + position.ordinal()));
+        buffer.putShort((short) 500);
+        buffer.putShort((short) 500);
+        buffer.putShort((short) 352);
+        buffer.putShort((short) 288);
+        for (int i = 0; i < minutiaeLength; i++) {
+            buffer.put((byte) ((i * 31) + position.ordinal()));
+        }
+        buffer.putInt(0);
+        buffer.flip();
+        return IBTemplateCodec.decode(buffer);
+    }
+
+    private static File scratchFile() throws IOException {
+        final File file = File.createTempFile("codec", ".ibsm_template",
+                InstrumentationRegistry.getTargetContext().getCacheDir());
+        file.deleteOnExit();
+        return file;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        final byte[]          bytes   = new byte[(int) file.length()];
+        final FileInputStream istream = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < bytes.length) {
+                final int count = istream.read(bytes, offset, bytes.length - offset);
+                if (count < 0) {
+                    throw new IOException("Unexpected end of " + file);
+                }
+                offset += count;
+            }
+        } finally {
+            istream.close();
+        }
+        return bytes;
+    }
+}
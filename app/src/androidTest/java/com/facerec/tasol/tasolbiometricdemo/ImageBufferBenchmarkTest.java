@@ -0,0 +1,180 @@
+package com.facerec.tasol.tasolbiometricdemo;
+
+import android.graphics.Bitmap;
+import android.os.Environment;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.integratedbiometrics.ibscancommon.IBCommon.ImageDataExt;
+import com.integratedbiometrics.ibscancommon.IBCommon.ImageFormat;
+import com.integratedbiometrics.ibscanmatcher.IBMatcher;
+import com.integratedbiometrics.ibscanmatcher.IBMatcher.DirectImageDataExt;
+import com.integratedbiometrics.ibscanmatcher.IBMatcher.Template;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Instrumented benchmarks for passing images to native code in Java arrays and in direct buffers,
+ * and for drawing them into bitmaps.  Images are loaded from the <code>*.ibsm_image</code> fixtures
+ * on external storage.  Timings are written to logcat under the tag <code>ImageBufferBenchmark</code>.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ImageBufferBenchmarkTest {
+    private static final String TAG        = "ImageBufferBenchmark";
+    private static final int    ITERATIONS = 50;
+
+    private IBMatcher          m_ibMatcher;
+    private ImageDataExt       m_image;
+    private DirectImageDataExt m_directImage;
+
+    @Before
+    public void setUp() throws Exception {
+        m_ibMatcher = IBMatcher.getInstance();
+
+        final File[] fixtures = Environment.getExternalStorageDirectory().listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".ibsm_image");
+            }
+        });
+        assumeTrue("No *.ibsm_image fixtures on external storage",
+                (fixtures != null) && (fixtures.length > 0));
+
+        m_image       = m_ibMatcher.loadImage(fixtures[0].getAbsolutePath());
+        m_directImage = DirectImageDataExt.fromImageDataExt(m_image);
+    }
+
+    @Test
+    public void directImageHoldsSamePixels() {
+        assertSame(m_directImage, DirectImageDataExt.fromImageDataExt(m_directImage));
+        assertEquals(m_image.imageData.length, m_directImage.imageBuffer.capacity());
+        assertEquals(0, m_directImage.imageData.length);
+        for (int i = 0; i < m_image.imageData.length; i++) {
+            assertEquals(m_image.imageData[i], m_directImage.imageBuffer.get(i));
+        }
+    }
+
+    @Test
+    public void extractFromDirectAgainstArrayImage() throws Exception {
+        final Template arrayTemplate  = m_ibMatcher.extractTemplate(m_image);
+        final Template directTemplate = m_ibMatcher.extractTemplate(m_directImage);
+        assertArrayEquals(arrayTemplate.minutiae, directTemplate.minutiae);
+
+        final long arrayStart = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            m_ibMatcher.extractTemplate(m_image);
+        }
+        final long arrayNanos = System.nanoTime() - arrayStart;
+
+        final long directStart = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            m_ibMatcher.extractTemplate(m_directImage);
+        }
+        final long directNanos = System.nanoTime() - directStart;
+
+        /* An array image is copied into native memory on every call; a direct image never is. */
+        Log.i(TAG, String.format("extract %d bytes: array %.2f ms (1 copy), direct %.2f ms (0 copies)",
+                m_image.imageData.length, arrayNanos / 1e6 / ITERATIONS, directNanos / 1e6 / ITERATIONS));
+    }
+
+    @Test
+    public void compressDirectAgainstArrayImage() throws Exception {
+        final ImageDataExt arrayCompressed  = m_ibMatcher.compressImage(m_image, ImageFormat.WSQ);
+        final ImageDataExt directCompressed = m_ibMatcher.compressImage(m_directImage, ImageFormat.WSQ);
+        assertTrue(directCompressed instanceof DirectImageDataExt);
+        assertEquals(arrayCompressed.imageData.length,
+                ((DirectImageDataExt) directCompressed).imageBuffer.capacity());
+
+        final long arrayStart = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            m_ibMatcher.compressImage(m_image, ImageFormat.WSQ);
+        }
+        final long arrayNanos = System.nanoTime() - arrayStart;
+
+        final long directStart = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            m_ibMatcher.compressImage(m_directImage, ImageFormat.WSQ);
+        }
+        final long directNanos = System.nanoTime() - directStart;
+
+        /* Both copy the compressed output once, into a Java array or a direct buffer. */
+        Log.i(TAG, String.format("compress %d bytes: array %.2f ms (2 copies), direct %.2f ms (1 copy)",
+                m_image.imageData.length, arrayNanos / 1e6 / ITERATIONS, directNanos / 1e6 / ITERATIONS));
+    }
+
+    @Test
+    public void renderIntoReusedBitmapAgainstJavaLoop() throws Exception {
+        final int width  = m_image.imageSizeX;
+        final int height = m_image.imageSizeY;
+
+        /* The drawn pixels must match the per-pixel Java loop that convertImageToBitmap() used to run. */
+        final Bitmap reference = javaLoopBitmap(m_image);
+        final Bitmap reused    = m_ibMatcher.convertImageToBitmap(m_directImage, null);
+        assertArrayEquals(pixelsOf(reference), pixelsOf(reused));
+
+        final Bitmap alpha = Bitmap.createBitmap(width, height, Bitmap.Config.ALPHA_8);
+        assertSame(alpha, m_ibMatcher.convertImageToBitmap(m_image, alpha));
+        assertEquals(255 - (m_image.imageData[0] & 0xFF), alpha.getPixel(0, height - 1) >>> 24);
+
+        final long javaStart = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            javaLoopBitmap(m_image);
+        }
+        final long javaNanos = System.nanoTime() - javaStart;
+
+        final long newStart = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            m_ibMatcher.convertImageToBitmap(m_image);
+        }
+        final long newNanos = System.nanoTime() - newStart;
+
+        final long reusedStart = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            assertSame(reused, m_ibMatcher.convertImageToBitmap(m_image, reused));
+        }
+        final long reusedNanos = System.nanoTime() - reusedStart;
+
+        final long alphaStart = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            m_ibMatcher.convertImageToBitmap(m_image, alpha);
+        }
+        final long alphaNanos = System.nanoTime() - alphaStart;
+
+        Log.i(TAG, String.format("render %dx%d: Java loop %.2f ms, native new %.2f ms, "
+                + "native reused ARGB_8888 %.2f ms (%d KB), native reused ALPHA_8 %.2f ms (%d KB)",
+                width, height, javaNanos / 1e6 / ITERATIONS, newNanos / 1e6 / ITERATIONS,
+                reusedNanos / 1e6 / ITERATIONS, reused.getByteCount() / 1024,
+                alphaNanos / 1e6 / ITERATIONS, alpha.getByteCount() / 1024));
+    }
+
+    /* The conversion convertImageToBitmap() ran before it drew natively into reused bitmaps. */
+    private static Bitmap javaLoopBitmap(ImageDataExt image) {
+        final Bitmap bitmap = Bitmap.createBitmap(image.imageSizeX, image.imageSizeY, Bitmap.Config.ARGB_8888);
+        final byte[] buffer = new byte[image.imageSizeX * image.imageSizeY * 4];
+        for (int y = 0; y < image.imageSizeY; y++) {
+            for (int x = 0; x < image.imageSizeX; x++) {
+                final int offset = ((y * image.imageSizeX) + x) * 4;
+                buffer[offset] = buffer[offset + 1] = buffer[offset + 2] =
+                        image.imageData[(image.imageSizeY - y - 1) * image.imageSizeX + x];
+                buffer[offset + 3] = (byte) 255;
+            }
+        }
+        bitmap.copyPixelsFromBuffer(ByteBuffer.wrap(buffer));
+        return bitmap;
+    }
+
+    private static int[] pixelsOf(Bitmap bitmap) {
+        final int[] pixels = new int[bitmap.getWidth() * bitmap.getHeight()];
+        bitmap.getPixels(pixels, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
+        return pixels;
+    }
+}
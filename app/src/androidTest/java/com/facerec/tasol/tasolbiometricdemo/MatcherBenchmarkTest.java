@@ -0,0 +1,234 @@
+package com.facerec.tasol.tasolbiometricdemo;
+
+import android.os.Environment;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.integratedbiometrics.ibscanmatcher.IBMatcher;
+import com.integratedbiometrics.ibscanmatcher.IBMatcher.NativeTemplate;
+import com.integratedbiometrics.ibscanmatcher.IBMatcher.Template;
+import com.integratedbiometrics.ibscanmatcher.IBMatcherPool;
+import com.integratedbiometrics.ibscanmatcher.IBMinutiaeSignature;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FilenameFilter;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Instrumented benchmarks for 1:N matching.  Galleries are built by repeating the
+ * <code>*.ibsm_template</code> fixtures on external storage (see {@link IBTemplateCodecTest}).
+ * Timings are written to logcat under the tag <code>MatcherBenchmark</code>.
+ */
+@RunWith(AndroidJUnit4.class)
+public class MatcherBenchmarkTest {
+    private static final String TAG                = "MatcherBenchmark";
+    private static final int    GALLERY_SIZE       = 2000;
+    private static final int    BATCH_GALLERY_SIZE = 10000;
+
+    private static final float[] SIGNATURE_CUTOFFS = {0.25f, 0.5f, 0.75f, 1.0f, 1.25f, 1.5f, 2.0f, 3.0f};
+
+    private IBMatcher  m_ibMatcher;
+    private Template[] m_fixtures;
+    private Template[] m_gallery;
+
+    @Before
+    public void setUp() throws Exception {
+        m_ibMatcher = IBMatcher.getInstance();
+
+        final File[] fixtures = Environment.getExternalStorageDirectory().listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".ibsm_template");
+            }
+        });
+        assumeTrue("No *.ibsm_template fixtures on external storage",
+                (fixtures != null) && (fixtures.length > 0));
+
+        final Template[] templates = new Template[fixtures.length];
+        for (int i = 0; i < fixtures.length; i++) {
+            templates[i] = m_ibMatcher.loadTemplate(fixtures[i].getAbsolutePath());
+        }
+        m_fixtures = templates;
+        m_gallery  = new Template[GALLERY_SIZE];
+        for (int i = 0; i < GALLERY_SIZE; i++) {
+            m_gallery[i] = templates[i % templates.length];
+        }
+    }
+
+    @Test
+    public void batchOverheadAgainstPairwiseCalls() throws Exception {
+        final Template[] gallery  = new Template[BATCH_GALLERY_SIZE];
+        for (int i = 0; i < gallery.length; i++) {
+            gallery[i] = m_gallery[i % m_gallery.length];
+        }
+        final Template   probe    = gallery[0];
+        final int[]      pairwise = new int[gallery.length];
+        final int[]      batched  = new int[gallery.length];
+
+        final long pairwiseStart = System.nanoTime();
+        for (int i = 0; i < gallery.length; i++) {
+            pairwise[i] = m_ibMatcher.matchTemplates(probe, gallery[i]);
+        }
+        final long pairwiseNanos = System.nanoTime() - pairwiseStart;
+
+        final long batchStart = System.nanoTime();
+        assertEquals(0, m_ibMatcher.matchTemplatesBatch(probe, gallery, batched));
+        final long batchNanos = System.nanoTime() - batchStart;
+
+        assertArrayEquals(pairwise, batched);
+        Log.i(TAG, String.format("1:%d pairwise %.1f us/match, batch %.1f us/match",
+                gallery.length, pairwiseNanos / 1e3 / gallery.length, batchNanos / 1e3 / gallery.length));
+    }
+
+    @Test
+    public void nativeHandlesAgainstJavaTemplates() throws Exception {
+        final Template         probe         = m_gallery[0];
+        final NativeTemplate   nativeProbe   = m_ibMatcher.createNativeTemplate(probe);
+        final NativeTemplate[] nativeGallery = new NativeTemplate[m_gallery.length];
+        for (int i = 0; i < m_gallery.length; i++) {
+            nativeGallery[i] = m_ibMatcher.createNativeTemplate(m_gallery[i]);
+        }
+        final int[] converted = new int[m_gallery.length];
+        final int[] resident  = new int[m_gallery.length];
+
+        try {
+            final long convertedStart = System.nanoTime();
+            assertEquals(0, m_ibMatcher.matchTemplatesBatch(probe, m_gallery, converted));
+            final long convertedNanos = System.nanoTime() - convertedStart;
+
+            final long residentStart = System.nanoTime();
+            assertEquals(0, m_ibMatcher.matchTemplatesBatch(nativeProbe, nativeGallery, 0,
+                    nativeGallery.length, resident));
+            final long residentNanos = System.nanoTime() - residentStart;
+
+            assertArrayEquals(converted, resident);
+            assertEquals(converted[1], m_ibMatcher.matchTemplates(nativeProbe, nativeGallery[1]));
+            Log.i(TAG, String.format("1:%d converted %.1f us/match, native %.1f us/match",
+                    m_gallery.length, convertedNanos / 1e3 / m_gallery.length,
+                    residentNanos / 1e3 / m_gallery.length));
+        } finally {
+            nativeProbe.release();
+            for (NativeTemplate nativeTemplate : nativeGallery) {
+                nativeTemplate.release();
+            }
+        }
+        assertTrue(nativeProbe.isReleased());
+    }
+
+    /**
+     * Recall/speed report for the minutiae-signature filter: every fixture is matched against every
+     * other, and for each cut-off the report gives the share of candidates that survive and the
+     * number of true matches (pairs the native matcher accepts) that the filter drops.  Fixtures
+     * should include several impressions of the same fingers for the recall figures to mean much.
+     */
+    @Test
+    public void signatureRecallReport() throws Exception {
+        final int                   count      = m_fixtures.length;
+        final IBMinutiaeSignature[] signatures = new IBMinutiaeSignature[count];
+        for (int i = 0; i < count; i++) {
+            signatures[i] = IBMinutiaeSignature.fromFmr(m_ibMatcher.saveTemplateAsFmrToBytes(m_fixtures[i]));
+            assertArrayEquals(signatures[i].encode(), IBMinutiaeSignature.decode(signatures[i].encode()).encode());
+        }
+
+        final int     pairs         = count * (count - 1);
+        final float[] distances     = new float[pairs];
+        final int[]   scores        = new int[pairs];
+        long          distanceNanos = 0;
+        long          matchNanos    = 0;
+        int           pair          = 0;
+        for (int i = 0; i < count; i++) {
+            for (int j = 0; j < count; j++) {
+                if (i == j) {
+                    continue;
+                }
+                final long distanceStart = System.nanoTime();
+                distances[pair] = signatures[i].distance(signatures[j]);
+                distanceNanos += System.nanoTime() - distanceStart;
+
+                final long matchStart = System.nanoTime();
+                scores[pair] = m_ibMatcher.matchTemplates(m_fixtures[i], m_fixtures[j]);
+                matchNanos += System.nanoTime() - matchStart;
+                pair++;
+            }
+        }
+        assumeTrue("Need at least two fixtures", pairs > 0);
+
+        int trueMatches = 0;
+        for (int score : scores) {
+            if (score > 0) {
+                trueMatches++;
+            }
+        }
+        final double distanceMicros = distanceNanos / 1e3 / pairs;
+        final double matchMicros    = matchNanos / 1e3 / pairs;
+        Log.i(TAG, String.format("Signature report: %d pairs, %d true matches, distance %.2f us, match %.1f us",
+                pairs, trueMatches, distanceMicros, matchMicros));
+
+        for (float cutoff : SIGNATURE_CUTOFFS) {
+            int survivors = 0;
+            int dropped   = 0;
+            for (int k = 0; k < pairs; k++) {
+                if (distances[k] <= cutoff) {
+                    survivors++;
+                } else if (scores[k] > 0) {
+                    dropped++;
+                }
+            }
+            final double survivorShare = (double) survivors / pairs;
+            Log.i(TAG, String.format("  cut-off %.2f: %5.1f%% survive, %d of %d true matches dropped, "
+                    + "%.1f us/candidate (vs %.1f)", cutoff, 100.0 * survivorShare, dropped, trueMatches,
+                    distanceMicros + survivorShare * matchMicros, matchMicros));
+        }
+
+        /* The greatest distance culls nothing. */
+        for (float distance : distances) {
+            assertTrue(distance <= IBMinutiaeSignature.MAX_DISTANCE);
+        }
+    }
+
+    @Test
+    public void poolSpeedupOverSerialScan() throws Exception {
+        final Template probe  = m_gallery[0];
+        final int[]    serial = new int[m_gallery.length];
+        final int[]    pooled = new int[m_gallery.length];
+
+        final long serialStart = System.nanoTime();
+        for (int i = 0; i < m_gallery.length; i++) {
+            serial[i] = m_ibMatcher.matchTemplates(probe, m_gallery[i]);
+        }
+        final long serialNanos = System.nanoTime() - serialStart;
+
+        final IBMatcherPool pool = new IBMatcherPool();
+        try {
+            /* Warm up the pool threads before timing. */
+            pool.matchAll(probe, m_gallery, pooled);
+
+            final long pooledStart = System.nanoTime();
+            pool.matchAll(probe, m_gallery, pooled);
+            final long pooledNanos = System.nanoTime() - pooledStart;
+
+            assertArrayEquals(serial, pooled);
+            Log.i(TAG, String.format("1:%d serial %.1f ms, pool of %d %.1f ms, speedup %.2fx",
+                    m_gallery.length, serialNanos / 1e6, pool.getSize(), pooledNanos / 1e6,
+                    (double) serialNanos / pooledNanos));
+
+            /* The sharded first-match search must agree with the serial scan. */
+            int first = -1;
+            for (int i = 0; (i < serial.length) && (first < 0); i++) {
+                if (serial[i] > 0) {
+                    first = i;
+                }
+            }
+            final IBMatcherPool.Match match = pool.findFirstMatch(probe, m_gallery);
+            assertEquals(first, (match == null) ? -1 : match.index);
+        } finally {
+            pool.close();
+        }
+    }
+}
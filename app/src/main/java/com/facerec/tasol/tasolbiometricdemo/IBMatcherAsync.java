@@ -0,0 +1,573 @@
+/* *************************************************************************************************
+ * IBMatcherAsync.java
+ *
+ * DESCRIPTION:
+ *     Asynchronous interface to IBScanMatcher and example database
+ *     http://www.integratedbiometrics.com
+ *
+ * NOTES:
+ *     Copyright (c) Integrated Biometrics, 2013
+ *
+ * HISTORY:
+ *     2013/03/22  First version.
+ ************************************************************************************************ */
+
+package com.facerec.tasol.tasolbiometricdemo;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.util.Log;
+
+import com.integratedbiometrics.ibscancommon.IBCommon.ImageDataExt;
+import com.integratedbiometrics.ibscanmatcher.IBMatcher;
+import com.integratedbiometrics.ibscanmatcher.IBMatcher.Template;
+
+/**
+ * Class that runs matcher and database operations on a small shared pool of threads and returns
+ * futures for their results, instead of starting a thread per operation.  Each operation is queued
+ * in one of two lanes: operations a user is waiting for run in the interactive lane, on threads of
+ * their own, and background operations run one at a time on a single low-priority thread, so that
+ * however many are queued they never occupy a thread an interactive operation needs.
+ * <p>
+ * The pool is deliberately small, because each 1:N search already spreads over every core through
+ * the database's matcher pool and calls on the single <code>IBMatcher</code> instance are
+ * serialized; more threads would only oversubscribe the processor.  Each lane queues at most
+ * <code>MAX_QUEUE_DEPTH</code> operations, and an operation submitted to a full lane fails with a
+ * <code>RejectedExecutionException</code>.  Queue depths and the time operations wait in the queue
+ * are kept for each lane.
+ * <p>
+ * A callback given with an operation is called on the pool thread that ran it, so it may block
+ * but must post any change to views to the UI thread.  It is not called if the operation is
+ * cancelled.
+ */
+public class IBMatcherAsync
+{
+	/* *********************************************************************************************
+	 * PUBLIC INNER TYPES
+	 ******************************************************************************************** */
+
+	/**
+	 * Lane in which an operation is queued.
+	 */
+	public enum Lane
+	{
+		/** Operation a user is waiting for, e.g., a match. */
+		INTERACTIVE,
+		/** Operation nobody is waiting for, e.g., loading the gallery or exporting a file. */
+		BACKGROUND
+	}
+
+	/**
+	 * Callback receiving the outcome of an operation.
+	 */
+	public interface Callback<T>
+	{
+		/**
+		 * Operation completed.
+		 *
+		 * @param result  result of operation
+		 */
+		void onSuccess(T result);
+
+		/**
+		 * Operation failed or was rejected.
+		 *
+		 * @param cause  exception thrown by operation, or <code>RejectedExecutionException</code>
+		 */
+		void onFailure(Exception cause);
+	}
+
+	/* *********************************************************************************************
+	 * PUBLIC CONSTANTS
+	 ******************************************************************************************** */
+
+	/**
+	 * The maximum number of operations queued in each lane.
+	 */
+	public static final int MAX_QUEUE_DEPTH = 32;
+
+	/* *********************************************************************************************
+	 * PUBLIC INTERFACE
+	 ******************************************************************************************** */
+
+	/**
+	 * Get the shared instance, creating it on first use with the default number of threads.
+	 *
+	 * @return shared instance
+	 */
+	public static synchronized IBMatcherAsync getInstance()
+	{
+		if (m_instance == null)
+		{
+			m_instance = new IBMatcherAsync(getDefaultThreadCount());
+		}
+		return (m_instance);
+	}
+
+	/**
+	 * Get the default number of interactive threads: one, because a 1:N search already uses every
+	 * core, and background operations have a thread of their own.
+	 *
+	 * @return default number of interactive threads
+	 */
+	public static int getDefaultThreadCount()
+	{
+		return (1);
+	}
+
+	/**
+	 * Create instance.  Most callers should share the instance returned by
+	 * <code>getInstance()</code>.
+	 *
+	 * @param threadCount  number of interactive operations run at once; one more thread runs 
+	 *                     background operations
+	 */
+	public IBMatcherAsync(final int threadCount)
+	{
+		if (threadCount < 1)
+		{
+        	Log.e(ASYNC_TAG, "Received invalid thread count");
+			throw new IllegalArgumentException("Received invalid thread count");
+		}
+
+		this.m_executors[Lane.INTERACTIVE.ordinal()] = createExecutor(Lane.INTERACTIVE, threadCount);
+		this.m_executors[Lane.BACKGROUND.ordinal()]  = createExecutor(Lane.BACKGROUND, 1);
+	}
+
+	/**
+	 * Run operation in lane.
+	 *
+	 * @param lane      lane in which to queue operation
+	 * @param callable  operation
+	 * @param callback  callback receiving outcome; may be <code>null</code>
+	 * @return          future result of operation
+	 */
+	public <T> Future<T> submit(final Lane lane, final Callable<T> callable, final Callback<T> callback)
+	{
+		if ((lane == null) || (callable == null))
+		{
+        	Log.e(ASYNC_TAG, "Received null lane or operation");
+			throw new IllegalArgumentException("Received null lane or operation");
+		}
+
+		final Task<T> task = new Task<T>(lane, callable, callback);
+
+		synchronized (this)
+		{
+			if (this.m_closed || (this.m_queued[lane.ordinal()] >= MAX_QUEUE_DEPTH))
+			{
+				this.m_rejected[lane.ordinal()]++;
+				task.reject(new RejectedExecutionException(lane + " lane is full or closed"));
+				return (task);
+			}
+			this.m_queued[lane.ordinal()]++;
+		}
+		this.m_executors[lane.ordinal()].execute(task);
+
+		return (task);
+	}
+
+	/**
+	 * Run operation without result in lane.
+	 *
+	 * @param lane      lane in which to queue operation
+	 * @param runnable  operation
+	 * @return          future completing with operation
+	 */
+	public Future<Void> execute(final Lane lane, final Runnable runnable)
+	{
+		return (submit(lane, new Callable<Void>()
+		{
+			@Override
+			public Void call()
+			{
+				runnable.run();
+				return (null);
+			}
+		}, null));
+	}
+
+	/**
+	 * Extract template from image data in the interactive lane.
+	 *
+	 * @see IBMatcher#extractTemplate(ImageDataExt)
+	 */
+	public Future<Template> extractTemplateAsync(final ImageDataExt imageDataExt,
+			final Callback<Template> callback)
+	{
+		return (submit(Lane.INTERACTIVE, new Callable<Template>()
+		{
+			@Override
+			public Template call() throws Exception
+			{
+				return (IBMatcher.getInstance().extractTemplate(imageDataExt));
+			}
+		}, callback));
+	}
+
+	/**
+	 * Match two templates in the interactive lane.
+	 *
+	 * @see IBMatcher#matchTemplates(Template, Template)
+	 */
+	public Future<Integer> matchTemplatesAsync(final Template template1, final Template template2,
+			final Callback<Integer> callback)
+	{
+		return (submit(Lane.INTERACTIVE, new Callable<Integer>()
+		{
+			@Override
+			public Integer call() throws Exception
+			{
+				return (IBMatcher.getInstance().matchTemplates(template1, template2));
+			}
+		}, callback));
+	}
+
+	/**
+	 * Generate template from three images in the interactive lane.
+	 *
+	 * @see IBMatcher#singleEnrollment(ImageDataExt, ImageDataExt, ImageDataExt)
+	 */
+	public Future<Template> singleEnrollmentAsync(final ImageDataExt imageDataExt1,
+			final ImageDataExt imageDataExt2, final ImageDataExt imageDataExt3,
+			final Callback<Template> callback)
+	{
+		return (submit(Lane.INTERACTIVE, new Callable<Template>()
+		{
+			@Override
+			public Template call() throws Exception
+			{
+				return (IBMatcher.getInstance().singleEnrollment(imageDataExt1, imageDataExt2, imageDataExt3));
+			}
+		}, callback));
+	}
+
+	/**
+	 * Generate templates from six images in the interactive lane.
+	 *
+	 * @see IBMatcher#multiEnrollment(ImageDataExt, ImageDataExt, ImageDataExt, ImageDataExt,
+	 *      ImageDataExt, ImageDataExt)
+	 */
+	public Future<Template[]> multiEnrollmentAsync(final ImageDataExt imageDataExt1,
+			final ImageDataExt imageDataExt2, final ImageDataExt imageDataExt3,
+			final ImageDataExt imageDataExt4, final ImageDataExt imageDataExt5,
+			final ImageDataExt imageDataExt6, final Callback<Template[]> callback)
+	{
+		return (submit(Lane.INTERACTIVE, new Callable<Template[]>()
+		{
+			@Override
+			public Template[] call() throws Exception
+			{
+				return (IBMatcher.getInstance().multiEnrollment(imageDataExt1, imageDataExt2,
+						imageDataExt3, imageDataExt4, imageDataExt5, imageDataExt6));
+			}
+		}, callback));
+	}
+
+	/**
+	 * Find best-matching entries of database in the interactive lane.
+	 *
+	 * @see IBMatcherDatabase#identify(Template, int)
+	 */
+	public Future<IBMatcherDatabase.Entry[]> identifyAsync(final IBMatcherDatabase database,
+			final Template template, final int k, final Callback<IBMatcherDatabase.Entry[]> callback)
+	{
+		return (submit(Lane.INTERACTIVE, new Callable<IBMatcherDatabase.Entry[]>()
+		{
+			@Override
+			public IBMatcherDatabase.Entry[] call()
+			{
+				return (database.identify(template, k));
+			}
+		}, callback));
+	}
+
+	/**
+	 * Verify template against entry of database with row ID in the interactive lane.
+	 *
+	 * @see IBMatcherDatabase#verify(long, Template)
+	 */
+	public Future<IBMatcherDatabase.Entry> verifyAsync(final IBMatcherDatabase database,
+			final long rowId, final Template template, final Callback<IBMatcherDatabase.Entry> callback)
+	{
+		return (submit(Lane.INTERACTIVE, new Callable<IBMatcherDatabase.Entry>()
+		{
+			@Override
+			public IBMatcherDatabase.Entry call()
+			{
+				return (database.verify(rowId, template));
+			}
+		}, callback));
+	}
+
+	/**
+	 * Verify template against entry of database with name in the interactive lane.
+	 *
+	 * @see IBMatcherDatabase#verify(String, Template)
+	 */
+	public Future<IBMatcherDatabase.Entry> verifyAsync(final IBMatcherDatabase database,
+			final String name, final Template template, final Callback<IBMatcherDatabase.Entry> callback)
+	{
+		return (submit(Lane.INTERACTIVE, new Callable<IBMatcherDatabase.Entry>()
+		{
+			@Override
+			public IBMatcherDatabase.Entry call()
+			{
+				return (database.verify(name, template));
+			}
+		}, callback));
+	}
+
+	/**
+	 * Enroll templates in database in the interactive lane.
+	 *
+	 * @see IBMatcherDatabase#enroll(String, String, Template[])
+	 */
+	public Future<Boolean> enrollAsync(final IBMatcherDatabase database, final String name,
+			final String description, final Template[] templates, final Callback<Boolean> callback)
+	{
+		return (submit(Lane.INTERACTIVE, new Callable<Boolean>()
+		{
+			@Override
+			public Boolean call()
+			{
+				return (database.enroll(name, description, templates));
+			}
+		}, callback));
+	}
+
+	/**
+	 * Load gallery of database in the background lane.
+	 *
+	 * @see IBMatcherDatabase#loadGallery()
+	 */
+	public Future<Boolean> loadGalleryAsync(final IBMatcherDatabase database, final Callback<Boolean> callback)
+	{
+		return (submit(Lane.BACKGROUND, new Callable<Boolean>()
+		{
+			@Override
+			public Boolean call()
+			{
+				return (database.loadGallery());
+			}
+		}, callback));
+	}
+
+	/**
+	 * Get number of operations queued in lane and not yet started.
+	 *
+	 * @param lane  lane
+	 * @return      queue depth
+	 */
+	public synchronized int getQueueDepth(final Lane lane)
+	{
+		return (this.m_queued[lane.ordinal()]);
+	}
+
+	/**
+	 * Get number of operations of lane that have started.
+	 *
+	 * @param lane  lane
+	 * @return      number of operations started
+	 */
+	public synchronized long getStartedCount(final Lane lane)
+	{
+		return (this.m_started[lane.ordinal()]);
+	}
+
+	/**
+	 * Get number of operations rejected from lane because it was full.
+	 *
+	 * @param lane  lane
+	 * @return      number of operations rejected
+	 */
+	public synchronized long getRejectedCount(final Lane lane)
+	{
+		return (this.m_rejected[lane.ordinal()]);
+	}
+
+	/**
+	 * Get average time operations of lane waited in the queue before starting.
+	 *
+	 * @param lane  lane
+	 * @return      average wait, in milliseconds
+	 */
+	public synchronized double getAverageWaitMillis(final Lane lane)
+	{
+		final long started = this.m_started[lane.ordinal()];
+		return ((started == 0) ? 0.0 : this.m_waitNanos[lane.ordinal()] / 1e6 / started);
+	}
+
+	/**
+	 * Get longest time an operation of lane waited in the queue before starting.
+	 *
+	 * @param lane  lane
+	 * @return      longest wait, in milliseconds
+	 */
+	public synchronized double getMaxWaitMillis(final Lane lane)
+	{
+		return (this.m_maxWaitNanos[lane.ordinal()] / 1e6);
+	}
+
+	/**
+	 * Stop the threads, cancelling queued operations.  Operations submitted later are rejected.
+	 */
+	public void close()
+	{
+		synchronized (this)
+		{
+			if (this.m_closed)
+			{
+				return;
+			}
+			this.m_closed = true;
+		}
+		for (final ThreadPoolExecutor executor : this.m_executors)
+		{
+			for (final Runnable runnable : executor.shutdownNow())
+			{
+				((Task<?>) runnable).cancel(false);
+			}
+		}
+	}
+
+	/* *********************************************************************************************
+	 * PRIVATE INTERFACE
+	 ******************************************************************************************** */
+
+	/*
+	 * Log tag for this class.
+	 */
+	private static final String ASYNC_TAG = "IBMatcher Async";
+
+	/*
+	 * Create executor running operations of lane on threads of its own, in submission order.
+	 * Background threads run at low priority.
+	 */
+	private static ThreadPoolExecutor createExecutor(final Lane lane, final int threadCount)
+	{
+		return (new ThreadPoolExecutor(threadCount, threadCount, 0L, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+		{
+			private final AtomicInteger m_count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(final Runnable runnable)
+			{
+				final Thread thread = new Thread(runnable, ASYNC_TAG + " " + lane + " " 
+						+ this.m_count.incrementAndGet());
+				thread.setDaemon(true);
+				thread.setPriority((lane == Lane.BACKGROUND) ? Thread.MIN_PRIORITY : Thread.NORM_PRIORITY);
+				return (thread);
+			}
+		}));
+	}
+
+	/*
+	 * Operation queued in a lane.
+	 */
+	private final class Task<T> extends FutureTask<T>
+	{
+		private final Lane        lane;
+		private final Callback<T> callback;
+		private final long        queueTime = System.nanoTime();
+
+		private Task(final Lane lane, final Callable<T> callable, final Callback<T> callback)
+		{
+			super(callable);
+			this.lane     = lane;
+			this.callback = callback;
+		}
+
+		@Override
+		public void run()
+		{
+			taskStarted(this.lane, System.nanoTime() - this.queueTime);
+			super.run();
+		}
+
+		/* Fail without running. */
+		private void reject(final Exception cause)
+		{
+			setException(cause);
+		}
+
+		@Override
+		protected void done()
+		{
+			if ((this.callback == null) || isCancelled())
+			{
+				return;
+			}
+			try
+			{
+				this.callback.onSuccess(get());
+			}
+			catch (final ExecutionException ee)
+			{
+				final Throwable cause = ee.getCause();
+				if (cause instanceof Exception)
+				{
+					this.callback.onFailure((Exception) cause);
+				}
+				else
+				{
+					Log.e(ASYNC_TAG, "Operation failed with error " + cause.toString());
+				}
+			}
+			catch (final CancellationException ce)
+			{
+				/* Cancelled after the check; no callback. */
+			}
+			catch (final InterruptedException ie)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/*
+	 * Shared instance.
+	 */
+	private static IBMatcherAsync         m_instance = null;
+
+	/*
+	 * Threads running operations of each lane, indexed by ordinal.
+	 */
+	private final ThreadPoolExecutor[]    m_executors    = new ThreadPoolExecutor[Lane.values().length];
+
+	/*
+	 * Metrics for each lane, indexed by ordinal.
+	 */
+	private final int[]                   m_queued       = new int[Lane.values().length];
+	private final long[]                  m_started      = new long[Lane.values().length];
+	private final long[]                  m_rejected     = new long[Lane.values().length];
+	private final long[]                  m_waitNanos    = new long[Lane.values().length];
+	private final long[]                  m_maxWaitNanos = new long[Lane.values().length];
+
+	/*
+	 * Whether close() has been called.
+	 */
+	private boolean                       m_closed       = false;
+
+	/*
+	 * Record start of operation of lane after waiting in queue.
+	 */
+	private synchronized void taskStarted(final Lane lane, final long waitNanos)
+	{
+		this.m_queued[lane.ordinal()]--;
+		this.m_started[lane.ordinal()]++;
+		this.m_waitNanos[lane.ordinal()] += waitNanos;
+		this.m_maxWaitNanos[lane.ordinal()] = Math.max(this.m_maxWaitNanos[lane.ordinal()], waitNanos);
+	}
+}
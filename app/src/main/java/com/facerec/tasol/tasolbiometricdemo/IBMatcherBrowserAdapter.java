@@ -0,0 +1,359 @@
+/* *************************************************************************************************
+ * IBMatcherBrowserAdapter.java
+ *
+ * DESCRIPTION:
+ *     Paged list adapter for browsing IBScanMatcher example database
+ *     http://www.integratedbiometrics.com
+ *
+ * NOTES:
+ *     Copyright (c) Integrated Biometrics, 2013
+ *
+ * HISTORY:
+ *     2013/03/22  First version.
+ ************************************************************************************************ */
+
+package com.facerec.tasol.tasolbiometricdemo;
+
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+/**
+ * Class that lists the entries of an <code>IBMatcherDatabase</code> a page at a time.  Pages are
+ * fetched by key (see <code>IBMatcherDatabase.getEntries()</code>) on a background thread, the
+ * first when the adapter is created and each next one when the list is scrolled near the end of
+ * the entries fetched so far, so the list is shown at once however many people are enrolled.  The
+ * dates of each entry are formatted once, as its page is fetched, and item views are recycled.
+ * <p>
+ * The adapter must be created and used on the main thread, and closed when the list is dismissed.
+ */
+public final class IBMatcherBrowserAdapter extends BaseAdapter
+{
+	/* *********************************************************************************************
+	 * PUBLIC CONSTANTS
+	 ******************************************************************************************** */
+
+	/**
+	 * The number of entries fetched in one page.
+	 */
+	public static final int PAGE_SIZE         = 200;
+
+	/**
+	 * The number of entries from the end of those fetched at which the next page is requested.
+	 */
+	public static final int PREFETCH_DISTANCE = 50;
+
+	/* *********************************************************************************************
+	 * PUBLIC INTERFACE
+	 ******************************************************************************************** */
+
+	/**
+	 * Create adapter and start fetching the first page.
+	 *
+	 * @param context   context in which item views are inflated
+	 * @param database  database to browse
+	 */
+	public IBMatcherBrowserAdapter(final Context context, final IBMatcherDatabase database)
+	{
+		if ((context == null) || (database == null))
+		{
+        	Log.e(BROWSER_TAG, "Received null context or database");
+			throw new IllegalArgumentException("Received null context or database");
+		}
+
+		this.m_inflater = LayoutInflater.from(context);
+		this.m_database = database;
+		fetchNextPage();
+	}
+
+	/**
+	 * Drop the entries fetched so far and fetch them again from the first page, e.g., after the
+	 * database was changed.  Pages still being fetched are discarded.
+	 */
+	public void refresh()
+	{
+		this.m_generation++;
+		this.m_rows.clear();
+		this.m_lastRowId = Long.MIN_VALUE;
+		this.m_fetching  = false;
+		this.m_exhausted = false;
+		notifyDataSetChanged();
+		fetchNextPage();
+	}
+
+	/**
+	 * Stop fetching pages.  Pages still being fetched are discarded.
+	 */
+	public void close()
+	{
+		this.m_generation++;
+		this.m_fetcher.shutdownNow();
+	}
+
+	/**
+	 * Determine whether every entry has been fetched.
+	 *
+	 * @return <code>true</code> if the last page has been fetched; <code>false</code> otherwise
+	 */
+	public boolean isExhausted()
+	{
+		return (this.m_exhausted);
+	}
+
+	@Override
+	public int getCount()
+	{
+		return (this.m_rows.size());
+	}
+
+	@Override
+	public IBMatcherDatabase.Entry getItem(final int position)
+	{
+		return (this.m_rows.get(position).m_entry);
+	}
+
+	@Override
+	public long getItemId(final int position)
+	{
+		return (this.m_rows.get(position).m_entry.getRowId());
+	}
+
+	@Override
+	public boolean hasStableIds()
+	{
+		return (true);
+	}
+
+	@Override
+	public View getView(final int position, final View convertView, final ViewGroup parent)
+	{
+		/* Reuse the view scrolled off the list, if any, with the text views it has already found. */
+		final View       view;
+		final ViewHolder holder;
+		if (convertView != null)
+		{
+			view   = convertView;
+			holder = (ViewHolder) convertView.getTag();
+		}
+		else
+		{
+			view   = this.m_inflater.inflate(R.layout.database_list_item, parent, false);
+			holder = new ViewHolder(view);
+			view.setTag(holder);
+		}
+
+		final Row row = this.m_rows.get(position);
+		holder.m_name.setText(row.m_entry.getName());
+		holder.m_createDate.setText(row.m_createDate);
+		holder.m_modifyDate.setText(row.m_modifyDate);
+		holder.m_description.setText(row.m_entry.getDescription());
+
+		/* Fetch the next page before the user reaches the end of this one. */
+		if (position >= this.m_rows.size() - PREFETCH_DISTANCE)
+		{
+			fetchNextPage();
+		}
+
+		return (view);
+	}
+
+	/* *********************************************************************************************
+	 * PRIVATE INTERFACE
+	 ******************************************************************************************** */
+
+	/*
+	 * Log tag.
+	 */
+	private static final String BROWSER_TAG = "IBMatcher Browser";
+
+	/*
+	 * Entry with its dates formatted for display.
+	 */
+	private static final class Row
+	{
+		private final IBMatcherDatabase.Entry m_entry;
+		private final String                  m_createDate;
+		private final String                  m_modifyDate;
+
+		private Row(final IBMatcherDatabase.Entry entry, final String createDate, final String modifyDate)
+		{
+			this.m_entry      = entry;
+			this.m_createDate = createDate;
+			this.m_modifyDate = modifyDate;
+		}
+	}
+
+	/*
+	 * Text views of an item view, found once when the view is inflated.
+	 */
+	private static final class ViewHolder
+	{
+		private final TextView m_name;
+		private final TextView m_createDate;
+		private final TextView m_modifyDate;
+		private final TextView m_description;
+
+		private ViewHolder(final View view)
+		{
+			this.m_name        = (TextView) view.findViewById(R.id.database_name);
+			this.m_createDate  = (TextView) view.findViewById(R.id.database_create);
+			this.m_modifyDate  = (TextView) view.findViewById(R.id.database_modify);
+			this.m_description = (TextView) view.findViewById(R.id.database_description);
+		}
+	}
+
+	/*
+	 * Request the page after the entries fetched so far, unless one is being fetched or the last
+	 * has been.
+	 */
+	private void fetchNextPage()
+	{
+		if (this.m_fetching || this.m_exhausted || this.m_fetcher.isShutdown())
+		{
+			return;
+		}
+		this.m_fetching = true;
+
+		final long afterRowId = this.m_lastRowId;
+		final int  generation = this.m_generation;
+		this.m_fetcher.execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				final IBMatcherDatabase.Entry[] entries = IBMatcherBrowserAdapter.this.m_database.getEntries(afterRowId, PAGE_SIZE);
+				final List<Row>                 rows    = formatRows(entries);
+				IBMatcherBrowserAdapter.this.m_mainHandler.post(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						addPage(generation, rows);
+					}
+				});
+			}
+		});
+	}
+
+	/*
+	 * Format the dates of a page of entries.  Called on the fetching thread, which alone uses the
+	 * date formats.  Returns null if the page could not be fetched.
+	 */
+	private List<Row> formatRows(final IBMatcherDatabase.Entry[] entries)
+	{
+		if (entries == null)
+		{
+			return (null);
+		}
+
+		final List<Row> rows = new ArrayList<Row>(entries.length);
+		for (final IBMatcherDatabase.Entry entry : entries)
+		{
+			rows.add(new Row(entry,
+					this.m_dateFormat.format(entry.getCreateDate()) + " " + this.m_timeFormat.format(entry.getCreateDate()),
+					this.m_dateFormat.format(entry.getModifyDate()) + " " + this.m_timeFormat.format(entry.getModifyDate())));
+		}
+
+		return (rows);
+	}
+
+	/*
+	 * Append a fetched page to the list, unless the list was refreshed or closed since it was
+	 * requested.  Called on the main thread.
+	 */
+	private void addPage(final int generation, final List<Row> rows)
+	{
+		if (generation != this.m_generation)
+		{
+			return;
+		}
+
+		this.m_fetching = false;
+		if (rows == null)
+		{
+			/* Stop rather than retry a failing query on every scroll. */
+			Log.e(BROWSER_TAG, "Failed to fetch page after row " + this.m_lastRowId);
+			this.m_exhausted = true;
+			return;
+		}
+
+		if (!rows.isEmpty())
+		{
+			this.m_rows.addAll(rows);
+			this.m_lastRowId = rows.get(rows.size() - 1).m_entry.getRowId();
+			notifyDataSetChanged();
+		}
+		if (rows.size() < PAGE_SIZE)
+		{
+			this.m_exhausted = true;
+		}
+	}
+
+	/*
+	 * Inflater of item views.
+	 */
+	private final LayoutInflater    m_inflater;
+
+	/*
+	 * Database being browsed.
+	 */
+	private final IBMatcherDatabase m_database;
+
+	/*
+	 * Rows fetched so far, in order of row ID, and the row ID of the last.  Used on the main thread
+	 * only.
+	 */
+	private final List<Row>         m_rows        = new ArrayList<Row>();
+	private long                    m_lastRowId   = Long.MIN_VALUE;
+
+	/*
+	 * Whether a page is being fetched, and whether the last page has been.  Used on the main thread
+	 * only.
+	 */
+	private boolean                 m_fetching    = false;
+	private boolean                 m_exhausted   = false;
+
+	/*
+	 * Count of refreshes and closes, by which stale pages are recognized.  Used on the main thread
+	 * only.
+	 */
+	private int                     m_generation  = 0;
+
+	/*
+	 * Handler delivering fetched pages to the main thread.
+	 */
+	private final Handler           m_mainHandler = new Handler(Looper.getMainLooper());
+
+	/*
+	 * Formats of dates and times, which are not thread-safe and are used on the fetching thread only.
+	 */
+	private final DateFormat        m_dateFormat  = DateFormat.getDateInstance();
+	private final DateFormat        m_timeFormat  = DateFormat.getTimeInstance();
+
+	/*
+	 * Single background thread fetching pages in order.
+	 */
+	private final ExecutorService   m_fetcher     = Executors.newSingleThreadExecutor(new ThreadFactory()
+	{
+		@Override
+		public Thread newThread(final Runnable runnable)
+		{
+			final Thread thread = new Thread(runnable, BROWSER_TAG);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return (thread);
+		}
+	});
+}
@@ -15,22 +15,39 @@
 package com.facerec.tasol.tasolbiometricdemo;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
-import android.os.Environment;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
 import android.util.Log;
 
+import com.integratedbiometrics.ibscancommon.IBCommon.FingerPosition;
 import com.integratedbiometrics.ibscanmatcher.IBMatcher;
 import com.integratedbiometrics.ibscanmatcher.IBMatcherException;
+import com.integratedbiometrics.ibscanmatcher.IBMatcherPool;
+import com.integratedbiometrics.ibscanmatcher.IBMinutiaeSignature;
+import com.integratedbiometrics.ibscanmatcher.IBCompactTemplateCodec;
+import com.integratedbiometrics.ibscanmatcher.IBTemplateCodec;
+import com.integratedbiometrics.ibscanmatcher.IBMatcher.NativeTemplate;
 import com.integratedbiometrics.ibscanmatcher.IBMatcher.Template;
 
 /**
@@ -51,13 +68,40 @@ public class IBMatcherDatabase
 	 * The database version.  If any fields are added, increment this version number and provide 
 	 * logic to upgrade the database.
 	 */
-	public static final int    DATABASE_VERSION         = 4;
+	public static final int    DATABASE_VERSION         = 12;
 
 	/**
-	 * The name of the table in the database.
+	 * The name of the table of entries in the database, holding each person's name, description 
+	 * and dates.
 	 */
 	public static final String TABLE_NAME               = "fingerprints";
 
+	/**
+	 * The name of the table of templates in the database, holding each entry's templates, their 
+	 * attributes and their signatures.  Keeping the templates apart keeps the pages of the entries 
+	 * table small, so browsing and looking up names stay in the page cache, and packs the templates 
+	 * tightly for scans.  A template holds its entry's ID and its ordinal within the entry, under 
+	 * a unique index, so the templates of an entry are found without a scan and are adjacent in 
+	 * the galleries read from the table in the order of the index.
+	 */
+	public static final String TABLE_NAME_TEMPLATES     = "templates";
+
+	/**
+	 * The name of the table holding the state of the database as key-value pairs.
+	 */
+	public static final String TABLE_NAME_STATE         = "state";
+
+	/**
+	 * The name of the packed gallery file, kept next to the database.
+	 */
+	public static final String PACKED_GALLERY_NAME      = "fingerprints.gallery";
+
+	/**
+	 * The name of the journal of changes made since the packed gallery file was written, kept 
+	 * next to the database.
+	 */
+	public static final String JOURNAL_NAME             = "fingerprints.journal";
+
 	/**
 	 * The column with the ID.  This is required to use the cursor in adapters, etc., and is the 
 	 * primary key.
@@ -89,6 +133,77 @@ public class IBMatcherDatabase
 	 */
 	public static final String COLUMN_NAME_TEMPLATE     = "template";
 
+	/**
+	 * The column with the finger position code of the template.
+	 */
+	public static final String COLUMN_NAME_FINGER_POSITION = "finger_position";
+
+	/**
+	 * The column with the impression type code of the template.
+	 */
+	public static final String COLUMN_NAME_IMPRESSION_TYPE = "impression_type";
+
+	/**
+	 * The column with the capture device technology ID code of the template.
+	 */
+	public static final String COLUMN_NAME_CAPTURE_DEVICE_TECH_ID = "capture_device_tech_id";
+
+	/**
+	 * The column with the image width of the template.
+	 */
+	public static final String COLUMN_NAME_IMAGE_SIZE_X = "image_size_x";
+
+	/**
+	 * The column with the image height of the template.
+	 */
+	public static final String COLUMN_NAME_IMAGE_SIZE_Y = "image_size_y";
+
+	/**
+	 * The column with the minutiae signature of the template.
+	 */
+	public static final String COLUMN_NAME_SIGNATURE    = "signature";
+
+	/**
+	 * The column with the ID of the entry a template belongs to, in the templates table.
+	 */
+	public static final String COLUMN_NAME_ENTRY_ID     = "entry_id";
+
+	/**
+	 * The column with the ordinal of a template within its entry, in the templates table.
+	 */
+	public static final String COLUMN_NAME_ORDINAL      = "ordinal";
+
+	/**
+	 * The column with the key in the state table.
+	 */
+	public static final String COLUMN_NAME_KEY          = "key";
+
+	/**
+	 * The column with the value in the state table.
+	 */
+	public static final String COLUMN_NAME_VALUE        = "value";
+
+	/**
+	 * The key of the stamp in the state table, which changes with every write of the fingerprints
+	 * table so that a stale packed gallery file can be detected.
+	 */
+	public static final String STATE_KEY_STAMP          = "stamp";
+
+	/**
+	 * The name of the unique index on names.
+	 */
+	public static final String INDEX_NAME_NAME          = "fingerprints_name";
+
+	/**
+	 * The name of the index on the template attributes used to pre-filter candidates.
+	 */
+	public static final String INDEX_NAME_FILTER        = "fingerprints_filter";
+
+	/**
+	 * The name of the unique index on the entry IDs and ordinals of templates.
+	 */
+	public static final String INDEX_NAME_ENTRY         = "templates_entry";
+
 	/**
 	 * The index of the ID in the cursor returned by <code>getCursor()</code>.
 	 */
@@ -113,6 +228,28 @@ public class IBMatcherDatabase
 	 * The index of the modify date in the cursor returned by <code>getCursor()</code>.
 	 */
 	public static final int    CURSOR_INDEX_MODIFY_DATE = 4;
+
+	/**
+	 * The index of the template in the cursor returned by <code>getTemplateCursor()</code>.  The 
+	 * cursor has one row per template.
+	 */
+	public static final int    CURSOR_INDEX_TEMPLATE    = 5;
+
+	/**
+	 * The default number of records enrolled in one transaction by <code>enrollAll()</code>.
+	 */
+	public static final int    DEFAULT_ENROLL_CHUNK_SIZE = 500;
+
+	/**
+	 * The greatest number of templates of one entry, e.g., one impression of each finger and 
+	 * further impressions of some.
+	 */
+	public static final int    MAX_TEMPLATES_PER_ENTRY   = 32;
+
+	/**
+	 * The greatest number of templates of a ten-print entry or probe, one of each finger.
+	 */
+	public static final int    TEN_PRINT_SIZE            = 10;
 	 
 
 	/* *********************************************************************************************
@@ -124,6 +261,11 @@ public class IBMatcherDatabase
 	 */
 	public static class Entry
 	{
+		/*
+		 * Row ID of this entry in the database.
+		 */
+		private final long     m_rowId;
+		
 		/*
 		 * Name of the person associated with this entry.
 		 */
@@ -149,6 +291,11 @@ public class IBMatcherDatabase
 		 */
 		private final Template m_template;
 		
+		/*
+		 * Fingerprint templates in this entry, the first of which is m_template.
+		 */
+		private final Template[] m_templates;
+		
 		/*
 		 * Match score, if entry was returned from a match.
 		 */
@@ -157,21 +304,40 @@ public class IBMatcherDatabase
 		/*
 		 * Constructor for fingerprint entries.
 		 */
-		protected Entry(String name, String description, Date createDate, Date modifyDate, Template template)
+		protected Entry(long rowId, String name, String description, Date createDate, Date modifyDate, 
+				Template template)
 		{  
-			this(name, description, createDate, modifyDate, template, 0);
+			this(rowId, name, description, createDate, modifyDate, template, 0);
 		}
-		protected Entry(String name, String description, Date createDate, Date modifyDate, 
+		protected Entry(long rowId, String name, String description, Date createDate, Date modifyDate, 
 				Template template, int matchScore)
 		{  
+			this(rowId, name, description, createDate, modifyDate, 
+					(template != null) ? new Template[] {template} : new Template[0], matchScore);
+		}
+		protected Entry(long rowId, String name, String description, Date createDate, Date modifyDate, 
+				Template[] templates, int matchScore)
+		{  
+			this.m_rowId       = rowId;
 			this.m_name        = name;
 			this.m_description = description;
 			this.m_createDate  = createDate;
 			this.m_modifyDate  = modifyDate;
-			this.m_template    = template;
+			this.m_template    = (templates.length > 0) ? templates[0] : null;
+			this.m_templates   = templates;
 			this.m_matchScore  = matchScore;
 		}
 	
+		/**
+		 * Get row ID of this entry in the database.
+		 * 
+		 * @return row ID of this entry
+		 */
+		public long getRowId()
+		{
+			return (this.m_rowId);
+		}
+		
 		/**
 		 * Get name of person associated with this entry.
 		 * 
@@ -223,7 +389,20 @@ public class IBMatcherDatabase
         }
 		  
 	    /**
-         * Get match score, if this entry was returned from a match.
+         * Get fingerprint templates in this entry.  An entry found by name holds all of the 
+         * person's templates; an entry returned from a match holds the template that scored best.
+		 * 
+		 * @return fingerprint templates in this entry, which must not be modified
+		 */
+		public Template[] getTemplates()
+		{
+	        return (this.m_templates);
+        }
+		  
+	    /**
+         * Get match score, if this entry was returned from a match.  Under 
+         * <code>IBMatcherFusion.Rule.MAX</code>, this is the matcher's score of the best template; 
+         * under other rules, it is the fused score of the entry's templates.
 		 * 
 		 * @return match score
 		 */
@@ -233,6 +412,166 @@ public class IBMatcherDatabase
         }
 	}
 
+	/**
+	 * Class encapsulating one person to enroll with <code>enrollAll()</code>.
+	 */
+	public static class EnrollmentRecord
+	{
+		/*
+		 * Name of the person to enroll.
+		 */
+		private final String   m_name;
+		
+		/*
+		 * Description to associate with the entry.
+		 */
+		private final String   m_description;
+		
+		/*
+		 * Fingerprint templates of the person.
+		 */
+		private final Template[] m_templates;
+
+		/*
+		 * Minutiae signatures of the templates already known to the caller, in the same order, 
+		 * with null for those to be computed if signatures are used to cull candidates.
+		 */
+		private final IBMinutiaeSignature[] m_signatures;
+
+		/**
+		 * Create record of person to enroll.
+		 * 
+		 * @param name         name of person to associate with the entry
+		 * @param description  description to associate with the entry
+		 * @param template     fingerprint template
+		 */
+		public EnrollmentRecord(final String name, final String description, final Template template)
+		{
+			this(name, description, new Template[] {template});
+		}
+
+		/**
+		 * Create record of person to enroll with the template's minutiae signature, e.g., one 
+		 * computed from an FMR the caller already holds, so that enrolling need not convert the 
+		 * template to an FMR again.
+		 * 
+		 * @param name         name of person to associate with the entry
+		 * @param description  description to associate with the entry
+		 * @param template     fingerprint template
+		 * @param signature    minutiae signature of template, or <code>null</code> to compute it if 
+		 *                     a signature cut-off is set
+		 */
+		public EnrollmentRecord(final String name, final String description, final Template template,
+				final IBMinutiaeSignature signature)
+		{
+			this(name, description, new Template[] {template}, new IBMinutiaeSignature[] {signature});
+		}
+
+		/**
+		 * Create record of person to enroll with several templates.
+		 * 
+		 * @param name         name of person to associate with the entry
+		 * @param description  description to associate with the entry
+		 * @param templates    fingerprint templates, at least one and at most 
+		 *                     <code>MAX_TEMPLATES_PER_ENTRY</code>
+		 */
+		public EnrollmentRecord(final String name, final String description, final Template[] templates)
+		{
+			this(name, description, templates, null);
+		}
+
+		/*
+		 * Create record of person to enroll with several templates and their known signatures, or
+		 * none if the signatures are null.
+		 */
+		private EnrollmentRecord(final String name, final String description, final Template[] templates,
+				final IBMinutiaeSignature[] signatures)
+		{
+			if ((name == null) || (description == null))
+			{
+				throw new IllegalArgumentException("Received null name, description, or template");
+			}
+			checkTemplates(templates);
+			
+			this.m_name        = name;
+			this.m_description = description;
+			this.m_templates   = templates.clone();
+			this.m_signatures  = (signatures != null) ? signatures : new IBMinutiaeSignature[templates.length];
+		}
+		
+		/**
+		 * Get name of person to enroll.
+		 * 
+		 * @return name of person
+		 */
+		public String getName()
+		{
+			return (this.m_name);
+		}
+		
+		/**
+		 * Get description to associate with the entry.
+		 * 
+		 * @return description
+		 */
+		public String getDescription()
+		{
+			return (this.m_description);
+		}
+		
+		/**
+		 * Get first fingerprint template of person to enroll.
+		 * 
+		 * @return fingerprint template
+		 */
+		public Template getTemplate()
+		{
+			return (this.m_templates[0]);
+		}
+		
+		/**
+		 * Get fingerprint templates of person to enroll.
+		 * 
+		 * @return fingerprint templates, which must not be modified
+		 */
+		public Template[] getTemplates()
+		{
+			return (this.m_templates);
+		}
+		
+		/*
+		 * Get minutiae signatures of templates, in the same order, computing those not given if 
+		 * signatures are used to cull candidates.
+		 */
+		private IBMinutiaeSignature[] getSignatures(final IBMatcherDatabase database)
+		{
+			final IBMinutiaeSignature[] signatures = new IBMinutiaeSignature[this.m_templates.length];
+			for (int i = 0; i < signatures.length; i++)
+			{
+				signatures[i] = (this.m_signatures[i] != null) ? this.m_signatures[i] 
+						: database.createEnrolledSignature(this.m_templates[i]);
+			}
+			
+			return (signatures);
+		}
+	}
+
+	/**
+	 * Listener for the progress of <code>enrollAll()</code>.
+	 */
+	public interface EnrollmentListener
+	{
+		/**
+		 * Called after each chunk of records is committed, on the enrolling thread.
+		 * 
+		 * @param processed  number of records read so far
+		 * @param enrolled   number of records enrolled so far
+		 * @param skipped    number of records skipped so far, because their name was already 
+		 *                   enrolled or their template could not be converted
+		 */
+		void enrollmentProgress(int processed, int enrolled, int skipped);
+	}
+
 	/* *********************************************************************************************
 	 * PUBLIC INTERFACE
 	 ******************************************************************************************** */
@@ -246,6 +585,8 @@ public class IBMatcherDatabase
 	{
 		this.m_openHelper = new DatabaseHelper(context);
 		this.m_ibMatcher  = IBMatcher.getInstance();
+		this.m_packedFile = context.getDatabasePath(PACKED_GALLERY_NAME);
+		this.m_journal    = new IBMatcherJournal(context.getDatabasePath(JOURNAL_NAME));
 	}
 	
 	/**
@@ -262,7 +603,7 @@ public class IBMatcherDatabase
         try
         {
         	/* 
-        	 * Query database for all columns but the template.  The constants COLUMN_INDEX_#### 
+        	 * Query the entries table, without the templates.  The constants COLUMN_INDEX_#### 
         	 * correspond to the columns of the data in the returned cursor.
         	 */
  	        final Cursor cursor = db.query(
@@ -293,6 +634,89 @@ public class IBMatcherDatabase
         }
 	}
 	
+	/**
+	 * Get page of entries in order of row ID, without their templates.  Pages are found by key 
+	 * rather than by offset, so fetching any page costs the same however far into the database it
+	 * lies, and a page is not shifted by entries enrolled or deleted before it since the last one.
+	 * 
+	 * @param afterRowId  row ID of the last entry of the previous page, or <code>Long.MIN_VALUE</code>
+	 *                    for the first page
+	 * @param count       greatest number of entries in the page
+	 * @return            entries whose row IDs follow <code>afterRowId</code>, in order, with null 
+	 *                    templates; fewer than <code>count</code> if the last page was reached; or 
+	 *                    <code>null</code> if the query failed
+	 */
+	public Entry[] getEntries(final long afterRowId, final int count)
+	{
+		/* Check arguments. */
+		if (count < 1)
+		{
+        	Log.e(FINGERPRINT_DB_TAG, "Received invalid count");
+			throw new IllegalArgumentException("Received invalid count");
+		}
+
+		/* Open the database object in "read" mode. */
+	    final SQLiteDatabase db = this.m_openHelper.getReadableDatabase();
+
+        try
+        {
+        	/* Query the entries table only, walking its primary key from the last page. */
+ 	        final Cursor cursor = db.query(
+ 	        		TABLE_NAME, 
+ 	        		new String[] {COLUMN_NAME__ID, COLUMN_NAME_NAME, COLUMN_NAME_DESCRIPTION, 
+ 	        				COLUMN_NAME_CREATE_DATE, COLUMN_NAME_MODIFY_DATE}, 
+ 	        		COLUMN_NAME__ID + " > ?", 
+ 	        		new String[] {Long.toString(afterRowId)}, 
+ 	        		null, 
+ 	        		null, 
+ 	        		COLUMN_NAME__ID,
+ 	        		Integer.toString(count));
+ 	        try
+ 	        {
+ 	        	final Entry[] entries = new Entry[cursor.getCount()];
+ 	        	for (int i = 0; cursor.moveToNext(); i++)
+ 	        	{
+ 	        		entries[i] = new Entry(cursor.getLong(0), cursor.getString(1), cursor.getString(2), 
+ 	        				new Date(cursor.getLong(3)), new Date(cursor.getLong(4)), null);
+ 	        	}
+ 	        	return (entries);
+ 	        }
+ 	        finally
+ 	        {
+ 	        	cursor.close();
+ 	        }
+        }
+        catch (final SQLException sqle)
+        {
+	    	Log.e(FINGERPRINT_DB_TAG, "Query failed with exception " + sqle.toString());
+	    	return (null); 		        	        	        
+        }
+	}
+	
+	/**
+	 * Get cursor for database including templates, e.g., to export them.  The columns are those of 
+	 * <code>getCursor()</code>, followed by the template at <code>CURSOR_INDEX_TEMPLATE</code>, 
+	 * encoded by <code>IBCompactTemplateCodec</code>.  An entry has one row per template, and its 
+	 * rows are adjacent, in order of ordinal.
+	 * 
+	 * @return  cursor to view database entries with their templates.
+	 */
+	public Cursor getTemplateCursor()
+	{
+		/* Open the database object in "read" mode. */
+	    final SQLiteDatabase db = this.m_openHelper.getReadableDatabase();
+
+        try
+        {
+        	return (queryRecords(db, null));
+        }
+        catch (final SQLException sqle)
+        {
+	    	Log.e(FINGERPRINT_DB_TAG, "Query failed with exception " + sqle.toString());
+	    	return (null); 		        	        	        
+        }
+	}
+	
 	/**
 	 * Get size of database.
 	 * 
@@ -317,9 +741,34 @@ public class IBMatcherDatabase
 	 * @param name        name of person to associate with this entry
 	 * @param description description to associate with this entry
 	 * @param template    fingerprint template
-	 * @return            <code>true</code> if enrollment succeeds; <code>false</code> otherwise
+	 * @return            <code>true</code> if enrollment succeeds; <code>false</code> otherwise, 
+	 *                    e.g., if the name is already enrolled
 	 */
 	public boolean enroll(final String name, final String description, final Template template)
+	{
+		/* Check arguments. */
+		if (template == null)
+		{
+        	Log.e(FINGERPRINT_DB_TAG, "Received null template");
+			throw new IllegalArgumentException("Received null template");
+		}
+		
+		return (enroll(name, description, new Template[] {template}));
+	}
+
+	/**
+	 * Enroll user in database with several templates, e.g., of different fingers or of different 
+	 * impressions of one finger.  Matches fuse the scores of all of them (see 
+	 * <code>IBMatcherFusion</code>).
+	 * 
+	 * @param name        name of person to associate with this entry
+	 * @param description description to associate with this entry
+	 * @param templates   fingerprint templates, at least one and at most 
+	 *                    <code>MAX_TEMPLATES_PER_ENTRY</code>
+	 * @return            <code>true</code> if enrollment succeeds; <code>false</code> otherwise, 
+	 *                    e.g., if the name is already enrolled
+	 */
+	public boolean enroll(final String name, final String description, final Template[] templates)
 	{
 		/* Check arguments. */
 		if (name == null)
@@ -334,46 +783,66 @@ public class IBMatcherDatabase
 			throw new IllegalArgumentException("Received null description");
 		}
 		/* TODO: CHECK THE DESCRIPTION FOR INAPPROPRIATE FORMAT */
-		if (template == null)
-		{
-        	Log.e(FINGERPRINT_DB_TAG, "Received null template");
-			throw new IllegalArgumentException("Received null template");
-		}
+		checkTemplates(templates);
 	
-		/* Create the map to hold the new record's values. */
-        final ContentValues values = new ContentValues();
-
-        /* Add the date. */
-        final Long now = Long.valueOf(System.currentTimeMillis());
-        values.put(COLUMN_NAME_CREATE_DATE, now);
-        values.put(COLUMN_NAME_MODIFY_DATE, now);
-
-        /* Add the name. */
-        values.put(COLUMN_NAME_NAME, name);
-        
-        /* Add the description. */
-        values.put(COLUMN_NAME_DESCRIPTION, description);
-
-        /* Add the template. */
-        final byte[] templateBytes = convertTemplateToBytes(template);
+        /* Convert the templates. */
+        final long     now           = System.currentTimeMillis();
+        final byte[][] templateBytes = convertTemplatesToBytes(templates);
         if (templateBytes == null)
         {
         	Log.e(FINGERPRINT_DB_TAG, "Failed to convert template to bytes");
         	return (false);
         }
-        values.put(COLUMN_NAME_TEMPLATE, templateBytes);
+        final IBMinutiaeSignature[] signatures = createSignatures(templates);
 
         /* Open the database object in "write" mode. */
         final SQLiteDatabase db = this.m_openHelper.getWritableDatabase();
 
         try
         {
-	        /* Perform the insert and returns the ID of the new note. */
-	        final long rowId = db.insert(
-	            TABLE_NAME,        // The table to insert into.
-	            COLUMN_NAME_NAME,  // A hack, SQLite sets this column value to null if values is empty.
-	            values             // A map of column names, and the values to insert into the columns.
-	        );
+	        final long rowId;
+	        synchronized (this.m_journal)
+	        {
+		        /* 
+		         * Perform the insert and returns the ID of the new note, stamping the write.  The 
+		         * insert fails if the name is already enrolled.
+		         */
+		        final long stamp;
+		        db.beginTransaction();
+		        try
+		        {
+		        	final Statements statements = prepareStatements(db);
+		        	statements.m_insert.bindString(1, name);
+		        	statements.m_insert.bindString(2, description);
+		        	statements.m_insert.bindLong(3, now);
+		        	statements.m_insert.bindLong(4, now);
+			        rowId = statements.m_insert.executeInsert();
+			        if (rowId > 0)
+			        {
+			        	insertTemplates(statements, rowId, templateBytes, templates, signatures);
+			        }
+			        stamp = (rowId > 0) ? bumpStamp(db) : 0;
+			        db.setTransactionSuccessful();
+		        }
+		        finally
+		        {
+		        	db.endTransaction();
+		        }
+		        
+		        /* Journal the new records, one per template, and patch the gallery, in the order of the writes. */
+		        if (rowId > 0)
+		        {
+		        	final List<IBMatcherGallery.Record> records = new ArrayList<IBMatcherGallery.Record>(templates.length);
+		        	for (int i = 0; i < templates.length; i++)
+		        	{
+		        		records.add(new IBMatcherGallery.Record(rowId, name, description, now, now, 
+		        				templates[i], createNativeTemplate(templates[i]), signatures[i]));
+		        	}
+		        	final IBMatcherJournal.Change change = new IBMatcherJournal.Change(stamp, false, null, records);
+		        	appendJournal(change);
+		        	applyToGallery(change);
+		        }
+	        }
 	
 	        /* If the insert succeeded, the row ID exists. */
 	        if (rowId > 0)
@@ -395,38 +864,2175 @@ public class IBMatcherDatabase
 	}
 
 	/**
-	 * Match template against database.
+	 * Enroll many people in database, committing them in chunks of one transaction each rather than 
+	 * one transaction per person.  Records whose name is already enrolled are skipped, so an 
+	 * enrollment that was interrupted (by a crash, or by interrupting the enrolling thread, which is 
+	 * checked between chunks) can be resumed by enrolling the same records again.  The resident 
+	 * gallery, if any, is updated as each chunk is committed, so a gallery loaded in the middle of 
+	 * the enrollment is not patched with rows it already read.
 	 * 
-	 * @param template  template to match
-	 * @return          data base entry, if match was found; <code>null</code> otherwise
+	 * @param records    records of people to enroll, which may be read lazily
+	 * @param chunkSize  number of records per transaction, e.g., <code>DEFAULT_ENROLL_CHUNK_SIZE</code>
+	 * @param listener   listener for progress, or <code>null</code>
+	 * @return           number of records enrolled; records of chunks that failed to commit are 
+	 *                   not counted
+	 */
+	public int enrollAll(final Iterable<EnrollmentRecord> records, final int chunkSize, 
+			final EnrollmentListener listener)
+	{
+		/* Check arguments. */
+		if (records == null)
+		{
+        	Log.e(FINGERPRINT_DB_TAG, "Received null records");
+			throw new IllegalArgumentException("Received null records");
+		}
+		if (chunkSize < 1)
+		{
+        	Log.e(FINGERPRINT_DB_TAG, "Received invalid chunk size");
+			throw new IllegalArgumentException("Received invalid chunk size");
+		}
+
+		/* Only make native templates if the gallery will take them. */
+		final boolean                       resident  = this.m_gallery.isResident();
+		final List<EnrollmentRecord>        chunk     = new ArrayList<EnrollmentRecord>(chunkSize);
+		final SQLiteDatabase                db        = this.m_openHelper.getWritableDatabase();
+		int                                 processed = 0;
+		int                                 enrolled  = 0;
+		int                                 skipped   = 0;
+
+		final Iterator<EnrollmentRecord> iterator = records.iterator();
+		while (iterator.hasNext() && !Thread.currentThread().isInterrupted())
+		{
+			/* Read the next chunk. */
+			chunk.clear();
+			while (iterator.hasNext() && (chunk.size() < chunkSize))
+			{
+				chunk.add(iterator.next());
+			}
+			processed += chunk.size();
+
+			/* Convert the templates outside the transaction. */
+			final byte[][][]              templateBytes = new byte[chunk.size()][][];
+			final IBMinutiaeSignature[][] signatures    = new IBMinutiaeSignature[chunk.size()][];
+			for (int i = 0; i < chunk.size(); i++)
+			{
+				templateBytes[i] = convertTemplatesToBytes(chunk.get(i).getTemplates());
+				signatures[i]    = (templateBytes[i] != null) ? chunk.get(i).getSignatures(this) : null;
+			}
+
+			try
+			{
+				synchronized (this.m_journal)
+				{
+					/* Insert the chunk with one statement in one transaction, stamping the write. */
+					final List<IBMatcherGallery.Record> added = new ArrayList<IBMatcherGallery.Record>();
+					final long                          now   = System.currentTimeMillis();
+					final long                          stamp;
+					int                                 count = 0;
+					db.beginTransaction();
+					try
+					{
+						final Statements statements = prepareStatements(db);
+						for (int i = 0; i < chunk.size(); i++)
+						{
+							final EnrollmentRecord record = chunk.get(i);
+							if (templateBytes[i] == null)
+							{
+					        	Log.e(FINGERPRINT_DB_TAG, "Failed to convert template to bytes for user \"" + record.getName() + "\"");
+								continue;
+							}
+							statements.m_insertOrIgnore.bindString(1, record.getName());
+							statements.m_insertOrIgnore.bindString(2, record.getDescription());
+							statements.m_insertOrIgnore.bindLong(3, now);
+							statements.m_insertOrIgnore.bindLong(4, now);
+							final long rowId = statements.m_insertOrIgnore.executeInsert();
+							if (rowId > 0)
+							{
+								final Template[] templates = record.getTemplates();
+								insertTemplates(statements, rowId, templateBytes[i], templates, signatures[i]);
+								for (int j = 0; j < templates.length; j++)
+								{
+									added.add(new IBMatcherGallery.Record(rowId, record.getName(), record.getDescription(), 
+											now, now, templates[j], resident ? createNativeTemplate(templates[j]) : null, 
+											signatures[i][j]));
+								}
+								count++;
+							}
+						}
+						stamp = bumpStamp(db);
+						db.setTransactionSuccessful();
+					}
+					finally
+					{
+						db.endTransaction();
+					}
+					
+					/* Journal the chunk and patch the gallery, in the order of the writes. */
+					final IBMatcherJournal.Change change = new IBMatcherJournal.Change(stamp, false, null, added);
+					appendJournal(change);
+					applyToGallery(change);
+					enrolled += count;
+					skipped  += chunk.size() - count;
+				}
+			}
+			catch (final SQLException sqle)
+			{
+				Log.e(FINGERPRINT_DB_TAG, "Insert of chunk failed with exception " + sqle.toString());
+				skipped += chunk.size();
+			}
+			
+			if (listener != null)
+			{
+				listener.enrollmentProgress(processed, enrolled, skipped);
+			}
+		}
+		
+		if (enrolled > 0)
+		{
+			scheduleCompaction();
+		}
+
+		Log.i(FINGERPRINT_DB_TAG, "Enrolled " + enrolled + " of " + processed + " records, skipping " + skipped);
+		return (enrolled);
+	}
+
+	/**
+	 * Match template against database.  The match is served from the resident gallery, which is 
+	 * loaded on first use if <code>loadGallery()</code> has not been called; if the gallery does 
+	 * not fit in its memory budget, the database is queried instead.  Either way, only entries 
+	 * whose finger position is compatible with the template's are examined, those that agree with
+	 * it on other attributes first (see <code>IBMatcherFilter</code>), and, if a signature cut-off
+	 * is set, only entries whose minutiae signature is within it of the template's.  The first 
+	 * entry with a matching template is returned.
+	 * 
+	 * @param template  template to match
+	 * @return          data base entry, if match was found; <code>null</code> otherwise
 	 */
 	public Entry match(final Template template)
 	{
-		/* Check arguments. */
-		if (template == null)
+		return (match(template, IBMatcherFusion.Rule.MAX, 1));
+	}
+
+	/**
+	 * Match template against database, fusing the scores of the templates of each entry (see 
+	 * <code>IBMatcherFusion</code>).  Templates are examined as by <code>match(Template)</code>, 
+	 * and, unless the rule is <code>Rule.RANK</code>, the search stops at the first entry whose 
+	 * fused score reaches the threshold.  If any matching template is a match, the entries matched
+	 * by recent probes that the template matches are tried first (see 
+	 * <code>IBMatcherProbeCache</code>), and the gallery is searched only if none verifies.
+	 * 
+	 * @param template   template to match
+	 * @param rule       rule by which the scores of an entry's templates are fused
+	 * @param threshold  least fused score of a match; 1 accepts any entry with a matching template
+	 * @return           data base entry, with its fused score, if match was found; 
+	 *                   <code>null</code> otherwise
+	 */
+	public Entry match(final Template template, final IBMatcherFusion.Rule rule, final int threshold)
+	{
+		/* Check arguments. */
+		if (template == null)
+		{
+        	Log.e(FINGERPRINT_DB_TAG, "Received null template");
+			throw new IllegalArgumentException("Received null template");
+		}
+		final IBMatcherFusion fusion = new IBMatcherFusion(rule, threshold);
+		if (!fusion.isFirstMatch())
+		{
+			return (matchGallery(template, fusion));
+		}
+
+		/* 
+		 * Any matching template is a match, so the entry matched by a recent presentation of the 
+		 * same finger will do, once the template is verified against it.
+		 */
+		final long  generation = this.m_probeCache.getGeneration();
+		final Entry cached     = this.m_probeCache.lookup(this.m_ibMatcher, template);
+		if (cached != null)
+		{
+			try
+			{
+				final int matchScore = this.m_ibMatcher.matchTemplates(template, cached.getTemplate());
+				if (matchScore > 0)
+				{
+					this.m_probeCache.recordHit();
+					this.m_probeCache.put(template, cached, generation);
+					return (new Entry(cached.getRowId(), cached.getName(), cached.getDescription(), 
+							cached.getCreateDate(), cached.getModifyDate(), cached.getTemplate(), matchScore));
+				}
+			}
+			catch (final IBMatcherException ibme)
+			{
+				Log.e(FINGERPRINT_DB_TAG, "Match failed with exception " + ibme.getType().toString());
+			}
+		}
+		this.m_probeCache.recordMiss();
+		
+		final Entry entry = matchGallery(template, fusion);
+		if (entry != null)
+		{
+			this.m_probeCache.put(template, entry, generation);
+		}
+		return (entry);
+	}
+
+	/**
+	 * Get cache of recent probes and the entries they matched, e.g., to read its hit and miss 
+	 * counts.  Only searches for the first match, in which any matching template is a match, use 
+	 * the cache.
+	 * 
+	 * @return  probe cache of this database
+	 */
+	public IBMatcherProbeCache getProbeCache()
+	{
+		return (this.m_probeCache);
+	}
+
+	/*
+	 * Match template against the resident gallery, or else the packed gallery or database.
+	 */
+	private Entry matchGallery(final Template template, final IBMatcherFusion fusion)
+	{
+		/* Use the resident gallery, if it can be loaded. */
+		final IBMinutiaeSignature       signature = getProbeSignature(template);
+		final IBMatcherGallery.Record[] records   = getResidentRecords(template, signature);
+		if (records == null)
+		{
+			final Entry[] entries = identifyPacked(template, signature, fusion, 1, true);
+			if (entries != null)
+			{
+				return ((entries.length > 0) ? entries[0] : null);
+			}
+			return (matchDatabase(template, signature, fusion));
+		}
+
+		/* Convert the probe once; the gallery templates are already native. */
+		final NativeTemplate probe = createNativeProbe(template);
+		if (probe == null)
+		{
+			return (null);
+		}
+		final NativeTemplate[] templates = getNativeTemplates(records);
+
+		try
+		{
+			/* Search the records in parallel shards, if the matcher pool is available. */
+			final IBMatcherPool pool = getPool();
+			if (pool != null)
+			{
+				try
+				{
+					/* Any matching template is a match, so the first one found will do. */
+					if (fusion.isFirstMatch())
+					{
+						final IBMatcherPool.Match match = pool.findFirstMatch(probe, templates);
+						if (match == null)
+						{
+							return (null);
+						}
+						
+						return (createEntry(records[match.index], match.score));
+					}
+					
+					/* Otherwise score all records, and fuse the scores in gallery order. */
+					final int[] scores = new int[records.length];
+					pool.matchAll(probe, templates, scores);
+					for (int i = 0; i < records.length; i++)
+					{
+						if (fusion.add(records[i], scores[i]))
+						{
+							break;
+						}
+					}
+					
+					return (createEntry(fusion.getMatch()));
+				}
+				catch (final IBMatcherException ibme)
+				{
+					Log.e(FINGERPRINT_DB_TAG, "Parallel match failed with exception " + ibme.getType().toString());
+					if (Thread.currentThread().isInterrupted())
+					{
+						return (null);
+					}
+				}
+			}
+
+			/* Examine each record, stopping once an entry matches. */
+			for (int i = 0; i < records.length; i++)
+			{
+				try
+				{
+					final int matchScore = this.m_ibMatcher.matchTemplates(probe, templates[i]);
+					if (fusion.add(records[i], matchScore))
+					{
+						break;
+					}
+				}
+				catch (final IBMatcherException ibme)
+				{
+					Log.e(FINGERPRINT_DB_TAG, "Match failed with exception " + ibme.getType().toString());
+				}
+			}
+
+			return (createEntry(fusion.getMatch()));
+		}
+		finally
+		{
+			probe.release();
+		}
+	}
+
+	/**
+	 * Identify the entries in the database that best match a template.  Unlike <code>match()</code>, 
+	 * which returns the first entry that matches, every entry is scored, by the best score of its 
+	 * templates.
+	 * 
+	 * @param template  template to match
+	 * @param k         maximum number of entries to return
+	 * @return          up to <code>k</code> matching entries, best first, each with its match score 
+	 *                  and row ID; empty if no entry matches
+	 */
+	public Entry[] identify(final Template template, final int k)
+	{
+		return (identify(template, k, IBMatcherFusion.Rule.MAX));
+	}
+
+	/**
+	 * Identify the entries in the database that best match a template, fusing the scores of the 
+	 * templates of each entry (see <code>IBMatcherFusion</code>).  Every entry is scored, but only 
+	 * matching templates are kept for fusion.
+	 * 
+	 * @param template  template to match
+	 * @param k         maximum number of entries to return
+	 * @param rule      rule by which the scores of an entry's templates are fused
+	 * @return          up to <code>k</code> matching entries, best first, each with its fused score 
+	 *                  and row ID; empty if no entry matches
+	 */
+	public Entry[] identify(final Template template, final int k, final IBMatcherFusion.Rule rule)
+	{
+		return (identify(template, k, rule, Integer.MAX_VALUE));
+	}
+
+	/**
+	 * Identify the entries in the database that best match a template, stopping once 
+	 * <code>k</code> entries reach a fused score that is good enough.  Matching scores have no 
+	 * upper bound, so no entry can be passed over unscored until then; once <code>k</code> entries
+	 * reach the stop score, though, the rest of the gallery is not searched.  With 
+	 * <code>k</code> of 1 and a stop score of 1, this is about as fast as <code>match()</code>.  
+	 * Entries that reach the stop score may be returned in any order among themselves, and under 
+	 * <code>Rule.RANK</code>, which depends on every score, the whole gallery is always searched.
+	 * 
+	 * @param template   template to match
+	 * @param k          maximum number of entries to return
+	 * @param rule       rule by which the scores of an entry's templates are fused
+	 * @param stopScore  least fused score of a conclusive match; <code>Integer.MAX_VALUE</code> 
+	 *                   searches the whole gallery
+	 * @return           up to <code>k</code> matching entries, best first, each with its fused 
+	 *                   score and row ID; empty if no entry matches
+	 */
+	public Entry[] identify(final Template template, final int k, final IBMatcherFusion.Rule rule, 
+			final int stopScore)
+	{
+		/* Check arguments. */
+		if (template == null)
+		{
+        	Log.e(FINGERPRINT_DB_TAG, "Received null template");
+			throw new IllegalArgumentException("Received null template");
+		}
+		if (k < 1)
+		{
+        	Log.e(FINGERPRINT_DB_TAG, "Received invalid number of entries");
+			throw new IllegalArgumentException("Received invalid number of entries");
+		}
+		final IBMatcherFusion fusion = new IBMatcherFusion(rule, stopScore);
+
+		/* Use the resident gallery, if it can be loaded. */
+		final IBMinutiaeSignature       signature = getProbeSignature(template);
+		final IBMatcherGallery.Record[] records   = getResidentRecords(template, signature);
+		if (records == null)
+		{
+			final Entry[] entries = identifyPacked(template, signature, fusion, k, false);
+			if (entries != null)
+			{
+				return (entries);
+			}
+			return (identifyDatabase(template, signature, fusion, k));
+		}
+
+		/* Convert the probe once; the gallery templates are already native. */
+		final NativeTemplate probe = createNativeProbe(template);
+		if (probe == null)
+		{
+			return (new Entry[0]);
+		}
+		final NativeTemplate[] templates = getNativeTemplates(records);
+
+		try
+		{
+			/* Search the records in parallel shards, if the matcher pool is available. */
+			final IBMatcherPool pool = getPool();
+			if (pool != null)
+			{
+				try
+				{
+					if (rule == IBMatcherFusion.Rule.MAX)
+					{
+						/* 
+						 * An entry has at most MAX_TEMPLATES_PER_ENTRY records, so the best record 
+						 * of each of the k best entries is among the best k * MAX_TEMPLATES_PER_ENTRY
+						 * records, which the shards keep in heaps rather than scoring into an array.
+						 */
+						final int count = (int) Math.min((long) k * MAX_TEMPLATES_PER_ENTRY, Math.max(1, records.length));
+						for (final IBMatcherPool.Match match : pool.findBestMatches(probe, templates, count, stopScore))
+						{
+							fusion.add(records[match.index], match.score);
+						}
+						
+						return (createEntries(fusion.getBest(k)));
+					}
+					
+					/* Other rules fuse every score of an entry, so score all records. */
+					final int[] scores = new int[records.length];
+					pool.matchAll(probe, templates, scores);
+					for (int i = 0; i < records.length; i++)
+					{
+						fusion.add(records[i], scores[i]);
+					}
+					
+					return (createEntries(fusion.getBest(k)));
+				}
+				catch (final IBMatcherException ibme)
+				{
+					Log.e(FINGERPRINT_DB_TAG, "Parallel identify failed with exception " + ibme.getType().toString());
+					if (Thread.currentThread().isInterrupted())
+					{
+						/* The search was abandoned; do not repeat it serially. */
+						return (new Entry[0]);
+					}
+				}
+			}
+
+			/* Otherwise score the records in batches, stopping once k entries are conclusive. */
+			final int[] scores = new int[PACKED_BATCH_SIZE];
+			for (int start = 0; (start < records.length) && (fusion.getClearedCount() < k); start += PACKED_BATCH_SIZE)
+			{
+				final int count = Math.min(PACKED_BATCH_SIZE, records.length - start);
+				try
+				{
+					this.m_ibMatcher.matchTemplatesBatch(probe, Arrays.copyOfRange(templates, start, start + count), 
+							0, count, scores);
+				}
+				catch (final IBMatcherException ibme)
+				{
+					Log.e(FINGERPRINT_DB_TAG, "Batch match failed with exception " + ibme.getType().toString());
+					return (new Entry[0]);
+				}
+				for (int i = 0; i < count; i++)
+				{
+					fusion.add(records[start + i], scores[i]);
+				}
+			}
+			
+			return (createEntries(fusion.getBest(k)));
+		}
+		finally
+		{
+			probe.release();
+		}
+	}
+
+	/**
+	 * Find the entries already enrolled with any of a person's templates, e.g., to catch the same 
+	 * finger being enrolled again under another name.  Each template is identified in turn (see 
+	 * <code>identify()</code>), and an entry scores the best score of any template.  The search is 
+	 * abandoned if the calling thread is interrupted, which is checked between templates and, by 
+	 * every shard of the matcher pool, between batches of each template's search.  The shards run 
+	 * at the calling thread's priority, so a search from a background thread stays in the 
+	 * background.
+	 * 
+	 * @param templates  fingerprint templates of the person
+	 * @param k          maximum number of entries to return
+	 * @return           up to <code>k</code> matching entries, best first, each with its best 
+	 *                   score and row ID; empty if no entry matches; <code>null</code> if the 
+	 *                   search was interrupted
+	 */
+	public Entry[] findDuplicates(final Template[] templates, final int k)
+	{
+		/* Check arguments. */
+		checkTemplates(templates);
+		if (k < 1)
+		{
+        	Log.e(FINGERPRINT_DB_TAG, "Received invalid number of entries");
+			throw new IllegalArgumentException("Received invalid number of entries");
+		}
+
+		final List<Entry> duplicates = new ArrayList<Entry>();
+		for (final Template template : templates)
+		{
+			if (Thread.currentThread().isInterrupted())
+			{
+				Log.i(FINGERPRINT_DB_TAG, "Duplicate search interrupted");
+				return (null);
+			}
+
+			/* Keep the best-scoring entry for each row ID. */
+			for (final Entry entry : identify(template, k))
+			{
+				int i = 0;
+				while ((i < duplicates.size()) && (duplicates.get(i).getRowId() != entry.getRowId()))
+				{
+					i++;
+				}
+				if (i == duplicates.size())
+				{
+					duplicates.add(entry);
+				}
+				else if (entry.getMatchScore() > duplicates.get(i).getMatchScore())
+				{
+					duplicates.set(i, entry);
+				}
+			}
+		}
+		if (Thread.currentThread().isInterrupted())
+		{
+			Log.i(FINGERPRINT_DB_TAG, "Duplicate search interrupted");
+			return (null);
+		}
+
+		Collections.sort(duplicates, new Comparator<Entry>()
+		{
+			@Override
+			public int compare(final Entry entry1, final Entry entry2)
+			{
+				final int score1 = entry1.getMatchScore();
+				final int score2 = entry2.getMatchScore();
+				return ((score1 > score2) ? -1 : ((score1 < score2) ? 1 : 0));
+			}
+		});
+		final int count = Math.min(k, duplicates.size());
+		return (duplicates.subList(0, count).toArray(new Entry[count]));
+	}
+
+	/**
+	 * Verify a template against the entry of a claimed identity, by row ID.  The entry's templates
+	 * are taken from the resident gallery if it is resident, without loading it, or else read by 
+	 * one indexed query, so verification takes about as long as one match whatever the size of 
+	 * the database.
+	 * 
+	 * @param rowId     row ID of the claimed entry
+	 * @param template  template to verify
+	 * @return          entry, with the best score of its templates, if the template matches one 
+	 *                  of them; <code>null</code> if it matches none, or there is no such entry
+	 */
+	public Entry verify(final long rowId, final Template template)
+	{
+		/* Check arguments. */
+		if (template == null)
+		{
+        	Log.e(FINGERPRINT_DB_TAG, "Received null template");
+			throw new IllegalArgumentException("Received null template");
+		}
+
+		IBMatcherGallery.Record[] records = this.m_gallery.getEntryRecords(rowId);
+		if (records == null)
+		{
+			records = queryEntryRecords(ENTRY_ID + " = ?", String.valueOf(rowId));
+		}
+		return (verifyRecords(template, records));
+	}
+
+	/**
+	 * Verify a template against the entry of a claimed identity, by name (see 
+	 * <code>verify(long, Template)</code>).  If the gallery is resident, the name is looked up 
+	 * without reading templates.
+	 * 
+	 * @param name      name of the claimed entry
+	 * @param template  template to verify
+	 * @return          entry, with the best score of its templates, if the template matches one 
+	 *                  of them; <code>null</code> if it matches none, or there is no such entry
+	 */
+	public Entry verify(final String name, final Template template)
+	{
+		/* Check arguments. */
+		if (name == null)
+		{
+        	Log.e(FINGERPRINT_DB_TAG, "Received null name");
+			throw new IllegalArgumentException("Received null name");
+		}
+		if (template == null)
+		{
+        	Log.e(FINGERPRINT_DB_TAG, "Received null template");
+			throw new IllegalArgumentException("Received null template");
+		}
+
+		if (this.m_gallery.isResident())
+		{
+			final long rowId = queryRowId(name);
+			return ((rowId > 0) ? verify(rowId, template) : null);
+		}
+		return (verifyRecords(template, queryEntryRecords(COLUMN_NAME_NAME + " = ?", name)));
+	}
+
+	/**
+	 * Enroll user in database with a ten-print record: one template of each captured finger, 
+	 * tagged with its finger position.  Fingers that were not captured are left out.
+	 * 
+	 * @param name        name of person to associate with this entry
+	 * @param description description to associate with this entry
+	 * @param templates   fingerprint templates, at least one and at most <code>TEN_PRINT_SIZE</code>,
+	 *                    each of a different single finger position
+	 * @return            <code>true</code> if enrollment succeeds; <code>false</code> otherwise, 
+	 *                    e.g., if the name is already enrolled
+	 */
+	public boolean enrollTenPrint(final String name, final String description, final Template[] templates)
+	{
+		/* Check arguments. */
+		checkTenPrint(templates);
+
+		return (enroll(name, description, templates));
+	}
+
+	/**
+	 * Identify the entries in the database that best match a ten-print probe, or a partial one 
+	 * with fewer fingers.  Each finger is matched against the templates of the same finger 
+	 * position (and those of unknown position), and an entry scores, for each finger, the best 
+	 * score of its templates; the scores of the fingers are then fused by the rule (see 
+	 * <code>IBMatcherFusion</code>).  When the gallery is resident and the matcher pool is 
+	 * available, the fingers are matched concurrently in one parallel search, so that adding 
+	 * fingers adds matchers' work rather than serial searches.
+	 * 
+	 * @param probes  templates of the captured fingers, at least one and at most 
+	 *                <code>TEN_PRINT_SIZE</code>, each of a different single finger position
+	 * @param k       maximum number of entries to return
+	 * @param rule    rule by which the scores of the fingers are fused
+	 * @return        up to <code>k</code> matching entries, best first, each with its fused score 
+	 *                and row ID; empty if no entry matches
+	 */
+	public Entry[] identifyTenPrint(final Template[] probes, final int k, final IBMatcherFusion.Rule rule)
+	{
+		/* Check arguments. */
+		checkTenPrint(probes);
+		if (k < 1)
+		{
+        	Log.e(FINGERPRINT_DB_TAG, "Received invalid number of entries");
+			throw new IllegalArgumentException("Received invalid number of entries");
+		}
+		final IBMatcherFusion fusion = new IBMatcherFusion(rule, 1);
+
+		/* Get the candidates of each finger from the resident gallery, if it can be loaded. */
+		final IBMinutiaeSignature[]       signatures = new IBMinutiaeSignature[probes.length];
+		final IBMatcherGallery.Record[][] records    = new IBMatcherGallery.Record[probes.length][];
+		boolean                           resident   = true;
+		for (int i = 0; i < probes.length; i++)
+		{
+			signatures[i] = getProbeSignature(probes[i]);
+			records[i]    = resident ? getResidentRecords(probes[i], signatures[i]) : null;
+			resident     &= (records[i] != null);
+		}
+		
+		if (resident)
+		{
+			matchTenPrint(probes, records, fusion);
+		}
+		else
+		{
+			/* Otherwise search for each finger in turn, scoring every entry; no score stops it. */
+			for (int i = 0; i < probes.length; i++)
+			{
+				IBMatcherFusion finger = new IBMatcherFusion(IBMatcherFusion.Rule.MAX, Integer.MAX_VALUE);
+				if (identifyPacked(probes[i], signatures[i], finger, 1, false) == null)
+				{
+					finger = new IBMatcherFusion(IBMatcherFusion.Rule.MAX, Integer.MAX_VALUE);
+					identifyDatabase(probes[i], signatures[i], finger, 1);
+				}
+				addFinger(fusion, finger);
+			}
+		}
+
+		return (createEntries(fusion.getBest(k)));
+	}
+
+	/**
+	 * Load all templates in database into the resident gallery.  This may be called on a 
+	 * background thread after the database is opened so that the first match need not wait.  If a
+	 * previous load did not fit in the memory budget or could not be converted into native memory,
+	 * this fails at once until the budget changes or a write removes entries.
+	 * 
+	 * @return  <code>true</code> if the gallery is resident; <code>false</code> if the templates 
+	 *          could not be read or do not fit in the memory budget
+	 */
+	public boolean loadGallery()
+	{
+		if (this.m_gallery.isResident())
+		{
+			return (true);
+		}
+		if (this.m_gallery.isLoadFailed())
+		{
+			return (false);
+		}
+
+		/* Note the generation, so that writes made while reading are not lost. */
+		final long                          generation = this.m_gallery.getGeneration();
+		final long                          budget     = this.m_gallery.getMemoryBudget();
+		final List<IBMatcherGallery.Record> records    = new ArrayList<IBMatcherGallery.Record>();
+		long                                size       = 0;
+
+		/* Read the packed gallery file rather than the database, if possible. */
+		final IBMatcherPackedGallery packed = getPackedGallery();
+		if (packed != null)
+		{
+			try
+			{
+				for (int i = 0; i < packed.size(); i++)
+				{
+					final IBMatcherGallery.Record record = packed.read(i);
+					if (record == null)
+					{
+						continue;
+					}
+					final NativeTemplate nativeTemplate = createNativeTemplate(record.getTemplate());
+					if (nativeTemplate == null)
+					{
+						this.m_gallery.failLoad(generation);
+						return (false);
+					}
+					final IBMatcherGallery.Record resident = new IBMatcherGallery.Record(record.getRowId(), 
+							record.getName(), record.getDescription(), record.getCreateDate(), 
+							record.getModifyDate(), record.getTemplate(), nativeTemplate, record.getSignature());
+					records.add(resident);
+					size += resident.getSize();
+					if (size > budget)
+					{
+						Log.w(FINGERPRINT_DB_TAG, "Gallery exceeds memory budget of " + budget + " bytes");
+						this.m_gallery.failLoad(generation);
+						return (false);
+					}
+				}
+				
+				return (this.m_gallery.load(records, generation));
+			}
+			catch (final IOException ioe)
+			{
+				Log.e(FINGERPRINT_DB_TAG, "Packed gallery read failed with exception " + ioe.toString());
+				dropPackedGallery(packed);
+				records.clear();
+				size = 0;
+			}
+		}
+
+		/* Open the database object in "read" mode. */
+	    final SQLiteDatabase db = this.m_openHelper.getReadableDatabase();
+
+        try
+        {
+        	final Cursor cursor = queryRecords(db, null);
+ 	        if (cursor == null)
+ 	        {
+ 	        	Log.e(FINGERPRINT_DB_TAG, "Find failed");
+ 				return (false); 	        
+ 	        }
+
+ 	        /* 
+ 	         * Decode each entry.  Entries that cannot be read are logged and skipped, as match() 
+ 	         * skips them.  Reading stops early once the memory budget is exceeded.
+ 	         */
+ 	        try
+ 	        {
+	 	        while (cursor.moveToNext())
+	 	        {
+	 	        	final IBMatcherGallery.Record record = readRecord(cursor, true);
+	 	        	if (record == null)
+	 	        	{
+	 	        		continue;
+	 	        	}
+	 	        	if (record.getNativeTemplate() == null)
+	 	        	{
+	 	        		this.m_gallery.failLoad(generation);
+	 	        		return (false);
+	 	        	}
+	 	        	records.add(record);
+	 	        	size += record.getSize();
+	 	        	if (size > budget)
+	 	        	{
+	 	        		Log.w(FINGERPRINT_DB_TAG, "Gallery exceeds memory budget of " + budget + " bytes");
+	 	        		this.m_gallery.failLoad(generation);
+	 	        		return (false);
+	 	        	}
+	 	        }
+ 	        }
+ 	        finally
+ 	        {
+ 	        	cursor.close();
+ 	        }
+        }
+        catch (final SQLException sqle)
+        {
+	    	Log.e(FINGERPRINT_DB_TAG, "Query failed with exception " + sqle.toString());
+	    	return (false); 		        	        	
+        }
+
+        return (this.m_gallery.load(records, generation));
+	}
+
+	/**
+	 * Close database, releasing the matcher pool used for parallel matching and the underlying 
+	 * database connection.  Searches running on the pool are waited for, and so are background 
+	 * compaction and signature fill, which are dropped if they have not started yet; a fill stops
+	 * after the chunk it is computing.
+	 */
+	public void close()
+	{
+		final IBMatcherPool pool;
+		final Future<Void>  compaction;
+		final Future<Void>  signatureFill;
+		synchronized (this)
+		{
+			this.m_closed     = true;
+			compaction        = this.m_compaction;
+			signatureFill     = this.m_signatureFill;
+			pool              = this.m_pool;
+			this.m_pool       = null;
+			this.m_poolFailed = true;
+		}
+		
+		/* Drop queued background work, and wait for any that is running. */
+		if (compaction != null)
+		{
+			compaction.cancel(false);
+		}
+		if (signatureFill != null)
+		{
+			signatureFill.cancel(false);
+		}
+		this.m_backgroundLock.lock();
+		this.m_backgroundLock.unlock();
+		
+		if (pool != null)
+		{
+			pool.close();
+		}
+		synchronized (this.m_journal)
+		{
+			if (this.m_statements != null)
+			{
+				this.m_statements.close();
+				this.m_statements = null;
+			}
+		}
+		this.m_openHelper.close();
+	}
+
+	/**
+	 * Get resident gallery of this database, e.g., to set its memory budget or read its hit and 
+	 * miss counts.
+	 * 
+	 * @return  resident gallery of this database
+	 */
+	public IBMatcherGallery getGallery()
+	{
+		return (this.m_gallery);
+	}
+
+	/**
+	 * Get cut-off on minutiae signature distance beyond which candidates are not matched.
+	 * 
+	 * @return  signature cut-off
+	 */
+	public float getSignatureCutoff()
+	{
+		return (this.m_signatureCutoff);
+	}
+
+	/**
+	 * Set cut-off on minutiae signature distance beyond which candidates are not matched.  A 
+	 * smaller cut-off sends fewer candidates to the native matcher but can drop true matches; 
+	 * choose it from a recall report on representative templates.  The default, 
+	 * <code>IBMinutiaeSignature.MAX_DISTANCE</code>, culls nothing and skips computing signatures,
+	 * both the probe's and those of enrolled templates, which need a native FMR conversion each.  
+	 * Templates enrolled without a signature are never culled; setting a cut-off computes their 
+	 * signatures in the background.
+	 * 
+	 * @param signatureCutoff  signature cut-off, between 0 and 
+	 *                         <code>IBMinutiaeSignature.MAX_DISTANCE</code>
+	 */
+	public void setSignatureCutoff(final float signatureCutoff)
+	{
+		if (!(signatureCutoff >= 0.0f))
+		{
+        	Log.e(FINGERPRINT_DB_TAG, "Received invalid signature cut-off");
+			throw new IllegalArgumentException("Received invalid signature cut-off");
+		}
+		
+		final boolean culling = isCulling();
+		this.m_signatureCutoff = signatureCutoff;
+		if (!culling && isCulling())
+		{
+			scheduleSignatureFill();
+		}
+	}
+
+	/*
+	 * Get matcher pool for parallel matching, creating it on first use.  Returns null if the pool
+	 * cannot be created, in which case matches are made serially with the single matcher.
+	 */
+	private synchronized IBMatcherPool getPool()
+	{
+		if ((this.m_pool == null) && !this.m_poolFailed)
+		{
+			try
+			{
+				this.m_pool = new IBMatcherPool();
+				Log.i(FINGERPRINT_DB_TAG, "Created matcher pool of " + this.m_pool.getSize() + " matchers");
+			}
+			catch (final IBMatcherException ibme)
+			{
+				Log.e(FINGERPRINT_DB_TAG, "Failed to create matcher pool with exception " + ibme.getType().toString());
+				this.m_poolFailed = true;
+			}
+		}
+		
+		return (this.m_pool);
+	}
+
+	/*
+	 * Identify entries that best match template by querying and decoding every candidate template
+	 * whose signature, if known, is within the cut-off of the probe's, fusing the scores of each 
+	 * entry's templates.  The scan stops once k entries have cleared the fusion's threshold.
+	 */
+	private Entry[] identifyDatabase(final Template template, final IBMinutiaeSignature signature, 
+			final IBMatcherFusion fusion, final int k)
+	{
+		/* Open the database object in "read" mode. */
+	    final SQLiteDatabase db = this.m_openHelper.getReadableDatabase();
+
+        try
+        {
+        	final Cursor cursor = queryRecords(db, template);
+ 	        if (cursor == null)
+ 	        {
+ 	        	Log.e(FINGERPRINT_DB_TAG, "Find failed");
+ 				return (new Entry[0]); 	        
+ 	        }
+
+ 	        try
+ 	        {
+	 	        while ((fusion.getClearedCount() < k) && cursor.moveToNext())
+	 	        {
+	 	        	final IBMatcherGallery.Record record = readRecord(cursor, false);
+	 	        	if ((record == null) || isCulled(signature, record.getSignature()))
+	 	        	{
+	 	        		continue;
+	 	        	}
+	 	        	try
+	 	        	{
+	 	        		fusion.add(record, this.m_ibMatcher.matchTemplates(template, record.getTemplate()));
+	 	        	}
+	 	        	catch (final IBMatcherException ibme)
+	 	        	{
+	 	        		Log.e(FINGERPRINT_DB_TAG, "Match failed with exception " + ibme.getType().toString());
+	 	        	}
+	 	        }
+ 	        }
+ 	        finally
+ 	        {
+ 	        	cursor.close();
+ 	        }
+        }
+        catch (final SQLException sqle)
+        {
+	    	Log.e(FINGERPRINT_DB_TAG, "Query failed with exception " + sqle.toString());
+	    	return (new Entry[0]); 		        	        	
+        }
+
+		return (createEntries(fusion.getBest(k)));
+	}
+
+	/*
+	 * Identify entries that best match template by reading the packed gallery file, decoding 
+	 * candidate records in batches as their pages are faulted in, and fusing the scores of each 
+	 * entry's templates.  The scan stops once k entries have cleared the fusion's threshold, or, if 
+	 * only the first match is wanted, once the fusion has one.  Returns null if there is no current packed gallery, or it proves corrupt, so that the 
+	 * database is queried instead.
+	 */
+	private Entry[] identifyPacked(final Template template, final IBMinutiaeSignature signature, 
+			final IBMatcherFusion fusion, final int k, final boolean first)
+	{
+		final IBMatcherPackedGallery packed = getPackedGallery();
+		if (packed == null)
+		{
+			return (null);
+		}
+
+		final IBMatcherGallery.Record[] batch     = new IBMatcherGallery.Record[PACKED_BATCH_SIZE];
+		final Template[]                templates = new Template[PACKED_BATCH_SIZE];
+		final int[]                     scores    = new int[PACKED_BATCH_SIZE];
+		int                             count     = 0;
+
+		try
+		{
+			/* The last iteration only matches the final, partial batch. */
+			for (int i = 0; i <= packed.size(); i++)
+			{
+				if (i < packed.size())
+				{
+					final IBMatcherGallery.Record record = packed.read(i);
+					if ((record == null) 
+							|| !IBMatcherFilter.isCompatible(template, record.getTemplate()) 
+							|| isCulled(signature, record.getSignature()))
+					{
+						continue;
+					}
+					batch[count]     = record;
+					templates[count] = record.getTemplate();
+					count++;
+					if (count < PACKED_BATCH_SIZE)
+					{
+						continue;
+					}
+				}
+				if (count == 0)
+				{
+					continue;
+				}
+
+				this.m_ibMatcher.matchTemplatesBatch(template, templates, 0, count, scores);
+				for (int j = 0; j < count; j++)
+				{
+					if (fusion.add(batch[j], scores[j]) && first)
+					{
+						return (new Entry[] {createEntry(fusion.getMatch())});
+					}
+				}
+				count = 0;
+				if (fusion.getClearedCount() >= k)
+				{
+					break;
+				}
+			}
+		}
+		catch (final IOException ioe)
+		{
+			Log.e(FINGERPRINT_DB_TAG, "Packed gallery read failed with exception " + ioe.toString());
+			dropPackedGallery(packed);
+			return (null);
+		}
+		catch (final IBMatcherException ibme)
+		{
+			Log.e(FINGERPRINT_DB_TAG, "Batch match failed with exception " + ibme.getType().toString());
+			return (new Entry[0]);
+		}
+
+		if (first)
+		{
+			final IBMatcherFusion.Result match = fusion.getMatch();
+			return ((match != null) ? new Entry[] {createEntry(match)} : new Entry[0]);
+		}
+		return (createEntries(fusion.getBest(k)));
+	}
+
+	/*
+	 * Match template against the records of one entry, skipping those of incompatible finger 
+	 * position, and return the entry with the best score if any matches.  Resident records are 
+	 * matched natively; others are converted by the matcher.
+	 */
+	private Entry verifyRecords(final Template template, final IBMatcherGallery.Record[] records)
+	{
+		if (records == null)
+		{
+			return (null);
+		}
+
+		IBMatcherGallery.Record bestRecord = null;
+		int                     bestScore  = 0;
+		NativeTemplate          probe      = null;
+		try
+		{
+			for (final IBMatcherGallery.Record record : records)
+			{
+				if (!IBMatcherFilter.isCompatible(template, record.getTemplate()))
+				{
+					continue;
+				}
+				
+				try
+				{
+					final int matchScore;
+					if (record.getNativeTemplate() != null)
+					{
+						/* Convert the probe once, for the first resident record. */
+						if (probe == null)
+						{
+							probe = createNativeProbe(template);
+							if (probe == null)
+							{
+								return (null);
+							}
+						}
+						matchScore = this.m_ibMatcher.matchTemplates(probe, record.getNativeTemplate());
+					}
+					else
+					{
+						matchScore = this.m_ibMatcher.matchTemplates(template, record.getTemplate());
+					}
+					if (matchScore > bestScore)
+					{
+						bestRecord = record;
+						bestScore  = matchScore;
+					}
+				}
+				catch (final IBMatcherException ibme)
+				{
+					Log.e(FINGERPRINT_DB_TAG, "Match failed with exception " + ibme.getType().toString());
+				}
+			}
+		}
+		finally
+		{
+			if (probe != null)
+			{
+				probe.release();
+			}
+		}
+
+		return ((bestRecord != null) ? createEntry(bestRecord, bestScore) : null);
+	}
+
+	/*
+	 * Query records of one entry, selected by name or row ID, which the indexes find without 
+	 * scanning the table.  Returns null, after logging, if the query fails.
+	 */
+	private IBMatcherGallery.Record[] queryEntryRecords(final String selection, final String argument)
+	{
+		/* Open the database object in "read" mode. */
+	    final SQLiteDatabase db = this.m_openHelper.getReadableDatabase();
+
+        try
+        {
+        	final Cursor cursor = db.query(TABLES_JOINED, RECORD_COLUMNS, selection, 
+        			new String[] {argument}, null, null, TEMPLATE_ORDER);
+ 	        if (cursor == null)
+ 	        {
+ 	        	Log.e(FINGERPRINT_DB_TAG, "Query for entry failed");
+ 				return (null); 	        
+ 	        }
+
+ 	        try
+ 	        {
+ 	        	final List<IBMatcherGallery.Record> records = new ArrayList<IBMatcherGallery.Record>(cursor.getCount());
+	 	        while (cursor.moveToNext())
+	 	        {
+	 	        	final IBMatcherGallery.Record record = readRecord(cursor, false);
+	 	        	if (record != null)
+	 	        	{
+	 	        		records.add(record);
+	 	        	}
+	 	        }
+	 	        return (records.toArray(new IBMatcherGallery.Record[records.size()]));
+ 	        }
+ 	        finally
+ 	        {
+ 	        	cursor.close();
+ 	        }
+        }
+        catch (final SQLException sqle)
+        {
+	    	Log.e(FINGERPRINT_DB_TAG, "Query for entry failed with exception " + sqle.toString());
+	    	return (null); 		        	        	
+        }
+	}
+
+	/*
+	 * Query row ID of the entry with a name, which the unique index on names finds without 
+	 * scanning the table.  Returns 0 if there is no such entry or the query fails.
+	 */
+	private long queryRowId(final String name)
+	{
+		/* Open the database object in "read" mode. */
+	    final SQLiteDatabase db = this.m_openHelper.getReadableDatabase();
+
+        try
+        {
+        	final Cursor cursor = db.query(TABLE_NAME, new String[] {COLUMN_NAME__ID}, 
+        			COLUMN_NAME_NAME + " = ?", new String[] {name}, null, null, null);
+ 	        if (cursor == null)
+ 	        {
+ 	        	Log.e(FINGERPRINT_DB_TAG, "Query for user \"" + name + "\" failed");
+ 				return (0); 	        
+ 	        }
+
+ 	        try
+ 	        {
+ 	        	return (cursor.moveToFirst() ? cursor.getLong(0) : 0);
+ 	        }
+ 	        finally
+ 	        {
+ 	        	cursor.close();
+ 	        }
+        }
+        catch (final SQLException sqle)
+        {
+	    	Log.e(FINGERPRINT_DB_TAG, "Query for user \"" + name + "\" failed with exception " + sqle.toString());
+	    	return (0); 		        	        	
+        }
+	}
+
+	/*
+	 * Check templates of a ten-print, throwing, after logging, if there are none or too many, or 
+	 * one is null, or not of a single finger position, or of the same position as another.
+	 */
+	private static void checkTenPrint(final Template[] templates)
+	{
+		checkTemplates(templates);
+		if (templates.length > TEN_PRINT_SIZE)
+		{
+        	Log.e(FINGERPRINT_DB_TAG, "Received invalid number of templates");
+			throw new IllegalArgumentException("Received invalid number of templates");
+		}
+		final Set<FingerPosition> positions = EnumSet.noneOf(FingerPosition.class);
+		for (final Template template : templates)
+		{
+			final FingerPosition position = IBMatcherFilter.getFingerPosition(template);
+			if ((position.compareTo(FingerPosition.RIGHT_THUMB) < 0) 
+					|| (position.compareTo(FingerPosition.LEFT_LITTLE_FINGER) > 0) 
+					|| !positions.add(position))
+			{
+	        	Log.e(FINGERPRINT_DB_TAG, "Received template of invalid or repeated finger position");
+				throw new IllegalArgumentException("Received template of invalid or repeated finger position");
+			}
+		}
+	}
+
+	/*
+	 * Match each finger of a ten-print against its candidates from the resident gallery, in one
+	 * parallel search if the matcher pool is available or else in one batch per finger, adding 
+	 * the best score of each entry for each finger to fusion.
+	 */
+	private void matchTenPrint(final Template[] probes, final IBMatcherGallery.Record[][] records, 
+			final IBMatcherFusion fusion)
+	{
+		final NativeTemplate[]   nativeProbes = new NativeTemplate[probes.length];
+		final NativeTemplate[][] templates    = new NativeTemplate[probes.length][];
+		final int[][]            scores       = new int[probes.length][];
+		try
+		{
+			/* Convert the probes once; the gallery templates are already native. */
+			for (int i = 0; i < probes.length; i++)
+			{
+				nativeProbes[i] = createNativeProbe(probes[i]);
+				if (nativeProbes[i] == null)
+				{
+					return;
+				}
+				templates[i] = getNativeTemplates(records[i]);
+				scores[i]    = new int[records[i].length];
+			}
+
+			/* Match all fingers at once, if the matcher pool is available. */
+			final IBMatcherPool pool   = getPool();
+			boolean             scored = false;
+			if (pool != null)
+			{
+				try
+				{
+					pool.matchAll(nativeProbes, templates, scores);
+					scored = true;
+				}
+				catch (final IBMatcherException ibme)
+				{
+					Log.e(FINGERPRINT_DB_TAG, "Parallel ten-print match failed with exception " + ibme.getType().toString());
+				}
+			}
+			for (int i = 0; (i < probes.length) && !scored; i++)
+			{
+				try
+				{
+					this.m_ibMatcher.matchTemplatesBatch(nativeProbes[i], templates[i], 0, templates[i].length, scores[i]);
+				}
+				catch (final IBMatcherException ibme)
+				{
+					Log.e(FINGERPRINT_DB_TAG, "Batch match failed with exception " + ibme.getType().toString());
+					Arrays.fill(scores[i], 0);
+				}
+			}
+
+			/* Keep the best score of each entry for each finger, and fuse them across fingers. */
+			for (int i = 0; i < probes.length; i++)
+			{
+				final IBMatcherFusion finger = new IBMatcherFusion(IBMatcherFusion.Rule.MAX, 1);
+				for (int j = 0; j < records[i].length; j++)
+				{
+					finger.add(records[i][j], scores[i][j]);
+				}
+				addFinger(fusion, finger);
+			}
+		}
+		finally
+		{
+			for (final NativeTemplate probe : nativeProbes)
+			{
+				if (probe != null)
+				{
+					probe.release();
+				}
+			}
+		}
+	}
+
+	/*
+	 * Add the score of each entry for one finger, fused by MAX over its templates, to fusion 
+	 * across fingers.
+	 */
+	private static void addFinger(final IBMatcherFusion fusion, final IBMatcherFusion finger)
+	{
+		for (final IBMatcherFusion.Result result : finger.getBest(Integer.MAX_VALUE))
+		{
+			fusion.add(result.getRecord(), result.getScore());
+		}
+	}
+
+	/*
+	 * Create entries for fused results, in the same order.
+	 */
+	private static Entry[] createEntries(final IBMatcherFusion.Result[] results)
+	{
+		final Entry[] entries = new Entry[results.length];
+		for (int i = 0; i < results.length; i++)
+		{
+			entries[i] = createEntry(results[i]);
+		}
+		return (entries);
+	}
+
+	/*
+	 * Get packed gallery reflecting the last database write: the file, with a tail replayed from 
+	 * the journal of the changes made since it was written.  If the journal lacks a change, the 
+	 * file is rebuilt from the database.  Returns null, after logging, if it cannot be opened or 
+	 * built.
+	 */
+	private IBMatcherPackedGallery getPackedGallery()
+	{
+		synchronized (this.m_packedLock)
+		{
+			try
+			{
+				/* Hold off writes, so that the stamp and the journal agree. */
+				synchronized (this.m_journal)
+				{
+					final long             stamp  = readStamp(this.m_openHelper.getReadableDatabase());
+					IBMatcherPackedGallery packed = this.m_packed;
+					if (packed == null)
+					{
+						packed = IBMatcherPackedGallery.open(this.m_packedFile);
+					}
+					if ((packed != null) && (packed.getStamp() != stamp))
+					{
+						final IBMatcherJournal.Tail tail = this.m_journal.replay(packed.getTail(), stamp);
+						packed = (tail != null) ? packed.withTail(tail) : null;
+					}
+					if (packed == null)
+					{
+						packed = rebuildPackedGallery(stamp);
+					}
+					this.m_packed = packed;
+				}
+			}
+			catch (final IOException ioe)
+			{
+				Log.e(FINGERPRINT_DB_TAG, "Packed gallery failed with exception " + ioe.toString());
+				this.m_packed = null;
+			}
+			catch (final SQLException sqle)
+			{
+				Log.e(FINGERPRINT_DB_TAG, "Query failed with exception " + sqle.toString());
+				this.m_packed = null;
+			}
+			
+			return (this.m_packed);
+		}
+	}
+
+	/*
+	 * Rebuild packed gallery file from the database, copying the stored templates and signatures 
+	 * without decoding them, and drop the journal's changes it reflects.  Called with the journal's
+	 * lock held, so that no write intervenes between reading the stamp and the rows.
+	 */
+	private IBMatcherPackedGallery rebuildPackedGallery(final long stamp) throws IOException
+	{
+		final SQLiteDatabase                db     = this.m_openHelper.getReadableDatabase();
+		final Cursor                        cursor = queryRecords(db, null);
+		final IBMatcherPackedGallery.Writer writer = new IBMatcherPackedGallery.Writer(this.m_packedFile);
+		int                                 count  = 0;
+		try
+		{
+			while (cursor.moveToNext())
+			{
+				final String name          = cursor.getString(1);
+				final String description   = cursor.getString(2);
+				final byte[] templateBytes = cursor.getBlob(5);
+				if ((name == null) || (description == null) || (templateBytes == null))
+				{
+					Log.e(FINGERPRINT_DB_TAG, "Found null name, description, or template in entry");
+					continue;
+				}
+				writer.add(cursor.getLong(0), name, description, cursor.getLong(3), cursor.getLong(4), 
+						cursor.getBlob(6), templateBytes);
+				count++;
+			}
+			writer.finish(stamp);
+		}
+		catch (final IOException ioe)
+		{
+			writer.abort();
+			throw (ioe);
+		}
+		finally
+		{
+			cursor.close();
+		}
+		this.m_journal.retainAfter(stamp);
+		
+		Log.i(FINGERPRINT_DB_TAG, "Rebuilt packed gallery of " + count + " entries");
+		return (IBMatcherPackedGallery.open(this.m_packedFile));
+	}
+
+	/**
+	 * Compact the resident gallery's tail and the journal, folding the changes made since they were 
+	 * loaded or written into new base snapshots.  Writes schedule this on a background thread once 
+	 * either holds <code>IBMatcherJournal.COMPACT_LENGTH</code> changes; it may also be called 
+	 * directly, e.g., after a batch of enrollments.
+	 */
+	public void compact()
+	{
+		this.m_gallery.compact();
+
+		synchronized (this.m_packedLock)
+		{
+			final IBMatcherPackedGallery packed = getPackedGallery();
+			if ((packed == null) || packed.getTail().isEmpty())
+			{
+				return;
+			}
+
+			/* Writes may go on meanwhile; the journal keeps their changes. */
+			IBMatcherPackedGallery.Writer writer = null;
+			try
+			{
+				writer = new IBMatcherPackedGallery.Writer(this.m_packedFile);
+				writer.addAll(packed);
+				writer.finish(packed.getStamp());
+				writer = null;
+				this.m_packed = IBMatcherPackedGallery.open(this.m_packedFile);
+				this.m_journal.retainAfter(packed.getStamp());
+				Log.i(FINGERPRINT_DB_TAG, "Compacted " + packed.getTail().getLength() + " changes into packed gallery");
+			}
+			catch (final IOException ioe)
+			{
+				Log.e(FINGERPRINT_DB_TAG, "Packed gallery compaction failed with exception " + ioe.toString());
+				if (writer != null)
+				{
+					writer.abort();
+				}
+				this.m_packed = null;
+			}
+		}
+	}
+
+	/*
+	 * Drop packed gallery that proved corrupt, deleting the file so that it is rebuilt.
+	 */
+	private void dropPackedGallery(final IBMatcherPackedGallery packed)
+	{
+		synchronized (this.m_packedLock)
+		{
+			if (this.m_packed == packed)
+			{
+				this.m_packed = null;
+			}
+			this.m_packedFile.delete();
+		}
+	}
+
+	/*
+	 * Advance the stamp of the fingerprints table, within the transaction of a write.  Returns the 
+	 * new stamp.
+	 */
+	private long bumpStamp(final SQLiteDatabase db)
+	{
+		prepareStatements(db).m_bumpStamp.execute();
+		return (readStamp(db));
+	}
+
+	/*
+	 * Read the stamp of the fingerprints table.  Called with the journal's lock held.
+	 */
+	private long readStamp(final SQLiteDatabase db)
+	{
+		return (prepareStatements(db).m_readStamp.simpleQueryForLong());
+	}
+
+	/*
+	 * Get the statements compiled for a database connection, compiling them if the connection has
+	 * changed.  Called with the journal's lock held, which guards the statements.
+	 */
+	private Statements prepareStatements(final SQLiteDatabase db)
+	{
+		if ((this.m_statements == null) || (this.m_statements.m_db != db))
+		{
+			if (this.m_statements != null)
+			{
+				this.m_statements.close();
+			}
+			this.m_statements = new Statements(db);
+		}
+		
+		return (this.m_statements);
+	}
+
+	/*
+	 * Check templates of an entry, throwing, after logging, if there are none or too many or one 
+	 * is null.
+	 */
+	private static void checkTemplates(final Template[] templates)
+	{
+		if (templates == null)
+		{
+        	Log.e(FINGERPRINT_DB_TAG, "Received null templates");
+			throw new IllegalArgumentException("Received null templates");
+		}
+		if ((templates.length < 1) || (templates.length > MAX_TEMPLATES_PER_ENTRY))
+		{
+        	Log.e(FINGERPRINT_DB_TAG, "Received invalid number of templates");
+			throw new IllegalArgumentException("Received invalid number of templates");
+		}
+		for (final Template template : templates)
+		{
+			if (template == null)
+			{
+	        	Log.e(FINGERPRINT_DB_TAG, "Received null template");
+				throw new IllegalArgumentException("Received null template");
+			}
+		}
+	}
+
+	/*
+	 * Convert templates of an entry to bytes.  Returns null, after logging, if any fails.
+	 */
+	private byte[][] convertTemplatesToBytes(final Template[] templates)
+	{
+		final byte[][] templateBytes = new byte[templates.length][];
+		for (int i = 0; i < templates.length; i++)
+		{
+			templateBytes[i] = convertTemplateToBytes(templates[i]);
+			if (templateBytes[i] == null)
+			{
+				return (null);
+			}
+		}
+		
+		return (templateBytes);
+	}
+
+	/*
+	 * Compute minutiae signatures of templates of an entry, in the same order.  A signature that 
+	 * cannot be computed, or is not needed because signatures are not used to cull candidates, is 
+	 * null.
+	 */
+	private IBMinutiaeSignature[] createSignatures(final Template[] templates)
+	{
+		final IBMinutiaeSignature[] signatures = new IBMinutiaeSignature[templates.length];
+		for (int i = 0; i < templates.length; i++)
+		{
+			signatures[i] = createEnrolledSignature(templates[i]);
+		}
+		
+		return (signatures);
+	}
+
+	/*
+	 * Insert templates of an entry into the templates table, under the entry's ID and their 
+	 * ordinals.  Called within the write's transaction.
+	 */
+	private static void insertTemplates(final Statements statements, final long rowId, 
+			final byte[][] templateBytes, final Template[] templates, final IBMinutiaeSignature[] signatures)
+	{
+		for (int i = 0; i < templates.length; i++)
+		{
+			statements.m_insertTemplate.bindLong(1, rowId);
+			statements.m_insertTemplate.bindLong(2, i);
+			bindTemplateValues(statements.m_insertTemplate, 3, templateBytes[i], templates[i], signatures[i]);
+			statements.m_insertTemplate.executeInsert();
+		}
+	}
+
+	/*
+	 * Bind template, its attributes used to pre-filter candidates, and its signature to the 
+	 * parameters of a statement from an index on, in the order of the columns in TEMPLATE_COLUMNS.
+	 */
+	private static void bindTemplateValues(final SQLiteStatement statement, final int index, 
+			final byte[] templateBytes, final Template template, final IBMinutiaeSignature signature)
+	{
+		statement.bindBlob(index,     templateBytes);
+		statement.bindLong(index + 1, IBMatcherFilter.getFingerPosition(template).toCode());
+		statement.bindLong(index + 2, IBMatcherFilter.getImpressionType(template).toCode());
+		statement.bindLong(index + 3, IBMatcherFilter.getCaptureDeviceTechId(template).toCode());
+		statement.bindLong(index + 4, template.imageSizeX);
+		statement.bindLong(index + 5, template.imageSizeY);
+		if (signature != null)
+		{
+			statement.bindBlob(index + 6, signature.encode());
+		}
+		else
+		{
+			statement.bindNull(index + 6);
+		}
+	}
+
+	/*
+	 * Query all columns, in the order read by readRecord(), of every template or, if a probe is 
+	 * given, of the templates that are candidates for matching it.  Every template is queried in 
+	 * order of entry ID and ordinal, so the templates of an entry are adjacent.
+	 */
+	private static Cursor queryRecords(final SQLiteDatabase db, final Template probe)
+	{
+		return (db.query(
+        		TABLES_JOINED, 
+        		RECORD_COLUMNS, 
+        		(probe != null) ? getFilterSelection(probe) : null, 
+        		null, 
+        		null, 
+        		null, 
+        		(probe != null) ? getFilterOrder(probe) : TEMPLATE_ORDER));
+	}
+
+	/*
+	 * Get selection of entries compatible with probe, mirroring IBMatcherFilter, or null if all 
+	 * entries are compatible.  The selection uses the filter index.
+	 */
+	private static String getFilterSelection(final Template probe)
+	{
+		final FingerPosition position = IBMatcherFilter.getFingerPosition(probe);
+		if (position == FingerPosition.UNKNOWN)
+		{
+			return (null);
+		}
+		
+		return (COLUMN_NAME_FINGER_POSITION + " IN (" + position.toCode() + ", " 
+				+ FingerPosition.UNKNOWN.toCode() + ")");
+	}
+
+	/*
+	 * Get order of entries by descending affinity to probe, mirroring IBMatcherFilter.
+	 */
+	private static String getFilterOrder(final Template probe)
+	{
+		return ("(" + COLUMN_NAME_IMPRESSION_TYPE + " = " + IBMatcherFilter.getImpressionType(probe).toCode() + ") + ("
+				+ COLUMN_NAME_CAPTURE_DEVICE_TECH_ID + " = " + IBMatcherFilter.getCaptureDeviceTechId(probe).toCode() + ") + ("
+				+ COLUMN_NAME_IMAGE_SIZE_X + " = " + probe.imageSizeX + " AND "
+				+ COLUMN_NAME_IMAGE_SIZE_Y + " = " + probe.imageSizeY + ") DESC, " + TEMPLATE_ORDER);
+	}
+
+	/*
+	 * Put values of template attributes used to pre-filter candidates.
+	 */
+	private static void putFilterValues(final ContentValues values, final Template template)
+	{
+		values.put(COLUMN_NAME_FINGER_POSITION,        IBMatcherFilter.getFingerPosition(template).toCode());
+		values.put(COLUMN_NAME_IMPRESSION_TYPE,        IBMatcherFilter.getImpressionType(template).toCode());
+		values.put(COLUMN_NAME_CAPTURE_DEVICE_TECH_ID, IBMatcherFilter.getCaptureDeviceTechId(template).toCode());
+		values.put(COLUMN_NAME_IMAGE_SIZE_X,           template.imageSizeX);
+		values.put(COLUMN_NAME_IMAGE_SIZE_Y,           template.imageSizeY);
+	}
+
+	/*
+	 * Get minutiae signature of probe, or null if signatures are not used to cull candidates or 
+	 * the signature cannot be computed.
+	 */
+	private IBMinutiaeSignature getProbeSignature(final Template template)
+	{
+		if (!isCulling())
 		{
-        	Log.e(FINGERPRINT_DB_TAG, "Received null template");
-			throw new IllegalArgumentException("Received null template");
+			return (null);
+		}
+		
+		return (createSignature(template));
+	}
+
+	/*
+	 * Get minutiae signature of template being enrolled, or null if signatures are not used to 
+	 * cull candidates, in which case fillSignatures() computes it once they are, or the signature
+	 * cannot be computed.
+	 */
+	private IBMinutiaeSignature createEnrolledSignature(final Template template)
+	{
+		if (!isCulling())
+		{
+			return (null);
+		}
+		
+		return (createSignature(template));
+	}
+
+	/*
+	 * Determine whether signatures are used to cull candidates.
+	 */
+	private boolean isCulling()
+	{
+		return (this.m_signatureCutoff < IBMinutiaeSignature.MAX_DISTANCE);
+	}
+
+	/*
+	 * Compute minutiae signature of template from its FMR.  Returns null, after logging, on failure.
+	 */
+	private IBMinutiaeSignature createSignature(final Template template)
+	{
+		try
+		{
+			return (IBMinutiaeSignature.fromFmr(this.m_ibMatcher.saveTemplateAsFmrToBytes(template)));
+		}
+		catch (final IBMatcherException ibme)
+		{
+			Log.e(FINGERPRINT_DB_TAG, "Failed to compute signature with exception " + ibme.getType().toString());
+			return (null);
+		}
+	}
+
+	/*
+	 * Decode minutiae signature read from database.  Returns null if there is none or it cannot be 
+	 * decoded.
+	 */
+	private static IBMinutiaeSignature decodeSignature(final byte[] signatureBytes)
+	{
+		if (signatureBytes == null)
+		{
+			return (null);
+		}
+		
+		try
+		{
+			return (IBMinutiaeSignature.decode(signatureBytes));
+		}
+		catch (final IBMatcherException ibme)
+		{
+			Log.e(FINGERPRINT_DB_TAG, "Failed to decode signature with exception " + ibme.getType().toString());
+			return (null);
+		}
+	}
+
+	/*
+	 * Determine whether a candidate is farther than the cut-off from the probe.  Candidates are
+	 * never culled if either signature is unknown.
+	 */
+	private boolean isCulled(final IBMinutiaeSignature probe, final IBMinutiaeSignature candidate)
+	{
+		return ((probe != null) && (candidate != null) && (probe.distance(candidate) > this.m_signatureCutoff));
+	}
+
+	/*
+	 * Read and decode the entry at the cursor's position, also converting its template into native 
+	 * memory if requested.  Returns null, after logging, if the entry cannot be read, or a record 
+	 * without a native template if the conversion fails.
+	 */
+	private IBMatcherGallery.Record readRecord(final Cursor cursor, final boolean resident)
+	{
+    	final String name          = cursor.getString(1);
+    	final String description   = cursor.getString(2);
+    	final byte[] templateBytes = cursor.getBlob(5);
+    	if ((name == null) || (description == null) || (templateBytes == null))
+    	{
+    		Log.e(FINGERPRINT_DB_TAG, "Found null name, description, or template in entry");
+    		return (null);
+    	}
+    	final Template template = convertBytesToTemplate(templateBytes);
+    	if (template == null)
+    	{
+    		Log.e(FINGERPRINT_DB_TAG, "Failed to convert template");
+    		return (null);
+    	}
+
+    	final NativeTemplate          nativeTemplate = resident ? createNativeTemplate(template) : null;
+    	final IBMatcherGallery.Record record         = new IBMatcherGallery.Record(cursor.getLong(0), 
+    			name, description, cursor.getLong(3), cursor.getLong(4), template, nativeTemplate, 
+    			decodeSignature(cursor.getBlob(6)));
+    	return (record);
+	}
+
+	/*
+	 * Apply change made by a write to gallery, or drop gallery if a template could not be 
+	 * converted into native memory, and invalidate the probe cache.  Called with the journal's lock
+	 * held, right after the change is journaled, so that changes reach the gallery in the order of
+	 * their stamps.  Schedules compaction once the gallery's tail or the journal grows long.
+	 */
+	private void applyToGallery(final IBMatcherJournal.Change change)
+	{
+		/* Cached matches may have been deleted or updated. */
+		this.m_probeCache.invalidate();
+
+		boolean converted = true;
+		for (final IBMatcherGallery.Record record : change.getRecords())
+		{
+			converted &= (record.getNativeTemplate() != null);
+		}
+		if (converted)
+		{
+			this.m_gallery.apply(change);
+		}
+		else
+		{
+			this.m_gallery.invalidate();
+		}
+		
+		if ((this.m_gallery.getTailLength() >= IBMatcherJournal.COMPACT_LENGTH)
+				|| (this.m_journal.getLength() >= IBMatcherJournal.COMPACT_LENGTH))
+		{
+			scheduleCompaction();
+		}
+	}
+
+	/*
+	 * Append change made by a write to the journal.  Called with the journal's lock held from 
+	 * before the write's transaction, so that changes are journaled in the order of their stamps.
+	 * If the change cannot be written, readers of the packed gallery will find a gap and rebuild it.
+	 */
+	private void appendJournal(final IBMatcherJournal.Change change)
+	{
+		try
+		{
+			this.m_journal.append(change);
+		}
+		catch (final IOException ioe)
+		{
+			Log.e(FINGERPRINT_DB_TAG, "Journal write failed with exception " + ioe.toString());
+		}
+	}
+
+	/*
+	 * Read back rows with a name after an update, as records with the new templates, one per 
+	 * template and row.  Called within the update's transaction.  The records of each template 
+	 * share one native template.
+	 */
+	private List<IBMatcherGallery.Record> readUpdatedRecords(final SQLiteDatabase db, final String name, 
+			final long modifyDate, final Template[] templates, final IBMinutiaeSignature[] signatures)
+	{
+		final List<IBMatcherGallery.Record> records = new ArrayList<IBMatcherGallery.Record>();
+		final Cursor cursor = db.query(
+				TABLE_NAME, 
+				new String[] {COLUMN_NAME__ID, COLUMN_NAME_DESCRIPTION, COLUMN_NAME_CREATE_DATE}, 
+				COLUMN_NAME_NAME + " = ?", 
+				new String[] {name}, 
+				null, 
+				null, 
+				null);
+		try
+		{
+			final NativeTemplate[] nativeTemplates = new NativeTemplate[templates.length];
+			for (int i = 0; (i < templates.length) && (cursor.getCount() > 0); i++)
+			{
+				nativeTemplates[i] = createNativeTemplate(templates[i]);
+			}
+			while (cursor.moveToNext())
+			{
+				for (int i = 0; i < templates.length; i++)
+				{
+					records.add(new IBMatcherGallery.Record(cursor.getLong(0), name, cursor.getString(1), 
+							cursor.getLong(2), modifyDate, templates[i], nativeTemplates[i], signatures[i]));
+				}
+			}
+		}
+		finally
+		{
+			cursor.close();
+		}
+		
+		return (records);
+	}
+
+	/*
+	 * Queue compaction of the gallery's tail and the journal in the background, unless one is 
+	 * already queued or running.
+	 */
+	private synchronized void scheduleCompaction()
+	{
+		this.m_compaction = runInBackground(this.m_compaction, new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				compact();
+			}
+		});
+	}
+
+	/*
+	 * Queue task in the background lane of the shared IBMatcherAsync, unless the database is 
+	 * closed or the previous run of the same task is still pending, in which case that run is 
+	 * returned.  The task holds the background lock while it runs, so that close() can wait for 
+	 * it, and is skipped if the database was closed while it was queued.  Called with this 
+	 * object's lock held.
+	 */
+	private Future<Void> runInBackground(final Future<Void> pending, final Runnable task)
+	{
+		if (this.m_closed || ((pending != null) && !pending.isDone()))
+		{
+			return (pending);
+		}
+		
+		return (IBMatcherAsync.getInstance().execute(IBMatcherAsync.Lane.BACKGROUND, new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				IBMatcherDatabase.this.m_backgroundLock.lock();
+				try
+				{
+					if (!IBMatcherDatabase.this.m_closed)
+					{
+						task.run();
+					}
+				}
+				finally
+				{
+					IBMatcherDatabase.this.m_backgroundLock.unlock();
+				}
+			}
+		}));
+	}
+
+	/*
+	 * Queue filling of signatures that an upgrade, or enrolling while signatures were not used, 
+	 * left missing in the background, unless a fill is already queued or running.
+	 */
+	private synchronized void scheduleSignatureFill()
+	{
+		this.m_signatureFill = runInBackground(this.m_signatureFill, new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				fillSignatures();
+			}
+		});
+	}
+
+	/*
+	 * Compute signatures of templates stored without one, committing a chunk per transaction.  
+	 * Templates whose signature cannot be computed are left without one, so they are never culled.
+	 * Once done, the stamp is advanced without journaling, so that readers of the packed gallery 
+	 * find a gap and rebuild it with the signatures, and the resident gallery is dropped.
+	 */
+	private void fillSignatures()
+	{
+		final SQLiteDatabase db     = this.m_openHelper.getWritableDatabase();
+		final String         select = "SELECT " + COLUMN_NAME__ID + ", " + COLUMN_NAME_TEMPLATE + " FROM " 
+				+ TABLE_NAME_TEMPLATES + " WHERE " + COLUMN_NAME_SIGNATURE + " IS NULL AND " + COLUMN_NAME__ID 
+				+ " > ? ORDER BY " + COLUMN_NAME__ID + " LIMIT " + DEFAULT_ENROLL_CHUNK_SIZE;
+		final String         update = "UPDATE " + TABLE_NAME_TEMPLATES + " SET " + COLUMN_NAME_SIGNATURE 
+				+ " = ? WHERE " + COLUMN_NAME__ID + " = ? AND " + COLUMN_NAME_SIGNATURE + " IS NULL";
+		long                 lastId = Long.MIN_VALUE;
+		int                  count  = 0;
+
+		try
+		{
+			/* Stop between chunks once the database is closed; the chunks stored so far are kept. */
+			while (!this.m_closed)
+			{
+				/* Compute a chunk of signatures outside the transaction. */
+				final List<Long>   ids        = new ArrayList<Long>();
+				final List<byte[]> signatures = new ArrayList<byte[]>();
+				final Cursor       cursor     = db.rawQuery(select, new String[] {Long.toString(lastId)});
+				try
+				{
+					while (cursor.moveToNext())
+					{
+						lastId = cursor.getLong(0);
+						final byte[]              templateBytes = cursor.getBlob(1);
+						final Template            template      = (templateBytes != null) ? convertBytesToTemplate(templateBytes) : null;
+						final IBMinutiaeSignature signature     = (template != null) ? createSignature(template) : null;
+						if (signature != null)
+						{
+							ids.add(lastId);
+							signatures.add(signature.encode());
+						}
+					}
+					if (cursor.getCount() == 0)
+					{
+						break;
+					}
+				}
+				finally
+				{
+					cursor.close();
+				}
+
+				/* Store them, skipping templates replaced meanwhile. */
+				synchronized (this.m_journal)
+				{
+					final SQLiteStatement statement = db.compileStatement(update);
+					db.beginTransaction();
+					try
+					{
+						for (int i = 0; i < ids.size(); i++)
+						{
+							statement.bindBlob(1, signatures.get(i));
+							statement.bindLong(2, ids.get(i));
+							count += statement.executeUpdateDelete();
+						}
+						db.setTransactionSuccessful();
+					}
+					finally
+					{
+						db.endTransaction();
+						statement.close();
+					}
+				}
+			}
+
+			synchronized (this.m_journal)
+			{
+				db.beginTransaction();
+				try
+				{
+					bumpStamp(db);
+					db.setTransactionSuccessful();
+				}
+				finally
+				{
+					db.endTransaction();
+				}
+				this.m_probeCache.invalidate();
+				this.m_gallery.invalidate();
+			}
+			Log.i(FINGERPRINT_DB_TAG, "Computed signatures of " + count + " templates");
+		}
+		catch (final SQLException sqle)
+		{
+			Log.e(FINGERPRINT_DB_TAG, "Signature fill failed with exception " + sqle.toString());
+		}
+	}
+
+	/*
+	 * Get records of resident gallery that are candidates for matching a probe, loading it if 
+	 * necessary, and counting a hit if it was already resident or a miss otherwise.  A load that is 
+	 * known to fail is not retried (see <code>loadGallery()</code>), so the miss costs one database
+	 * scan rather than two.  If the probe's signature is given, candidates farther than the cut-off
+	 * from it are culled.  Returns null if the gallery cannot be loaded.
+	 */
+	private IBMatcherGallery.Record[] getResidentRecords(final Template template, 
+			final IBMinutiaeSignature signature)
+	{
+		IBMatcherGallery.Record[] records = this.m_gallery.getCandidates(template);
+		if (records != null)
+		{
+			this.m_gallery.recordHit();
+		}
+		else
+		{
+			this.m_gallery.recordMiss();
+			if (loadGallery())
+			{
+				records = this.m_gallery.getCandidates(template);
+			}
+		}
+		
+		if ((records != null) && (signature != null))
+		{
+			records = IBMatcherFilter.cull(records, signature, this.m_signatureCutoff);
+		}
+		
+		return (records);
+	}
+
+	/*
+	 * Get native templates of gallery records, in the same order.
+	 */
+	private static NativeTemplate[] getNativeTemplates(final IBMatcherGallery.Record[] records)
+	{
+		final NativeTemplate[] templates = new NativeTemplate[records.length];
+		for (int i = 0; i < records.length; i++)
+		{
+			templates[i] = records[i].getNativeTemplate();
+		}
+		
+		return (templates);
+	}
+
+	/*
+	 * Convert a probe template into native memory.  Returns null, after logging, on failure.
+	 */
+	private NativeTemplate createNativeProbe(final Template template)
+	{
+		final NativeTemplate probe = createNativeTemplate(template);
+		if (probe == null)
+		{
+			Log.e(FINGERPRINT_DB_TAG, "Failed to convert probe template");
+		}
+		
+		return (probe);
+	}
+
+	/*
+	 * Convert a template into native memory.  Returns null, after logging, on failure.
+	 */
+	private NativeTemplate createNativeTemplate(final Template template)
+	{
+		try
+		{
+			return (this.m_ibMatcher.createNativeTemplate(template));
+		}
+		catch (final IBMatcherException ibme)
+		{
+			Log.e(FINGERPRINT_DB_TAG, "Failed to create native template with exception " + ibme.getType().toString());
+			return (null);
 		}
+	}
+
+	/*
+	 * Create entry returned from a match for gallery record.
+	 */
+	private static Entry createEntry(final IBMatcherGallery.Record record, final int matchScore)
+	{
+		final Entry entry = new Entry(record.getRowId(), record.getName(), record.getDescription(), 
+				new Date(record.getCreateDate()), new Date(record.getModifyDate()), 
+				record.getTemplate(), matchScore);
+		return (entry);
+	}
+
+	/*
+	 * Create entry returned from a match for fused result of an entry's templates, or null if there
+	 * is no result.
+	 */
+	private static Entry createEntry(final IBMatcherFusion.Result result)
+	{
+		return ((result != null) ? createEntry(result.getRecord(), result.getScore()) : null);
+	}
 
+	/*
+	 * Match template against database by querying and decoding every candidate template whose 
+	 * signature, if known, is within the cut-off of the probe's, fusing the scores of each entry's
+	 * templates.
+	 */
+	private Entry matchDatabase(final Template template, final IBMinutiaeSignature signature, 
+			final IBMatcherFusion fusion)
+	{
 		/* Open the database object in "read" mode. */
 	    final SQLiteDatabase db = this.m_openHelper.getReadableDatabase();
 
         try
         {
         	/* 
-        	 * Get cursor with all columns.  Only the template is necessary for the match, but the
-        	 * other columns will be returned in the entry.
+        	 * Get cursor with all columns of the candidate templates, those likeliest to match first.
+        	 * Only the template is necessary for the match, but the other columns will be returned 
+        	 * in the entry.
         	 */
         	final Cursor cursor = db.query(
- 	        		TABLE_NAME, 
+ 	        		TABLES_JOINED, 
  	        		new String[] {COLUMN_NAME_NAME, COLUMN_NAME_DESCRIPTION, 
- 	        				COLUMN_NAME_CREATE_DATE, COLUMN_NAME_MODIFY_DATE, COLUMN_NAME_TEMPLATE}, 
+ 	        				COLUMN_NAME_CREATE_DATE, COLUMN_NAME_MODIFY_DATE, COLUMN_NAME_TEMPLATE, 
+ 	        				ENTRY_ID, COLUMN_NAME_SIGNATURE}, 
+ 	        		getFilterSelection(template), 
  	        		null, 
  	        		null, 
  	        		null, 
- 	        		null, 
- 	        		null);
+ 	        		getFilterOrder(template));
  	        		
  	        if (cursor == null)
  	        {
@@ -435,16 +3041,23 @@ public class IBMatcherDatabase
  	        }
  	        else
  	        {
- 	        	Log.i(FINGERPRINT_DB_TAG, "Found " + cursor.getCount() + " entries");
+ 	        	Log.i(FINGERPRINT_DB_TAG, "Found " + cursor.getCount() + " templates");
  	        	cursor.moveToFirst();
  	        	
  	        	/*
- 	        	 * Examine each entry, returning the first that matches.  Errors in getting data 
+ 	        	 * Examine each template, returning once an entry matches.  Errors in getting data 
  	        	 * from particular entries will be logged and ignored, besides terminating 
  	        	 * examination of that particular entry.
  	        	 */
  	        	while (!cursor.isAfterLast())
  	        	{
+ 	        		/* Skip entries whose signature rules them out before decoding anything. */
+ 	        		if (isCulled(signature, decodeSignature(cursor.getBlob(6))))
+ 	        		{
+ 	        			cursor.moveToNext();
+ 	        			continue;
+ 	        		}
+ 	        		
  	 	        	/* Get name from cursor. */
  	        		final String name = cursor.getString(0);
  	 	        	if (name == null)
@@ -487,7 +3100,7 @@ public class IBMatcherDatabase
 				 	 	        	{ 	 	        	
 					 	 	        	/* Convert template bytes to template. */
 				 	 	        		final Template templateCompare = convertBytesToTemplate(templateBytes);
-					 	 	        	if (template == null)
+					 	 	        	if (templateCompare == null)
 					 	 		        {
 					 	 		        	Log.e(FINGERPRINT_DB_TAG, "Failed to convert template");
 					 	 		        }
@@ -496,15 +3109,16 @@ public class IBMatcherDatabase
 					 	 	        		try
 					 	 	        		{
 					 	 	        			/* 
-					 	 	        			 * Check whether this matches our template better than the configured level. 
+					 	 	        			 * Check whether this matches our template better than the configured level, 
+					 	 	        			 * and whether its entry now clears the threshold. 
 					 	 	        			 */
 					 	 	        			final int matchScore = this.m_ibMatcher.matchTemplates(template, templateCompare);			 	 	        			
-					 	 	        			if (matchScore > 0)
+					 	 	        			final IBMatcherGallery.Record record = new IBMatcherGallery.Record(cursor.getLong(5), 
+					 	 	        					name, description, createDate, modifyDate, templateCompare, null, null);
+					 	 	        			if (fusion.add(record, matchScore))
 					 	 	        			{
 					 	 	        				cursor.close();
-					 	 	        			
-					 	 	        				final Entry entry = new Entry(name, description, new Date(createDate), new Date(modifyDate), template, matchScore);
-						 	 	 	 		        return (entry); 
+						 	 	 	 		        return (createEntry(fusion.getMatch())); 
 					 	 	        			}
 			
 					 	 	        		}
@@ -522,7 +3136,7 @@ public class IBMatcherDatabase
  	        	}
  	        	
  	        	cursor.close();
- 	        	return (null);
+ 	        	return (createEntry(fusion.getMatch()));
  	        }
         }
         catch (final SQLException sqle)
@@ -536,8 +3150,8 @@ public class IBMatcherDatabase
 	 * Find entry associate with person in database.
 	 * 
 	 * @param name  name of person whose entry should be found
-	 * @return      the first entry returned associated with the name, if successful; 
-	 *              <code>null</code> otherwise
+	 * @return      the first entry returned associated with the name, with all its templates, if 
+	 *              successful; <code>null</code> otherwise
 	 */
 	public Entry find(final String name)
 	{
@@ -555,18 +3169,17 @@ public class IBMatcherDatabase
         try
         {
         	/* 
-        	 * Query database for entries that match name.  If the database has been well-maintained,
-        	 * only one entry should match.  Only the first match is returned in case of multiple
-        	 * matches.
+        	 * Query database for the entry that matches name, which the unique index on names finds
+        	 * without scanning the table, and its templates, which the index on entry IDs finds.
         	 */
         	final Cursor cursor = db.query(
- 	        		TABLE_NAME, 
- 	        		new String[] {COLUMN_NAME_DESCRIPTION, COLUMN_NAME_CREATE_DATE, COLUMN_NAME_MODIFY_DATE, COLUMN_NAME_TEMPLATE}, 
- 	        		COLUMN_NAME_NAME + " = \"" + name + "\"", 
- 	        		null, 
+ 	        		TABLES_JOINED, 
+ 	        		new String[] {COLUMN_NAME_DESCRIPTION, COLUMN_NAME_CREATE_DATE, COLUMN_NAME_MODIFY_DATE, COLUMN_NAME_TEMPLATE, ENTRY_ID}, 
+ 	        		COLUMN_NAME_NAME + " = ?", 
+ 	        		new String[] {name}, 
  	        		null, 
  	        		null, 
- 	        		null);
+ 	        		TEMPLATE_ORDER);
  	        		
  	        if (cursor == null)
  	        {
@@ -576,10 +3189,10 @@ public class IBMatcherDatabase
  	        else
  	        {
  	        	/* 
- 	        	 * Get data from first entry.  Any error in getting information about the entry 
+ 	        	 * Get data from first row.  Any error in getting information about the entry 
  	        	 * will terminate processing and return a null template as if no match were found.
  	        	 */
- 	        	Log.i(FINGERPRINT_DB_TAG, "Found " + cursor.getCount() + " entries for user \"" + name + "\"");
+ 	        	Log.i(FINGERPRINT_DB_TAG, "Found " + cursor.getCount() + " templates for user \"" + name + "\"");
  	        	if (cursor.getCount() < 1)
  	        	{
  	        		cursor.close();
@@ -616,25 +3229,32 @@ public class IBMatcherDatabase
  	 	        	return (null);
  	        	}
 
- 	        	/* Get template bytes from cursor. */
- 	        	final byte[] templateBytes = cursor.getBlob(3);
- 	        	if (templateBytes == null)
+ 	        	/* Get the templates from the cursor, one per row, in order of their IDs. */
+ 	        	final long       rowId     = cursor.getLong(4);
+ 	        	final Template[] templates = new Template[cursor.getCount()];
+ 	        	for (int i = 0; i < templates.length; i++, cursor.moveToNext())
  	        	{
- 	        		cursor.close();
- 	 	        	Log.e(FINGERPRINT_DB_TAG, "Found null template in entry for user \"" + name + "\"");
- 	 	        	return (null);
+	 	        	/* Get template bytes from cursor. */
+	 	        	final byte[] templateBytes = cursor.getBlob(3);
+	 	        	if (templateBytes == null)
+	 	        	{
+	 	        		cursor.close();
+	 	 	        	Log.e(FINGERPRINT_DB_TAG, "Found null template in entry for user \"" + name + "\"");
+	 	 	        	return (null);
+	 	        	}
+	 	        	
+	 	        	/* Convert template bytes to template. */
+	 	        	templates[i] = convertBytesToTemplate(templateBytes);
+	 	        	if (templates[i] == null)
+	 		        {
+	 	        		cursor.close();
+	 		        	Log.e(FINGERPRINT_DB_TAG, "Failed to convert template for user \"" + name + "\"");
+	 		        	return (null); 		         		        
+	 		        }
  	        	}
- 	        	
- 	        	/* Convert template bytes to template. */
- 	        	final Template template = convertBytesToTemplate(templateBytes);
- 	        	if (template == null)
- 		        {
- 	        		cursor.close();
- 		        	Log.e(FINGERPRINT_DB_TAG, "Failed to convert template for user \"" + name + "\"");
- 		        	return (null); 		         		        
- 		        }
  		        
- 	        	final Entry entry = new Entry(name, description, new Date(createDate), new Date(modifyDate), template);
+ 	        	final Entry entry = new Entry(rowId, name, description, new Date(createDate), new Date(modifyDate), templates, 0);
+ 	        	cursor.close();
  		        return (entry); 
  	        }
         }
@@ -649,70 +3269,25 @@ public class IBMatcherDatabase
 	 * Update entry associate with person in database with new template.
 	 * 
 	 * @param name      name of person whose entry should be updated
-	 * @param template  new template for entry
-	 * @return          <code>true</code> if update succeeds; <code>false</code> otherwise
-	 */
-	public boolean update(final String name, final Template template)
-	{
-		/* Check arguments. */
-		if (name == null)
-		{
-        	Log.e(FINGERPRINT_DB_TAG, "Received null name");
-			throw new IllegalArgumentException("Received null name");
-		}
-		/* TODO: CHECK THE NAME FOR INAPPROPRIATE FORMAT */
-		if (template == null)
-		{
-        	Log.e(FINGERPRINT_DB_TAG, "Received null template");
-			throw new IllegalArgumentException("Received null template");
-		}
-
-		/* Create the map to hold the new record's values. */
-        final ContentValues values = new ContentValues();
-
-        /* Add the date. */
-        final Long now = Long.valueOf(System.currentTimeMillis());
-        values.put(COLUMN_NAME_MODIFY_DATE, now);
-
-        /* Add the template. */
-        final byte[] templateBytes = convertTemplateToBytes(template);
-        if (templateBytes == null)
-        {
-        	Log.e(FINGERPRINT_DB_TAG, "Failed to convert template to bytes");
-        	return (false);
-        }
-        values.put(COLUMN_NAME_TEMPLATE, templateBytes);
-
-        /* Open the database object in "write" mode. */
-        final SQLiteDatabase db = this.m_openHelper.getWritableDatabase();
-
-        try
-        {
-	        /* Perform the insert and returns the ID of the new note. */
-	        final long count = db.update(
-	            TABLE_NAME,        // The table to update.
-	            values,            // A map of column names, and the values to update in the columns.
-	            COLUMN_NAME_NAME + " = \"" + name + "\"",
-	            null
-	        );
-	        
-	        /* If the update succeeded, the count exists. */
-	        if (count >= 0)
-	        {
-	       	 	Log.i(FINGERPRINT_DB_TAG, "Updated " + count + " rows for user \"" + name + "\"");
-	       	 	return (true);
-	        }
-	        else
-	        {
-	       	 	Log.i(FINGERPRINT_DB_TAG, "Update failed for user \"" + name + "\"");	        
-	       	 	return (false);
-	        }
-	    }
-	    catch (SQLException sqle)
-	    {
-	    	Log.e(FINGERPRINT_DB_TAG, "Update failed with exception " + sqle.toString());
-	    	return (false); 		        	        	        
-	    }
+	 * @param template  new template for entry, replacing all its templates
+	 * @return          <code>true</code> if update succeeds; <code>false</code> otherwise
+	 */
+	public boolean update(final String name, final Template template)
+	{
+		/* Check arguments. */
+		if (name == null)
+		{
+        	Log.e(FINGERPRINT_DB_TAG, "Received null name");
+			throw new IllegalArgumentException("Received null name");
+		}
+		/* TODO: CHECK THE NAME FOR INAPPROPRIATE FORMAT */
+		if (template == null)
+		{
+        	Log.e(FINGERPRINT_DB_TAG, "Received null template");
+			throw new IllegalArgumentException("Received null template");
+		}
+
+		return (updateEntry(name, null, new Template[] {template}));
 	}
 	
 	/**
@@ -720,10 +3295,31 @@ public class IBMatcherDatabase
 	 * 
 	 * @param name         name of person whose entry should be updated
 	 * @param description  new description for entry
-	 * @param template     new template for entry
+	 * @param template     new template for entry, replacing all its templates
 	 * @return             <code>true</code> if update succeeds; <code>false</code> otherwise
 	 */
 	public boolean update(final String name, final String description, final Template template)
+	{
+		/* Check arguments. */
+		if (template == null)
+		{
+        	Log.e(FINGERPRINT_DB_TAG, "Received null template");
+			throw new IllegalArgumentException("Received null template");
+		}
+
+		return (update(name, description, new Template[] {template}));
+	}
+
+	/**
+	 * Update entry associate with person in database with new templates.
+	 * 
+	 * @param name         name of person whose entry should be updated
+	 * @param description  new description for entry
+	 * @param templates    new templates for entry, replacing all its templates, at least one and at
+	 *                     most <code>MAX_TEMPLATES_PER_ENTRY</code>
+	 * @return             <code>true</code> if update succeeds; <code>false</code> otherwise
+	 */
+	public boolean update(final String name, final String description, final Template[] templates)
 	{
 		/* Check arguments. */
 		if (name == null)
@@ -732,11 +3328,7 @@ public class IBMatcherDatabase
 			throw new IllegalArgumentException("Received null name");
 		}
 		/* TODO: CHECK THE NAME FOR INAPPROPRIATE FORMAT */
-		if (template == null)
-		{
-        	Log.e(FINGERPRINT_DB_TAG, "Received null template");
-			throw new IllegalArgumentException("Received null template");
-		}
+		checkTemplates(templates);
 		if (description == null)
 		{
         	Log.e(FINGERPRINT_DB_TAG, "Received null description");
@@ -744,37 +3336,73 @@ public class IBMatcherDatabase
 		}
 		/* TODO: CHECK THE DESCRIPTION FOR INAPPROPRIATE FORMAT */
 
-		/* Create the map to hold the new record's values. */
-        final ContentValues values = new ContentValues();
-
-        /* Add the date. */
-        final Long now = Long.valueOf(System.currentTimeMillis());
-        values.put(COLUMN_NAME_MODIFY_DATE, now);
-
-        /* Add the description. */
-        values.put(COLUMN_NAME_DESCRIPTION, description);
+		return (updateEntry(name, description, templates));
+	}
 
-        /* Add the template. */
-        final byte[] templateBytes = convertTemplateToBytes(template);
+	/*
+	 * Update entry associated with person with new templates and, if given, new description.
+	 */
+	private boolean updateEntry(final String name, final String description, final Template[] templates)
+	{
+        /* Convert the templates. */
+        final long     now           = System.currentTimeMillis();
+        final byte[][] templateBytes = convertTemplatesToBytes(templates);
         if (templateBytes == null)
         {
         	Log.e(FINGERPRINT_DB_TAG, "Failed to convert template to bytes");
         	return (false);
         }
-        values.put(COLUMN_NAME_TEMPLATE, templateBytes);
+        final IBMinutiaeSignature[] signatures = createSignatures(templates);
 
         /* Open the database object in "write" mode. */
         final SQLiteDatabase db = this.m_openHelper.getWritableDatabase();
 
         try
         {
-	        /* Perform the insert and returns the ID of the new note. */
-	        final long count = db.update(
-	            TABLE_NAME,        // The table to update.
-	            values,            // A map of column names, and the values to update in the columns.
-	            COLUMN_NAME_NAME + " = \"" + name + "\"",
-	            null
-	        );
+	        final long count;
+	        synchronized (this.m_journal)
+	        {
+		        /* 
+		         * Perform the update, replacing the templates and stamping the write, and read back
+		         * the updated rows.
+		         */
+		        final List<IBMatcherGallery.Record> records;
+		        final long                          stamp;
+		        db.beginTransaction();
+		        try
+		        {
+		        	final Statements statements = prepareStatements(db);
+		        	if (description != null)
+		        	{
+		        		statements.m_update.bindString(1, description);
+		        	}
+		        	else
+		        	{
+		        		statements.m_update.bindNull(1);
+		        	}
+		        	statements.m_update.bindLong(2, now);
+		        	statements.m_update.bindString(3, name);
+			        count = statements.m_update.executeUpdateDelete();
+		        	statements.m_deleteTemplate.bindString(1, name);
+		        	statements.m_deleteTemplate.executeUpdateDelete();
+			        records = readUpdatedRecords(db, name, now, templates, signatures);
+			        for (int i = 0; i < records.size(); i += templates.length)
+			        {
+			        	insertTemplates(statements, records.get(i).getRowId(), templateBytes, templates, signatures);
+			        }
+			        stamp   = bumpStamp(db);
+			        db.setTransactionSuccessful();
+		        }
+		        finally
+		        {
+		        	db.endTransaction();
+		        }
+		        
+		        /* Journal the updated records and patch the gallery, in the order of the writes. */
+		        final IBMatcherJournal.Change change = new IBMatcherJournal.Change(stamp, false, name, records);
+		        appendJournal(change);
+		        applyToGallery(change);
+	        }
 	        
 	        /* If the update succeeded, the count exists. */
 	        if (count >= 0)
@@ -817,12 +3445,33 @@ public class IBMatcherDatabase
 
 		try
 		{
-	        /* Performs the delete. */
-			final int count = db.delete(
-	            TABLE_NAME,                      // The database table name.
-	            COLUMN_NAME_NAME + " = " + name, // The final WHERE clause
-	            null                             // The incoming where clause values.
-	        );
+			final int count;
+			synchronized (this.m_journal)
+			{
+		        /* Performs the delete, stamping the write. */
+				final long stamp;
+				db.beginTransaction();
+				try
+				{
+					final Statements statements = prepareStatements(db);
+					statements.m_deleteTemplate.bindString(1, name);
+					statements.m_deleteTemplate.executeUpdateDelete();
+					statements.m_delete.bindString(1, name);
+					count = statements.m_delete.executeUpdateDelete();
+					stamp = bumpStamp(db);
+					db.setTransactionSuccessful();
+				}
+				finally
+				{
+					db.endTransaction();
+				}
+				
+				/* Journal the removal and patch the gallery, in the order of the writes. */
+				final IBMatcherJournal.Change change = new IBMatcherJournal.Change(stamp, false, name, 
+						Collections.<IBMatcherGallery.Record>emptyList());
+				appendJournal(change);
+				applyToGallery(change);
+			}
 	
 	        /* If the delete succeeded, the count exists. */
 	        if (count >= 0)
@@ -856,12 +3505,31 @@ public class IBMatcherDatabase
 
 		try
 		{
-	        /* Performs the delete. */
-			final int count = db.delete(
-	            TABLE_NAME,  // The database table name.
-	            "1",        // The final WHERE clause
-	            null         // The incoming where clause values.
-	        );
+			final int count;
+			synchronized (this.m_journal)
+			{
+		        /* Performs the delete, stamping the write. */
+				final long stamp;
+				db.beginTransaction();
+				try
+				{
+					final Statements statements = prepareStatements(db);
+					statements.m_clearTemplates.executeUpdateDelete();
+					count = statements.m_clear.executeUpdateDelete();
+					stamp = bumpStamp(db);
+					db.setTransactionSuccessful();
+				}
+				finally
+				{
+					db.endTransaction();
+				}
+				
+				/* Journal the removal and patch the gallery, in the order of the writes. */
+				final IBMatcherJournal.Change change = new IBMatcherJournal.Change(stamp, true, null, 
+						Collections.<IBMatcherGallery.Record>emptyList());
+				appendJournal(change);
+				applyToGallery(change);
+			}
 	
 	        /* If the delete succeeded, the count exists. */
 	        if (count >= 0)
@@ -890,11 +3558,21 @@ public class IBMatcherDatabase
 		/* Open the database object in "write" mode. */
 		final SQLiteDatabase db = this.m_openHelper.getWritableDatabase();
 
-       	/* Kills the table and existing data. */
-       	db.execSQL("DROP TABLE IF EXISTS " + TABLE_NAME);
-
-       	/* Recreates the database. */
-       	this.m_openHelper.onCreate(db);
+		synchronized (this.m_journal)
+		{
+	       	/* Kills the tables and existing data. */
+	       	db.execSQL("DROP TABLE IF EXISTS " + TABLE_NAME);
+	       	db.execSQL("DROP TABLE IF EXISTS " + TABLE_NAME_TEMPLATES);
+	
+	       	/* Recreates the database. */
+	       	this.m_openHelper.onCreate(db);
+	
+	       	/* The recreated table is empty. */
+	       	final IBMatcherJournal.Change change = new IBMatcherJournal.Change(bumpStamp(db), true, null, 
+	       			Collections.<IBMatcherGallery.Record>emptyList());
+	       	appendJournal(change);
+	       	applyToGallery(change);
+		}
 	}
 	
 	/* *********************************************************************************************
@@ -905,6 +3583,132 @@ public class IBMatcherDatabase
 	 * Log tag for this class.
 	 */
 	private static final String FINGERPRINT_DB_TAG   = "IBMatcher Database";
+
+	/*
+	 * Number of packed records decoded and matched in one batch.
+	 */
+	private static final int    PACKED_BATCH_SIZE    = 64;
+
+	/*
+	 * The ID of entries, qualified for queries of both tables.
+	 */
+	private static final String ENTRY_ID             = TABLE_NAME + "." + COLUMN_NAME__ID;
+
+	/*
+	 * The order of the templates of entries, that of the index on entry IDs and ordinals.
+	 */
+	private static final String TEMPLATE_ORDER       = TABLE_NAME_TEMPLATES + "." + COLUMN_NAME_ENTRY_ID + ", " 
+			+ TABLE_NAME_TEMPLATES + "." + COLUMN_NAME_ORDINAL;
+
+	/*
+	 * The entries table joined with the templates table, for queries of entries with templates, 
+	 * one row per template.  The entry of a template is found by its primary key and the 
+	 * templates of an entry by the index on entry IDs, so either table can drive the join without 
+	 * a scan.
+	 */
+	private static final String TABLES_JOINED        = TABLE_NAME + " JOIN " + TABLE_NAME_TEMPLATES 
+			+ " ON " + ENTRY_ID + " = " + TABLE_NAME_TEMPLATES + "." + COLUMN_NAME_ENTRY_ID;
+
+	/*
+	 * The columns of the templates table holding a template, its attributes used to pre-filter 
+	 * candidates, and its signature, in the order bound by bindTemplateValues().
+	 */
+	private static final String[] TEMPLATE_COLUMNS   = {COLUMN_NAME_TEMPLATE, COLUMN_NAME_FINGER_POSITION, 
+		COLUMN_NAME_IMPRESSION_TYPE, COLUMN_NAME_CAPTURE_DEVICE_TECH_ID, COLUMN_NAME_IMAGE_SIZE_X, 
+		COLUMN_NAME_IMAGE_SIZE_Y, COLUMN_NAME_SIGNATURE};
+
+	/*
+	 * The columns of the joined tables read as a record by readRecord().
+	 */
+	private static final String[] RECORD_COLUMNS     = {ENTRY_ID, COLUMN_NAME_NAME, COLUMN_NAME_DESCRIPTION, 
+		COLUMN_NAME_CREATE_DATE, COLUMN_NAME_MODIFY_DATE, COLUMN_NAME_TEMPLATE, COLUMN_NAME_SIGNATURE};
+
+	/*
+	 * Class holding the statements of the write operations and of the stamp, compiled once per 
+	 * database connection rather than on every call.
+	 */
+	private static final class Statements
+	{
+		/*
+		 * The database the statements were compiled for.
+		 */
+		final SQLiteDatabase  m_db;
+
+		/*
+		 * Insert of an entry, failing or doing nothing if its name is enrolled; update of the 
+		 * entries with a name, keeping the description if it is bound to null; delete of the 
+		 * entries with a name; delete of all entries.
+		 */
+		final SQLiteStatement m_insert;
+		final SQLiteStatement m_insertOrIgnore;
+		final SQLiteStatement m_update;
+		final SQLiteStatement m_delete;
+		final SQLiteStatement m_clear;
+
+		/*
+		 * Insert of a template, by entry ID and ordinal; delete of the templates of the entry with a 
+		 * name, by its ID, which must run before the entry is deleted; delete of all templates.
+		 */
+		final SQLiteStatement m_insertTemplate;
+		final SQLiteStatement m_deleteTemplate;
+		final SQLiteStatement m_clearTemplates;
+
+		/*
+		 * Advance and read of the stamp.
+		 */
+		final SQLiteStatement m_bumpStamp;
+		final SQLiteStatement m_readStamp;
+
+		Statements(final SQLiteDatabase db)
+		{
+			final StringBuilder insertColumns = new StringBuilder();
+			final StringBuilder insertValues  = new StringBuilder();
+			for (final String column : TEMPLATE_COLUMNS)
+			{
+				insertColumns.append(", ").append(column);
+				insertValues.append(", ?");
+			}
+			
+			final String insert = " INTO " + TABLE_NAME + " (" + COLUMN_NAME_NAME + ", " 
+					+ COLUMN_NAME_DESCRIPTION + ", " + COLUMN_NAME_CREATE_DATE + ", " + COLUMN_NAME_MODIFY_DATE 
+					+ ") VALUES (?, ?, ?, ?)";
+			final String byName   = " WHERE " + COLUMN_NAME_ENTRY_ID + " = (SELECT " + COLUMN_NAME__ID + " FROM " 
+					+ TABLE_NAME + " WHERE " + COLUMN_NAME_NAME + " = ?)";
+			
+			this.m_db             = db;
+			this.m_insert         = db.compileStatement("INSERT" + insert);
+			this.m_insertOrIgnore = db.compileStatement("INSERT OR IGNORE" + insert);
+			this.m_update         = db.compileStatement("UPDATE " + TABLE_NAME + " SET " + COLUMN_NAME_DESCRIPTION 
+					+ " = COALESCE(?, " + COLUMN_NAME_DESCRIPTION + "), " + COLUMN_NAME_MODIFY_DATE + " = ?" 
+					+ " WHERE " + COLUMN_NAME_NAME + " = ?");
+			this.m_delete         = db.compileStatement("DELETE FROM " + TABLE_NAME + " WHERE " + COLUMN_NAME_NAME + " = ?");
+			this.m_clear          = db.compileStatement("DELETE FROM " + TABLE_NAME);
+			this.m_insertTemplate = db.compileStatement("INSERT OR REPLACE INTO " + TABLE_NAME_TEMPLATES + " (" 
+					+ COLUMN_NAME_ENTRY_ID + ", " + COLUMN_NAME_ORDINAL + insertColumns + ") VALUES (?, ?" 
+					+ insertValues + ")");
+			this.m_deleteTemplate = db.compileStatement("DELETE FROM " + TABLE_NAME_TEMPLATES + byName);
+			this.m_clearTemplates = db.compileStatement("DELETE FROM " + TABLE_NAME_TEMPLATES);
+			this.m_bumpStamp      = db.compileStatement(SQL_BUMP_STAMP);
+			this.m_readStamp      = db.compileStatement("SELECT " + COLUMN_NAME_VALUE + " FROM " + TABLE_NAME_STATE 
+					+ " WHERE " + COLUMN_NAME_KEY + " = '" + STATE_KEY_STAMP + "'");
+		}
+
+		void close()
+		{
+			for (final SQLiteStatement statement : new SQLiteStatement[] {this.m_insert, this.m_insertOrIgnore, 
+					this.m_update, this.m_delete, this.m_clear, this.m_insertTemplate, this.m_deleteTemplate, 
+					this.m_clearTemplates, this.m_bumpStamp, this.m_readStamp})
+			{
+				statement.close();
+			}
+		}
+	}
+
+	/*
+	 * Statement advancing the stamp.
+	 */
+	private static final String SQL_BUMP_STAMP = "UPDATE " + TABLE_NAME_STATE + " SET " + COLUMN_NAME_VALUE 
+			+ " = " + COLUMN_NAME_VALUE + " + 1 WHERE " + COLUMN_NAME_KEY + " = '" + STATE_KEY_STAMP + "'";
 	
 	/*
 	 * The helper for accessing this database.
@@ -915,6 +3719,78 @@ public class IBMatcherDatabase
 	  * The matcher to use with this database.
 	  */
 	private final IBMatcher m_ibMatcher;
+
+	/*
+	 * The resident gallery of templates in this database.
+	 */
+	private final IBMatcherGallery m_gallery = new IBMatcherGallery();
+
+	/*
+	 * The cache of recent probes and the entries they matched.
+	 */
+	private final IBMatcherProbeCache m_probeCache = new IBMatcherProbeCache(IBMatcherProbeCache.DEFAULT_CAPACITY, 
+			IBMatcherProbeCache.DEFAULT_TIME_TO_LIVE);
+
+	/*
+	 * The matcher pool for parallel matching, created on first use.
+	 */
+	private IBMatcherPool m_pool = null;
+
+	/*
+	 * Whether the matcher pool could not be created or the database has been closed.
+	 */
+	private boolean m_poolFailed = false;
+
+	/*
+	 * The packed gallery file, and the packed gallery opened from it, or null if it has not been 
+	 * opened or is stale.  Both are guarded by the lock.
+	 */
+	private final File             m_packedFile;
+	private IBMatcherPackedGallery m_packed     = null;
+	private final Object           m_packedLock = new Object();
+
+	/*
+	 * The journal of changes made since the packed gallery file was written.  Its lock is held 
+	 * across each write's transaction and journaling, and while reading the stamp to replay it.
+	 */
+	private final IBMatcherJournal m_journal;
+
+	/*
+	 * Whether this database has been closed, after which no background work is started.  Set 
+	 * under this object's lock.
+	 */
+	private volatile boolean m_closed = false;
+
+	/*
+	 * Lock held by background work while it runs, so that close() can wait for it.
+	 */
+	private final Lock m_backgroundLock = new ReentrantLock();
+
+	/*
+	 * Queued, running, or last background compaction, or null.  Guarded by this object's lock.
+	 */
+	private Future<Void> m_compaction = null;
+
+	/*
+	 * Queued, running, or last background signature fill, or null.  Guarded by this object's lock.
+	 */
+	private Future<Void> m_signatureFill = null;
+
+	/*
+	 * Whether an upgrade left templates without signatures.  Set and cleared while the database 
+	 * is opened, under the open helper's lock.
+	 */
+	private boolean m_signaturesMissing = false;
+
+	/*
+	 * The compiled statements, or null if none have been compiled.  Guarded by the journal's lock.
+	 */
+	private Statements m_statements = null;
+
+	/*
+	 * Cut-off on minutiae signature distance beyond which candidates are not matched.
+	 */
+	private volatile float m_signatureCutoff = IBMinutiaeSignature.MAX_DISTANCE;
 	
 	/*
      * This class helps open, create, and upgrade the database file.
@@ -924,6 +3800,30 @@ public class IBMatcherDatabase
         DatabaseHelper(Context context) 
         {
             super(context, DATABASE_NAME, null, DATABASE_VERSION);
+            
+            /* Let readers proceed during writes, and commit writes without rewriting pages twice. */
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN)
+            {
+            	setWriteAheadLoggingEnabled(true);
+            }
+        }
+
+        /*
+         * Enables write-ahead logging on versions that cannot enable it when the helper is created,
+         * and starts filling signatures an upgrade left missing, if signatures are used.
+         */
+        @Override
+        public void onOpen(final SQLiteDatabase db)
+        {
+        	if ((Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) && !db.isReadOnly())
+        	{
+        		db.enableWriteAheadLogging();
+        	}
+        	if (IBMatcherDatabase.this.m_signaturesMissing && !db.isReadOnly() && isCulling())
+        	{
+        		IBMatcherDatabase.this.m_signaturesMissing = false;
+        		scheduleSignatureFill();
+        	}
         }
 
         /*
@@ -934,14 +3834,12 @@ public class IBMatcherDatabase
         {
 			try
 			{
-				db.execSQL("CREATE TABLE " + TABLE_NAME + " ("
-					+ COLUMN_NAME__ID + " INTEGER PRIMARY KEY,"
-					+ COLUMN_NAME_NAME + " TEXT,"
-					+ COLUMN_NAME_DESCRIPTION + " TEXT,"
-					+ COLUMN_NAME_CREATE_DATE + " TEXT,"
-					+ COLUMN_NAME_MODIFY_DATE + " TEXT,"
-					+ COLUMN_NAME_TEMPLATE + " BLOB"
-					+ ");");
+				createTable(db, TABLE_NAME);
+				createTemplateTable(db, TABLE_NAME_TEMPLATES);
+				createNameIndex(db);
+				createFilterIndex(db, TABLE_NAME_TEMPLATES);
+				createEntryIndex(db);
+				createStateTable(db);
 			} 
 			catch (final SQLException sqle)
 			{
@@ -950,22 +3848,471 @@ public class IBMatcherDatabase
       	}
 
         /*
-         * Demonstrates that the provider must consider what happens when the underlying 
-         * datastore is changed. In this sample, the database is upgraded the database by 
-         * destroying the existing data.  A real application should upgrade the database in place.
+         * Upgrades the database.  Versions 4 and later are upgraded in place; a step that fails is
+         * rethrown, so that the upgrade transaction is rolled back and the data is kept at the old
+         * version.  Older versions are upgraded by destroying the existing data.
          */
        	@Override
        	public void onUpgrade(final SQLiteDatabase db, final int oldVersion, final int newVersion) 
        	{
+       		if (oldVersion >= 4)
+       		{
+       			try
+       			{
+       				Log.i(FINGERPRINT_DB_TAG, "Upgrading database from version " + oldVersion + " to "
+       						+ newVersion + " in place");
+       				if (oldVersion < 5)
+       				{
+       					addFilterColumns(db);
+       				}
+       				if (oldVersion < 6)
+       				{
+       					addSignatureColumn(db);
+       				}
+       				if (oldVersion < 7)
+       				{
+       					createStateTable(db);
+       				}
+       				if (oldVersion < 8)
+       				{
+       					migrateToIntegerDates(db);
+       				}
+       				if (oldVersion < 9)
+       				{
+       					splitTemplates(db);
+       				}
+       				if (oldVersion < 10)
+       				{
+       					compactTemplates(db);
+       				}
+       				if (oldVersion < 11)
+       				{
+       					clusterTemplates(db);
+       				}
+       				if (oldVersion < 12)
+       				{
+       					linkTemplates(db);
+       				}
+       			}
+       			catch (final SQLException sqle)
+       			{
+       				Log.e(FINGERPRINT_DB_TAG, "Failed to upgrade database with exception: " + sqle.toString());
+       				throw sqle;
+       			}
+       			return;
+       		}
+       		
            	Log.w(FINGERPRINT_DB_TAG, "Upgrading database from version " + oldVersion + " to "
            			+ newVersion + ", which will destroy all old data");
 
-           	/* Kills the table and existing data. */
+           	/* Kills the tables and existing data. */
            	db.execSQL("DROP TABLE IF EXISTS " + TABLE_NAME);
+           	db.execSQL("DROP TABLE IF EXISTS " + TABLE_NAME_TEMPLATES);
+           	db.execSQL("DROP TABLE IF EXISTS " + TABLE_NAME_STATE);
 
            	/* Recreates the database with a new version. */
            	onCreate(db);
        	}
+
+       	/*
+       	 * Adds the columns of template attributes to a version 4 table, filling them from each 
+       	 * entry's template, and indexes them.  Entries whose template cannot be decoded are given
+       	 * unknown attributes, so they remain candidates for every probe.
+       	 */
+       	private void addFilterColumns(final SQLiteDatabase db)
+       	{
+       		for (final String column : new String[] {COLUMN_NAME_FINGER_POSITION, COLUMN_NAME_IMPRESSION_TYPE, 
+       				COLUMN_NAME_CAPTURE_DEVICE_TECH_ID, COLUMN_NAME_IMAGE_SIZE_X, COLUMN_NAME_IMAGE_SIZE_Y})
+       		{
+       			db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + column + " INTEGER");
+       		}
+
+       		final Cursor cursor = db.query(TABLE_NAME, new String[] {COLUMN_NAME__ID, COLUMN_NAME_TEMPLATE}, 
+       				null, null, null, null, null);
+       		int          count  = 0;
+       		try
+       		{
+       			while (cursor.moveToNext())
+       			{
+       				final byte[]        templateBytes = cursor.getBlob(1);
+       				final Template      template      = (templateBytes != null) ? convertLegacyBytesToTemplate(templateBytes) : null;
+       				final ContentValues values        = new ContentValues();
+       				if (template != null)
+       				{
+       					putFilterValues(values, template);
+       				}
+       				else
+       				{
+       					values.put(COLUMN_NAME_FINGER_POSITION, FingerPosition.UNKNOWN.toCode());
+       				}
+       				db.update(TABLE_NAME, values, COLUMN_NAME__ID + " = ?", new String[] {Long.toString(cursor.getLong(0))});
+       				count++;
+       			}
+       		}
+       		finally
+       		{
+       			cursor.close();
+       		}
+       		
+       		createFilterIndex(db, TABLE_NAME);
+       		Log.i(FINGERPRINT_DB_TAG, "Filled template attributes of " + count + " entries");
+       	}
+
+       	/*
+       	 * Adds the column of minutiae signatures to a version 5 table.  The signatures are not 
+       	 * computed here, which would convert every template to an FMR within the upgrade; entries 
+       	 * are left without one, so they are never culled, until fillSignatures() fills them in 
+       	 * the background once the database is open.
+       	 */
+       	private void addSignatureColumn(final SQLiteDatabase db)
+       	{
+       		db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + COLUMN_NAME_SIGNATURE + " BLOB");
+       		IBMatcherDatabase.this.m_signaturesMissing = true;
+       	}
+
+       	/*
+       	 * Creates the state table, if it does not exist.  The stamp starts at the current time, so 
+       	 * that a packed gallery file left from a destroyed table is not mistaken for current.
+       	 */
+       	private void createStateTable(final SQLiteDatabase db)
+       	{
+       		db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_NAME_STATE + " ("
+       				+ COLUMN_NAME_KEY + " TEXT PRIMARY KEY,"
+       				+ COLUMN_NAME_VALUE + " INTEGER"
+       				+ ");");
+       		db.execSQL("INSERT OR IGNORE INTO " + TABLE_NAME_STATE + " (" + COLUMN_NAME_KEY + ", " 
+       				+ COLUMN_NAME_VALUE + ") VALUES ('" + STATE_KEY_STAMP + "', " + System.currentTimeMillis() + ")");
+       	}
+
+       	/*
+       	 * Creates the entries table, or a table of the same layout under another name.
+       	 */
+       	private void createTable(final SQLiteDatabase db, final String tableName)
+       	{
+			db.execSQL("CREATE TABLE " + tableName + " ("
+				+ COLUMN_NAME__ID + " INTEGER PRIMARY KEY,"
+				+ COLUMN_NAME_NAME + " TEXT,"
+				+ COLUMN_NAME_DESCRIPTION + " TEXT,"
+				+ COLUMN_NAME_CREATE_DATE + " INTEGER,"
+				+ COLUMN_NAME_MODIFY_DATE + " INTEGER"
+				+ ");");
+       	}
+
+       	/*
+       	 * Creates a templates table, holding the ID of the entry each template belongs to and the 
+       	 * template's ordinal within it.
+       	 */
+       	private void createTemplateTable(final SQLiteDatabase db, final String tableName)
+       	{
+			db.execSQL("CREATE TABLE " + tableName + " ("
+				+ COLUMN_NAME__ID + " INTEGER PRIMARY KEY,"
+				+ COLUMN_NAME_ENTRY_ID + " INTEGER NOT NULL,"
+				+ COLUMN_NAME_ORDINAL + " INTEGER NOT NULL,"
+				+ COLUMN_NAME_TEMPLATE + " BLOB,"
+				+ COLUMN_NAME_FINGER_POSITION + " INTEGER,"
+				+ COLUMN_NAME_IMPRESSION_TYPE + " INTEGER,"
+				+ COLUMN_NAME_CAPTURE_DEVICE_TECH_ID + " INTEGER,"
+				+ COLUMN_NAME_IMAGE_SIZE_X + " INTEGER,"
+				+ COLUMN_NAME_IMAGE_SIZE_Y + " INTEGER,"
+				+ COLUMN_NAME_SIGNATURE + " BLOB"
+				+ ");");
+       	}
+
+       	/*
+       	 * Creates a templates table of the version 11 layout, keyed by template IDs from which the 
+       	 * ID of the entry each template belongs to is computed.
+       	 */
+       	private void createVersion11TemplateTable(final SQLiteDatabase db, final String tableName)
+       	{
+			db.execSQL("CREATE TABLE " + tableName + " ("
+				+ COLUMN_NAME__ID + " INTEGER PRIMARY KEY,"
+				+ COLUMN_NAME_TEMPLATE + " BLOB,"
+				+ COLUMN_NAME_FINGER_POSITION + " INTEGER,"
+				+ COLUMN_NAME_IMPRESSION_TYPE + " INTEGER,"
+				+ COLUMN_NAME_CAPTURE_DEVICE_TECH_ID + " INTEGER,"
+				+ COLUMN_NAME_IMAGE_SIZE_X + " INTEGER,"
+				+ COLUMN_NAME_IMAGE_SIZE_Y + " INTEGER,"
+				+ COLUMN_NAME_SIGNATURE + " BLOB"
+				+ ");");
+       	}
+
+       	/*
+       	 * Creates a table of the version 8 layout, which holds entries with their templates.
+       	 */
+       	private void createVersion8Table(final SQLiteDatabase db, final String tableName)
+       	{
+			db.execSQL("CREATE TABLE " + tableName + " ("
+				+ COLUMN_NAME__ID + " INTEGER PRIMARY KEY,"
+				+ COLUMN_NAME_NAME + " TEXT,"
+				+ COLUMN_NAME_DESCRIPTION + " TEXT,"
+				+ COLUMN_NAME_CREATE_DATE + " INTEGER,"
+				+ COLUMN_NAME_MODIFY_DATE + " INTEGER,"
+				+ COLUMN_NAME_TEMPLATE + " BLOB,"
+				+ COLUMN_NAME_FINGER_POSITION + " INTEGER,"
+				+ COLUMN_NAME_IMPRESSION_TYPE + " INTEGER,"
+				+ COLUMN_NAME_CAPTURE_DEVICE_TECH_ID + " INTEGER,"
+				+ COLUMN_NAME_IMAGE_SIZE_X + " INTEGER,"
+				+ COLUMN_NAME_IMAGE_SIZE_Y + " INTEGER,"
+				+ COLUMN_NAME_SIGNATURE + " BLOB"
+				+ ");");
+       	}
+
+       	/*
+       	 * Copies a version 7 table, whose dates are held as text, into a table with integer dates 
+       	 * and a unique index on names, keeping row IDs.  Entries sharing a name, which version 7 
+       	 * allowed, are kept by renaming all but the first "name (2)", "name (3)", and so on.  The 
+       	 * stamp is advanced so that the packed gallery file is rebuilt with the new names.
+       	 */
+       	private void migrateToIntegerDates(final SQLiteDatabase db)
+       	{
+       		final String tableName = TABLE_NAME + "_v8";
+       		
+       		/* Rename entries sharing a name. */
+       		final List<String> names  = new ArrayList<String>();
+       		final Cursor       cursor = db.rawQuery("SELECT " + COLUMN_NAME_NAME + " FROM " + TABLE_NAME 
+       				+ " WHERE " + COLUMN_NAME_NAME + " IS NOT NULL GROUP BY " + COLUMN_NAME_NAME 
+       				+ " HAVING COUNT(*) > 1", null);
+       		try
+       		{
+       			while (cursor.moveToNext())
+       			{
+       				names.add(cursor.getString(0));
+       			}
+       		}
+       		finally
+       		{
+       			cursor.close();
+       		}
+       		int count = 0;
+       		for (final String name : names)
+       		{
+       			count += renameDuplicates(db, name);
+       		}
+       		
+       		/* Copy the entries, converting their dates, and replace the table. */
+       		createVersion8Table(db, tableName);
+       		final StringBuilder columns = new StringBuilder(COLUMN_NAME__ID + ", " + COLUMN_NAME_NAME + ", " 
+       				+ COLUMN_NAME_DESCRIPTION);
+       		for (final String column : TEMPLATE_COLUMNS)
+       		{
+       			columns.append(", ").append(column);
+       		}
+       		db.execSQL("INSERT INTO " + tableName + " (" + columns + ", " + COLUMN_NAME_CREATE_DATE + ", " 
+       				+ COLUMN_NAME_MODIFY_DATE + ") SELECT " + columns + ", CAST(" + COLUMN_NAME_CREATE_DATE 
+       				+ " AS INTEGER), CAST(" + COLUMN_NAME_MODIFY_DATE + " AS INTEGER) FROM " + TABLE_NAME);
+       		db.execSQL("DROP TABLE " + TABLE_NAME);
+       		db.execSQL("ALTER TABLE " + tableName + " RENAME TO " + TABLE_NAME);
+       		createNameIndex(db);
+       		createFilterIndex(db, TABLE_NAME);
+       		db.execSQL(SQL_BUMP_STAMP);
+       		
+       		Log.i(FINGERPRINT_DB_TAG, "Converted dates to integers, renaming " + count + " duplicate entries");
+       	}
+
+       	/*
+       	 * Moves the templates of a version 8 table, with their attributes and signatures, into the 
+       	 * templates table under the same IDs, and copies the rest of each entry into an entries 
+       	 * table that replaces it.  Each table is filled by one statement within the upgrade's 
+       	 * transaction, so no template is decoded and the upgrade is all or nothing.  IDs are kept, 
+       	 * so the packed gallery file and journal remain current.
+       	 */
+       	private void splitTemplates(final SQLiteDatabase db)
+       	{
+       		final String tableName = TABLE_NAME + "_v9";
+
+       		/* Copy the templates. */
+       		final StringBuilder templateColumns = new StringBuilder(COLUMN_NAME__ID);
+       		for (final String column : TEMPLATE_COLUMNS)
+       		{
+       			templateColumns.append(", ").append(column);
+       		}
+       		createVersion11TemplateTable(db, TABLE_NAME_TEMPLATES);
+       		db.execSQL("INSERT INTO " + TABLE_NAME_TEMPLATES + " (" + templateColumns + ") SELECT " 
+       				+ templateColumns + " FROM " + TABLE_NAME);
+
+       		/* Copy the rest of the entries and replace the table. */
+       		final String entryColumns = COLUMN_NAME__ID + ", " + COLUMN_NAME_NAME + ", " + COLUMN_NAME_DESCRIPTION 
+       				+ ", " + COLUMN_NAME_CREATE_DATE + ", " + COLUMN_NAME_MODIFY_DATE;
+       		createTable(db, tableName);
+       		db.execSQL("INSERT INTO " + tableName + " (" + entryColumns + ") SELECT " + entryColumns 
+       				+ " FROM " + TABLE_NAME);
+       		db.execSQL("DROP TABLE " + TABLE_NAME);
+       		db.execSQL("ALTER TABLE " + tableName + " RENAME TO " + TABLE_NAME);
+       		createNameIndex(db);
+       		createFilterIndex(db, TABLE_NAME_TEMPLATES);
+
+       		Log.i(FINGERPRINT_DB_TAG, "Moved templates of " + DatabaseUtils.queryNumEntries(db, TABLE_NAME_TEMPLATES) 
+       				+ " entries into their own table");
+       	}
+
+       	/*
+       	 * Re-encodes the templates of a version 9 table from the IBSM template layout into the 
+       	 * compact layout.  Templates that cannot be decoded are left as they are, and fail to 
+       	 * decode as before.  The stamp is advanced so that the packed gallery file is rebuilt.
+       	 */
+       	private void compactTemplates(final SQLiteDatabase db)
+       	{
+       		final SQLiteStatement update = db.compileStatement("UPDATE " + TABLE_NAME_TEMPLATES + " SET " 
+       				+ COLUMN_NAME_TEMPLATE + " = ? WHERE " + COLUMN_NAME__ID + " = ?");
+       		final Cursor          cursor = db.query(TABLE_NAME_TEMPLATES, new String[] {COLUMN_NAME__ID, COLUMN_NAME_TEMPLATE}, 
+       				null, null, null, null, null);
+       		long                  before = 0;
+       		long                  after  = 0;
+       		int                   count  = 0;
+       		try
+       		{
+       			while (cursor.moveToNext())
+       			{
+       				final byte[]   templateBytes = cursor.getBlob(1);
+       				final Template template      = (templateBytes != null) ? convertLegacyBytesToTemplate(templateBytes) : null;
+       				final byte[]   compactBytes  = (template != null) ? convertTemplateToBytes(template) : null;
+       				if (compactBytes != null)
+       				{
+       					update.bindBlob(1, compactBytes);
+       					update.bindLong(2, cursor.getLong(0));
+       					update.executeUpdateDelete();
+       					before += templateBytes.length;
+       					after  += compactBytes.length;
+       					count++;
+       				}
+       			}
+       		}
+       		finally
+       		{
+       			cursor.close();
+       			update.close();
+       		}
+       		db.execSQL(SQL_BUMP_STAMP);
+       		
+       		Log.i(FINGERPRINT_DB_TAG, "Compacted " + count + " templates from " + before + " to " + after + " bytes");
+       	}
+
+       	/*
+       	 * Moves the templates of a version 10 table, each keyed by its entry's ID, to the first of 
+       	 * the IDs clustered by the entry's ID, by one statement within the upgrade's transaction.  
+       	 * Records still carry their entry's ID, so the packed gallery file and journal remain 
+       	 * current.
+       	 */
+       	private void clusterTemplates(final SQLiteDatabase db)
+       	{
+       		final String tableName = TABLE_NAME_TEMPLATES + "_v11";
+
+       		final StringBuilder templateColumns = new StringBuilder();
+       		for (final String column : TEMPLATE_COLUMNS)
+       		{
+       			templateColumns.append(", ").append(column);
+       		}
+       		createVersion11TemplateTable(db, tableName);
+       		db.execSQL("INSERT INTO " + tableName + " (" + COLUMN_NAME__ID + templateColumns + ") SELECT " 
+       				+ COLUMN_NAME__ID + " * " + MAX_TEMPLATES_PER_ENTRY + templateColumns + " FROM " 
+       				+ TABLE_NAME_TEMPLATES);
+       		db.execSQL("DROP TABLE " + TABLE_NAME_TEMPLATES);
+       		db.execSQL("ALTER TABLE " + tableName + " RENAME TO " + TABLE_NAME_TEMPLATES);
+       		createFilterIndex(db, TABLE_NAME_TEMPLATES);
+
+       		Log.i(FINGERPRINT_DB_TAG, "Clustered IDs of " + DatabaseUtils.queryNumEntries(db, TABLE_NAME_TEMPLATES) 
+       				+ " templates by entry");
+       	}
+
+       	/*
+       	 * Copies the templates of a version 11 table into a table holding each template's entry ID 
+       	 * and ordinal, computed from its ID, by one statement within the upgrade's transaction.  
+       	 * IDs are kept, and records still carry their entry's ID, so the packed gallery file and 
+       	 * journal remain current.
+       	 */
+       	private void linkTemplates(final SQLiteDatabase db)
+       	{
+       		final String tableName = TABLE_NAME_TEMPLATES + "_v12";
+
+       		final StringBuilder templateColumns = new StringBuilder();
+       		for (final String column : TEMPLATE_COLUMNS)
+       		{
+       			templateColumns.append(", ").append(column);
+       		}
+       		createTemplateTable(db, tableName);
+       		db.execSQL("INSERT INTO " + tableName + " (" + COLUMN_NAME__ID + ", " + COLUMN_NAME_ENTRY_ID + ", " 
+       				+ COLUMN_NAME_ORDINAL + templateColumns + ") SELECT " + COLUMN_NAME__ID + ", " 
+       				+ COLUMN_NAME__ID + " / " + MAX_TEMPLATES_PER_ENTRY + ", " + COLUMN_NAME__ID + " % " 
+       				+ MAX_TEMPLATES_PER_ENTRY + templateColumns + " FROM " + TABLE_NAME_TEMPLATES);
+       		db.execSQL("DROP TABLE " + TABLE_NAME_TEMPLATES);
+       		db.execSQL("ALTER TABLE " + tableName + " RENAME TO " + TABLE_NAME_TEMPLATES);
+       		createFilterIndex(db, TABLE_NAME_TEMPLATES);
+       		createEntryIndex(db);
+
+       		Log.i(FINGERPRINT_DB_TAG, "Linked " + DatabaseUtils.queryNumEntries(db, TABLE_NAME_TEMPLATES) 
+       				+ " templates to their entries by ID");
+       	}
+
+       	/*
+       	 * Renames all but the first entry with a name to unused names "name (2)", "name (3)", and so
+       	 * on.  Returns the number of entries renamed.
+       	 */
+       	private int renameDuplicates(final SQLiteDatabase db, final String name)
+       	{
+       		final List<Long> rowIds = new ArrayList<Long>();
+       		final Cursor     cursor = db.query(TABLE_NAME, new String[] {COLUMN_NAME__ID}, 
+       				COLUMN_NAME_NAME + " = ?", new String[] {name}, null, null, COLUMN_NAME__ID);
+       		try
+       		{
+       			while (cursor.moveToNext())
+       			{
+       				rowIds.add(Long.valueOf(cursor.getLong(0)));
+       			}
+       		}
+       		finally
+       		{
+       			cursor.close();
+       		}
+       		
+       		int suffix = 2;
+       		for (int i = 1; i < rowIds.size(); i++)
+       		{
+       			String newName;
+       			do
+       			{
+       				newName = name + " (" + suffix++ + ")";
+       			}
+       			while (DatabaseUtils.queryNumEntries(db, TABLE_NAME, COLUMN_NAME_NAME + " = ?", 
+       					new String[] {newName}) > 0);
+       			
+       			final ContentValues values = new ContentValues();
+       			values.put(COLUMN_NAME_NAME, newName);
+       			db.update(TABLE_NAME, values, COLUMN_NAME__ID + " = ?", new String[] {rowIds.get(i).toString()});
+       			Log.w(FINGERPRINT_DB_TAG, "Renamed duplicate entry for user \"" + name + "\" to \"" + newName + "\"");
+       		}
+       		
+       		return (rowIds.size() - 1);
+       	}
+
+       	/*
+       	 * Creates the unique index on names, which makes lookups by name logarithmic.
+       	 */
+       	private void createNameIndex(final SQLiteDatabase db)
+       	{
+       		db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS " + INDEX_NAME_NAME + " ON " + TABLE_NAME + " ("
+       				+ COLUMN_NAME_NAME + ")");
+       	}
+
+       	/*
+       	 * Creates the unique index on the entry IDs and ordinals of templates, which finds the 
+       	 * templates of an entry, in order, without scanning the table.
+       	 */
+       	private void createEntryIndex(final SQLiteDatabase db)
+       	{
+       		db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS " + INDEX_NAME_ENTRY + " ON " + TABLE_NAME_TEMPLATES + " ("
+       				+ COLUMN_NAME_ENTRY_ID + ", " + COLUMN_NAME_ORDINAL + ")");
+       	}
+
+       	/*
+       	 * Creates the index on the template attributes used to pre-filter candidates, on the table 
+       	 * that holds them.
+       	 */
+       	private void createFilterIndex(final SQLiteDatabase db, final String tableName)
+       	{
+       		db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_NAME_FILTER + " ON " + tableName + " ("
+       				+ COLUMN_NAME_FINGER_POSITION + ", " + COLUMN_NAME_IMPRESSION_TYPE + ", "
+       				+ COLUMN_NAME_CAPTURE_DEVICE_TECH_ID + ")");
+       	}
 	}
 	
 	/*
@@ -973,58 +4320,16 @@ public class IBMatcherDatabase
 	 */
 	private byte[] convertTemplateToBytes(final Template template)
 	{
-		/* Create temporary file for template. */
-		final File file = new File(Environment.getExternalStorageDirectory().getPath() + "/" + "dbtemp.ibsm_template");	        	
-		file.deleteOnExit();
-        try
-        {
-        	file.createNewFile();
-        }
-        catch (final IOException ioe)
-        {
-        	Log.e(FINGERPRINT_DB_TAG, "Failed to create temporary file for template");
-        	return (null);
-        }
-        	
-        /* Save template to file. */
-        try
-        {
-        	this.m_ibMatcher.saveTemplate(template, file.getAbsolutePath());	        	
-        }
-        catch (IBMatcherException ibme)
-        {
-        	Log.e(FINGERPRINT_DB_TAG, "Failed to save template file");
-        	return (null);
-        }
-        
-        /* Read template into byte array. */
+		/* Encode template in the compact layout, which drops the padding of the minutiae buffer. */
 		try
 		{
-			final int bytesToRead = (int)file.length();
-	        if (bytesToRead <= 0)
-	        {
-	        	Log.e(FINGERPRINT_DB_TAG, "Failed to get length of template file");
-	        	return (null);
-	        }
-				
-	        final byte[]          templateBytes = new byte[bytesToRead];
-	        final FileInputStream istream       = new FileInputStream(file);
-	        final int             bytesRead     = istream.read(templateBytes);
-			istream.close();				
-			if (bytesRead != bytesToRead)
-			{
-				Log.e(FINGERPRINT_DB_TAG, "Reading template file, expected" + bytesToRead 
-						+ "bytes, read only " + bytesRead + " bytes");
-				return (null);
-			}
-			
-			return (templateBytes);
+			return (IBCompactTemplateCodec.encode(template));
 		}
-		catch (final IOException ioe)
+		catch (final IBMatcherException ibme)
 		{
-        	Log.e(FINGERPRINT_DB_TAG, "Failed to read template file");
-        	return (null);				
-		}	        	
+			Log.e(FINGERPRINT_DB_TAG, "Failed to encode template with exception " + ibme.getType().toString());
+			return (null);
+		}
 	}
 	
 	/* 
@@ -1032,42 +4337,33 @@ public class IBMatcherDatabase
 	 */
 	private Template convertBytesToTemplate(final byte[] templateBytes)
 	{
-		/* Create temporary file for template. */
-		final File file = new File(Environment.getExternalStorageDirectory().getPath() + "/" + "dbtemp.ibsm_template");
-		file.deleteOnExit();
-	    try
-	    {
-	    	file.createNewFile();
-	    }
-        catch (final IOException ioe)
-        {
-        	Log.e(FINGERPRINT_DB_TAG, "Failed to create temporary file for template");
-        	return (null);
-        }
-        
-        /* Write template bytes to temporary file. */
-        try
-        {
-        	final FileOutputStream ostream = new FileOutputStream(file);
-			ostream.write(templateBytes);
-			ostream.close();
-	    }
-	    catch (IOException ioe)
-	    {
-	        Log.e(FINGERPRINT_DB_TAG, "Failed to write temporary file for template");
-	        return (null); 		        
-	    } 		        
-	        
-	    /* Load template from temporary file. */
-	    try
-	    {
-	        final Template template = this.m_ibMatcher.loadTemplate(file.getAbsolutePath());
-		    return (template);
-	    }
-	    catch (IBMatcherException ibme)
-	    {
-	        Log.e(FINGERPRINT_DB_TAG, "Failed to load template");
-	        return (null); 		         		        
-	    }
+		/* Decode template from the compact layout. */
+		try
+		{
+			return (IBCompactTemplateCodec.decode(templateBytes));
+		}
+		catch (final IBMatcherException ibme)
+		{
+			Log.e(FINGERPRINT_DB_TAG, "Failed to decode template with exception " + ibme.getType().toString());
+			return (null);
+		}
+	}
+	
+	/* 
+	 * Convert a byte array in the IBSM template layout, which versions 9 and earlier stored, to a 
+	 * template.
+	 */
+	private Template convertLegacyBytesToTemplate(final byte[] templateBytes)
+	{
+		/* Decode template in memory from the same layout that loadTemplate() reads. */
+		try
+		{
+			return (IBTemplateCodec.decode(templateBytes));
+		}
+		catch (final IBMatcherException ibme)
+		{
+			Log.e(FINGERPRINT_DB_TAG, "Failed to decode template with exception " + ibme.getType().toString());
+			return (null);
+		}
 	}
 }
@@ -0,0 +1,269 @@
+/* *************************************************************************************************
+ * IBMatcherFilter.java
+ *
+ * DESCRIPTION:
+ *     Candidate pre-filter for IBScanMatcher example database
+ *     http://www.integratedbiometrics.com
+ *
+ * NOTES:
+ *     Copyright (c) Integrated Biometrics, 2013
+ *
+ * HISTORY:
+ *     2013/03/22  First version.
+ ************************************************************************************************ */
+
+package com.facerec.tasol.tasolbiometricdemo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import com.integratedbiometrics.ibscancommon.IBCommon.CaptureDeviceTechId;
+import com.integratedbiometrics.ibscancommon.IBCommon.FingerPosition;
+import com.integratedbiometrics.ibscancommon.IBCommon.ImpressionType;
+import com.integratedbiometrics.ibscanmatcher.IBMinutiaeSignature;
+import com.integratedbiometrics.ibscanmatcher.IBMatcher.Template;
+
+/**
+ * Class that selects the gallery records worth matching against a probe from the attributes
+ * recorded in the templates' headers, before any native match runs.  Records of a different
+ * finger position than the probe cannot match and are excluded; a position of
+ * <code>FingerPosition.UNKNOWN</code> on either side is compatible with every position.  Among
+ * the compatible records, those that also agree with the probe on impression type, capture device
+ * technology and image size are ordered first, since they are the likeliest to match.
+ * <p>
+ * Candidates can further be culled by the distance of their minutiae signatures from the probe's
+ * (see <code>IBMinutiaeSignature</code>).
+ * <p>
+ * A filter indexes one immutable snapshot of gallery records by finger position, mirroring the
+ * indexed columns of the database table.
+ */
+public final class IBMatcherFilter
+{
+	/* *********************************************************************************************
+	 * PUBLIC CONSTANTS
+	 ******************************************************************************************** */
+
+	/**
+	 * The greatest affinity of two templates, when they agree on every secondary attribute.
+	 */
+	public static final int MAX_AFFINITY = 3;
+
+	/* *********************************************************************************************
+	 * PUBLIC INTERFACE
+	 ******************************************************************************************** */
+
+	/**
+	 * Create filter indexing a snapshot of gallery records.
+	 *
+	 * @param records  records in the gallery, which must not be modified
+	 */
+	public IBMatcherFilter(final IBMatcherGallery.Record[] records)
+	{
+		final Map<FingerPosition, List<IBMatcherGallery.Record>> buckets =
+				new EnumMap<FingerPosition, List<IBMatcherGallery.Record>>(FingerPosition.class);
+		for (final IBMatcherGallery.Record record : records)
+		{
+			final FingerPosition          position = getFingerPosition(record.getTemplate());
+			List<IBMatcherGallery.Record> bucket   = buckets.get(position);
+			if (bucket == null)
+			{
+				bucket = new ArrayList<IBMatcherGallery.Record>();
+				buckets.put(position, bucket);
+			}
+			bucket.add(record);
+		}
+
+		this.m_records = records;
+		this.m_buckets = new EnumMap<FingerPosition, IBMatcherGallery.Record[]>(FingerPosition.class);
+		for (final Map.Entry<FingerPosition, List<IBMatcherGallery.Record>> entry : buckets.entrySet())
+		{
+			final List<IBMatcherGallery.Record> bucket = entry.getValue();
+			this.m_buckets.put(entry.getKey(), bucket.toArray(new IBMatcherGallery.Record[bucket.size()]));
+		}
+	}
+
+	/**
+	 * Get snapshot of gallery records indexed by this filter.
+	 *
+	 * @return records indexed by this filter
+	 */
+	public IBMatcherGallery.Record[] getRecords()
+	{
+		return (this.m_records);
+	}
+
+	/**
+	 * Select records compatible with a probe, those of greatest affinity first.
+	 *
+	 * @param probe  probe template
+	 * @return       compatible records, in a new array
+	 */
+	public IBMatcherGallery.Record[] select(final Template probe)
+	{
+		final FingerPosition position = getFingerPosition(probe);
+
+		/* A probe of unknown position is compatible with every record. */
+		final IBMatcherGallery.Record[] exact   = (position == FingerPosition.UNKNOWN) ? this.m_records : this.m_buckets.get(position);
+		final IBMatcherGallery.Record[] unknown = (position == FingerPosition.UNKNOWN) ? null : this.m_buckets.get(FingerPosition.UNKNOWN);
+		final int                       count   = ((exact != null) ? exact.length : 0) + ((unknown != null) ? unknown.length : 0);
+
+		/* Order candidates by descending affinity, keeping gallery order within each affinity. */
+		final int[] affinities = new int[count];
+		final int[] starts     = new int[MAX_AFFINITY + 2];
+		int         index      = 0;
+		for (final IBMatcherGallery.Record[] bucket : new IBMatcherGallery.Record[][] {exact, unknown})
+		{
+			if (bucket == null)
+			{
+				continue;
+			}
+			for (final IBMatcherGallery.Record record : bucket)
+			{
+				affinities[index] = MAX_AFFINITY - getAffinity(probe, record.getTemplate());
+				starts[affinities[index] + 1]++;
+				index++;
+			}
+		}
+		for (int i = 1; i < starts.length; i++)
+		{
+			starts[i] += starts[i - 1];
+		}
+
+		final IBMatcherGallery.Record[] candidates = new IBMatcherGallery.Record[count];
+		index = 0;
+		for (final IBMatcherGallery.Record[] bucket : new IBMatcherGallery.Record[][] {exact, unknown})
+		{
+			if (bucket == null)
+			{
+				continue;
+			}
+			for (final IBMatcherGallery.Record record : bucket)
+			{
+				candidates[starts[affinities[index]]++] = record;
+				index++;
+			}
+		}
+
+		return (candidates);
+	}
+
+	/**
+	 * Cull candidates whose minutiae signature is farther than a cut-off from the probe's.
+	 * Candidates without a signature are kept.
+	 *
+	 * @param candidates  candidate records
+	 * @param probe       minutiae signature of probe
+	 * @param cutoff      greatest distance of kept candidates
+	 * @return            kept candidates, in their original order
+	 */
+	public static IBMatcherGallery.Record[] cull(final IBMatcherGallery.Record[] candidates,
+			final IBMinutiaeSignature probe, final float cutoff)
+	{
+		final IBMatcherGallery.Record[] kept  = new IBMatcherGallery.Record[candidates.length];
+		int                             count = 0;
+		for (final IBMatcherGallery.Record record : candidates)
+		{
+			if ((record.getSignature() == null) || (probe.distance(record.getSignature()) <= cutoff))
+			{
+				kept[count++] = record;
+			}
+		}
+
+		return ((count == kept.length) ? kept : Arrays.copyOf(kept, count));
+	}
+
+	/**
+	 * Determine whether a gallery template can match a probe, judging by finger position alone.
+	 *
+	 * @param probe      probe template
+	 * @param candidate  gallery template
+	 * @return           <code>true</code> if the templates are compatible; <code>false</code>
+	 *                   otherwise
+	 */
+	public static boolean isCompatible(final Template probe, final Template candidate)
+	{
+		final FingerPosition probePosition     = getFingerPosition(probe);
+		final FingerPosition candidatePosition = getFingerPosition(candidate);
+
+		return ((probePosition == FingerPosition.UNKNOWN) || (candidatePosition == FingerPosition.UNKNOWN)
+				|| (probePosition == candidatePosition));
+	}
+
+	/**
+	 * Get affinity of a gallery template to a probe, i.e., the number of secondary attributes
+	 * (impression type, capture device technology and image size) on which they agree.
+	 *
+	 * @param probe      probe template
+	 * @param candidate  gallery template
+	 * @return           affinity, between 0 and <code>MAX_AFFINITY</code>
+	 */
+	public static int getAffinity(final Template probe, final Template candidate)
+	{
+		int affinity = 0;
+		if (getImpressionType(probe) == getImpressionType(candidate))
+		{
+			affinity++;
+		}
+		if (getCaptureDeviceTechId(probe) == getCaptureDeviceTechId(candidate))
+		{
+			affinity++;
+		}
+		if ((probe.imageSizeX == candidate.imageSizeX) && (probe.imageSizeY == candidate.imageSizeY))
+		{
+			affinity++;
+		}
+
+		return (affinity);
+	}
+
+	/**
+	 * Get finger position of a template, treating a missing position as unknown.
+	 *
+	 * @param template  template
+	 * @return          finger position of template
+	 */
+	public static FingerPosition getFingerPosition(final Template template)
+	{
+		return ((template.fingerPosition != null) ? template.fingerPosition : FingerPosition.UNKNOWN);
+	}
+
+	/**
+	 * Get impression type of a template, treating a missing type as unknown.
+	 *
+	 * @param template  template
+	 * @return          impression type of template
+	 */
+	public static ImpressionType getImpressionType(final Template template)
+	{
+		return ((template.impressionType != null) ? template.impressionType : ImpressionType.UNKNOWN);
+	}
+
+	/**
+	 * Get capture device technology ID of a template, treating a missing ID as unknown.
+	 *
+	 * @param template  template
+	 * @return          capture device technology ID of template
+	 */
+	public static CaptureDeviceTechId getCaptureDeviceTechId(final Template template)
+	{
+		return ((template.captureDeviceTechId != null) ? template.captureDeviceTechId
+				: CaptureDeviceTechId.UNKNOWN_OR_UNSPECIFIED);
+	}
+
+	/* *********************************************************************************************
+	 * PRIVATE INTERFACE
+	 ******************************************************************************************** */
+
+	/*
+	 * Snapshot of gallery records indexed by this filter.
+	 */
+	private final IBMatcherGallery.Record[]                      m_records;
+
+	/*
+	 * Records of snapshot by finger position, in gallery order.
+	 */
+	private final Map<FingerPosition, IBMatcherGallery.Record[]> m_buckets;
+}
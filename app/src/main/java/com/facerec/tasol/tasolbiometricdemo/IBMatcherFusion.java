@@ -0,0 +1,452 @@
+/* *************************************************************************************************
+ * IBMatcherFusion.java
+ *
+ * DESCRIPTION:
+ *     Score fusion over the templates of each identity for IBScanMatcher example database
+ *     http://www.integratedbiometrics.com
+ *
+ * NOTES:
+ *     Copyright (c) Integrated Biometrics, 2013
+ *
+ * HISTORY:
+ *     2013/03/22  First version.
+ ************************************************************************************************ */
+
+package com.facerec.tasol.tasolbiometricdemo;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import android.util.Log;
+
+/**
+ * Class that fuses the matching scores of the templates of each identity in an
+ * <code>IBMatcherDatabase</code> into one score per identity.  A person may be enrolled with
+ * several templates, of different fingers or of different impressions of one finger; the gallery
+ * holds one record per template, and the records of one identity share its row ID.  Scores are
+ * added record by record, in the order the gallery is scanned, and only matching scores (those
+ * above zero) count, so an identity none of whose templates match is never returned.
+ * <p>
+ * Under <code>Rule.MAX</code> and <code>Rule.SUM</code>, an identity's score only grows as its
+ * templates are added, so a scan for the first match can stop, cutting short the rest of that
+ * identity's templates and of the gallery, as soon as <code>add()</code> reports that an identity
+ * has cleared the threshold; likewise, a search for the best <code>k</code> identities can stop
+ * once <code>getClearedCount()</code> reaches <code>k</code>.  Under <code>Rule.RANK</code>,
+ * scores depend on every other match, so the whole gallery must be scanned first.
+ */
+public final class IBMatcherFusion
+{
+	/* *********************************************************************************************
+	 * PUBLIC INNER CLASSES
+	 ******************************************************************************************** */
+
+	/**
+	 * Rule by which the scores of an identity's templates are fused.
+	 */
+	public enum Rule
+	{
+		/**
+		 * The score of an identity is the best score of its templates.  This is the score of a
+		 * single-template match, so thresholds carry over.
+		 */
+		MAX,
+
+		/**
+		 * The score of an identity is the sum of the scores of its templates, so that several
+		 * matching fingers or impressions reinforce each other.
+		 */
+		SUM,
+
+		/**
+		 * The score of an identity is its Borda count: the matching templates of all identities
+		 * are ranked by score, each earns one point, plus one for every matching template that
+		 * scored lower, and an identity's points are summed.  Unlike <code>SUM</code>, one
+		 * unusually high score does not outweigh several good ones.
+		 */
+		RANK
+	}
+
+	/**
+	 * Class encapsulating the fused score of one identity.
+	 */
+	public static final class Result
+	{
+		/*
+		 * Record of the identity's best-scoring template.
+		 */
+		private final IBMatcherGallery.Record m_record;
+
+		/*
+		 * Fused score of the identity.
+		 */
+		private final int                     m_score;
+
+		/*
+		 * Constructor for results.
+		 */
+		private Result(final IBMatcherGallery.Record record, final int score)
+		{
+			this.m_record = record;
+			this.m_score  = score;
+		}
+
+		/**
+		 * Get record of the identity's best-scoring template.
+		 *
+		 * @return record of best-scoring template
+		 */
+		public IBMatcherGallery.Record getRecord()
+		{
+			return (this.m_record);
+		}
+
+		/**
+		 * Get fused score of the identity.
+		 *
+		 * @return fused score
+		 */
+		public int getScore()
+		{
+			return (this.m_score);
+		}
+	}
+
+	/* *********************************************************************************************
+	 * PUBLIC INTERFACE
+	 ******************************************************************************************** */
+
+	/**
+	 * Create fusion of no scores.
+	 *
+	 * @param rule       rule by which scores are fused
+	 * @param threshold  least fused score of a match; 1 accepts any identity with a template that
+	 *                   matches at the matcher's level
+	 */
+	public IBMatcherFusion(final Rule rule, final int threshold)
+	{
+		if (rule == null)
+		{
+        	Log.e(FUSION_TAG, "Received null rule");
+			throw new IllegalArgumentException("Received null rule");
+		}
+		if (threshold < 1)
+		{
+        	Log.e(FUSION_TAG, "Received invalid threshold");
+			throw new IllegalArgumentException("Received invalid threshold");
+		}
+
+		this.m_rule      = rule;
+		this.m_threshold = threshold;
+	}
+
+	/**
+	 * Get rule by which scores are fused.
+	 *
+	 * @return rule
+	 */
+	public Rule getRule()
+	{
+		return (this.m_rule);
+	}
+
+	/**
+	 * Get least fused score of a match.
+	 *
+	 * @return threshold
+	 */
+	public int getThreshold()
+	{
+		return (this.m_threshold);
+	}
+
+	/**
+	 * Determine whether the first matching template is a match, i.e., whether a scan for the first
+	 * match can use a plain first-match search.
+	 *
+	 * @return <code>true</code> if any matching template clears the threshold; <code>false</code>
+	 *         otherwise
+	 */
+	public boolean isFirstMatch()
+	{
+		return ((this.m_rule != Rule.RANK) && (this.m_threshold <= 1));
+	}
+
+	/**
+	 * Add the score of a template.  Scores of zero or less are ignored.
+	 *
+	 * @param record  record of the template
+	 * @param score   matching score of the template
+	 * @return        <code>true</code> if the template's identity has now cleared the threshold,
+	 *                after which <code>getMatch()</code> returns it; <code>false</code> otherwise,
+	 *                and always under <code>Rule.RANK</code>
+	 */
+	public boolean add(final IBMatcherGallery.Record record, final int score)
+	{
+		if (score <= 0)
+		{
+			return (false);
+		}
+
+		final Long rowId    = Long.valueOf(record.getRowId());
+		Identity   identity = this.m_identities.get(rowId);
+		if (identity == null)
+		{
+			identity = new Identity(this.m_identities.size());
+			this.m_identities.put(rowId, identity);
+		}
+		identity.add(record, score);
+		this.m_scoreCount++;
+
+		if ((this.m_rule != Rule.RANK) && !identity.m_cleared && (identity.getScore(this.m_rule) >= this.m_threshold))
+		{
+			identity.m_cleared = true;
+			this.m_clearedCount++;
+			if (this.m_match == null)
+			{
+				this.m_match = identity;
+				return (true);
+			}
+		}
+		return (false);
+	}
+
+	/**
+	 * Get number of identities that have cleared the threshold.  An identity's score only grows 
+	 * under <code>Rule.MAX</code> and <code>Rule.SUM</code>, so these stay cleared however many 
+	 * more scores are added.
+	 *
+	 * @return number of identities that have cleared the threshold; always 0 under 
+	 *         <code>Rule.RANK</code>
+	 */
+	public int getClearedCount()
+	{
+		return (this.m_clearedCount);
+	}
+
+	/**
+	 * Get the first identity that cleared the threshold or, under <code>Rule.RANK</code>, the best
+	 * identity if it clears the threshold.
+	 *
+	 * @return match, if there is one; <code>null</code> otherwise
+	 */
+	public Result getMatch()
+	{
+		if (this.m_rule == Rule.RANK)
+		{
+			final Result[] best = getBest(1);
+			return (((best.length > 0) && (best[0].m_score >= this.m_threshold)) ? best[0] : null);
+		}
+
+		return ((this.m_match != null) ? this.m_match.getResult(this.m_rule) : null);
+	}
+
+	/**
+	 * Get the identities of best fused score.  Ties are broken in favor of the identity whose
+	 * first matching template was added first.  Only the best <code>k</code> identities are held
+	 * while the identities are examined, in a min-heap, rather than all being sorted.
+	 *
+	 * @param k  maximum number of identities to return
+	 * @return   up to <code>k</code> identities, best first
+	 */
+	public Result[] getBest(final int k)
+	{
+		if (this.m_rule == Rule.RANK)
+		{
+			rank();
+		}
+
+		/* Order identities from worst to best, so that the head of the heap is the k-th best. */
+		final Comparator<Identity> worstFirst = new Comparator<Identity>()
+		{
+			@Override
+			public int compare(final Identity identity1, final Identity identity2)
+			{
+				final long score1 = identity1.getScore(IBMatcherFusion.this.m_rule);
+				final long score2 = identity2.getScore(IBMatcherFusion.this.m_rule);
+				if (score1 != score2)
+				{
+					return ((score1 < score2) ? -1 : 1);
+				}
+				return ((identity1.m_order > identity2.m_order) ? -1 : ((identity1.m_order < identity2.m_order) ? 1 : 0));
+			}
+		};
+
+		final int                     size = Math.min(k, this.m_identities.size());
+		final PriorityQueue<Identity> best = new PriorityQueue<Identity>(Math.max(1, size), worstFirst);
+		for (final Identity identity : this.m_identities.values())
+		{
+			if (best.size() < size)
+			{
+				best.add(identity);
+			}
+			else if ((size > 0) && (worstFirst.compare(identity, best.peek()) > 0))
+			{
+				best.poll();
+				best.add(identity);
+			}
+		}
+
+		final Result[] results = new Result[best.size()];
+		for (int i = results.length - 1; i >= 0; i--)
+		{
+			results[i] = best.poll().getResult(this.m_rule);
+		}
+		return (results);
+	}
+
+	/* *********************************************************************************************
+	 * PRIVATE INTERFACE
+	 ******************************************************************************************** */
+
+	/*
+	 * Log tag for this class.
+	 */
+	private static final String FUSION_TAG = "IBMatcher Fusion";
+
+	/*
+	 * Class accumulating the matching scores of one identity.
+	 */
+	private static final class Identity
+	{
+		/*
+		 * Order in which the identity's first matching template was added.
+		 */
+		private final int               m_order;
+
+		/*
+		 * Record of the best-scoring template, and its score.
+		 */
+		private IBMatcherGallery.Record m_record  = null;
+		private int                     m_max     = 0;
+
+		/*
+		 * Sum of scores, and Borda count once ranked.
+		 */
+		private long                    m_sum     = 0;
+		private long                    m_points  = 0;
+
+		/*
+		 * Scores of the identity's matching templates.
+		 */
+		private int[]                   m_scores  = new int[2];
+		private int                     m_count   = 0;
+
+		/*
+		 * Whether the identity has cleared the threshold.
+		 */
+		private boolean                 m_cleared = false;
+
+		private Identity(final int order)
+		{
+			this.m_order = order;
+		}
+
+		private void add(final IBMatcherGallery.Record record, final int score)
+		{
+			if (score > this.m_max)
+			{
+				this.m_record = record;
+				this.m_max    = score;
+			}
+			this.m_sum += score;
+			if (this.m_count == this.m_scores.length)
+			{
+				this.m_scores = Arrays.copyOf(this.m_scores, 2 * this.m_count);
+			}
+			this.m_scores[this.m_count++] = score;
+		}
+
+		private long getScore(final Rule rule)
+		{
+			switch (rule)
+			{
+				case SUM:
+					return (this.m_sum);
+				case RANK:
+					return (this.m_points);
+				default:
+					return (this.m_max);
+			}
+		}
+
+		private Result getResult(final Rule rule)
+		{
+			return (new Result(this.m_record, (int) Math.min(getScore(rule), Integer.MAX_VALUE)));
+		}
+	}
+
+	/*
+	 * Rule by which scores are fused, and least fused score of a match.
+	 */
+	private final Rule                m_rule;
+	private final int                 m_threshold;
+
+	/*
+	 * Identities with a matching template, by row ID.
+	 */
+	private final Map<Long, Identity> m_identities   = new HashMap<Long, Identity>();
+
+	/*
+	 * Number of matching scores added.
+	 */
+	private int                       m_scoreCount   = 0;
+
+	/*
+	 * Number of identities that cleared the threshold.
+	 */
+	private int                       m_clearedCount = 0;
+
+	/*
+	 * First identity that cleared the threshold, or null.
+	 */
+	private Identity                  m_match        = null;
+
+	/*
+	 * Compute the Borda count of every identity from all scores added so far.
+	 */
+	private void rank()
+	{
+		final int[] scores = new int[this.m_scoreCount];
+		int         count  = 0;
+		for (final Identity identity : this.m_identities.values())
+		{
+			System.arraycopy(identity.m_scores, 0, scores, count, identity.m_count);
+			count += identity.m_count;
+		}
+		Arrays.sort(scores);
+
+		for (final Identity identity : this.m_identities.values())
+		{
+			identity.m_points = 0;
+			for (int i = 0; i < identity.m_count; i++)
+			{
+				identity.m_points += countLower(scores, identity.m_scores[i]) + 1;
+			}
+		}
+	}
+
+	/*
+	 * Count scores in sorted array lower than a score.
+	 */
+	private static int countLower(final int[] sorted, final int score)
+	{
+		int low  = 0;
+		int high = sorted.length;
+		while (low < high)
+		{
+			final int middle = (low + high) >>> 1;
+			if (sorted[middle] < score)
+			{
+				low = middle + 1;
+			}
+			else
+			{
+				high = middle;
+			}
+		}
+		return (low);
+	}
+}
@@ -0,0 +1,727 @@
+/* *************************************************************************************************
+ * IBMatcherGallery.java
+ *
+ * DESCRIPTION:
+ *     Resident template gallery for IBScanMatcher example database
+ *     http://www.integratedbiometrics.com
+ *
+ * NOTES:
+ *     Copyright (c) Integrated Biometrics, 2013
+ *
+ * HISTORY:
+ *     2013/03/22  First version.
+ ************************************************************************************************ */
+
+package com.facerec.tasol.tasolbiometricdemo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.util.Log;
+
+import com.integratedbiometrics.ibscanmatcher.IBMinutiaeSignature;
+import com.integratedbiometrics.ibscanmatcher.IBMatcher.NativeTemplate;
+import com.integratedbiometrics.ibscanmatcher.IBMatcher.Template;
+import com.integratedbiometrics.ibscanmatcher.IBTemplateCodec;
+
+/**
+ * Class that keeps the decoded templates of an <code>IBMatcherDatabase</code> resident in memory,
+ * so that identification does not query and decode the database for every probe.  The gallery is
+ * loaded once into a base snapshot; the database's write operations then only fold their changes
+ * into a tail (see <code>IBMatcherJournal</code>), so a write costs time proportional to the tail
+ * rather than to the gallery, and the filter index of the base is kept.  Once the tail grows long,
+ * <code>compact()</code> folds it into a new base.  Readers get immutable snapshots that writers
+ * replace, never modify, so a scan needs no lock.  For the same reason, the native templates of
+ * replaced records are not released explicitly: a scan of an older snapshot may still be using
+ * them, so they are released once they have been garbage-collected, when the next native
+ * templates are created, e.g., by the load of the snapshot that replaces them.
+ */
+public class IBMatcherGallery
+{
+	/* *********************************************************************************************
+	 * PUBLIC CONSTANTS
+	 ******************************************************************************************** */
+
+	/**
+	 * The default memory budget, in bytes.
+	 */
+	public static final long DEFAULT_MEMORY_BUDGET = 32L * 1024L * 1024L;
+
+	/* *********************************************************************************************
+	 * PUBLIC INNER CLASSES
+	 ******************************************************************************************** */
+
+	/**
+	 * Class encapsulating one decoded template of the database, with its entry.  An entry with 
+	 * several templates has one record per template, all with the entry's row ID.
+	 */
+	public static final class Record
+	{
+		/*
+		 * Row ID of this record's entry in the database.
+		 */
+		private final long                m_rowId;
+
+		/*
+		 * Name of the person associated with this record.
+		 */
+		private final String              m_name;
+
+		/*
+		 * Description associated with this record.
+		 */
+		private final String              m_description;
+
+		/*
+		 * Date on which this record was created, in milliseconds since the epoch.
+		 */
+		private final long                m_createDate;
+
+		/*
+		 * Date on which this record was last modified, in milliseconds since the epoch.
+		 */
+		private final long                m_modifyDate;
+
+		/*
+		 * Decoded fingerprint template in this record.
+		 */
+		private final Template            m_template;
+
+		/*
+		 * Fingerprint template converted into native memory, if any.
+		 */
+		private final NativeTemplate      m_nativeTemplate;
+
+		/*
+		 * Minutiae signature of the template, if any.
+		 */
+		private final IBMinutiaeSignature m_signature;
+
+		/*
+		 * Estimated memory held by this record, in bytes.
+		 */
+		private final long                m_size;
+
+		/*
+		 * Constructor for gallery records.
+		 */
+		protected Record(long rowId, String name, String description, long createDate,
+				long modifyDate, Template template, NativeTemplate nativeTemplate,
+				IBMinutiaeSignature signature)
+		{
+			this.m_rowId          = rowId;
+			this.m_name           = name;
+			this.m_description    = description;
+			this.m_createDate     = createDate;
+			this.m_modifyDate     = modifyDate;
+			this.m_template       = template;
+			this.m_nativeTemplate = nativeTemplate;
+			this.m_signature      = signature;
+			this.m_size           = RECORD_OVERHEAD + IBTemplateCodec.getEncodedLength(template)
+					+ ((nativeTemplate != null) ? IBTemplateCodec.getEncodedLength(template) : 0)
+					+ ((signature != null) ? IBMinutiaeSignature.ENCODED_LENGTH : 0)
+					+ 2L * (name.length() + description.length());
+		}
+
+		/**
+		 * Get row ID of this record's entry in the database.
+		 *
+		 * @return row ID of this record's entry
+		 */
+		public long getRowId()
+		{
+			return (this.m_rowId);
+		}
+
+		/**
+		 * Get name of person associated with this record.
+		 *
+		 * @return name of person associated with this record
+		 */
+		public String getName()
+		{
+			return (this.m_name);
+		}
+
+		/**
+		 * Get description associated with this record.
+		 *
+		 * @return description associated with this record
+		 */
+		public String getDescription()
+		{
+			return (this.m_description);
+		}
+
+		/**
+		 * Get date on which this record was created.
+		 *
+		 * @return date on which this record was created, in milliseconds since the epoch
+		 */
+		public long getCreateDate()
+		{
+			return (this.m_createDate);
+		}
+
+		/**
+		 * Get date on which this record was last modified.
+		 *
+		 * @return date on which this record was last modified, in milliseconds since the epoch
+		 */
+		public long getModifyDate()
+		{
+			return (this.m_modifyDate);
+		}
+
+		/**
+		 * Get decoded fingerprint template in this record.
+		 *
+		 * @return fingerprint template in this record
+		 */
+		public Template getTemplate()
+		{
+			return (this.m_template);
+		}
+
+		/**
+		 * Get fingerprint template in this record converted into native memory.
+		 *
+		 * @return native template in this record, or <code>null</code> if there is none
+		 */
+		public NativeTemplate getNativeTemplate()
+		{
+			return (this.m_nativeTemplate);
+		}
+
+		/**
+		 * Get minutiae signature of template in this record.
+		 *
+		 * @return minutiae signature, or <code>null</code> if it could not be computed
+		 */
+		public IBMinutiaeSignature getSignature()
+		{
+			return (this.m_signature);
+		}
+
+		/**
+		 * Get estimated memory held by this record.
+		 *
+		 * @return estimated memory held by this record, in bytes
+		 */
+		public long getSize()
+		{
+			return (this.m_size);
+		}
+	}
+
+	/* *********************************************************************************************
+	 * PUBLIC INTERFACE
+	 ******************************************************************************************** */
+
+	/**
+	 * Create new, non-resident gallery with the default memory budget.
+	 */
+	public IBMatcherGallery()
+	{
+		this.m_memoryBudget = DEFAULT_MEMORY_BUDGET;
+	}
+
+	/**
+	 * Get snapshot of the records in the gallery, the base records not removed by the tail, then
+	 * the tail's records.  The returned array must not be modified.
+	 *
+	 * @return records in the gallery, if it is resident; <code>null</code> otherwise
+	 */
+	public Record[] getRecords()
+	{
+		final Record[]              base;
+		final IBMatcherJournal.Tail tail;
+		synchronized (this)
+		{
+			if (this.m_base == null)
+			{
+				return (null);
+			}
+			base = this.m_base;
+			tail = this.m_tail;
+		}
+
+		return (merge(base, tail, tail.getRecords()));
+	}
+
+	/**
+	 * Get snapshot of the records in the gallery that are compatible with a probe, those likeliest
+	 * to match first (see <code>IBMatcherFilter</code>).  Candidates among the base records come
+	 * before candidates among the tail's records.  The filter index of the base is built on the
+	 * first call after each load or compaction; that of the tail on the first call after a write.
+	 *
+	 * @param probe  probe template
+	 * @return       candidate records, if the gallery is resident; <code>null</code> otherwise
+	 */
+	public Record[] getCandidates(final Template probe)
+	{
+		final IBMatcherFilter       filter;
+		final IBMatcherFilter       tailFilter;
+		final IBMatcherJournal.Tail tail;
+		synchronized (this)
+		{
+			if (this.m_base == null)
+			{
+				return (null);
+			}
+			if ((this.m_filter == null) || (this.m_filter.getRecords() != this.m_base))
+			{
+				this.m_filter = new IBMatcherFilter(this.m_base);
+			}
+			if ((this.m_tailFilter == null) || (this.m_tailFilter.getRecords() != this.m_tail.getRecords()))
+			{
+				this.m_tailFilter = new IBMatcherFilter(this.m_tail.getRecords());
+			}
+			filter     = this.m_filter;
+			tailFilter = this.m_tailFilter;
+			tail       = this.m_tail;
+		}
+
+		if (tail.isEmpty())
+		{
+			return (filter.select(probe));
+		}
+		return (merge(tail.isCleared() ? new Record[0] : filter.select(probe), tail, tailFilter.select(probe)));
+	}
+
+	/**
+	 * Get snapshot of the records of one entry, found by row ID without scanning the gallery.  The
+	 * row index of the base is built on the first call after each load or compaction; the tail's 
+	 * records, which are few, are scanned.
+	 *
+	 * @param rowId  row ID of the entry
+	 * @return       records of the entry, empty if there is no such entry, if the gallery is 
+	 *               resident; <code>null</code> otherwise
+	 */
+	public Record[] getEntryRecords(final long rowId)
+	{
+		final Map<Long, Record[]>   rowIndex;
+		final IBMatcherJournal.Tail tail;
+		synchronized (this)
+		{
+			if (this.m_base == null)
+			{
+				return (null);
+			}
+			if (this.m_rowIndexBase != this.m_base)
+			{
+				this.m_rowIndex     = indexRows(this.m_base);
+				this.m_rowIndexBase = this.m_base;
+			}
+			rowIndex = this.m_rowIndex;
+			tail     = this.m_tail;
+		}
+
+		final List<Record> records = new ArrayList<Record>();
+		final Record[]     base    = rowIndex.get(Long.valueOf(rowId));
+		if ((base != null) && !tail.isCleared())
+		{
+			for (final Record record : base)
+			{
+				if (tail.isEmpty() || !tail.hides(record.m_name))
+				{
+					records.add(record);
+				}
+			}
+		}
+		for (final Record record : tail.getRecords())
+		{
+			if (record.m_rowId == rowId)
+			{
+				records.add(record);
+			}
+		}
+		return (records.toArray(new Record[records.size()]));
+	}
+
+	/**
+	 * Determine whether the gallery is resident.
+	 *
+	 * @return <code>true</code> if the gallery is resident; <code>false</code> otherwise
+	 */
+	public synchronized boolean isResident()
+	{
+		return (this.m_base != null);
+	}
+
+	/**
+	 * Get generation of the gallery.  The generation changes with every write, so a loader can
+	 * detect writes that happened while it was reading the database.
+	 *
+	 * @return generation of the gallery
+	 */
+	public synchronized long getGeneration()
+	{
+		return (this.m_generation);
+	}
+
+	/**
+	 * Determine whether the last load failed because the gallery did not fit in the memory budget 
+	 * or could not be converted into native memory.  The failure is remembered until the budget 
+	 * changes or a write may shrink the gallery, so that identification does not rescan the 
+	 * database for every probe only to fail again.
+	 *
+	 * @return <code>true</code> if loading is known to fail; <code>false</code> otherwise
+	 */
+	public synchronized boolean isLoadFailed()
+	{
+		return (this.m_loadFailed);
+	}
+
+	/**
+	 * Remember that a load failed, unless the gallery was written since the load started.
+	 *
+	 * @param generation  generation of the gallery when the database read started
+	 */
+	public synchronized void failLoad(final long generation)
+	{
+		if (generation == this.m_generation)
+		{
+			this.m_loadFailed = true;
+		}
+	}
+
+	/**
+	 * Make gallery resident with records read from the database.
+	 *
+	 * @param records     records read from the database
+	 * @param generation  generation of the gallery when the database read started
+	 * @return            <code>true</code> if the gallery is now resident; <code>false</code> if
+	 *                    it was written during the read or the records exceed the memory budget
+	 */
+	public synchronized boolean load(final List<Record> records, final long generation)
+	{
+		if (generation != this.m_generation)
+		{
+			Log.w(GALLERY_TAG, "Gallery written during load; discarding " + records.size() + " records");
+			return (false);
+		}
+
+		long size = 0;
+		for (final Record record : records)
+		{
+			size += record.m_size;
+		}
+		if (size > this.m_memoryBudget)
+		{
+			Log.w(GALLERY_TAG, "Gallery of " + records.size() + " records needs " + size
+					+ " bytes, over budget of " + this.m_memoryBudget + " bytes");
+			this.m_loadFailed = true;
+			return (false);
+		}
+
+		this.m_base       = records.toArray(new Record[records.size()]);
+		this.m_tail       = new IBMatcherJournal.Tail(0);
+		this.m_memoryUsed = size;
+		Log.i(GALLERY_TAG, "Loaded " + this.m_base.length + " records in " + size + " bytes");
+		return (true);
+	}
+
+	/**
+	 * Fold the change made by a database write into the tail.  The memory of records the change
+	 * removes is only reclaimed when the tail is compacted.  A change that removes records clears a
+	 * remembered load failure; one that pushes the gallery over budget drops it and is remembered
+	 * as a load failure.
+	 *
+	 * @param change  change made by the write; its records must have native templates
+	 */
+	public synchronized void apply(final IBMatcherJournal.Change change)
+	{
+		this.m_generation++;
+		if (change.isClear() || (change.getRemoveName() != null))
+		{
+			this.m_loadFailed = false;
+		}
+		if (this.m_base == null)
+		{
+			return;
+		}
+
+		long size = change.isClear() ? 0 : this.m_memoryUsed;
+		for (final Record record : change.getRecords())
+		{
+			size += record.m_size;
+		}
+		if (size > this.m_memoryBudget)
+		{
+			Log.w(GALLERY_TAG, "Gallery over budget of " + this.m_memoryBudget + " bytes; dropping");
+			dropRecords();
+			this.m_loadFailed = true;
+			return;
+		}
+
+		this.m_tail       = this.m_tail.append(change);
+		this.m_memoryUsed = size;
+	}
+
+	/**
+	 * Fold the tail into a new base snapshot.  This takes time proportional to the gallery, and may
+	 * be called on a background thread once <code>getTailLength()</code> grows long.
+	 */
+	public void compact()
+	{
+		final Record[]              base;
+		final IBMatcherJournal.Tail tail;
+		synchronized (this)
+		{
+			if ((this.m_base == null) || this.m_tail.isEmpty())
+			{
+				return;
+			}
+			base = this.m_base;
+			tail = this.m_tail;
+		}
+
+		/* Merge outside the lock, installing the result only if no write intervened. */
+		final Record[] records = merge(base, tail, tail.getRecords());
+		long           size    = 0;
+		for (final Record record : records)
+		{
+			size += record.m_size;
+		}
+		synchronized (this)
+		{
+			if ((this.m_base != base) || (this.m_tail != tail))
+			{
+				Log.i(GALLERY_TAG, "Gallery written during compaction; skipping");
+				return;
+			}
+			this.m_base       = records;
+			this.m_tail       = new IBMatcherJournal.Tail(tail.getStamp());
+			this.m_memoryUsed = size;
+		}
+		Log.i(GALLERY_TAG, "Compacted " + tail.getLength() + " changes into " + records.length + " records");
+	}
+
+	/**
+	 * Get number of changes folded into the tail since the last load or compaction.
+	 *
+	 * @return number of changes in tail
+	 */
+	public synchronized int getTailLength()
+	{
+		return (this.m_tail.getLength());
+	}
+
+	/**
+	 * Make gallery non-resident, as after a write whose effect on the database is unknown.  The
+	 * next identification will reload it.
+	 */
+	public synchronized void invalidate()
+	{
+		this.m_generation++;
+		this.m_loadFailed = false;
+		dropRecords();
+	}
+
+	/**
+	 * Get memory budget.
+	 *
+	 * @return memory budget, in bytes
+	 */
+	public synchronized long getMemoryBudget()
+	{
+		return (this.m_memoryBudget);
+	}
+
+	/**
+	 * Set memory budget.  A resident gallery that exceeds the new budget is dropped.  A changed 
+	 * budget clears a remembered load failure.
+	 *
+	 * @param memoryBudget  memory budget, in bytes
+	 */
+	public synchronized void setMemoryBudget(final long memoryBudget)
+	{
+		if (memoryBudget != this.m_memoryBudget)
+		{
+			this.m_loadFailed = false;
+		}
+		this.m_memoryBudget = memoryBudget;
+		if (this.m_memoryUsed > memoryBudget)
+		{
+			dropRecords();
+		}
+	}
+
+	/**
+	 * Get estimated memory held by the resident gallery.
+	 *
+	 * @return estimated memory held by resident gallery, in bytes
+	 */
+	public synchronized long getMemoryUsed()
+	{
+		return (this.m_memoryUsed);
+	}
+
+	/**
+	 * Count an identification served from the resident gallery.
+	 */
+	public synchronized void recordHit()
+	{
+		this.m_hits++;
+	}
+
+	/**
+	 * Count an identification for which the gallery was not resident.
+	 */
+	public synchronized void recordMiss()
+	{
+		this.m_misses++;
+	}
+
+	/**
+	 * Get number of identifications served from the resident gallery.
+	 *
+	 * @return number of hits
+	 */
+	public synchronized long getHits()
+	{
+		return (this.m_hits);
+	}
+
+	/**
+	 * Get number of identifications for which the gallery was not resident.  A high count relative
+	 * to <code>getHits()</code> means the gallery is written or dropped too often to pay for itself.
+	 *
+	 * @return number of misses
+	 */
+	public synchronized long getMisses()
+	{
+		return (this.m_misses);
+	}
+
+	/* *********************************************************************************************
+	 * PRIVATE INTERFACE
+	 ******************************************************************************************** */
+
+	/*
+	 * Log tag for this class.
+	 */
+	private static final String GALLERY_TAG     = "IBMatcher Gallery";
+
+	/*
+	 * Estimated memory held by a record besides its template and strings, in bytes.
+	 */
+	private static final long   RECORD_OVERHEAD = 160;
+
+	/*
+	 * Base records in the gallery, or null if the gallery is not resident.
+	 */
+	private Record[] m_base         = null;
+
+	/*
+	 * Tail of changes made since the base records were loaded or compacted.
+	 */
+	private IBMatcherJournal.Tail m_tail = new IBMatcherJournal.Tail(0);
+
+	/*
+	 * Filters indexing the base records and the tail's records, or null if they have not been 
+	 * built.
+	 */
+	private IBMatcherFilter m_filter     = null;
+	private IBMatcherFilter m_tailFilter = null;
+
+	/*
+	 * Index of the base records by row ID, or null if it has not been built, and the base records
+	 * it indexes.
+	 */
+	private Map<Long, Record[]> m_rowIndex     = null;
+	private Record[]            m_rowIndexBase = null;
+
+	/*
+	 * Estimated memory held by the records, in bytes.
+	 */
+	private long     m_memoryUsed   = 0;
+
+	/*
+	 * Memory budget, in bytes.
+	 */
+	private long     m_memoryBudget;
+
+	/*
+	 * Count of writes to the gallery.
+	 */
+	private long     m_generation   = 0;
+
+	/*
+	 * Whether the last load failed and would fail again until the budget changes or the gallery 
+	 * may have shrunk.
+	 */
+	private boolean  m_loadFailed   = false;
+
+	/*
+	 * Counts of identifications served with and without a resident gallery.
+	 */
+	private long     m_hits         = 0;
+	private long     m_misses       = 0;
+
+	/*
+	 * Make gallery non-resident.
+	 */
+	private void dropRecords()
+	{
+		this.m_base         = null;
+		this.m_tail         = new IBMatcherJournal.Tail(0);
+		this.m_filter       = null;
+		this.m_tailFilter   = null;
+		this.m_rowIndex     = null;
+		this.m_rowIndexBase = null;
+		this.m_memoryUsed   = 0;
+	}
+
+	/*
+	 * Index records by row ID.
+	 */
+	private static Map<Long, Record[]> indexRows(final Record[] records)
+	{
+		final Map<Long, Record[]> rowIndex = new HashMap<Long, Record[]>();
+		for (final Record record : records)
+		{
+			final Long     rowId   = Long.valueOf(record.m_rowId);
+			final Record[] indexed = rowIndex.get(rowId);
+			if (indexed == null)
+			{
+				rowIndex.put(rowId, new Record[] {record});
+			}
+			else
+			{
+				final Record[] grown = Arrays.copyOf(indexed, indexed.length + 1);
+				grown[indexed.length] = record;
+				rowIndex.put(rowId, grown);
+			}
+		}
+		return (rowIndex);
+	}
+
+	/*
+	 * Merge base records not removed by tail with records of tail, in that order.
+	 */
+	private static Record[] merge(final Record[] base, final IBMatcherJournal.Tail tail,
+			final Record[] tailRecords)
+	{
+		final Record[] records = new Record[(tail.isCleared() ? 0 : base.length) + tailRecords.length];
+		int            count   = 0;
+		if (!tail.isCleared())
+		{
+			for (final Record record : base)
+			{
+				if (tail.isEmpty() || !tail.hides(record.m_name))
+				{
+					records[count++] = record;
+				}
+			}
+		}
+		System.arraycopy(tailRecords, 0, records, count, tailRecords.length);
+		count += tailRecords.length;
+
+		return ((count == records.length) ? records : Arrays.copyOf(records, count));
+	}
+}
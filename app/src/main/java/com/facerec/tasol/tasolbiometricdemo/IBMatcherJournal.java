@@ -0,0 +1,681 @@
+/* *************************************************************************************************
+ * IBMatcherJournal.java
+ *
+ * DESCRIPTION:
+ *     Append-only change journal for IBScanMatcher example database
+ *     http://www.integratedbiometrics.com
+ *
+ * NOTES:
+ *     Copyright (c) Integrated Biometrics, 2013
+ *
+ * HISTORY:
+ *     2013/03/22  First version.
+ ************************************************************************************************ */
+
+package com.facerec.tasol.tasolbiometricdemo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import android.util.Log;
+
+/**
+ * Class that records the writes of an <code>IBMatcherDatabase</code> as an append-only journal of
+ * changes, so that a gallery view need not be rebuilt after each write.  A view keeps a base
+ * snapshot and a <code>Tail</code> folding the changes made since the snapshot; a write appends
+ * one change to the journal and to the tail, and readers skip the base records the tail hides.
+ * Once the tail grows long, a compactor folds it into a new base snapshot and the journal drops
+ * the changes the snapshot reflects.
+ * <p>
+ * The changes since the last compaction are held in memory; the journal file only lets them
+ * survive a restart.  The file holds a header and the changes, big-endian:
+ *
+ * <pre>
+ *     header:   magic ("IBJL") (4), format version (4)
+ *     change:   length of body (4), CRC-32 of body (4), body:
+ *               stamp (8), flags (1), name of removed records (4 + UTF-8) if flagged,
+ *               number of added records (4), and for each, length (4) and packed record
+ * </pre>
+ *
+ * Records are packed as in <code>IBMatcherPackedGallery</code>.  A change that was only partly
+ * written, or is corrupt, ends the journal; the views then find a gap in the stamps and are
+ * rebuilt from the database.
+ */
+public final class IBMatcherJournal
+{
+	/* *********************************************************************************************
+	 * PUBLIC CONSTANTS
+	 ******************************************************************************************** */
+
+	/**
+	 * The version of the file format.
+	 */
+	public static final int FORMAT_VERSION = 3;
+
+	/**
+	 * The number of changes in a tail after which it should be compacted.
+	 */
+	public static final int COMPACT_LENGTH = 256;
+
+	/* *********************************************************************************************
+	 * PUBLIC INNER CLASSES
+	 ******************************************************************************************** */
+
+	/**
+	 * Class encapsulating one write of the database: the records with a name are removed, or all
+	 * records if the database was cleared, and new records are added.
+	 */
+	public static final class Change
+	{
+		/*
+		 * Stamp of the database write.
+		 */
+		private final long                          m_stamp;
+
+		/*
+		 * Whether all records are removed.
+		 */
+		private final boolean                       m_clear;
+
+		/*
+		 * Name of person whose records are removed, or null.
+		 */
+		private final String                        m_removeName;
+
+		/*
+		 * Records added.
+		 */
+		private final List<IBMatcherGallery.Record> m_records;
+
+		/**
+		 * Create change.
+		 *
+		 * @param stamp       stamp of the database write
+		 * @param clear       <code>true</code> if all records are removed
+		 * @param removeName  name of person whose records are removed, or <code>null</code>
+		 * @param records     records added
+		 */
+		public Change(final long stamp, final boolean clear, final String removeName,
+				final List<IBMatcherGallery.Record> records)
+		{
+			this.m_stamp      = stamp;
+			this.m_clear      = clear;
+			this.m_removeName = removeName;
+			this.m_records    = Collections.unmodifiableList(new ArrayList<IBMatcherGallery.Record>(records));
+		}
+
+		/**
+		 * Get stamp of the database write.
+		 *
+		 * @return stamp of the database write
+		 */
+		public long getStamp()
+		{
+			return (this.m_stamp);
+		}
+
+		/**
+		 * Determine whether all records are removed.
+		 *
+		 * @return <code>true</code> if all records are removed; <code>false</code> otherwise
+		 */
+		public boolean isClear()
+		{
+			return (this.m_clear);
+		}
+
+		/**
+		 * Get name of person whose records are removed.
+		 *
+		 * @return name of person whose records are removed, or <code>null</code> if none are
+		 */
+		public String getRemoveName()
+		{
+			return (this.m_removeName);
+		}
+
+		/**
+		 * Get records added.
+		 *
+		 * @return records added
+		 */
+		public List<IBMatcherGallery.Record> getRecords()
+		{
+			return (this.m_records);
+		}
+	}
+
+	/**
+	 * Class folding the changes made since a base snapshot: whether the base was cleared, the
+	 * names whose base records are hidden, and the records added and not since removed.  A tail is
+	 * immutable; appending a change creates a new tail in time proportional to the tail, not to
+	 * the base.
+	 */
+	public static final class Tail
+	{
+		/*
+		 * Stamp of the last change folded, or of the base if none.
+		 */
+		private final long                      m_stamp;
+
+		/*
+		 * Number of changes folded.
+		 */
+		private final int                       m_length;
+
+		/*
+		 * Whether all base records are hidden.
+		 */
+		private final boolean                   m_cleared;
+
+		/*
+		 * Names whose base records are hidden.
+		 */
+		private final Set<String>               m_hidden;
+
+		/*
+		 * Records added and not since removed, in the order they were added.
+		 */
+		private final IBMatcherGallery.Record[] m_records;
+
+		/**
+		 * Create empty tail for a base snapshot.
+		 *
+		 * @param stamp  stamp of the base snapshot
+		 */
+		public Tail(final long stamp)
+		{
+			this(stamp, 0, false, Collections.<String>emptySet(), new IBMatcherGallery.Record[0]);
+		}
+
+		/*
+		 * Constructor for tails.
+		 */
+		private Tail(final long stamp, final int length, final boolean cleared,
+				final Set<String> hidden, final IBMatcherGallery.Record[] records)
+		{
+			this.m_stamp   = stamp;
+			this.m_length  = length;
+			this.m_cleared = cleared;
+			this.m_hidden  = hidden;
+			this.m_records = records;
+		}
+
+		/**
+		 * Get stamp of the last change folded.
+		 *
+		 * @return stamp of the last change, or of the base snapshot if there is none
+		 */
+		public long getStamp()
+		{
+			return (this.m_stamp);
+		}
+
+		/**
+		 * Get number of changes folded.
+		 *
+		 * @return number of changes
+		 */
+		public int getLength()
+		{
+			return (this.m_length);
+		}
+
+		/**
+		 * Determine whether any changes are folded.
+		 *
+		 * @return <code>true</code> if no changes are folded; <code>false</code> otherwise
+		 */
+		public boolean isEmpty()
+		{
+			return (this.m_length == 0);
+		}
+
+		/**
+		 * Determine whether all base records are hidden.
+		 *
+		 * @return <code>true</code> if the base was cleared; <code>false</code> otherwise
+		 */
+		public boolean isCleared()
+		{
+			return (this.m_cleared);
+		}
+
+		/**
+		 * Determine whether base records with a name are hidden.
+		 *
+		 * @param name  name of person
+		 * @return      <code>true</code> if base records with the name are hidden;
+		 *              <code>false</code> otherwise
+		 */
+		public boolean hides(final String name)
+		{
+			return (this.m_cleared || this.m_hidden.contains(name));
+		}
+
+		/**
+		 * Get records added and not since removed.  The returned array must not be modified.
+		 *
+		 * @return records added, in the order they were added
+		 */
+		public IBMatcherGallery.Record[] getRecords()
+		{
+			return (this.m_records);
+		}
+
+		/**
+		 * Fold a change into this tail.
+		 *
+		 * @param change  change to fold
+		 * @return        new tail
+		 */
+		public Tail append(final Change change)
+		{
+			final List<IBMatcherGallery.Record> records = new ArrayList<IBMatcherGallery.Record>();
+			Set<String>                         hidden  = this.m_hidden;
+			if (!change.m_clear)
+			{
+				for (final IBMatcherGallery.Record record : this.m_records)
+				{
+					if (!record.getName().equals(change.m_removeName))
+					{
+						records.add(record);
+					}
+				}
+				if ((change.m_removeName != null) && !this.m_cleared && !hidden.contains(change.m_removeName))
+				{
+					hidden = new HashSet<String>(hidden);
+					hidden.add(change.m_removeName);
+				}
+			}
+			else
+			{
+				hidden = Collections.<String>emptySet();
+			}
+			records.addAll(change.m_records);
+
+			return (new Tail(change.m_stamp, this.m_length + 1, this.m_cleared || change.m_clear, hidden,
+					records.toArray(new IBMatcherGallery.Record[records.size()])));
+		}
+	}
+
+	/* *********************************************************************************************
+	 * PUBLIC INTERFACE
+	 ******************************************************************************************** */
+
+	/**
+	 * Create journal kept in a file.  The file is read on first use.
+	 *
+	 * @param file  journal file
+	 */
+	public IBMatcherJournal(final File file)
+	{
+		this.m_file = file;
+	}
+
+	/**
+	 * Append change to the journal, forcing it to the file.  The change is kept in memory even if
+	 * it cannot be written.
+	 *
+	 * @param change  change to append
+	 * @throws        IOException
+	 */
+	public synchronized void append(final Change change) throws IOException
+	{
+		load();
+		this.m_changes.add(change);
+
+		final RandomAccessFile randomAccessFile = new RandomAccessFile(this.m_file, "rw");
+		try
+		{
+			/* Drop any partly written change, or an invalid file, before appending. */
+			final FileChannel channel = randomAccessFile.getChannel();
+			if (this.m_validLength == 0)
+			{
+				writeFully(channel, encodeHeader(), 0);
+				this.m_validLength = HEADER_LENGTH;
+			}
+			channel.truncate(this.m_validLength);
+			final ByteBuffer entry = encodeChange(change);
+			writeFully(channel, entry, this.m_validLength);
+			channel.force(false);
+			this.m_validLength += entry.capacity();
+		}
+		finally
+		{
+			randomAccessFile.close();
+		}
+	}
+
+	/**
+	 * Fold into a tail the changes made after it, up to a stamp.
+	 *
+	 * @param tail   tail to extend
+	 * @param stamp  stamp of the last database write
+	 * @return       tail reflecting the last database write; <code>null</code> if the journal
+	 *               does not hold every change in between
+	 */
+	public synchronized Tail replay(final Tail tail, final long stamp)
+	{
+		load();
+		if (tail.getStamp() > stamp)
+		{
+			return (null);
+		}
+
+		/* Stamps advance by one per write, so a missing change shows as a gap. */
+		Tail replayed = tail;
+		for (final Change change : this.m_changes)
+		{
+			if ((change.m_stamp <= replayed.getStamp()) || (change.m_stamp > stamp))
+			{
+				continue;
+			}
+			if (change.m_stamp != replayed.getStamp() + 1)
+			{
+				break;
+			}
+			replayed = replayed.append(change);
+		}
+		if (replayed.getStamp() != stamp)
+		{
+			Log.w(JOURNAL_TAG, "Journal lacks changes from " + replayed.getStamp() + " to " + stamp);
+			return (null);
+		}
+
+		return (replayed);
+	}
+
+	/**
+	 * Drop changes reflected by a new base snapshot, rewriting the file with the rest.
+	 *
+	 * @param stamp  stamp of the base snapshot
+	 * @throws       IOException
+	 */
+	public synchronized void retainAfter(final long stamp) throws IOException
+	{
+		load();
+		final List<Change> changes = new ArrayList<Change>();
+		for (final Change change : this.m_changes)
+		{
+			if (change.m_stamp > stamp)
+			{
+				changes.add(change);
+			}
+		}
+		this.m_changes = changes;
+
+		/* Write the rest under a temporary name, replacing the file only when complete. */
+		final File             tempFile         = new File(this.m_file.getPath() + ".tmp");
+		final RandomAccessFile randomAccessFile = new RandomAccessFile(tempFile, "rw");
+		long                   length           = HEADER_LENGTH;
+		try
+		{
+			final FileChannel channel = randomAccessFile.getChannel();
+			channel.truncate(0);
+			writeFully(channel, encodeHeader(), 0);
+			for (final Change change : changes)
+			{
+				final ByteBuffer entry = encodeChange(change);
+				writeFully(channel, entry, length);
+				length += entry.capacity();
+			}
+			channel.force(false);
+		}
+		finally
+		{
+			randomAccessFile.close();
+		}
+		if (!tempFile.renameTo(this.m_file))
+		{
+			this.m_validLength = 0;
+			throw (new IOException("Failed to rename " + tempFile + " to " + this.m_file));
+		}
+
+		this.m_validLength = length;
+		Log.i(JOURNAL_TAG, "Retained " + changes.size() + " changes after stamp " + stamp);
+	}
+
+	/**
+	 * Get number of changes held by the journal.
+	 *
+	 * @return number of changes
+	 */
+	public synchronized int getLength()
+	{
+		load();
+		return (this.m_changes.size());
+	}
+
+	/* *********************************************************************************************
+	 * PRIVATE INTERFACE
+	 ******************************************************************************************** */
+
+	/*
+	 * Log tag for this class.
+	 */
+	private static final String  JOURNAL_TAG   = "IBMatcher Journal";
+
+	/*
+	 * File identifier ("IBJL").
+	 */
+	private static final int     MAGIC         = 0x49424A4C;
+
+	/*
+	 * Length of the header, and of the length and checksum before each change, in bytes.
+	 */
+	private static final int     HEADER_LENGTH = 8;
+	private static final int     ENTRY_PREFIX  = 8;
+
+	/*
+	 * Flags of a change.
+	 */
+	private static final int     FLAG_CLEAR    = 0x01;
+	private static final int     FLAG_REMOVE   = 0x02;
+
+	/*
+	 * Encoding of strings in changes.
+	 */
+	private static final Charset UTF_8         = Charset.forName("UTF-8");
+
+	/*
+	 * Journal file.
+	 */
+	private final File   m_file;
+
+	/*
+	 * Changes held by the journal, or null if the file has not been read.
+	 */
+	private List<Change> m_changes     = null;
+
+	/*
+	 * Length of the file up to the end of the last intact change, or 0 if the file is missing or
+	 * invalid.
+	 */
+	private long         m_validLength = 0;
+
+	/*
+	 * Read the changes from the file, if not already read.
+	 */
+	private void load()
+	{
+		if (this.m_changes != null)
+		{
+			return;
+		}
+		this.m_changes     = new ArrayList<Change>();
+		this.m_validLength = 0;
+		if (!this.m_file.exists())
+		{
+			return;
+		}
+
+		try
+		{
+			final RandomAccessFile randomAccessFile = new RandomAccessFile(this.m_file, "r");
+			try
+			{
+				final FileChannel channel = randomAccessFile.getChannel();
+				final long        length  = channel.size();
+				final ByteBuffer  header  = ByteBuffer.allocate(HEADER_LENGTH);
+				if ((length < HEADER_LENGTH) || (channel.read(header, 0) != HEADER_LENGTH)
+						|| !header.equals(encodeHeader()))
+				{
+					Log.w(JOURNAL_TAG, "Journal has invalid header");
+					return;
+				}
+
+				/* Read changes until the end of the file or the first that is not intact. */
+				long position = HEADER_LENGTH;
+				while (position + ENTRY_PREFIX <= length)
+				{
+					final ByteBuffer prefix = ByteBuffer.allocate(ENTRY_PREFIX);
+					channel.read(prefix, position);
+					final int bodyLength = prefix.getInt(0);
+					if ((bodyLength < 0) || (position + ENTRY_PREFIX + bodyLength > length))
+					{
+						break;
+					}
+					final byte[] body = new byte[bodyLength];
+					channel.read(ByteBuffer.wrap(body), position + ENTRY_PREFIX);
+					final CRC32 crc = new CRC32();
+					crc.update(body);
+					if ((int)crc.getValue() != prefix.getInt(4))
+					{
+						break;
+					}
+					try
+					{
+						this.m_changes.add(decodeChange(body));
+					}
+					catch (final IOException ioe)
+					{
+						Log.e(JOURNAL_TAG, "Journal change failed to decode with exception " + ioe.toString());
+						break;
+					}
+					position += ENTRY_PREFIX + bodyLength;
+				}
+				if (position != length)
+				{
+					Log.w(JOURNAL_TAG, "Journal ends with " + (length - position) + " bytes not intact");
+				}
+				this.m_validLength = position;
+				Log.i(JOURNAL_TAG, "Read " + this.m_changes.size() + " changes");
+			}
+			finally
+			{
+				randomAccessFile.close();
+			}
+		}
+		catch (final IOException ioe)
+		{
+			Log.e(JOURNAL_TAG, "Journal read failed with exception " + ioe.toString());
+		}
+	}
+
+	/*
+	 * Encode header.
+	 */
+	private static ByteBuffer encodeHeader()
+	{
+		final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+		header.putInt(MAGIC);
+		header.putInt(FORMAT_VERSION);
+		header.flip();
+		return (header);
+	}
+
+	/*
+	 * Encode change, with its length and checksum.
+	 */
+	private static ByteBuffer encodeChange(final Change change) throws IOException
+	{
+		final byte[]   nameBytes = (change.m_removeName != null) ? change.m_removeName.getBytes(UTF_8) : new byte[0];
+		final byte[][] records   = new byte[change.m_records.size()][];
+		int            length    = 8 + 1 + ((change.m_removeName != null) ? 4 + nameBytes.length : 0) + 4;
+		for (int i = 0; i < records.length; i++)
+		{
+			records[i] = IBMatcherPackedGallery.encodeRecord(change.m_records.get(i));
+			length    += 4 + records[i].length;
+		}
+
+		final ByteBuffer entry = ByteBuffer.allocate(ENTRY_PREFIX + length);
+		entry.position(ENTRY_PREFIX);
+		entry.putLong(change.m_stamp);
+		entry.put((byte)((change.m_clear ? FLAG_CLEAR : 0) | ((change.m_removeName != null) ? FLAG_REMOVE : 0)));
+		if (change.m_removeName != null)
+		{
+			entry.putInt(nameBytes.length);
+			entry.put(nameBytes);
+		}
+		entry.putInt(records.length);
+		for (final byte[] record : records)
+		{
+			entry.putInt(record.length);
+			entry.put(record);
+		}
+
+		final CRC32 crc = new CRC32();
+		crc.update(entry.array(), ENTRY_PREFIX, length);
+		entry.putInt(0, length);
+		entry.putInt(4, (int)crc.getValue());
+		entry.rewind();
+
+		return (entry);
+	}
+
+	/*
+	 * Decode body of change.
+	 */
+	private static Change decodeChange(final byte[] body) throws IOException
+	{
+		final ByteBuffer buffer = ByteBuffer.wrap(body);
+		final long       stamp  = buffer.getLong();
+		final int        flags  = buffer.get();
+		String           name   = null;
+		if ((flags & FLAG_REMOVE) != 0)
+		{
+			final int nameLength = buffer.getInt();
+			if ((nameLength < 0) || (nameLength > buffer.remaining()))
+			{
+				throw (new IOException("Invalid name length"));
+			}
+			final byte[] nameBytes = new byte[nameLength];
+			buffer.get(nameBytes);
+			name = new String(nameBytes, UTF_8);
+		}
+		final IBMatcherGallery.Record[] records = new IBMatcherGallery.Record[buffer.getInt()];
+		for (int i = 0; i < records.length; i++)
+		{
+			final byte[] record = new byte[buffer.getInt()];
+			buffer.get(record);
+			records[i] = IBMatcherPackedGallery.decodeRecord(record);
+		}
+
+		return (new Change(stamp, (flags & FLAG_CLEAR) != 0, name, Arrays.asList(records)));
+	}
+
+	/*
+	 * Write buffer to channel at position.
+	 */
+	private static void writeFully(final FileChannel channel, final ByteBuffer buffer, final long position)
+			throws IOException
+	{
+		long offset = position;
+		while (buffer.hasRemaining())
+		{
+			offset += channel.write(buffer, offset);
+		}
+	}
+}
@@ -0,0 +1,648 @@
+/* *************************************************************************************************
+ * IBMatcherPackedGallery.java
+ *
+ * DESCRIPTION:
+ *     Memory-mapped packed gallery file for IBScanMatcher example database
+ *     http://www.integratedbiometrics.com
+ *
+ * NOTES:
+ *     Copyright (c) Integrated Biometrics, 2013
+ *
+ * HISTORY:
+ *     2013/03/22  First version.
+ ************************************************************************************************ */
+
+package com.facerec.tasol.tasolbiometricdemo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import android.util.Log;
+
+import com.integratedbiometrics.ibscanmatcher.IBMatcherException;
+import com.integratedbiometrics.ibscanmatcher.IBMinutiaeSignature;
+import com.integratedbiometrics.ibscanmatcher.IBCompactTemplateCodec;
+import com.integratedbiometrics.ibscanmatcher.IBMatcher.Template;
+
+/**
+ * Class that packs the rows of an <code>IBMatcherDatabase</code> into one file that is mapped into
+ * memory, so that a gallery can be opened without reading the database.  Opening reads only the
+ * header and the index; the records' pages are faulted in as they are read.
+ * <p>
+ * The file holds a header, the records, and an index of the records, big-endian:
+ *
+ * <pre>
+ *     header:   offset  size  field
+ *                    0     4  magic ("IBPG")
+ *                    4     4  format version
+ *                    8     8  stamp of database write the file reflects
+ *                   16     4  number of records in index
+ *                   20     4  offset of index
+ *                   24     4  reserved (0)
+ *                   28     4  CRC-32 of header bytes 0-27 and of index
+ *     record:   row ID (8), create date (8), modify date (8), name (4 + UTF-8), description
+ *               (4 + UTF-8), signature (1 + n), template (4 + n) in the layout of
+ *               <code>IBCompactTemplateCodec</code>
+ *     index:    for each record, offset (4), length (4), CRC-32 of record (4)
+ * </pre>
+ *
+ * A packed gallery object is an immutable view of the file, which is the base snapshot, and of a
+ * tail of the changes made since (see <code>IBMatcherJournal</code>).  Writes only extend the tail;
+ * the file is rewritten under a temporary name when the tail is compacted into a new base, so a
+ * view keeps its mapping and stays readable.  An interrupted rewrite leaves the previous file.
+ */
+public final class IBMatcherPackedGallery
+{
+	/* *********************************************************************************************
+	 * PUBLIC CONSTANTS
+	 ******************************************************************************************** */
+
+	/**
+	 * The version of the file format.
+	 */
+	public static final int FORMAT_VERSION     = 3;
+
+	/**
+	 * The length of the header, in bytes.
+	 */
+	public static final int HEADER_LENGTH      = 32;
+
+	/**
+	 * The length of an index entry, in bytes.
+	 */
+	public static final int INDEX_ENTRY_LENGTH = 12;
+
+	/* *********************************************************************************************
+	 * PUBLIC INNER CLASSES
+	 ******************************************************************************************** */
+
+	/**
+	 * Class that writes a new packed gallery file, record by record.  The file is written under a
+	 * temporary name and replaces the existing file only when finished.
+	 */
+	public static final class Writer
+	{
+		/*
+		 * Final and temporary files.
+		 */
+		private final File             m_file;
+		private final File             m_tempFile;
+
+		/*
+		 * Temporary file being written.
+		 */
+		private final RandomAccessFile m_randomAccessFile;
+
+		/*
+		 * Index of records written so far.
+		 */
+		private final Index            m_index = new Index();
+
+		/*
+		 * Offset at which the next record will be written.
+		 */
+		private int                    m_position = HEADER_LENGTH;
+
+		/**
+		 * Start writing a new packed gallery file.
+		 *
+		 * @param file  packed gallery file
+		 * @throws      IOException
+		 */
+		public Writer(final File file) throws IOException
+		{
+			this.m_file             = file;
+			this.m_tempFile         = new File(file.getPath() + ".tmp");
+			this.m_randomAccessFile = new RandomAccessFile(this.m_tempFile, "rw");
+			this.m_randomAccessFile.setLength(0);
+		}
+
+		/**
+		 * Add a row to the file.
+		 *
+		 * @param rowId           row ID
+		 * @param name            name of person
+		 * @param description     description
+		 * @param createDate      create date, in milliseconds since the epoch
+		 * @param modifyDate      modify date, in milliseconds since the epoch
+		 * @param signatureBytes  encoded minutiae signature, or <code>null</code> if unknown
+		 * @param templateBytes   encoded IBSM template
+		 * @throws                IOException
+		 */
+		public void add(final long rowId, final String name, final String description,
+				final long createDate, final long modifyDate, final byte[] signatureBytes,
+				final byte[] templateBytes) throws IOException
+		{
+			addRecord(encodeRecord(rowId, name, description, createDate, modifyDate, signatureBytes,
+					templateBytes));
+		}
+
+		/**
+		 * Add the records of a packed gallery to the file, skipping records its tail hides and
+		 * copying the base records without decoding them.
+		 *
+		 * @param packed  packed gallery
+		 * @throws        IOException
+		 */
+		public void addAll(final IBMatcherPackedGallery packed) throws IOException
+		{
+			final IBMatcherJournal.Tail tail = packed.m_tail;
+			for (int i = 0; i < packed.m_index.size(); i++)
+			{
+				if (!tail.hides(packed.readName(i)))
+				{
+					addRecord(packed.readBytes(i));
+				}
+			}
+			for (final IBMatcherGallery.Record record : tail.getRecords())
+			{
+				addRecord(encodeRecord(record));
+			}
+		}
+
+		/**
+		 * Finish the file, replacing the existing file.
+		 *
+		 * @param stamp  stamp of database write the file reflects
+		 * @throws       IOException
+		 */
+		public void finish(final long stamp) throws IOException
+		{
+			try
+			{
+				writeIndex(this.m_randomAccessFile.getChannel(), this.m_index, this.m_position, stamp);
+			}
+			finally
+			{
+				this.m_randomAccessFile.close();
+			}
+			if (!this.m_tempFile.renameTo(this.m_file))
+			{
+				throw (new IOException("Failed to rename " + this.m_tempFile + " to " + this.m_file));
+			}
+		}
+
+		/*
+		 * Add encoded record to the file.
+		 */
+		private void addRecord(final byte[] record) throws IOException
+		{
+			this.m_position = writeRecord(this.m_randomAccessFile.getChannel(), this.m_index,
+					this.m_position, record);
+		}
+
+		/**
+		 * Abandon the file, keeping the existing file.
+		 */
+		public void abort()
+		{
+			try
+			{
+				this.m_randomAccessFile.close();
+			}
+			catch (final IOException ioe)
+			{
+				Log.e(PACKED_TAG, "Failed to close " + this.m_tempFile + " with exception " + ioe.toString());
+			}
+			this.m_tempFile.delete();
+		}
+	}
+
+	/* *********************************************************************************************
+	 * PUBLIC INTERFACE
+	 ******************************************************************************************** */
+
+	/**
+	 * Open packed gallery file, with an empty tail.  The caller should compare its stamp with that
+	 * of the last database write, and replay the journal if they differ.
+	 *
+	 * @param file  packed gallery file
+	 * @return      packed gallery, if the file exists and is intact; <code>null</code> otherwise
+	 * @throws      IOException
+	 */
+	public static IBMatcherPackedGallery open(final File file) throws IOException
+	{
+		if (!file.exists())
+		{
+			return (null);
+		}
+
+		final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+		try
+		{
+			/* The mapping stays valid after the file is closed. */
+			final FileChannel channel = randomAccessFile.getChannel();
+			final long        length  = channel.size();
+			if ((length < HEADER_LENGTH) || (length > Integer.MAX_VALUE))
+			{
+				Log.w(PACKED_TAG, "Packed gallery has invalid length " + length);
+				return (null);
+			}
+			final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+
+			/* Check the header. */
+			if ((buffer.getInt(0) != MAGIC) || (buffer.getInt(4) != FORMAT_VERSION))
+			{
+				Log.w(PACKED_TAG, "Packed gallery has invalid header");
+				return (null);
+			}
+			final long stamp       = buffer.getLong(8);
+			final int  count       = buffer.getInt(16);
+			final int  indexOffset = buffer.getInt(20);
+			if ((count < 0) || (indexOffset < HEADER_LENGTH)
+					|| ((long)indexOffset + (long)count * INDEX_ENTRY_LENGTH != length))
+			{
+				Log.w(PACKED_TAG, "Packed gallery has invalid index");
+				return (null);
+			}
+
+			/* Check the header and index against their checksum, reading the index. */
+			final byte[] header = new byte[HEADER_LENGTH - 4];
+			final byte[] index  = new byte[count * INDEX_ENTRY_LENGTH];
+			final ByteBuffer duplicate = buffer.duplicate();
+			duplicate.get(header);
+			duplicate.position(indexOffset);
+			duplicate.get(index);
+			final CRC32 crc = new CRC32();
+			crc.update(header);
+			crc.update(index);
+			if ((int)crc.getValue() != buffer.getInt(HEADER_LENGTH - 4))
+			{
+				Log.w(PACKED_TAG, "Packed gallery has invalid checksum");
+				return (null);
+			}
+
+			return (new IBMatcherPackedGallery(buffer, Index.decode(index, count),
+					new IBMatcherJournal.Tail(stamp)));
+		}
+		finally
+		{
+			randomAccessFile.close();
+		}
+	}
+
+	/**
+	 * Get stamp of database write this packed gallery reflects, including its tail.
+	 *
+	 * @return stamp of database write
+	 */
+	public long getStamp()
+	{
+		return (this.m_tail.getStamp());
+	}
+
+	/**
+	 * Get tail of changes made since the file was written.
+	 *
+	 * @return tail of changes
+	 */
+	public IBMatcherJournal.Tail getTail()
+	{
+		return (this.m_tail);
+	}
+
+	/**
+	 * Create view of the same file with another tail.
+	 *
+	 * @param tail  tail of changes made since the file was written
+	 * @return      new packed gallery
+	 */
+	public IBMatcherPackedGallery withTail(final IBMatcherJournal.Tail tail)
+	{
+		return (new IBMatcherPackedGallery(this.m_buffer, this.m_index, tail));
+	}
+
+	/**
+	 * Get number of record slots in this packed gallery: the records in the file, then those
+	 * added by the tail.
+	 *
+	 * @return number of record slots
+	 */
+	public int size()
+	{
+		return (this.m_index.size() + this.m_tail.getRecords().length);
+	}
+
+	/**
+	 * Read and decode record.  The record has no native template.
+	 *
+	 * @param i  index of record slot
+	 * @return   decoded record, or <code>null</code> if the tail removed it
+	 * @throws   IOException if the record is corrupt
+	 */
+	public IBMatcherGallery.Record read(final int i) throws IOException
+	{
+		if (i >= this.m_index.size())
+		{
+			return (this.m_tail.getRecords()[i - this.m_index.size()]);
+		}
+		if (this.m_tail.hides(readName(i)))
+		{
+			return (null);
+		}
+
+		try
+		{
+			return (decodeRecord(readBytes(i)));
+		}
+		catch (final IOException ioe)
+		{
+			throw (new IOException("Packed record " + i + " is corrupt: " + ioe.getMessage()));
+		}
+	}
+
+	/* *********************************************************************************************
+	 * PRIVATE INTERFACE
+	 ******************************************************************************************** */
+
+	/*
+	 * Log tag for this class.
+	 */
+	private static final String  PACKED_TAG = "IBMatcher Packed Gallery";
+
+	/*
+	 * File identifier ("IBPG").
+	 */
+	private static final int     MAGIC      = 0x49425047;
+
+	/*
+	 * Encoding of strings in records.
+	 */
+	private static final Charset UTF_8      = Charset.forName("UTF-8");
+
+	/*
+	 * Class holding index entries in memory.
+	 */
+	private static final class Index
+	{
+		private int[] m_entries = new int[3 * 16];
+		private int   m_size    = 0;
+
+		static Index decode(final byte[] bytes, final int count)
+		{
+			final Index      index  = new Index();
+			final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			index.m_entries = new int[3 * Math.max(count, 16)];
+			for (int i = 0; i < 3 * count; i++)
+			{
+				index.m_entries[i] = buffer.getInt();
+			}
+			index.m_size = count;
+			return (index);
+		}
+
+		void add(final int offset, final int length, final int crc)
+		{
+			if (3 * (this.m_size + 1) > this.m_entries.length)
+			{
+				this.m_entries = Arrays.copyOf(this.m_entries, 2 * this.m_entries.length);
+			}
+			this.m_entries[3 * this.m_size]     = offset;
+			this.m_entries[3 * this.m_size + 1] = length;
+			this.m_entries[3 * this.m_size + 2] = crc;
+			this.m_size++;
+		}
+
+		int size()
+		{
+			return (this.m_size);
+		}
+
+		int getOffset(final int i)
+		{
+			return (this.m_entries[3 * i]);
+		}
+
+		int getLength(final int i)
+		{
+			return (this.m_entries[3 * i + 1]);
+		}
+
+		int getCrc(final int i)
+		{
+			return (this.m_entries[3 * i + 2]);
+		}
+
+		byte[] encode()
+		{
+			final ByteBuffer buffer = ByteBuffer.allocate(this.m_size * INDEX_ENTRY_LENGTH);
+			buffer.asIntBuffer().put(this.m_entries, 0, 3 * this.m_size);
+			return (buffer.array());
+		}
+	}
+
+	/*
+	 * Mapping of packed gallery file, and index of its records.
+	 */
+	private final MappedByteBuffer      m_buffer;
+	private final Index                 m_index;
+
+	/*
+	 * Tail of changes made since the file was written.
+	 */
+	private final IBMatcherJournal.Tail m_tail;
+
+	/*
+	 * Constructor for packed galleries.
+	 */
+	private IBMatcherPackedGallery(final MappedByteBuffer buffer, final Index index,
+			final IBMatcherJournal.Tail tail)
+	{
+		this.m_buffer = buffer;
+		this.m_index  = index;
+		this.m_tail   = tail;
+	}
+
+	/*
+	 * Read bytes of record, checking them against their checksum.
+	 */
+	private byte[] readBytes(final int i) throws IOException
+	{
+		final byte[]     bytes     = new byte[this.m_index.getLength(i)];
+		final ByteBuffer duplicate = this.m_buffer.duplicate();
+		duplicate.position(this.m_index.getOffset(i));
+		duplicate.get(bytes);
+
+		final CRC32 crc = new CRC32();
+		crc.update(bytes);
+		if ((int)crc.getValue() != this.m_index.getCrc(i))
+		{
+			throw (new IOException("Packed record " + i + " has invalid checksum"));
+		}
+
+		return (bytes);
+	}
+
+	/*
+	 * Read name of record without decoding the rest of it.
+	 */
+	private String readName(final int i)
+	{
+		final ByteBuffer duplicate = this.m_buffer.duplicate();
+		duplicate.position(this.m_index.getOffset(i) + 24);
+		return (getString(duplicate));
+	}
+
+	/*
+	 * Encode gallery record, as also done by the journal.
+	 */
+	static byte[] encodeRecord(final IBMatcherGallery.Record record) throws IOException
+	{
+		try
+		{
+			return (encodeRecord(record.getRowId(), record.getName(), record.getDescription(),
+					record.getCreateDate(), record.getModifyDate(),
+					(record.getSignature() != null) ? record.getSignature().encode() : null,
+					IBCompactTemplateCodec.encode(record.getTemplate())));
+		}
+		catch (final IBMatcherException ibme)
+		{
+			throw (new IOException("Failed to encode template with exception " + ibme.getType().toString()));
+		}
+	}
+
+	/*
+	 * Decode gallery record, as also done by the journal.  The record has no native template.
+	 */
+	static IBMatcherGallery.Record decodeRecord(final byte[] bytes) throws IOException
+	{
+		try
+		{
+			final ByteBuffer buffer      = ByteBuffer.wrap(bytes);
+			final long       rowId       = buffer.getLong();
+			final long       createDate  = buffer.getLong();
+			final long       modifyDate  = buffer.getLong();
+			final String     name        = getString(buffer);
+			final String     description = getString(buffer);
+			final byte[]     signature   = new byte[buffer.get() & 0xFF];
+			buffer.get(signature);
+			if (buffer.getInt() != buffer.remaining())
+			{
+				throw (new IOException("Invalid template length"));
+			}
+
+			final Template template = IBCompactTemplateCodec.decode(buffer);
+			return (new IBMatcherGallery.Record(rowId, name, description, createDate, modifyDate,
+					template, null, (signature.length > 0) ? IBMinutiaeSignature.decode(signature) : null));
+		}
+		catch (final BufferUnderflowException bue)
+		{
+			throw (new IOException("Truncated record"));
+		}
+		catch (final IBMatcherException ibme)
+		{
+			throw (new IOException("Failed to decode with exception " + ibme.getType().toString()));
+		}
+	}
+
+	/*
+	 * Encode row.
+	 */
+	private static byte[] encodeRecord(final long rowId, final String name, final String description,
+			final long createDate, final long modifyDate, final byte[] signatureBytes,
+			final byte[] templateBytes)
+	{
+		final byte[]     nameBytes        = name.getBytes(UTF_8);
+		final byte[]     descriptionBytes = description.getBytes(UTF_8);
+		final byte[]     signature        = (signatureBytes != null) ? signatureBytes : new byte[0];
+		final ByteBuffer buffer           = ByteBuffer.allocate(24 + 4 + nameBytes.length
+				+ 4 + descriptionBytes.length + 1 + signature.length + 4 + templateBytes.length);
+		buffer.putLong(rowId);
+		buffer.putLong(createDate);
+		buffer.putLong(modifyDate);
+		buffer.putInt(nameBytes.length);
+		buffer.put(nameBytes);
+		buffer.putInt(descriptionBytes.length);
+		buffer.put(descriptionBytes);
+		buffer.put((byte)signature.length);
+		buffer.put(signature);
+		buffer.putInt(templateBytes.length);
+		buffer.put(templateBytes);
+
+		return (buffer.array());
+	}
+
+	/*
+	 * Read length-prefixed string.
+	 */
+	private static String getString(final ByteBuffer buffer)
+	{
+		final int length = buffer.getInt();
+		if ((length < 0) || (length > buffer.remaining()))
+		{
+			throw (new BufferUnderflowException());
+		}
+		final byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return (new String(bytes, UTF_8));
+	}
+
+	/*
+	 * Write record at position, adding it to index.  Returns position after record.
+	 */
+	private static int writeRecord(final FileChannel channel, final Index index, final int position,
+			final byte[] record) throws IOException
+	{
+		if ((long)position + record.length > Integer.MAX_VALUE)
+		{
+			throw (new IOException("Packed gallery too large"));
+		}
+		writeFully(channel, ByteBuffer.wrap(record), position);
+
+		final CRC32 crc = new CRC32();
+		crc.update(record);
+		index.add(position, record.length, (int)crc.getValue());
+
+		return (position + record.length);
+	}
+
+	/*
+	 * Write index at position and then header, and truncate file after index.
+	 */
+	private static void writeIndex(final FileChannel channel, final Index index, final int position,
+			final long stamp) throws IOException
+	{
+		final byte[] indexBytes = index.encode();
+		writeFully(channel, ByteBuffer.wrap(indexBytes), position);
+		channel.truncate((long)position + indexBytes.length);
+
+		final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+		header.putInt(MAGIC);
+		header.putInt(FORMAT_VERSION);
+		header.putLong(stamp);
+		header.putInt(index.size());
+		header.putInt(position);
+		header.putInt(0);
+		final CRC32 crc = new CRC32();
+		crc.update(header.array(), 0, HEADER_LENGTH - 4);
+		crc.update(indexBytes);
+		header.putInt((int)crc.getValue());
+		header.flip();
+
+		/* The header goes last, so that an interrupted write leaves an invalid checksum. */
+		channel.force(false);
+		writeFully(channel, header, 0);
+		channel.force(false);
+	}
+
+	/*
+	 * Write buffer to channel at position.
+	 */
+	private static void writeFully(final FileChannel channel, final ByteBuffer buffer, final long position)
+			throws IOException
+	{
+		long offset = position;
+		while (buffer.hasRemaining())
+		{
+			offset += channel.write(buffer, offset);
+		}
+	}
+}
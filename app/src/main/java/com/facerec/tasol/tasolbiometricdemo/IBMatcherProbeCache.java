@@ -0,0 +1,290 @@
+/* *************************************************************************************************
+ * IBMatcherProbeCache.java
+ *
+ * DESCRIPTION:
+ *     Recent-probe match cache for IBScanMatcher example database
+ *     http://www.integratedbiometrics.com
+ *
+ * NOTES:
+ *     Copyright (c) Integrated Biometrics, 2013
+ *
+ * HISTORY:
+ *     2013/03/22  First version.
+ ************************************************************************************************ */
+
+package com.facerec.tasol.tasolbiometricdemo;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.integratedbiometrics.ibscanmatcher.IBMatcher;
+import com.integratedbiometrics.ibscanmatcher.IBMatcherException;
+import com.integratedbiometrics.ibscanmatcher.IBMatcher.Template;
+
+/**
+ * Class that remembers the last few probes matched by an <code>IBMatcherDatabase</code> and the
+ * entries they matched, so that a person presenting the same finger again shortly afterwards, e.g.,
+ * after a UI timeout, is recognized by matching the new probe against a few cached probes rather
+ * than by searching the whole gallery.  The database re-verifies a cached entry against the new
+ * probe before returning it.
+ * <p>
+ * Probes expire after the time-to-live, and the least recently matched probe is evicted when the
+ * cache is full.  Every write to the database must invalidate the cache, since a cached entry may
+ * have been deleted or updated; a match that was searched for before the write is not cached after
+ * it, which <code>put()</code> detects by the generation read before the search.
+ */
+public class IBMatcherProbeCache
+{
+	/* *********************************************************************************************
+	 * PUBLIC CONSTANTS
+	 ******************************************************************************************** */
+
+	/**
+	 * The default maximum number of cached probes.
+	 */
+	public static final int  DEFAULT_CAPACITY     = 8;
+
+	/**
+	 * The default time for which a probe is cached, in milliseconds.
+	 */
+	public static final long DEFAULT_TIME_TO_LIVE = 60L * 1000L;
+
+	/* *********************************************************************************************
+	 * PUBLIC INTERFACE
+	 ******************************************************************************************** */
+
+	/**
+	 * Create empty cache.
+	 *
+	 * @param capacity    maximum number of cached probes
+	 * @param timeToLive  time for which a probe is cached, in milliseconds
+	 */
+	public IBMatcherProbeCache(final int capacity, final long timeToLive)
+	{
+		if (capacity < 1)
+		{
+        	Log.e(PROBE_CACHE_TAG, "Received invalid capacity");
+			throw new IllegalArgumentException("Received invalid capacity");
+		}
+		if (timeToLive < 0)
+		{
+        	Log.e(PROBE_CACHE_TAG, "Received invalid time to live");
+			throw new IllegalArgumentException("Received invalid time to live");
+		}
+
+		this.m_capacity   = capacity;
+		this.m_timeToLive = timeToLive;
+	}
+
+	/**
+	 * Get generation of the cache, which changes whenever it is invalidated.  Read it before
+	 * searching for a match to cache.
+	 *
+	 * @return generation
+	 */
+	public synchronized long getGeneration()
+	{
+		return (this.m_generation);
+	}
+
+	/**
+	 * Find the entry matched by a cached probe that the probe matches, most recent first.  The
+	 * probes are matched without holding the cache's lock.
+	 *
+	 * @param matcher  matcher with which to match probes
+	 * @param probe    probe template
+	 * @return         entry matched by a cached probe, which should be re-verified against the
+	 *                 probe; <code>null</code> if no cached probe matches
+	 */
+	public IBMatcherDatabase.Entry lookup(final IBMatcher matcher, final Template probe)
+	{
+		final List<Item> items;
+		synchronized (this)
+		{
+			expire();
+			items = new ArrayList<Item>(this.m_items);
+		}
+
+		for (final Item item : items)
+		{
+			if (!IBMatcherFilter.isCompatible(probe, item.probe))
+			{
+				continue;
+			}
+			try
+			{
+				if (matches(matcher, probe, item.probe))
+				{
+					return (item.entry);
+				}
+			}
+			catch (final IBMatcherException ibme)
+			{
+				Log.e(PROBE_CACHE_TAG, "Match failed with exception " + ibme.getType().toString());
+			}
+		}
+		return (null);
+	}
+
+	/**
+	 * Cache a probe with the entry it matched, replacing any probe cached for the same entry,
+	 * unless the cache has been invalidated since the search for the match began.
+	 *
+	 * @param probe       probe template
+	 * @param entry       entry matched by probe
+	 * @param generation  generation read before the search
+	 */
+	public synchronized void put(final Template probe, final IBMatcherDatabase.Entry entry,
+			final long generation)
+	{
+		if (generation != this.m_generation)
+		{
+			return;
+		}
+
+		final Iterator<Item> iterator = this.m_items.iterator();
+		while (iterator.hasNext())
+		{
+			if (iterator.next().entry.getRowId() == entry.getRowId())
+			{
+				iterator.remove();
+			}
+		}
+		this.m_items.addFirst(new Item(probe, entry, SystemClock.elapsedRealtime()));
+		while (this.m_items.size() > this.m_capacity)
+		{
+			this.m_items.removeLast();
+		}
+	}
+
+	/**
+	 * Drop all cached probes, e.g., because the database was written.
+	 */
+	public synchronized void invalidate()
+	{
+		this.m_items.clear();
+		this.m_generation++;
+	}
+
+	/**
+	 * Count a match served from the cache.
+	 */
+	public synchronized void recordHit()
+	{
+		this.m_hits++;
+	}
+
+	/**
+	 * Count a match for which the gallery was searched.
+	 */
+	public synchronized void recordMiss()
+	{
+		this.m_misses++;
+	}
+
+	/**
+	 * Get number of matches served from the cache.
+	 *
+	 * @return number of hits
+	 */
+	public synchronized long getHits()
+	{
+		return (this.m_hits);
+	}
+
+	/**
+	 * Get number of matches for which the gallery was searched.
+	 *
+	 * @return number of misses
+	 */
+	public synchronized long getMisses()
+	{
+		return (this.m_misses);
+	}
+
+	/* *********************************************************************************************
+	 * PROTECTED INTERFACE
+	 ******************************************************************************************** */
+
+	/**
+	 * Determine whether a probe matches a cached probe.  Subclasses may override this, e.g., to 
+	 * test the cache without the native matcher.
+	 *
+	 * @param matcher  matcher passed to <code>lookup()</code>
+	 * @param probe    probe template
+	 * @param cached   cached probe template of compatible finger position
+	 * @return         <code>true</code> if the probe matches the cached probe; <code>false</code>
+	 *                 otherwise
+	 * @throws         IBMatcherException
+	 */
+	protected boolean matches(final IBMatcher matcher, final Template probe, final Template cached) 
+			throws IBMatcherException
+	{
+		return (matcher.matchTemplates(probe, cached) > 0);
+	}
+
+	/* *********************************************************************************************
+	 * PRIVATE INTERFACE
+	 ******************************************************************************************** */
+
+	/*
+	 * Log tag for this class.
+	 */
+	private static final String PROBE_CACHE_TAG = "IBMatcher Probe Cache";
+
+	/*
+	 * Class holding one cached probe.
+	 */
+	private static final class Item
+	{
+		private final Template                probe;
+		private final IBMatcherDatabase.Entry entry;
+		private final long                    time;
+
+		private Item(final Template probe, final IBMatcherDatabase.Entry entry, final long time)
+		{
+			this.probe = probe;
+			this.entry = entry;
+			this.time  = time;
+		}
+	}
+
+	/*
+	 * Maximum number of cached probes, and time for which a probe is cached.
+	 */
+	private final int              m_capacity;
+	private final long             m_timeToLive;
+
+	/*
+	 * Cached probes, most recently matched first.
+	 */
+	private final LinkedList<Item> m_items      = new LinkedList<Item>();
+
+	/*
+	 * Number of invalidations.
+	 */
+	private long                   m_generation = 0;
+
+	/*
+	 * Counts of matches served from the cache and searched for.
+	 */
+	private long                   m_hits       = 0;
+	private long                   m_misses     = 0;
+
+	/*
+	 * Drop expired probes.
+	 */
+	private void expire()
+	{
+		final long now = SystemClock.elapsedRealtime();
+		while (!this.m_items.isEmpty() && (now - this.m_items.getLast().time > this.m_timeToLive))
+		{
+			this.m_items.removeLast();
+		}
+	}
+}
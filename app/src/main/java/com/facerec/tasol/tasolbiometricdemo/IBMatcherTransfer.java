@@ -0,0 +1,1030 @@
+/* *************************************************************************************************
+ * IBMatcherTransfer.java
+ *
+ * DESCRIPTION:
+ *     Bulk template import and export for IBScanMatcher example database
+ *     http://www.integratedbiometrics.com
+ *
+ * NOTES:
+ *     Copyright (c) Integrated Biometrics, 2013
+ *
+ * HISTORY:
+ *     2013/03/22  First version.
+ ************************************************************************************************ */
+
+package com.facerec.tasol.tasolbiometricdemo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import android.database.Cursor;
+import android.util.Log;
+
+import com.integratedbiometrics.ibscanmatcher.IBMatcher;
+import com.integratedbiometrics.ibscanmatcher.IBCompactTemplateCodec;
+import com.integratedbiometrics.ibscanmatcher.IBMatcherException;
+import com.integratedbiometrics.ibscanmatcher.IBMinutiaeSignature;
+import com.integratedbiometrics.ibscanmatcher.IBTemplateCodec;
+import com.integratedbiometrics.ibscanmatcher.IBMatcher.Template;
+
+/**
+ * Class that moves many templates at once between an <code>IBMatcherDatabase</code> and a
+ * directory, or a single ZIP archive, of template files.  Each file holds one template, either an
+ * ISO/IEC 19794-2 Fingerprint Minutiae Record (extension <code>.fmr</code>) or an IBSM template
+ * (extension <code>.ibsm_template</code>), and is named for the person enrolled with it.
+ * <p>
+ * A transfer runs as three stages connected by bounded queues, so that file I/O, template
+ * conversion and database access overlap while only a few templates are held in memory at once:
+ * on import, files are read, decoded and enrolled (see <code>IBMatcherDatabase.enrollAll()</code>);
+ * on export, entries are read, encoded and written to files.  Files or entries that cannot be
+ * read or converted are logged and skipped without stopping the transfer.  Interrupting the
+ * calling thread stops the transfer after the chunk being enrolled, or the file being written.
+ */
+public final class IBMatcherTransfer
+{
+	/* *********************************************************************************************
+	 * PUBLIC CONSTANTS
+	 ******************************************************************************************** */
+
+	/**
+	 * The number of templates that may wait between two stages of a transfer.
+	 */
+	public static final int QUEUE_CAPACITY = 64;
+
+	/* *********************************************************************************************
+	 * PUBLIC INNER CLASSES
+	 ******************************************************************************************** */
+
+	/**
+	 * Enumeration of template file formats.
+	 */
+	public static enum Format
+	{
+		/**
+		 * ISO/IEC 19794-2 Fingerprint Minutiae Record.
+		 */
+		FMR("fmr"),
+
+		/**
+		 * IBSM template, as written by <code>IBMatcher.saveTemplate()</code>.
+		 */
+		IBSM_TEMPLATE("ibsm_template");
+
+		/*
+		 * Extension of files of this format, without the dot.
+		 */
+		private final String m_extension;
+
+		private Format(final String extension)
+		{
+			this.m_extension = extension;
+		}
+
+		/**
+		 * Get extension of files of this format.
+		 *
+		 * @return extension, without the dot
+		 */
+		public String getExtension()
+		{
+			return (this.m_extension);
+		}
+
+		/**
+		 * Get format of file from its name.
+		 *
+		 * @param fileName  name of file
+		 * @return          format of file, or <code>null</code> if it has no template extension
+		 */
+		public static Format fromFileName(final String fileName)
+		{
+			final String lowerName = fileName.toLowerCase(Locale.US);
+			for (final Format format : values())
+			{
+				if (lowerName.endsWith("." + format.m_extension))
+				{
+					return (format);
+				}
+			}
+
+			return (null);
+		}
+	}
+
+	/**
+	 * Class accumulating the work of one stage of a transfer.  A stage is only updated by its own
+	 * thread; read it once the transfer has returned.
+	 */
+	public static final class Stage
+	{
+		/*
+		 * Name of stage.
+		 */
+		private final String m_name;
+
+		/*
+		 * Number of templates passed on by stage.
+		 */
+		private int          m_count;
+
+		/*
+		 * Number of templates skipped by stage.
+		 */
+		private int          m_skipped;
+
+		/*
+		 * Number of bytes of templates passed on by stage.
+		 */
+		private long         m_bytes;
+
+		/*
+		 * Time spent working, excluding time waiting on the other stages, in nanoseconds.
+		 */
+		private long         m_busyNanos;
+
+		private Stage(final String name)
+		{
+			this.m_name = name;
+		}
+
+		/**
+		 * Get name of stage.
+		 *
+		 * @return name of stage
+		 */
+		public String getName()
+		{
+			return (this.m_name);
+		}
+
+		/**
+		 * Get number of templates passed on by stage.
+		 *
+		 * @return number of templates
+		 */
+		public int getCount()
+		{
+			return (this.m_count);
+		}
+
+		/**
+		 * Get number of templates skipped by stage, because they could not be read, converted or
+		 * written, or, when enrolling, because their name was already enrolled.
+		 *
+		 * @return number of templates skipped
+		 */
+		public int getSkipped()
+		{
+			return (this.m_skipped);
+		}
+
+		/**
+		 * Get number of bytes of templates passed on by stage.
+		 *
+		 * @return number of bytes
+		 */
+		public long getBytes()
+		{
+			return (this.m_bytes);
+		}
+
+		/**
+		 * Get time stage spent working, excluding time waiting on the other stages.
+		 *
+		 * @return busy time, in nanoseconds
+		 */
+		public long getBusyNanos()
+		{
+			return (this.m_busyNanos);
+		}
+
+		/**
+		 * Get throughput of stage while busy.  The slowest stage bounds the throughput of the
+		 * transfer.
+		 *
+		 * @return templates handled per second of busy time
+		 */
+		public double getThroughput()
+		{
+			final int handled = this.m_count + this.m_skipped;
+			return ((this.m_busyNanos > 0) ? (handled * 1000000000.0 / this.m_busyNanos) : 0.0);
+		}
+
+		@Override
+		public String toString()
+		{
+			return (String.format(Locale.US, "%s: %d passed, %d skipped, %d bytes in %.3f s (%.1f/s)",
+					this.m_name, this.m_count, this.m_skipped, this.m_bytes, this.m_busyNanos / 1000000000.0,
+					getThroughput()));
+		}
+	}
+
+	/**
+	 * Class reporting the work of a transfer.
+	 */
+	public static final class Report
+	{
+		/*
+		 * Stages of transfer, in order.
+		 */
+		private final Stage[] m_stages;
+
+		/*
+		 * Wall-clock time of transfer, in nanoseconds.
+		 */
+		private long          m_elapsedNanos;
+
+		private Report(final String read, final String convert, final String write)
+		{
+			this.m_stages = new Stage[] {new Stage(read), new Stage(convert), new Stage(write)};
+		}
+
+		/**
+		 * Get stages of transfer.
+		 *
+		 * @return stages, in order: reading, converting and writing
+		 */
+		public Stage[] getStages()
+		{
+			return (this.m_stages.clone());
+		}
+
+		/**
+		 * Get number of templates transferred, i.e., passed on by the last stage.
+		 *
+		 * @return number of templates transferred
+		 */
+		public int getTransferred()
+		{
+			return (this.m_stages[2].m_count);
+		}
+
+		/**
+		 * Get number of templates skipped by any stage.
+		 *
+		 * @return number of templates skipped
+		 */
+		public int getSkipped()
+		{
+			return (this.m_stages[0].m_skipped + this.m_stages[1].m_skipped + this.m_stages[2].m_skipped);
+		}
+
+		/**
+		 * Get wall-clock time of transfer.
+		 *
+		 * @return elapsed time, in nanoseconds
+		 */
+		public long getElapsedNanos()
+		{
+			return (this.m_elapsedNanos);
+		}
+
+		@Override
+		public String toString()
+		{
+			return (String.format(Locale.US, "%d transferred, %d skipped in %.3f s; %s; %s; %s",
+					getTransferred(), getSkipped(), this.m_elapsedNanos / 1000000000.0,
+					this.m_stages[0], this.m_stages[1], this.m_stages[2]));
+		}
+	}
+
+	/* *********************************************************************************************
+	 * PUBLIC INTERFACE
+	 ******************************************************************************************** */
+
+	/**
+	 * Enroll the templates of a directory or ZIP archive of template files, naming each person for
+	 * the file without its extension.  Files of other extensions are ignored, as are files whose
+	 * name is already enrolled, so an import that was stopped can be resumed by importing again.
+	 *
+	 * @param database   database to enroll templates in
+	 * @param source     directory or ZIP archive (extension <code>.zip</code>) of template files
+	 * @param chunkSize  number of templates per transaction, e.g.,
+	 *                   <code>IBMatcherDatabase.DEFAULT_ENROLL_CHUNK_SIZE</code>
+	 * @return           report of the import
+	 */
+	public static Report importTemplates(final IBMatcherDatabase database, final File source,
+			final int chunkSize)
+	{
+		/* Check arguments. */
+		if ((database == null) || (source == null))
+		{
+        	Log.e(TRANSFER_TAG, "Received null database or source");
+			throw new IllegalArgumentException("Received null database or source");
+		}
+		if (!source.isDirectory() && !isArchive(source))
+		{
+        	Log.e(TRANSFER_TAG, "Source is neither directory nor ZIP archive");
+			throw new IllegalArgumentException("Source is neither directory nor ZIP archive");
+		}
+
+		final Report              report      = new Report("read", "decode", "enroll");
+		final BlockingQueue<Item> files       = new ArrayBlockingQueue<Item>(QUEUE_CAPACITY);
+		final BlockingQueue<Item> templates   = new ArrayBlockingQueue<Item>(QUEUE_CAPACITY);
+		final String              description = "Imported from " + source.getName();
+		final long                start       = System.nanoTime();
+
+		/* Read files in one thread. */
+		final Thread threadRead = new StageThread("read", files)
+		{
+			@Override
+			protected void work() throws InterruptedException
+			{
+				if (isArchive(source))
+				{
+					readArchive(source, files, report.m_stages[0]);
+				}
+				else
+				{
+					readDirectory(source, files, report.m_stages[0]);
+				}
+			}
+		};
+
+		/* Decode templates in another. */
+		final Thread threadDecode = new StageThread("decode", templates)
+		{
+			@Override
+			protected void work() throws InterruptedException
+			{
+				final Stage     stage     = report.m_stages[1];
+				final IBMatcher ibMatcher = IBMatcher.getInstance();
+				for (Item item = files.take(); item != END; item = files.take())
+				{
+					final long     startItem = System.nanoTime();
+					final Template template  = decodeTemplate(ibMatcher, item);
+					stage.m_busyNanos += System.nanoTime() - startItem;
+					if (template == null)
+					{
+						stage.m_skipped++;
+						continue;
+					}
+
+					stage.m_count++;
+					stage.m_bytes += item.m_bytes.length;
+					templates.put(new Item(getPersonName(item.m_name), null, template, decodeSignature(item)));
+				}
+			}
+		};
+
+		/* Enroll templates in this thread, as they are decoded. */
+		final Stage  stage        = report.m_stages[2];
+		final long[] waitNanos    = new long[1];
+		final Iterable<IBMatcherDatabase.EnrollmentRecord> records = new Iterable<IBMatcherDatabase.EnrollmentRecord>()
+		{
+			@Override
+			public Iterator<IBMatcherDatabase.EnrollmentRecord> iterator()
+			{
+				return (new Iterator<IBMatcherDatabase.EnrollmentRecord>()
+				{
+					/* Next decoded template, or END once the decoder has finished. */
+					private Item m_next;
+
+					@Override
+					public boolean hasNext()
+					{
+						if (this.m_next == null)
+						{
+							final long startWait = System.nanoTime();
+							try
+							{
+								this.m_next = templates.take();
+							}
+							catch (final InterruptedException ie)
+							{
+								/* Let enrollAll() see the interrupt and stop. */
+								Thread.currentThread().interrupt();
+								this.m_next = END;
+							}
+							waitNanos[0] += System.nanoTime() - startWait;
+						}
+
+						return (this.m_next != END);
+					}
+
+					@Override
+					public IBMatcherDatabase.EnrollmentRecord next()
+					{
+						if (!hasNext())
+						{
+							throw new NoSuchElementException();
+						}
+
+						final Item item = this.m_next;
+						this.m_next = null;
+						return (new IBMatcherDatabase.EnrollmentRecord(item.m_name, description, item.m_template, 
+								item.m_signature));
+					}
+
+					@Override
+					public void remove()
+					{
+						throw new UnsupportedOperationException();
+					}
+				});
+			}
+		};
+
+		threadRead.start();
+		threadDecode.start();
+		final long startEnroll = System.nanoTime();
+		try
+		{
+			database.enrollAll(records, chunkSize, new IBMatcherDatabase.EnrollmentListener()
+			{
+				@Override
+				public void enrollmentProgress(final int processed, final int enrolled, final int skipped)
+				{
+					stage.m_count   = enrolled;
+					stage.m_skipped = skipped;
+				}
+			});
+		}
+		finally
+		{
+			stage.m_busyNanos = System.nanoTime() - startEnroll - waitNanos[0];
+			stopStages(threadRead, threadDecode);
+		}
+
+		report.m_elapsedNanos = System.nanoTime() - start;
+		Log.i(TRANSFER_TAG, "Imported from " + source.getName() + ": " + report);
+		return (report);
+	}
+
+	/**
+	 * Write every template of every entry in a database to a directory or ZIP archive of template
+	 * files, each named for the entry's name.  Characters of names that cannot appear in file names
+	 * are replaced, and names that collide, as do those of an entry's further templates, are 
+	 * distinguished by the entry's row ID and then by a count.
+	 *
+	 * @param database  database to export templates from
+	 * @param target    directory, created if needed, or ZIP archive (extension <code>.zip</code>)
+	 *                  to write; existing files of the same names are replaced
+	 * @param format    format of template files
+	 * @return          report of the export, or <code>null</code> if the target could not be
+	 *                  created or the database could not be read
+	 */
+	public static Report exportTemplates(final IBMatcherDatabase database, final File target,
+			final Format format)
+	{
+		/* Check arguments. */
+		if ((database == null) || (target == null) || (format == null))
+		{
+        	Log.e(TRANSFER_TAG, "Received null database, target, or format");
+			throw new IllegalArgumentException("Received null database, target, or format");
+		}
+
+		final boolean archive = isArchive(target);
+		if (!archive && !target.isDirectory() && !target.mkdirs())
+		{
+        	Log.e(TRANSFER_TAG, "Could not create directory " + target.getAbsolutePath());
+			return (null);
+		}
+		final Cursor cursor = database.getTemplateCursor();
+		if (cursor == null)
+		{
+			return (null);
+		}
+
+		final Report              report  = new Report("read", "encode", "write");
+		final BlockingQueue<Item> entries = new ArrayBlockingQueue<Item>(QUEUE_CAPACITY);
+		final BlockingQueue<Item> files   = new ArrayBlockingQueue<Item>(QUEUE_CAPACITY);
+		final long                start   = System.nanoTime();
+
+		/* Read entries in one thread. */
+		final Thread threadRead = new StageThread("read", entries)
+		{
+			@Override
+			protected void work() throws InterruptedException
+			{
+				final Stage stage = report.m_stages[0];
+				try
+				{
+					final Set<String> fileNames = new HashSet<String>();
+					long              startItem = System.nanoTime();
+					while (cursor.moveToNext())
+					{
+						final String name          = cursor.getString(IBMatcherDatabase.CURSOR_INDEX_NAME);
+						final byte[] templateBytes = cursor.getBlob(IBMatcherDatabase.CURSOR_INDEX_TEMPLATE);
+						if ((name == null) || (templateBytes == null))
+						{
+							Log.e(TRANSFER_TAG, "Skipping entry with null name or template");
+							stage.m_skipped++;
+							continue;
+						}
+
+						final long rowId    = cursor.getLong(IBMatcherDatabase.CURSOR_INDEX__ID);
+						String     fileName = createFileName(name);
+						for (int n = 1; !fileNames.add(fileName); n++)
+						{
+							fileName = createFileName(name + "_" + rowId + ((n > 1) ? "_" + n : ""));
+						}
+						stage.m_busyNanos += System.nanoTime() - startItem;
+						stage.m_count++;
+						stage.m_bytes += templateBytes.length;
+						entries.put(new Item(fileName + "." + format.getExtension(), templateBytes, null));
+						startItem = System.nanoTime();
+					}
+				}
+				finally
+				{
+					cursor.close();
+				}
+			}
+		};
+
+		/* Encode templates in another. */
+		final Thread threadEncode = new StageThread("encode", files)
+		{
+			@Override
+			protected void work() throws InterruptedException
+			{
+				final Stage     stage     = report.m_stages[1];
+				final IBMatcher ibMatcher = IBMatcher.getInstance();
+				for (Item item = entries.take(); item != END; item = entries.take())
+				{
+					final long   startItem = System.nanoTime();
+					final byte[] bytes     = encodeTemplate(ibMatcher, item, format);
+					stage.m_busyNanos += System.nanoTime() - startItem;
+					if (bytes == null)
+					{
+						stage.m_skipped++;
+						continue;
+					}
+
+					stage.m_count++;
+					stage.m_bytes += bytes.length;
+					files.put(new Item(item.m_name, bytes, null));
+				}
+			}
+		};
+
+		/* Write files in this thread, as they are encoded. */
+		threadRead.start();
+		threadEncode.start();
+		try
+		{
+			if (archive)
+			{
+				writeArchive(target, files, report.m_stages[2]);
+			}
+			else
+			{
+				writeDirectory(target, files, report.m_stages[2]);
+			}
+		}
+		catch (final InterruptedException ie)
+		{
+			Thread.currentThread().interrupt();
+		}
+		finally
+		{
+			stopStages(threadRead, threadEncode);
+		}
+
+		report.m_elapsedNanos = System.nanoTime() - start;
+		Log.i(TRANSFER_TAG, "Exported to " + target.getName() + ": " + report);
+		return (report);
+	}
+
+	/* *********************************************************************************************
+	 * PRIVATE INTERFACE
+	 ******************************************************************************************** */
+
+	/*
+	 * Log tag.
+	 */
+	private static final String TRANSFER_TAG = "IBMatcher Transfer";
+
+	/*
+	 * Size of buffer for reading files.
+	 */
+	private static final int    BUFFER_SIZE  = 8192;
+
+	/*
+	 * One template passing between two stages, by name (of a person or a file) with its bytes or
+	 * its decoded template.
+	 */
+	private static final class Item
+	{
+		private final String              m_name;
+		private final byte[]              m_bytes;
+		private final Template            m_template;
+		private final IBMinutiaeSignature m_signature;
+
+		private Item(final String name, final byte[] bytes, final Template template)
+		{
+			this(name, bytes, template, null);
+		}
+
+		private Item(final String name, final byte[] bytes, final Template template, 
+				final IBMinutiaeSignature signature)
+		{
+			this.m_name      = name;
+			this.m_bytes     = bytes;
+			this.m_template  = template;
+			this.m_signature = signature;
+		}
+	}
+
+	/*
+	 * Item marking the end of a queue.
+	 */
+	private static final Item END = new Item(null, null, null);
+
+	/*
+	 * Thread running a stage that feeds a queue, and ends the queue when the stage finishes,
+	 * unless it was interrupted because the transfer was stopped.
+	 */
+	private abstract static class StageThread extends Thread
+	{
+		private final BlockingQueue<Item> m_output;
+
+		private StageThread(final String name, final BlockingQueue<Item> output)
+		{
+			super(TRANSFER_TAG + " " + name);
+			this.m_output = output;
+		}
+
+		@Override
+		public final void run()
+		{
+			boolean stopped = false;
+			try
+			{
+				work();
+			}
+			catch (final InterruptedException ie)
+			{
+				stopped = true;
+			}
+			finally
+			{
+				if (!stopped)
+				{
+					try
+					{
+						this.m_output.put(END);
+					}
+					catch (final InterruptedException ie)
+					{
+						/* The transfer was stopped; nobody waits for the end. */
+					}
+				}
+			}
+		}
+
+		protected abstract void work() throws InterruptedException;
+	}
+
+	/*
+	 * Stop and wait for stage threads, which have already finished unless the transfer was stopped
+	 * early.  The caller's interrupt status is preserved.
+	 */
+	private static void stopStages(final Thread... threads)
+	{
+		boolean interrupted = false;
+		for (final Thread thread : threads)
+		{
+			thread.interrupt();
+			while (true)
+			{
+				try
+				{
+					thread.join();
+					break;
+				}
+				catch (final InterruptedException ie)
+				{
+					interrupted = true;
+				}
+			}
+		}
+		if (interrupted)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/*
+	 * Determine whether file is (to be) a ZIP archive, by its extension.
+	 */
+	private static boolean isArchive(final File file)
+	{
+		return (!file.isDirectory() && file.getName().toLowerCase(Locale.US).endsWith(".zip"));
+	}
+
+	/*
+	 * Get name of person from name of template file, stripping any path and the extension.
+	 */
+	private static String getPersonName(final String fileName)
+	{
+		final String baseName = fileName.substring(fileName.lastIndexOf('/') + 1);
+		final int    dot      = baseName.lastIndexOf('.');
+		return ((dot > 0) ? baseName.substring(0, dot) : baseName);
+	}
+
+	/*
+	 * Create file name, without extension, from name of person.  Characters other than letters,
+	 * digits, '-', '_' and ' ' are replaced by '_'.
+	 */
+	private static String createFileName(final String name)
+	{
+		final StringBuilder fileName = new StringBuilder(name.length());
+		for (int i = 0; i < name.length(); i++)
+		{
+			final char c = name.charAt(i);
+			fileName.append((Character.isLetterOrDigit(c) || (c == '-') || (c == '_') || (c == ' ')) ? c : '_');
+		}
+
+		return ((fileName.length() > 0) ? fileName.toString() : "_");
+	}
+
+	/*
+	 * Read template files of directory, in order of name, into queue.
+	 */
+	private static void readDirectory(final File directory, final BlockingQueue<Item> files,
+			final Stage stage) throws InterruptedException
+	{
+		final File[] list = directory.listFiles();
+		if (list == null)
+		{
+			Log.e(TRANSFER_TAG, "Could not list directory " + directory.getAbsolutePath());
+			return;
+		}
+		Arrays.sort(list);
+
+		for (final File file : list)
+		{
+			if (!file.isFile() || (Format.fromFileName(file.getName()) == null))
+			{
+				continue;
+			}
+
+			final long startItem = System.nanoTime();
+			byte[]     bytes     = null;
+			try
+			{
+				final InputStream in = new FileInputStream(file);
+				try
+				{
+					bytes = readFully(in);
+				}
+				finally
+				{
+					in.close();
+				}
+			}
+			catch (final IOException ioe)
+			{
+				Log.e(TRANSFER_TAG, "Skipping file " + file.getName() + " that could not be read: " + ioe.toString());
+			}
+			stage.m_busyNanos += System.nanoTime() - startItem;
+
+			if (bytes == null)
+			{
+				stage.m_skipped++;
+				continue;
+			}
+			stage.m_count++;
+			stage.m_bytes += bytes.length;
+			files.put(new Item(file.getName(), bytes, null));
+		}
+	}
+
+	/*
+	 * Read template files of ZIP archive, in order of entry, into queue.  An archive cannot be
+	 * read past a corrupt entry, so reading stops at the first one.
+	 */
+	private static void readArchive(final File archive, final BlockingQueue<Item> files,
+			final Stage stage) throws InterruptedException
+	{
+		try
+		{
+			final ZipInputStream in = new ZipInputStream(new BufferedInputStream(new FileInputStream(archive)));
+			try
+			{
+				long startItem = System.nanoTime();
+				for (ZipEntry entry = in.getNextEntry(); entry != null; entry = in.getNextEntry())
+				{
+					if (entry.isDirectory() || (Format.fromFileName(entry.getName()) == null))
+					{
+						continue;
+					}
+
+					final byte[] bytes = readFully(in);
+					stage.m_busyNanos += System.nanoTime() - startItem;
+					stage.m_count++;
+					stage.m_bytes += bytes.length;
+					files.put(new Item(entry.getName(), bytes, null));
+					startItem = System.nanoTime();
+				}
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		catch (final IOException ioe)
+		{
+			Log.e(TRANSFER_TAG, "Stopped reading archive " + archive.getName() + ": " + ioe.toString());
+			stage.m_skipped++;
+		}
+	}
+
+	/*
+	 * Read stream to its end.
+	 */
+	private static byte[] readFully(final InputStream in) throws IOException
+	{
+		final ByteArrayOutputStream out    = new ByteArrayOutputStream(BUFFER_SIZE);
+		final byte[]                buffer = new byte[BUFFER_SIZE];
+		for (int read = in.read(buffer); read >= 0; read = in.read(buffer))
+		{
+			out.write(buffer, 0, read);
+		}
+
+		return (out.toByteArray());
+	}
+
+	/*
+	 * Decode template file into template of person it is named for.  Returns null, after logging,
+	 * if the file is corrupt, e.g., an IBSM template file that is truncated or too long.
+	 */
+	private static Template decodeTemplate(final IBMatcher ibMatcher, final Item item)
+	{
+		try
+		{
+			final Template template;
+			if (Format.fromFileName(item.m_name) == Format.FMR)
+			{
+				template = ibMatcher.loadTemplateFromFmrBytes(item.m_bytes);
+			}
+			else
+			{
+				/* Every IBSM template file has the same size. */
+				final int length = IBTemplateCodec.HEADER_LENGTH + IBMatcher.getMinutiaeLength() 
+						+ IBTemplateCodec.TRAILER_LENGTH;
+				if (item.m_bytes.length != length)
+				{
+					Log.e(TRANSFER_TAG, "Skipping file " + item.m_name + " of " + item.m_bytes.length 
+							+ " bytes, not " + length);
+					return (null);
+				}
+				template = IBTemplateCodec.decode(item.m_bytes);
+			}
+			if (template == null)
+			{
+				Log.e(TRANSFER_TAG, "Skipping file " + item.m_name + " that could not be decoded");
+				return (null);
+			}
+
+			return (template);
+		}
+		catch (final IBMatcherException ibme)
+		{
+			Log.e(TRANSFER_TAG, "Skipping file " + item.m_name + " that could not be decoded: " + ibme.getType().toString());
+			return (null);
+		}
+	}
+
+	/*
+	 * Compute minutiae signature of template file from the FMR it holds, so that enrolling need not
+	 * convert the decoded template back to an FMR.  Returns null for other formats, or if the FMR 
+	 * cannot be summarized, in which case the signature is computed on enrollment.
+	 */
+	private static IBMinutiaeSignature decodeSignature(final Item item)
+	{
+		if (Format.fromFileName(item.m_name) != Format.FMR)
+		{
+			return (null);
+		}
+
+		try
+		{
+			return (IBMinutiaeSignature.fromFmr(item.m_bytes));
+		}
+		catch (final IBMatcherException ibme)
+		{
+			Log.w(TRANSFER_TAG, "Could not compute signature of file " + item.m_name + ": " + ibme.getType().toString());
+			return (null);
+		}
+	}
+
+	/*
+	 * Encode template of database entry in file format.  Returns null, after logging, if the
+	 * template is corrupt.
+	 */
+	private static byte[] encodeTemplate(final IBMatcher ibMatcher, final Item item, final Format format)
+	{
+		try
+		{
+			final Template template = IBCompactTemplateCodec.decode(item.m_bytes);
+			return ((format == Format.FMR) ? ibMatcher.saveTemplateAsFmrToBytes(template) : IBTemplateCodec.encode(template));
+		}
+		catch (final IBMatcherException ibme)
+		{
+			Log.e(TRANSFER_TAG, "Skipping entry for " + item.m_name + " that could not be encoded: " + ibme.getType().toString());
+			return (null);
+		}
+	}
+
+	/*
+	 * Write encoded templates from queue to files of directory.
+	 */
+	private static void writeDirectory(final File directory, final BlockingQueue<Item> files,
+			final Stage stage) throws InterruptedException
+	{
+		for (Item item = files.take(); item != END; item = files.take())
+		{
+			final long startItem = System.nanoTime();
+			try
+			{
+				final OutputStream out = new FileOutputStream(new File(directory, item.m_name));
+				try
+				{
+					out.write(item.m_bytes);
+				}
+				finally
+				{
+					out.close();
+				}
+				stage.m_count++;
+				stage.m_bytes += item.m_bytes.length;
+			}
+			catch (final IOException ioe)
+			{
+				Log.e(TRANSFER_TAG, "Skipping file " + item.m_name + " that could not be written: " + ioe.toString());
+				stage.m_skipped++;
+			}
+			stage.m_busyNanos += System.nanoTime() - startItem;
+
+			if (Thread.currentThread().isInterrupted())
+			{
+				return;
+			}
+		}
+	}
+
+	/*
+	 * Write encoded templates from queue to entries of ZIP archive.  An archive cannot be written
+	 * past a failed entry, so writing stops at the first one.
+	 */
+	private static void writeArchive(final File archive, final BlockingQueue<Item> files,
+			final Stage stage) throws InterruptedException
+	{
+		try
+		{
+			final ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(archive)));
+			try
+			{
+				for (Item item = files.take(); item != END; item = files.take())
+				{
+					final long startItem = System.nanoTime();
+					out.putNextEntry(new ZipEntry(item.m_name));
+					out.write(item.m_bytes);
+					out.closeEntry();
+					stage.m_busyNanos += System.nanoTime() - startItem;
+					stage.m_count++;
+					stage.m_bytes += item.m_bytes.length;
+
+					if (Thread.currentThread().isInterrupted())
+					{
+						return;
+					}
+				}
+			}
+			finally
+			{
+				out.close();
+			}
+		}
+		catch (final IOException ioe)
+		{
+			Log.e(TRANSFER_TAG, "Stopped writing archive " + archive.getName() + ": " + ioe.toString());
+			stage.m_skipped++;
+		}
+	}
+
+	private IBMatcherTransfer()
+	{
+	}
+}
@@ -17,10 +17,14 @@ package com.facerec.tasol.tasolbiometricdemo;
 import java.io.File;
 import java.io.IOException;
 import java.text.DateFormat;
-import java.util.Date;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import android.app.Activity;
 import android.app.AlertDialog;
@@ -32,7 +36,6 @@ import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.res.Configuration;
 import android.content.res.Resources;
-import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.Color;
 import android.hardware.usb.UsbDevice;
@@ -58,8 +61,6 @@ import android.widget.ImageView;
 import android.widget.ListView;
 import android.widget.PopupMenu;
 import android.widget.PopupMenu.OnMenuItemClickListener;
-import android.widget.SimpleCursorAdapter;
-import android.widget.SimpleCursorAdapter.ViewBinder;
 import android.widget.Spinner;
 import android.widget.TextView;
 import android.widget.Toast;
@@ -139,7 +140,8 @@ public class SimpleMatchActivity2 extends Activity implements IBScanListener, IB
 		 CAPTURE,
 		 MATCH,
 		 SINGLE_ENROLL,
-		 MULTI_ENROLL;
+		 MULTI_ENROLL,
+		 VERIFY;
 	 }
 	
 	/*
@@ -183,6 +185,81 @@ public class SimpleMatchActivity2 extends Activity implements IBScanListener, IB
 		public int      deviceCount                = 0;
 	}
 	
+	/*
+	 * This class searches the database, in the background lane, for entries already enrolled with
+	 * the templates of a user being enrolled.  It is started when the user details dialog is shown,
+	 * so that its result is usually ready by the time the dialog is accepted, and cancelled if the 
+	 * dialog is cancelled.  It runs at low priority, leaving the CPU to the UI and capture, while 
+	 * the matcher pool, which is idle while the details are typed, does the matching.
+	 */
+	private class DuplicateCheck
+	{
+		/* The future entries found. */
+		private final Future<IBMatcherDatabase.Entry[]> future;
+		
+		public DuplicateCheck(final Template[] templates)
+		{
+			this.future = SimpleMatchActivity2.this.m_ibMatcherAsync.submit(IBMatcherAsync.Lane.BACKGROUND, 
+					new Callable<IBMatcherDatabase.Entry[]>()
+			{
+				@Override
+				public IBMatcherDatabase.Entry[] call()
+				{
+					return (SimpleMatchActivity2.this.m_ibMatcherDatabase.findDuplicates(templates, 
+							DUPLICATE_COUNT_MAX));
+				}
+			}, null);
+		}
+		
+		/* Stop the search, interrupting it if it has started. */
+		public void cancel()
+		{
+			this.future.cancel(true);
+		}
+		
+		/* 
+		 * Wait for the search to complete and get the entries found under names other than the 
+		 * user's, which are left to the check for an existing entry.  Returns no entries if the 
+		 * search failed or was cancelled, or the wait was interrupted.
+		 */
+		public IBMatcherDatabase.Entry[] getDuplicates(final String userName)
+		{
+			final IBMatcherDatabase.Entry[] duplicates;
+			try
+			{
+				duplicates = this.future.get();
+			}
+			catch (final InterruptedException ie)
+			{
+				Thread.currentThread().interrupt();
+				return (new IBMatcherDatabase.Entry[0]);
+			}
+			catch (final ExecutionException ee)
+			{
+				Log.e(SIMPLE_MATCH_TAG, "Duplicate check failed with exception " + ee.getCause().toString());
+				return (new IBMatcherDatabase.Entry[0]);
+			}
+			catch (final CancellationException ce)
+			{
+				return (new IBMatcherDatabase.Entry[0]);
+			}
+			if (duplicates == null)
+			{
+				return (new IBMatcherDatabase.Entry[0]);
+			}
+			
+			final ArrayList<IBMatcherDatabase.Entry> others = new ArrayList<IBMatcherDatabase.Entry>();
+			for (final IBMatcherDatabase.Entry entry : duplicates)
+			{
+				if (!entry.getName().equals(userName))
+				{
+					others.add(entry);
+				}
+			}
+			return (others.toArray(new IBMatcherDatabase.Entry[others.size()]));
+		}
+	}
+	
 	/* *********************************************************************************************
 	 * PRIVATE CONSTANTS
 	 ******************************************************************************************** */
@@ -207,6 +284,9 @@ public class SimpleMatchActivity2 extends Activity implements IBScanListener, IB
 
 	/* The default file name for images and templates for e-mail. */
 	private static final String FILE_NAME_DEFAULT                = "output";
+	
+	/* The maximum number of possible duplicates listed before enrolling a user. */
+	private static final int    DUPLICATE_COUNT_MAX              = 5;
 
 	/* The value of AppData.captureType when the capture type has never been set. */
 	private static final int    CAPTURE_TYPE_INVALID             = -1;
@@ -267,6 +347,11 @@ public class SimpleMatchActivity2 extends Activity implements IBScanListener, IB
 	private Spinner        m_spinnerActionType;
 	private ProgressDialog m_progressDialog;
 	private Button         m_viewDatabaseBtn;
+
+	/*
+	 * Adapter paging the database into the database dialog, while the dialog is shown.
+	 */
+	private IBMatcherBrowserAdapter m_databaseAdapter;
 	
 	/* *********************************************************************************************
 	 * PRIVATE FIELDS
@@ -291,6 +376,12 @@ public class SimpleMatchActivity2 extends Activity implements IBScanListener, IB
 	 */
 	 private IBMatcherDatabase m_ibMatcherDatabase;
 	
+	/*
+	 * The shared pool of threads on which matcher and database operations run, so that they do
+	 * not each start a thread.
+	 */
+	private IBMatcherAsync     m_ibMatcherAsync;
+	
 	/* 
 	 * A handle to the open IBScanDevice (if any) that will be the interface for getting data from
 	 * the open scanner, including capturing the image (beginCaptureImage(), cancelCaptureImage()),
@@ -312,6 +403,11 @@ public class SimpleMatchActivity2 extends Activity implements IBScanListener, IB
 	private ImageDataExt[]     m_lastImageExts;
 	private ImageDataExt       m_lastImageExt;
 	
+	/*
+	 * Bitmap into which the enlarged image is drawn, reused while images keep their size.
+	 */
+	private Bitmap             m_enlargedBitmap;
+	
 	/*
 	 * Information retained for orientation changes.
 	 */
@@ -333,9 +429,13 @@ public class SimpleMatchActivity2 extends Activity implements IBScanListener, IB
 		this.m_ibScan.setScanListener(this);
 	    
 		this.m_ibMatcher = IBMatcher.getInstance();
+		this.m_ibMatcherAsync = IBMatcherAsync.getInstance();
 		
 		this.m_ibMatcherDatabase = new IBMatcherDatabase(this.getApplicationContext());
-		
+
+		/* Decode the enrolled templates in the background, so the first match need not. */
+		this.m_ibMatcherAsync.loadGalleryAsync(this.m_ibMatcherDatabase, null);
+
 		Resources r = Resources.getSystem();
 		Configuration config = r.getConfiguration();
 		onConfigurationChanged(config);
@@ -371,6 +471,8 @@ public class SimpleMatchActivity2 extends Activity implements IBScanListener, IB
 	@Override
 	protected void onDestroy() 
 	{
+		this.m_ibMatcherDatabase.close();
+		
 		super.onDestroy();
 	}
 
@@ -472,7 +574,7 @@ public class SimpleMatchActivity2 extends Activity implements IBScanListener, IB
 		this.m_spinnerActionType   = (Spinner) findViewById(R.id.action_type);
 		final ArrayAdapter<CharSequence> adapterAction = new ArrayAdapter<CharSequence>(this, 
 				android.R.layout.simple_spinner_item, 
-				new CharSequence[] {"Capture", "Match", "Single enroll", "Multi enroll" });
+				new CharSequence[] {"Capture", "Match", "Single enroll", "Multi enroll", "Verify" });
 		adapterAction.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
 		this.m_spinnerActionType.setAdapter(adapterAction);
 		
@@ -729,9 +831,9 @@ public class SimpleMatchActivity2 extends Activity implements IBScanListener, IB
 		this.m_enlargedDialog.setContentView(R.layout.enlarged);
 		this.m_enlargedDialog.setCancelable(false);
 		
-		final Bitmap    bitmap       = this.m_ibMatcher.convertImageToBitmap(this.m_lastImageExt);
+		this.m_enlargedBitmap = this.m_ibMatcher.convertImageToBitmap(this.m_lastImageExt, this.m_enlargedBitmap);
 		final ImageView enlargedView = (ImageView) this.m_enlargedDialog.findViewById(R.id.enlarged_image);
-		enlargedView.setImageBitmap(bitmap);
+		enlargedView.setImageBitmap(this.m_enlargedBitmap);
 		enlargedView.setOnClickListener(this.m_enlargedImageClickListener);
 		
 		this.m_enlargedDialog.show();
@@ -747,59 +849,14 @@ public class SimpleMatchActivity2 extends Activity implements IBScanListener, IB
 		this.m_databaseDialog.setCancelable(false);
 		
 		/* 
-		 * This should be done in the background with a cursor loader to avoid blocking the UI thread. 
-		 */
-		final Cursor cursor = this.m_ibMatcherDatabase.getCursor();
-		
-		/* 
-		 * Setup database list view.  Create adapter to map data between the cursor and list items
-		 * in the view.  
+		 * Setup database list view.  The adapter fetches the entries a page at a time in the 
+		 * background, so the dialog opens without waiting for the database.
 		 */
 		final ListView databaseView = (ListView) this.m_databaseDialog.findViewById(android.R.id.list);
 		
-		final SimpleCursorAdapter adapter = new SimpleCursorAdapter(
-                this.m_databaseDialog.getContext(),
-                R.layout.database_list_item,
-                cursor, 
-                new String[] {IBMatcherDatabase.COLUMN_NAME_NAME, 
-                	IBMatcherDatabase.COLUMN_NAME_CREATE_DATE, 
-                	IBMatcherDatabase.COLUMN_NAME_MODIFY_DATE,
-                	IBMatcherDatabase.COLUMN_NAME_DESCRIPTION},
-                new int[] {R.id.database_name, R.id.database_create, R.id.database_modify, 
-                	R.id.database_description},
-                0);
-                
-        /*
-         * Set a view binder to specially format data from the cursor.
-         */
-        adapter.setViewBinder(new ViewBinder() 
-        {
-			@Override
-			public boolean setViewValue(final View view, final Cursor cursor, final int columnIndex) 
-			{
-				if (columnIndex == IBMatcherDatabase.CURSOR_INDEX_CREATE_DATE)
-				{
-					final TextView textView  = (TextView) view.findViewById(R.id.database_create);
-					final Long     dateValue = cursor.getLong(columnIndex);
-					final Date     date      = new Date(dateValue.longValue());
-					textView.setText(DateFormat.getDateInstance().format(date) 
-							+ " " + DateFormat.getTimeInstance().format(date));
-					return (true);
-				}
-				else if (columnIndex == IBMatcherDatabase.CURSOR_INDEX_MODIFY_DATE)
-				{
-					final TextView textView  = (TextView) view.findViewById(R.id.database_modify);
-					final Long     dateValue = cursor.getLong(columnIndex);
-					final Date     date      = new Date(dateValue.longValue());
-					textView.setText(DateFormat.getDateInstance().format(date) 
-							+ " " + DateFormat.getTimeInstance().format(date));
-					return (true);
-				}	
-	
-				return (false);
-			}
-        });
-        databaseView.setAdapter(adapter);
+		this.m_databaseAdapter = new IBMatcherBrowserAdapter(this.m_databaseDialog.getContext(), 
+				this.m_ibMatcherDatabase);
+        databaseView.setAdapter(this.m_databaseAdapter);
         
         /*
          * Populate information about database.
@@ -967,15 +1024,14 @@ public class SimpleMatchActivity2 extends Activity implements IBScanListener, IB
 										final String   fileName = text.getText().toString();
 										
 										/* E-mail image in background thread. */
-										Thread threadEmail = new Thread() 
+										SimpleMatchActivity2.this.m_ibMatcherAsync.execute(IBMatcherAsync.Lane.BACKGROUND, new Runnable()
 										{
 											@Override
 											public void run()
 											{
 												sendImageInEmail(imageData, fileName, format);													
 											}
-										};
-										threadEmail.start();
+										});
 									}
 								})
 								.setNegativeButton("Cancel", null);
@@ -1025,15 +1081,14 @@ public class SimpleMatchActivity2 extends Activity implements IBScanListener, IB
 										final String   fileName = text.getText().toString();
 										
 										/* E-mail image in background thread. */
-										Thread threadEmail = new Thread() 
+										SimpleMatchActivity2.this.m_ibMatcherAsync.execute(IBMatcherAsync.Lane.BACKGROUND, new Runnable()
 										{
 											@Override
 											public void run()
 											{
 												sendImageInEmail(template, fileName, format);													
 											}
-										};
-										threadEmail.start();
+										});
 									}
 								})
 								.setNegativeButton("Cancel", null);
@@ -1049,9 +1104,11 @@ public class SimpleMatchActivity2 extends Activity implements IBScanListener, IB
 	}
 	
 	/*
-	 * Prompt for enrollment.
+	 * Prompt for enrollment of templates of one user.  While the details are entered, the database 
+	 * is searched for the same fingers enrolled under other names, which are shown before the user 
+	 * is enrolled.
 	 */
-	private void promptForEnroll(final Template template)
+	private void promptForEnroll(final Template[] templates)
 	{
 		/* The dialog must be shown from the UI thread. */
 		runOnUiThread(new Runnable() 
@@ -1059,6 +1116,9 @@ public class SimpleMatchActivity2 extends Activity implements IBScanListener, IB
 			@Override
 			public void run()
 			{
+				/* Search for duplicates while details are entered. */
+				final DuplicateCheck duplicateCheck = new DuplicateCheck(templates);
+				
 				/*
 				 * Prompt for details about user, including name and description.
 				 */
@@ -1079,78 +1139,45 @@ public class SimpleMatchActivity2 extends Activity implements IBScanListener, IB
 							final String   userDescription     = textUserDescription.getText().toString();
 							
 							/* Enroll in background thread. */
-							Thread threadEnroll = new Thread() 
+							SimpleMatchActivity2.this.m_ibMatcherAsync.execute(IBMatcherAsync.Lane.INTERACTIVE, new Runnable()
 							{
 								@Override
 								public void run()
 								{
-									/* 
-									 * Check whether user with this name already exists.  If so, 
-									 * prompt to update the user's existing entry.
+									/*
+									 * Check whether these fingers are enrolled under another name.
+									 * If so, prompt to enroll anyway.
 									 */
-									final IBMatcherDatabase.Entry entryFind = SimpleMatchActivity2.this
-											.m_ibMatcherDatabase.find(userName);
+									final IBMatcherDatabase.Entry[] duplicates = duplicateCheck.getDuplicates(userName);
 									
-									if (entryFind != null)
+									if (duplicates.length > 0)
 									{
-										/* The dialog must be shown from the UI thread. */
-										runOnUiThread(new Runnable() 
-										{ 
-											@Override
-											public void run()
-											{
-												final AlertDialog.Builder builder = new AlertDialog.Builder(SimpleMatchActivity2.this)
-													.setTitle("Could not enroll user")
-													.setMessage("User already enrolled.  Would you like to update user's entry?")
-													.setPositiveButton("Yes", new DialogInterface.OnClickListener() 
-													{
-														@Override
-														public void onClick(DialogInterface dialog, int which) 
-														{
-															/* 
-															 * Update this user's entry.
-															 */
-															final boolean ok = SimpleMatchActivity2.this
-																	.m_ibMatcherDatabase.update(userName, userDescription, template);
-		
-															if (ok)
-															{
-																showAlert("User updated", "");
-															}
-															else
-															{
-																showAlert("Could not update user", "");
-															}
-														}
-													})
-													.setNegativeButton("No", null);    	            
-												builder.create().show();
-											}
-										});
+										promptForDuplicates(userName, userDescription, templates, duplicates);
 									}
 									else
 									{
-										/* 
-										 * This user does not have an entry.  Enroll now.
-										 */
-										final boolean ok = SimpleMatchActivity2.this
-												.m_ibMatcherDatabase.enroll(userName, userDescription, template);
-										
-										if (ok)
-										{
-											showAlert("User now enrolled", "");
-										}
-										else
-										{
-											showAlert("Could not enroll user", "");
-										}
+										enrollUser(userName, userDescription, templates);
 									}
 								}
-							};
-							threadEnroll.start();
+							});
 						}
 					})
-					.setNegativeButton("Cancel", null);
+					.setNegativeButton("Cancel", new DialogInterface.OnClickListener() 
+					{
+						@Override
+						public void onClick(final DialogInterface dialog, final int which) 
+						{
+							duplicateCheck.cancel();
+						}
+					})
+					.setOnCancelListener(new DialogInterface.OnCancelListener() 
+					{
+						@Override
+						public void onCancel(final DialogInterface dialog) 
+						{
+							duplicateCheck.cancel();
+						}
+					});
 				final EditText textUserName = (EditText) userDetailsView.findViewById(R.id.user_name);
 				textUserName.setText(USER_NAME_DEFAULT);
 				
@@ -1163,9 +1190,122 @@ public class SimpleMatchActivity2 extends Activity implements IBScanListener, IB
 	}
 	
 	/*
-	 * Prompt for enrollment.
+	 * Prompt for enrollment of a user whose templates match entries of other users.
 	 */
-	private void promptForUpdate(final Template template)
+	private void promptForDuplicates(final String userName, final String userDescription, 
+			final Template[] templates, final IBMatcherDatabase.Entry[] duplicates)
+	{
+		final StringBuilder message = new StringBuilder("Fingerprints match enrolled users:\n");
+		for (final IBMatcherDatabase.Entry entry : duplicates)
+		{
+			message.append("\n").append(entry.getName()).append(" (score ").append(entry.getMatchScore()).append(")");
+		}
+		message.append("\n\nWould you like to enroll \"").append(userName).append("\" anyway?");
+		
+		/* The dialog must be shown from the UI thread. */
+		runOnUiThread(new Runnable() 
+		{ 
+			@Override
+			public void run()
+			{
+				final AlertDialog.Builder builder = new AlertDialog.Builder(SimpleMatchActivity2.this)
+					.setTitle("Possible duplicate enrollment")
+					.setMessage(message.toString())
+					.setPositiveButton("Yes", new DialogInterface.OnClickListener() 
+					{
+						@Override
+						public void onClick(final DialogInterface dialog, final int which) 
+						{
+							/* Enroll in background thread. */
+							SimpleMatchActivity2.this.m_ibMatcherAsync.execute(IBMatcherAsync.Lane.INTERACTIVE, new Runnable()
+							{
+								@Override
+								public void run()
+								{
+									enrollUser(userName, userDescription, templates);
+								}
+							});
+						}
+					})
+					.setNegativeButton("No", null);    	            
+				builder.create().show();
+			}
+		});
+	}
+	
+	/*
+	 * Enroll templates of one user, prompting to update the user's entry instead if the name is 
+	 * already enrolled.  Must be called from a background thread.
+	 */
+	private void enrollUser(final String userName, final String userDescription, final Template[] templates)
+	{
+		/* 
+		 * Check whether user with this name already exists.  If so, 
+		 * prompt to update the user's existing entry.
+		 */
+		final IBMatcherDatabase.Entry entryFind = SimpleMatchActivity2.this
+				.m_ibMatcherDatabase.find(userName);
+		
+		if (entryFind != null)
+		{
+			/* The dialog must be shown from the UI thread. */
+			runOnUiThread(new Runnable() 
+			{ 
+				@Override
+				public void run()
+				{
+					final AlertDialog.Builder builder = new AlertDialog.Builder(SimpleMatchActivity2.this)
+						.setTitle("Could not enroll user")
+						.setMessage("User already enrolled.  Would you like to update user's entry?")
+						.setPositiveButton("Yes", new DialogInterface.OnClickListener() 
+						{
+							@Override
+							public void onClick(DialogInterface dialog, int which) 
+							{
+								/* 
+								 * Update this user's entry.
+								 */
+								final boolean ok = SimpleMatchActivity2.this
+										.m_ibMatcherDatabase.update(userName, userDescription, templates);
+
+								if (ok)
+								{
+									showAlert("User updated", "");
+								}
+								else
+								{
+									showAlert("Could not update user", "");
+								}
+							}
+						})
+						.setNegativeButton("No", null);    	            
+					builder.create().show();
+				}
+			});
+		}
+		else
+		{
+			/* 
+			 * This user does not have an entry.  Enroll now.
+			 */
+			final boolean ok = SimpleMatchActivity2.this
+					.m_ibMatcherDatabase.enroll(userName, userDescription, templates);
+			
+			if (ok)
+			{
+				showAlert("User now enrolled", "");
+			}
+			else
+			{
+				showAlert("Could not enroll user", "");
+			}
+		}
+	}
+	
+	/*
+	 * Prompt for update of a user with templates.
+	 */
+	private void promptForUpdate(final Template[] templates)
 	{
 		/* The dialog must be shown from the UI thread. */
 		runOnUiThread(new Runnable() 
@@ -1194,7 +1334,7 @@ public class SimpleMatchActivity2 extends Activity implements IBScanListener, IB
 							final String   userDescription     = textUserDescription.getText().toString();
 							
 							/* Update in background thread. */
-							Thread threadUpdate = new Thread() 
+							SimpleMatchActivity2.this.m_ibMatcherAsync.execute(IBMatcherAsync.Lane.INTERACTIVE, new Runnable()
 							{
 								@Override
 								public void run()
@@ -1223,19 +1363,32 @@ public class SimpleMatchActivity2 extends Activity implements IBScanListener, IB
 														public void onClick(final DialogInterface dialog, final int which) 
 														{
 															/*
-															 * Add new entry for this user.
+															 * Add new entry for this user, off the UI thread.
 															 */
-															final boolean ok = SimpleMatchActivity2.this
-																	.m_ibMatcherDatabase.enroll(userName, userDescription, template);;
-					
-															if (ok)
+															SimpleMatchActivity2.this.m_ibMatcherAsync.enrollAsync(
+																	SimpleMatchActivity2.this.m_ibMatcherDatabase, userName, 
+																	userDescription, templates, new IBMatcherAsync.Callback<Boolean>()
 															{
-																showAlert("User now enrolled", "");
-															}
-															else
-															{
-																showAlert("Could not enroll user", "");
-															}
+																@Override
+																public void onSuccess(final Boolean ok)
+																{
+																	if (ok)
+																	{
+																		showAlert("User now enrolled", "");
+																	}
+																	else
+																	{
+																		showAlert("Could not enroll user", "");
+																	}
+																}
+																
+																@Override
+																public void onFailure(final Exception cause)
+																{
+																	showAlert("Could not enroll user", "");
+																	Log.e(SIMPLE_MATCH_TAG, "Error enrolling user " + cause.toString());
+																}
+															});
 														}
 													})
 													.setNegativeButton("No", null);    	            
@@ -1250,7 +1403,7 @@ public class SimpleMatchActivity2 extends Activity implements IBScanListener, IB
 										 * Update existing entry.
 										 */
 										final boolean ok = SimpleMatchActivity2.this
-												.m_ibMatcherDatabase.update(userName, userDescription, template);
+												.m_ibMatcherDatabase.update(userName, userDescription, templates);
 										
 										if (ok)
 										{
@@ -1262,8 +1415,7 @@ public class SimpleMatchActivity2 extends Activity implements IBScanListener, IB
 										}
 									}
 								}
-							};
-							threadUpdate.start();
+							});
 						}
 					})
 					.setNegativeButton("Cancel", null);
@@ -1279,9 +1431,9 @@ public class SimpleMatchActivity2 extends Activity implements IBScanListener, IB
 	}
 
 	/*
-	 * Prompt for enrollment action.
+	 * Prompt for enrollment action with the templates of one user.
 	 */
-	private void promptForEnrollAction(final Template template)
+	private void promptForEnrollAction(final Template[] templates)
 	{
 		/* The dialog must be shown from the UI thread. */
 		runOnUiThread(new Runnable() 
@@ -1299,15 +1451,15 @@ public class SimpleMatchActivity2 extends Activity implements IBScanListener, IB
 		    				switch (which)
 		    				{
 			    				case 0:
-			    					promptForEnroll(template);
+			    					promptForEnroll(templates);
 			    					break;
 			    					
 			    				case 1:
-			    					promptForUpdate(template);
+			    					promptForUpdate(templates);
 			    					break;
 			    					
 			    				case 2:
-			    					promptForEmail(template);
+			    					promptForEmail(templates[0]);
 			    					break;		    				
 		    				}
 						}
@@ -1317,6 +1469,96 @@ public class SimpleMatchActivity2 extends Activity implements IBScanListener, IB
 		});
 	}
 	
+	/*
+	 * Prompt for the claimed identity, by name or by ID, against which to verify a template.
+	 */
+	private void promptForVerify(final Template template)
+	{
+		/* The dialog must be shown from the UI thread. */
+		runOnUiThread(new Runnable() 
+		{ 
+			@Override
+			public void run()
+			{
+				final LayoutInflater      inflater      = SimpleMatchActivity2.this.getLayoutInflater();
+				final View                userClaimView = inflater.inflate(R.layout.user_claim_dialog, null);
+				final EditText            textUserClaim = (EditText) userClaimView.findViewById(R.id.user_claim);
+				final AlertDialog.Builder builder       = new AlertDialog.Builder(SimpleMatchActivity2.this)
+					.setView(userClaimView)
+    	            .setTitle("Enter claimed identity")
+    	            .setPositiveButton("By name", new DialogInterface.OnClickListener() 
+    	            {
+						@Override
+						public void onClick(final DialogInterface dialog, final int which) 
+						{
+							verifyUser(textUserClaim.getText().toString(), template, false);
+						}
+					})
+    	            .setNeutralButton("By ID", new DialogInterface.OnClickListener() 
+    	            {
+						@Override
+						public void onClick(final DialogInterface dialog, final int which) 
+						{
+							verifyUser(textUserClaim.getText().toString(), template, true);
+						}
+					})
+					.setNegativeButton("Cancel", null);
+				
+            	builder.create().show();
+			}
+		});
+	}
+	
+	/*
+	 * Verify template against the entry of a claimed identity in a background thread, and show the
+	 * result with the time taken.
+	 */
+	private void verifyUser(final String userClaim, final Template template, final boolean byId)
+	{
+		final long rowId;
+		if (byId)
+		{
+			try
+			{
+				rowId = Long.parseLong(userClaim.trim());
+			}
+			catch (final NumberFormatException nfe)
+			{
+				showAlert("Could not verify", "\"" + userClaim + "\" is not an ID");
+				return;
+			}
+		}
+		else
+		{
+			rowId = 0;
+		}
+		
+		/* Verify in background thread. */
+		this.m_ibMatcherAsync.execute(IBMatcherAsync.Lane.INTERACTIVE, new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				final long                    start = System.nanoTime();
+				final IBMatcherDatabase.Entry entry = byId
+						? SimpleMatchActivity2.this.m_ibMatcherDatabase.verify(rowId, template)
+						: SimpleMatchActivity2.this.m_ibMatcherDatabase.verify(userClaim, template);
+				final long                    millis = (System.nanoTime() - start) / 1000000;
+				
+				if (entry != null)
+				{
+					showAlert("Identity verified", "\"" + entry.getName() + "\" (ID " + entry.getRowId() 
+							+ ") verified with score " + entry.getMatchScore() + " in " + millis + " ms");
+				}
+				else
+				{
+					showAlert("Identity not verified", "Print does not match \"" + userClaim + "\" (" 
+							+ millis + " ms)");
+				}
+			}
+		});
+	}
+	
 	/*
 	 * Show information about match.
 	 */
@@ -1909,7 +2151,7 @@ public class SimpleMatchActivity2 extends Activity implements IBScanListener, IB
 		setStatus("starting");
 		setFrameTime(FRAME_TIME_DEFAULT);
 		
-		final int[] imageCounts = {1, 1, 3, 6};		
+		final int[] imageCounts = {1, 1, 3, 6, 1};		
 		final int   imageCount  = (actionType != null) ? imageCounts[actionType.ordinal()] : imageCounts[this.m_actionType.ordinal()];
 		if (actionType != null)
 		{
@@ -2092,7 +2334,7 @@ public class SimpleMatchActivity2 extends Activity implements IBScanListener, IB
 		/* 
 		 * Update the state for this action and save data. 
 		 */
-		final int[] imageCounts = {1, 1, 3, 6};		
+		final int[] imageCounts = {1, 1, 3, 6, 1};		
 		final int   imageCount  = imageCounts[this.m_actionType.ordinal()];
 		try
 		{
@@ -2121,7 +2363,7 @@ public class SimpleMatchActivity2 extends Activity implements IBScanListener, IB
 		}
 		else
 		{
-			final String[] actionNames = {"capture", "match", "single enrollment", "multiple enrollment"};
+			final String[] actionNames = {"capture", "match", "single enrollment", "multiple enrollment", "verification"};
 		
 			/* 
 			 * Save information in case we later show the enlarged image and allow long clicks on the
@@ -2139,7 +2381,7 @@ public class SimpleMatchActivity2 extends Activity implements IBScanListener, IB
 				/* Calculate NFIQ score. */
 				case CAPTURE:
 				{
-					final Thread threadNfiq = new Thread() 
+					SimpleMatchActivity2.this.m_ibMatcherAsync.execute(IBMatcherAsync.Lane.INTERACTIVE, new Runnable()
 					{
 						@Override
 						public void run()
@@ -2154,8 +2396,7 @@ public class SimpleMatchActivity2 extends Activity implements IBScanListener, IB
 								showToastOnUiThread("Error calculating NFIQ score " + ibse.getType().toString(), Toast.LENGTH_SHORT);
 							}
 						}
-					};
-					threadNfiq.start();
+					});
 					
 					break;
 				}
@@ -2167,30 +2408,42 @@ public class SimpleMatchActivity2 extends Activity implements IBScanListener, IB
 
 					showProgressDialog("Processing...");
 					
-					/* Match on background thread. */
-					final Thread threadMatch = new Thread()
+					/* Match in the background, then search the database. */
+					this.m_ibMatcherAsync.extractTemplateAsync(images[0], new IBMatcherAsync.Callback<Template>()
 					{
 						@Override
-						public void run()
+						public void onSuccess(final Template template)
 						{
-							try 
+							SimpleMatchActivity2.this.m_ibMatcherAsync.identifyAsync(SimpleMatchActivity2.this.m_ibMatcherDatabase, 
+									template, 1, new IBMatcherAsync.Callback<IBMatcherDatabase.Entry[]>()
 							{
-								final Template              template = SimpleMatchActivity2.this.m_ibMatcher.extractTemplate(images[0]);								
-								final IBMatcherDatabase.Entry entry  = SimpleMatchActivity2.this.m_ibMatcherDatabase.match(template);
-								hideProgressDialog();
-								
-								showMatch(entry);
+								@Override
+								public void onSuccess(final IBMatcherDatabase.Entry[] entries)
+								{
+									hideProgressDialog();
+									
+									/* Show the best-scoring entry, not merely the first that matches. */
+									showMatch((entries.length > 0) ? entries[0] : null);
+								}
 								
-							}
-							catch (IBMatcherException ibme)
-							{
-								hideProgressDialog();								
-								showAlert("Could not match", "Error generating template");
-								Log.e(SIMPLE_MATCH_TAG, "Error generating template for " + ibme.getType().toString());
-							}
-						}								
-					};
-					threadMatch.start();
+								@Override
+								public void onFailure(final Exception cause)
+								{
+									hideProgressDialog();
+									showAlert("Could not match", "Error searching database");
+									Log.e(SIMPLE_MATCH_TAG, "Error searching database " + cause.toString());
+								}
+							});
+						}
+						
+						@Override
+						public void onFailure(final Exception cause)
+						{
+							hideProgressDialog();
+							showAlert("Could not match", "Error generating template");
+							Log.e(SIMPLE_MATCH_TAG, "Error generating template for " + cause.toString());
+						}
+					});
 				
 				}
 				break;
@@ -2202,28 +2455,25 @@ public class SimpleMatchActivity2 extends Activity implements IBScanListener, IB
 				
 					showProgressDialog("Processing...");
 				
-					final Thread threadEnroll = new Thread()
+					this.m_ibMatcherAsync.singleEnrollmentAsync(images[0], images[1], images[2], 
+							new IBMatcherAsync.Callback<Template>()
 					{
 						@Override
-						public void run()
+						public void onSuccess(final Template template)
 						{
-							try 
-							{
-								final Template template = SimpleMatchActivity2.this.m_ibMatcher.singleEnrollment(
-										images[0], images[1], images[2]);
-								hideProgressDialog();
-								
-								promptForEnrollAction(template);
-							}
-							catch (IBMatcherException ibme)
-							{
-								hideProgressDialog();
-								showAlert("Could not enroll user", "Error generating template.  Please retry.");
-								Log.e(SIMPLE_MATCH_TAG, "Error generating template for " + ibme.getType().toString());
-							}
-						}								
-					};
-					threadEnroll.start();
+							hideProgressDialog();
+							
+							promptForEnrollAction(new Template[] {template});
+						}
+						
+						@Override
+						public void onFailure(final Exception cause)
+						{
+							hideProgressDialog();
+							showAlert("Could not enroll user", "Error generating template.  Please retry.");
+							Log.e(SIMPLE_MATCH_TAG, "Error generating template for " + cause.toString());
+						}
+					});
 					
 					break;
 				}
@@ -2235,28 +2485,54 @@ public class SimpleMatchActivity2 extends Activity implements IBScanListener, IB
 				
 					showProgressDialog("Processing...");
 				
-					final Thread threadEnroll = new Thread()
+					this.m_ibMatcherAsync.multiEnrollmentAsync(images[0], images[1], images[2], images[3], images[4], 
+							images[5], new IBMatcherAsync.Callback<Template[]>()
 					{
 						@Override
-						public void run()
+						public void onSuccess(final Template[] templates)
 						{
-							try 
-							{
-								final Template[] templates = SimpleMatchActivity2.this.m_ibMatcher.multiEnrollment(
-										images[0], images[1], images[2], images[3], images[4], images[5]);
-								hideProgressDialog();
-
-								promptForEnrollAction(templates[0]);
-							}
-							catch (IBMatcherException ibme)
-							{
-								hideProgressDialog();
-								showAlert("Could not enroll user", "Error generating template.  Please retry.");
-								Log.e(SIMPLE_MATCH_TAG, "Error generating template for " + ibme.getType().toString());
-							}
-						}								
-					};
-					threadEnroll.start();
+							hideProgressDialog();
+							
+							promptForEnrollAction(templates);
+						}
+						
+						@Override
+						public void onFailure(final Exception cause)
+						{
+							hideProgressDialog();
+							showAlert("Could not enroll user", "Error generating template.  Please retry.");
+							Log.e(SIMPLE_MATCH_TAG, "Error generating template for " + cause.toString());
+						}
+					});
+					
+					break;
+				}
+					
+				/* See whether the image matches the template of a claimed identity. */
+				case VERIFY:
+				{
+					final ImageDataExt[] images = this.m_lastImageExts;
+				
+					showProgressDialog("Processing...");
+				
+					this.m_ibMatcherAsync.extractTemplateAsync(images[0], new IBMatcherAsync.Callback<Template>()
+					{
+						@Override
+						public void onSuccess(final Template template)
+						{
+							hideProgressDialog();
+							
+							promptForVerify(template);
+						}
+						
+						@Override
+						public void onFailure(final Exception cause)
+						{
+							hideProgressDialog();
+							showAlert("Could not verify", "Error generating template");
+							Log.e(SIMPLE_MATCH_TAG, "Error generating template for " + cause.toString());
+						}
+					});
 					
 					break;
 				}
@@ -2568,6 +2844,8 @@ public class SimpleMatchActivity2 extends Activity implements IBScanListener, IB
 			{
 				SimpleMatchActivity2.this.m_databaseDialog.hide();
 				SimpleMatchActivity2.this.m_databaseDialog = null;
+				SimpleMatchActivity2.this.m_databaseAdapter.close();
+				SimpleMatchActivity2.this.m_databaseAdapter = null;
 			}
 		}	
 	};
@@ -2582,12 +2860,9 @@ public class SimpleMatchActivity2 extends Activity implements IBScanListener, IB
 		{
 			SimpleMatchActivity2.this.m_ibMatcherDatabase.clear();
 			
-			final Cursor cursor = SimpleMatchActivity2.this.m_ibMatcherDatabase.getCursor();
 			if (SimpleMatchActivity2.this.m_databaseDialog != null)
 			{
-				final ListView            listView = (ListView) SimpleMatchActivity2.this.m_databaseDialog.findViewById(android.R.id.list);
-				final SimpleCursorAdapter adapter  = (SimpleCursorAdapter) listView.getAdapter();
-				adapter.changeCursor(cursor);
+				SimpleMatchActivity2.this.m_databaseAdapter.refresh();
 				
 		        /*
 		         * Update information about database.
@@ -2929,7 +3204,7 @@ public class SimpleMatchActivity2 extends Activity implements IBScanListener, IB
 			
 			case CLEARD:
 			{
-				final int[] imageCounts = {1, 1, 3, 6};		
+				final int[] imageCounts = {1, 1, 3, 6, 1};		
 				final int   imageCount  = imageCounts[this.m_actionType.ordinal()];
 				setActionState("capturing image " + (this.m_imagesCaptured + 1) + " of " + imageCount);
 				break;
@@ -79,6 +79,11 @@ import android.widget.Spinner;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.integratedbiometrics.ibscancommon.IBCommon.FingerPosition;
+import com.integratedbiometrics.ibscancommon.IBCommon.ImageDataExt;
+import com.integratedbiometrics.ibscanmatcher.IBMatcher;
+import com.integratedbiometrics.ibscanmatcher.IBMatcher.Template;
+import com.integratedbiometrics.ibscanmatcher.IBMatcherException;
 import com.integratedbiometrics.ibscanultimate.IBScan;
 import com.integratedbiometrics.ibscanultimate.IBScan.SdkVersion;
 import com.integratedbiometrics.ibscanultimate.IBScanDevice;
@@ -169,6 +174,18 @@ public class SimpleScanActivity extends Activity implements IBScanListener, IBSc
     /* The number of finger segments set in the result image. */
     protected static final int FINGER_SEGMENT_COUNT = 4;
 
+    /* The finger names of capture steps, less their prefix, and the finger positions captured. */
+    protected static final String[] FINGER_NAMES = {"Right_Thumb", "Right_Index", "Right_Middle",
+            "Right_Ring", "Right_Little", "Left_Thumb", "Left_Index", "Left_Middle", "Left_Ring",
+            "Left_Little", "Right_4_Fingers", "Left_4_Fingers", "2_Thumbs"};
+    protected static final FingerPosition[] FINGER_POSITIONS = {FingerPosition.RIGHT_THUMB,
+            FingerPosition.RIGHT_INDEX_FINGER, FingerPosition.RIGHT_MIDDLE_FINGER,
+            FingerPosition.RIGHT_RING_FINGER, FingerPosition.RIGHT_LITTLE_FINGER,
+            FingerPosition.LEFT_THUMB, FingerPosition.LEFT_INDEX_FINGER,
+            FingerPosition.LEFT_MIDDLE_FINGER, FingerPosition.LEFT_RING_FINGER,
+            FingerPosition.LEFT_LITTLE_FINGER, FingerPosition.PLAIN_RIGHT_FOUR_FINGERS,
+            FingerPosition.PLAIN_LEFT_FOUR_FINGERS, FingerPosition.PLAIN_THUMBS};
+
 	/* *********************************************************************************************
 	 * PRIVATE CLASSES
 	 ******************************************************************************************** */
@@ -216,6 +233,7 @@ public class SimpleScanActivity extends Activity implements IBScanListener, IBSc
         ImageType ImageType;                // capture mode
         int NumberOfFinger;            // number of finger count
         String fingerName;                // finger name (e.g left thumbs, left index ... )
+        FingerPosition fingerPosition;    // finger position of result image
     }
 
     ;
@@ -271,6 +289,17 @@ public class SimpleScanActivity extends Activity implements IBScanListener, IBSc
     private ImageData m_lastResultImage;
     private ImageData[] m_lastSegmentImages = new ImageData[FINGER_SEGMENT_COUNT];
 
+    /*
+     * Images of the fingers captured so far in a ten-print sequence, by capture step, from which
+     * a ten-print is enrolled or identified once the sequence completes.
+     */
+    private HashMap<Integer, ImageDataExt[]> m_tenPrintImages = new HashMap<Integer, ImageDataExt[]>();
+
+    /*
+     * Database in which ten-prints are enrolled and identified.
+     */
+    private IBMatcherDatabase m_ibMatcherDatabase;
+
     /*
      * Information retained for orientation changes.
      */
@@ -320,6 +349,8 @@ public class SimpleScanActivity extends Activity implements IBScanListener, IBSc
         m_ibScan = IBScan.getInstance(this.getApplicationContext());
         m_ibScan.setScanListener(this);
 
+        m_ibMatcherDatabase = new IBMatcherDatabase(this.getApplicationContext());
+
         Resources r = Resources.getSystem();
         Configuration config = r.getConfiguration();
 
@@ -388,6 +419,8 @@ public class SimpleScanActivity extends Activity implements IBScanListener, IBSc
     protected void onDestroy() {
         super.onDestroy();
 
+        m_ibMatcherDatabase.close();
+
         for (int i = 0; i < 10; i++) {
             try {
                 _ReleaseDevice();
@@ -904,9 +937,60 @@ public class SimpleScanActivity extends Activity implements IBScanListener, IBSc
         info.ImageType = imageType;
         info.NumberOfFinger = NumberOfFinger;
         info.fingerName = fingerName;
+        info.fingerPosition = _GetFingerPosition(fingerName);
         m_vecCaptureSeq.addElement(info);
     }
 
+    /*
+     * Get finger position captured by a capture step from its finger name.
+     */
+    protected FingerPosition _GetFingerPosition(String fingerName) {
+        final String name = fingerName.substring(fingerName.indexOf('_') + 1);
+        for (int i = 0; i < FINGER_NAMES.length; i++) {
+            if (FINGER_NAMES[i].equals(name)) {
+                return FINGER_POSITIONS[i];
+            }
+        }
+        return FingerPosition.UNKNOWN;
+    }
+
+    /*
+     * Determine whether the capture sequence captures a ten-print.
+     */
+    protected boolean _IsTenPrintSequence() {
+        final int nSelectedSeq = m_cboCaptureSeq.getSelectedItemPosition();
+        if (nSelectedSeq < 1) {
+            return false;
+        }
+        final String strCaptureSeq = m_cboCaptureSeq.getSelectedItem().toString();
+        return strCaptureSeq.equals(CAPTURE_SEQ_10_SINGLE_FLAT_FINGERS)
+                || strCaptureSeq.equals(CAPTURE_SEQ_10_SINGLE_ROLLED_FINGERS)
+                || strCaptureSeq.equals(CAPTURE_SEQ_10_FLAT_WITH_4_FINGER_SCANNER);
+    }
+
+    /*
+     * Keep the images of the fingers of the current step of a ten-print sequence, replacing those
+     * of an earlier capture of the step.  A multi-finger result carries the images of its
+     * segments, each tagged with its finger's position, after the whole image.
+     */
+    protected void _KeepTenPrintImages(CaptureInfo info) {
+        if (!_IsTenPrintSequence() || (info.fingerPosition == FingerPosition.UNKNOWN)) {
+            return;
+        }
+
+        try {
+            final Object[] imageInfoExt = getIBScanDevice().getResultImageExt(info.fingerPosition);
+            if (info.NumberOfFinger == 1) {
+                m_tenPrintImages.put(m_nCurrentCaptureStep, new ImageDataExt[]{(ImageDataExt) imageInfoExt[0]});
+            } else if ((imageInfoExt.length > 1) && (imageInfoExt[1] instanceof ImageDataExt[])) {
+                m_tenPrintImages.put(m_nCurrentCaptureStep, (ImageDataExt[]) imageInfoExt[1]);
+            }
+        } catch (IBScanException ibse) {
+            ibse.printStackTrace();
+            _SetStatusBarMessage("Failed to get result image for " + info.fingerName);
+        }
+    }
+
     protected void _UpdateCaptureSequences() {
         try {
             //store currently selected device
@@ -1321,6 +1405,7 @@ public class SimpleScanActivity extends Activity implements IBScanListener, IBSc
                     strCaptureSeq = m_cboCaptureSeq.getSelectedItem().toString();
 
                 m_vecCaptureSeq.clear();
+                m_tenPrintImages.clear();
 
 /** Please refer to definition below
  protected final String CAPTURE_SEQ_FLAT_SINGLE_FINGER 				= "Single flat finger";
@@ -1533,6 +1618,9 @@ public class SimpleScanActivity extends Activity implements IBScanListener, IBSc
                     m_nCurrentCaptureStep = -1;
 
                     OnMsg_UpdateDisplayResources();
+                    if (!m_tenPrintImages.isEmpty()) {
+                        OnMsg_TenPrintCompleted();
+                    }
                     return;
                 }
 
@@ -1715,6 +1803,124 @@ public class SimpleScanActivity extends Activity implements IBScanListener, IBSc
         });
     }
 
+    /*
+     * Extract the templates of a completed ten-print sequence, or of the fingers captured before
+     * it stopped, and prompt to enroll or identify them.
+     */
+    private void OnMsg_TenPrintCompleted() {
+        final ArrayList<ImageDataExt> images = new ArrayList<ImageDataExt>();
+        for (ImageDataExt[] stepImages : m_tenPrintImages.values()) {
+            for (ImageDataExt image : stepImages) {
+                images.add(image);
+            }
+        }
+        m_tenPrintImages.clear();
+
+        _SetStatusBarMessage("Extracting ten-print templates...");
+        new Thread() {
+            @Override
+            public void run() {
+                final ArrayList<Template> templates = new ArrayList<Template>();
+                for (ImageDataExt image : images) {
+                    try {
+                        templates.add(IBMatcher.getInstance().extractTemplate(image));
+                    } catch (IBMatcherException ibme) {
+                        ibme.printStackTrace();
+                    }
+                }
+                if (templates.isEmpty()) {
+                    _SetStatusBarMessage("Failed to extract ten-print templates");
+                    return;
+                }
+                _SetStatusBarMessage("Extracted " + templates.size() + " ten-print templates");
+                OnMsg_AskTenPrintAction(templates.toArray(new Template[templates.size()]));
+            }
+        }.start();
+    }
+
+    private void OnMsg_AskTenPrintAction(final Template[] templates) {
+        runOnUiThread(new Runnable() {
+
+            @Override
+            public void run() {
+                final String actions[] = {"Enroll ten-print", "Identify ten-print"};
+                AlertDialog.Builder dlgAskAction = new AlertDialog.Builder(SimpleScanActivity.this);
+                dlgAskAction.setTitle("Captured " + templates.length + " fingers");
+                dlgAskAction.setItems(actions,
+                        new DialogInterface.OnClickListener() {
+                            public void onClick(DialogInterface dialog, int which) {
+                                if (which == 0) {
+                                    OnMsg_AskTenPrintEnroll(templates);
+                                } else {
+                                    _IdentifyTenPrint(templates);
+                                }
+                            }
+                        });
+                dlgAskAction.setNegativeButton("Cancel", null);
+
+                dlgAskAction.show();
+            }
+        });
+    }
+
+    private void OnMsg_AskTenPrintEnroll(final Template[] templates) {
+        final View userDetailsView = getLayoutInflater().inflate(R.layout.user_create_dialog, null);
+        AlertDialog.Builder dlgAskEnroll = new AlertDialog.Builder(SimpleScanActivity.this);
+        dlgAskEnroll.setTitle("Enter user details");
+        dlgAskEnroll.setView(userDetailsView);
+        dlgAskEnroll.setPositiveButton("OK",
+                new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        final String userName = ((EditText) userDetailsView.findViewById(R.id.user_name)).getText().toString();
+                        final String userDescription = ((EditText) userDetailsView.findViewById(R.id.user_description)).getText().toString();
+                        new Thread() {
+                            @Override
+                            public void run() {
+                                try {
+                                    if (m_ibMatcherDatabase.enrollTenPrint(userName, userDescription, templates)) {
+                                        _SetStatusBarMessage("Enrolled ten-print of \"" + userName + "\"");
+                                    } else {
+                                        _SetStatusBarMessage("Could not enroll ten-print of \"" + userName + "\"");
+                                    }
+                                } catch (IllegalArgumentException iae) {
+                                    _SetStatusBarMessage("Could not enroll ten-print: " + iae.getMessage());
+                                }
+                            }
+                        }.start();
+                    }
+                });
+        dlgAskEnroll.setNegativeButton("Cancel", null);
+
+        dlgAskEnroll.show();
+    }
+
+    /*
+     * Identify a ten-print, or the fingers captured of one, on a background thread, matching the
+     * fingers in parallel and summing each entry's finger scores.
+     */
+    private void _IdentifyTenPrint(final Template[] templates) {
+        _SetStatusBarMessage("Identifying ten-print...");
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    final long start = System.currentTimeMillis();
+                    final IBMatcherDatabase.Entry[] entries = m_ibMatcherDatabase.identifyTenPrint(
+                            templates, 1, IBMatcherFusion.Rule.SUM);
+                    final long elapsed = System.currentTimeMillis() - start;
+                    if (entries.length > 0) {
+                        _SetStatusBarMessage("Identified \"" + entries[0].getName() + "\" with score "
+                                + entries[0].getMatchScore() + " in " + elapsed + " ms");
+                    } else {
+                        _SetStatusBarMessage("No match for ten-print in " + elapsed + " ms");
+                    }
+                } catch (IllegalArgumentException iae) {
+                    _SetStatusBarMessage("Could not identify ten-print: " + iae.getMessage());
+                }
+            }
+        }.start();
+    }
+
     private void OnMsg_AskRecapture(final IBScanException imageStatus) {
         runOnUiThread(new Runnable() {
 
@@ -2414,6 +2620,7 @@ public class SimpleScanActivity extends Activity implements IBScanListener, IBSc
             // Image acquisition successful
             CaptureInfo info = m_vecCaptureSeq.elementAt(m_nCurrentCaptureStep);
             _SetLEDs(info, __LED_COLOR_GREEN__, false);
+            _KeepTenPrintImages(info);
 
             // SAVE IMAGE
 /*			if (m_chkSaveImages.isSelected())